@@ -97,7 +97,7 @@ public class MainActivity extends AppCompatActivity implements LocationUpdate.On
 
     @Override
     protected void onDestroy() {
-        locationUpdate.onDestroy();
+        locationUpdate.onDestroy(this);
         super.onDestroy();
     }
 
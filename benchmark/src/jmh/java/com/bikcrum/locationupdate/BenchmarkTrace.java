@@ -0,0 +1,177 @@
+package com.bikcrum.locationupdate;
+
+import android.location.Location;
+
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fixes the benchmarks feed in, looped endlessly with times that keep increasing.
+ * <p/>
+ * {@link #SYNTHETIC} is a random walk with GPS like noise. {@link #REPLAY} is the trace given with
+ * {@code -Ptrace=path} (GPX or CSV), or the sample walk bundled with the benchmarks, read through
+ * {@link ReplayLocationSource}. Any other {@link LocationSource} can fill a trace as well, its
+ * fixes are recorded whether they come as {@link Location}s or as primitives.
+ */
+final class BenchmarkTrace implements LocationSource.Callback {
+
+    static final String SYNTHETIC = "synthetic";
+    static final String REPLAY = "replay";
+
+    private double[] latitudes = new double[1024];
+    private double[] longitudes = new double[1024];
+    private float[] accuracies = new float[1024];
+    private float[] speeds = new float[1024];
+    private float[] bearings = new float[1024];
+    private long[] times = new long[1024];
+    private long[] elapsedRealtimeNanos = new long[1024];
+    private int size;
+
+    private int index = -1;
+    private long lap;
+    private long lapNanos;
+
+    static BenchmarkTrace load(String kind) throws IOException {
+        BenchmarkTrace trace = new BenchmarkTrace();
+        if (SYNTHETIC.equals(kind)) {
+            trace.generate(3600);
+        } else {
+            trace.replay(kind);
+        }
+        trace.lapNanos = trace.elapsedRealtimeNanos[trace.size - 1] - trace.elapsedRealtimeNanos[0] + 1000000000L;
+        return trace;
+    }
+
+    private void generate(int seconds) {
+        Random random = new Random(42);
+        double latitude = 27.7172, longitude = 85.3240, heading = 0;
+        for (int second = 0; second < seconds; second++) {
+            if (second % 120 == 0) {
+                heading += random.nextGaussian();
+            }
+            double speed = second % 600 < 60 ? 0 : 1.4;
+            latitude += Math.cos(heading) * speed / Geo.METERS_PER_DEGREE;
+            longitude += Math.sin(heading) * speed / Geo.metersPerDegreeLongitude(latitude);
+            onFix(latitude + random.nextGaussian() * 4 / Geo.METERS_PER_DEGREE,
+                    longitude + random.nextGaussian() * 4 / Geo.metersPerDegreeLongitude(latitude),
+                    4 + random.nextInt(8), (float) speed, (float) Math.toDegrees(heading),
+                    1539000000000L + second * 1000L, second * 1000000000L);
+        }
+    }
+
+    private void replay(String kind) throws IOException {
+        String path = System.getProperty("trace");
+        ReplayLocationSource source;
+        if (path == null) {
+            try (InputStream input = BenchmarkTrace.class.getResourceAsStream("/sample-walk.gpx")) {
+                source = ReplayLocationSource.fromGpx(input);
+            }
+        } else if (path.endsWith(".csv")) {
+            try (Reader reader = new FileReader(path)) {
+                source = ReplayLocationSource.fromCsv(reader);
+            }
+        } else {
+            try (InputStream input = new FileInputStream(path)) {
+                source = ReplayLocationSource.fromGpx(input);
+            }
+        }
+        if (source.size() == 0) {
+            throw new IOException("Trace " + (path != null ? path : "sample-walk.gpx") + " for " + kind + " is empty");
+        }
+        source.setSpeedFactor(0);
+        source.replay(this);
+    }
+
+    @Override
+    public void onLocation(Location location) {
+        onFix(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                location.getSpeed(), location.getBearing(), location.getTime(),
+                location.getElapsedRealtimeNanos());
+    }
+
+    @Override
+    public void onLocations(List<Location> locations) {
+        for (int i = 0, len = locations.size(); i < len; i++) {
+            onLocation(locations.get(i));
+        }
+    }
+
+    @Override
+    public void onFix(double latitude, double longitude, float accuracy, float speed, float bearing,
+                      long time, long elapsedRealtimeNanos) {
+        if (size == times.length) {
+            int capacity = size * 2;
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            accuracies = Arrays.copyOf(accuracies, capacity);
+            speeds = Arrays.copyOf(speeds, capacity);
+            bearings = Arrays.copyOf(bearings, capacity);
+            times = Arrays.copyOf(times, capacity);
+            this.elapsedRealtimeNanos = Arrays.copyOf(this.elapsedRealtimeNanos, capacity);
+        }
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        accuracies[size] = accuracy;
+        speeds[size] = speed;
+        bearings[size] = bearing;
+        times[size] = time;
+        this.elapsedRealtimeNanos[size] = elapsedRealtimeNanos;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Moves to the next fix, read it with the getters.
+     */
+    void advance() {
+        if (++index == size) {
+            index = 0;
+            lap++;
+        }
+    }
+
+    double latitude() {
+        return latitudes[index];
+    }
+
+    double longitude() {
+        return longitudes[index];
+    }
+
+    float accuracy() {
+        return accuracies[index];
+    }
+
+    float speed() {
+        return speeds[index];
+    }
+
+    float bearing() {
+        return bearings[index];
+    }
+
+    long time() {
+        return times[index] + lap * lapNanos / 1000000L;
+    }
+
+    long elapsedRealtimeNanos() {
+        return elapsedRealtimeNanos[index] + lap * lapNanos;
+    }
+
+    /**
+     * Moves to the next fix and copies it into {@code fix}.
+     */
+    void next(Fix fix) {
+        advance();
+        fix.set(null, latitude(), longitude(), accuracy(), speed(), bearing(), time(), elapsedRealtimeNanos());
+    }
+}
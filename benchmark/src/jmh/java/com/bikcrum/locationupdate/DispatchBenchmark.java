@@ -0,0 +1,66 @@
+package com.bikcrum.locationupdate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * One fix from a {@link LocationSource} to the listeners: through the {@link FixPipeline} without
+ * processors, fanned out by the {@link FixDispatcher} on the delivery thread. This is the path every
+ * fix takes in {@link LocationUpdate}.
+ */
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    @Param({BenchmarkTrace.SYNTHETIC, BenchmarkTrace.REPLAY})
+    public String trace;
+
+    @Param({"1", "8"})
+    public int listeners;
+
+    private BenchmarkTrace fixes;
+    private FixPipeline pipeline;
+    private FixPipeline decimatingPipeline;
+
+    // Written by the listeners so their work is not optimized away.
+    private double sink;
+
+    @Setup
+    public void setUp() throws IOException {
+        fixes = BenchmarkTrace.load(trace);
+
+        FixDispatcher dispatcher = new FixDispatcher();
+        FixDispatcher decimatingDispatcher = new FixDispatcher();
+        for (int i = 0; i < listeners; i++) {
+            dispatcher.add(listener(), 0, FixDispatcher.THREAD_DELIVERY);
+            // A mix of listeners at 1, 5 and 10 seconds.
+            decimatingDispatcher.add(listener(), new long[]{1000, 5000, 10000}[i % 3], FixDispatcher.THREAD_DELIVERY);
+        }
+        pipeline = new FixPipeline(dispatcher);
+        decimatingPipeline = new FixPipeline(decimatingDispatcher);
+    }
+
+    private LocationUpdate.OnRawLocationUpdatedListener listener() {
+        return (latitude, longitude, accuracy, elapsedRealtimeNanos) -> sink += latitude + accuracy;
+    }
+
+    @Benchmark
+    public double dispatch() {
+        fixes.advance();
+        pipeline.onFix(fixes.latitude(), fixes.longitude(), fixes.accuracy(), fixes.speed(),
+                fixes.bearing(), fixes.time(), fixes.elapsedRealtimeNanos());
+        return sink;
+    }
+
+    @Benchmark
+    public double dispatchWithIntervals() {
+        fixes.advance();
+        decimatingPipeline.onFix(fixes.latitude(), fixes.longitude(), fixes.accuracy(), fixes.speed(),
+                fixes.bearing(), fixes.time(), fixes.elapsedRealtimeNanos());
+        return sink;
+    }
+}
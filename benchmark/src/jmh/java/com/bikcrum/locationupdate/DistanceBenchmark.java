@@ -0,0 +1,98 @@
+package com.bikcrum.locationupdate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Distance between consecutive fixes, per pair over a million pairs: the ellipsoidal computation of
+ * {@code Location.distanceTo} against haversine, the flat earth approximation with a cosine per
+ * pair, and {@link Distance#between} with a cosine per region.
+ */
+@State(Scope.Thread)
+public class DistanceBenchmark {
+
+    private static final int PAIRS = 1 << 20;
+
+    // Walks of 1000 steps of up to 30 m, one started every 1000 pairs anywhere below 60 degrees.
+    private final double[] latitudes = new double[PAIRS + 1];
+    private final double[] longitudes = new double[PAIRS + 1];
+
+    private final Distance distance = new Distance();
+    private final Odometer odometer = new Odometer();
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(11);
+        double latitude = 0;
+        double longitude = 0;
+        for (int i = 0; i <= PAIRS; i++) {
+            if (i % 1000 == 0) {
+                latitude = (random.nextDouble() - 0.5) * 120;
+                longitude = (random.nextDouble() - 0.5) * 340;
+            }
+            double step = random.nextDouble() * 30;
+            double heading = random.nextDouble() * 2 * Math.PI;
+            latitude += step * Math.cos(heading) / Geo.METERS_PER_DEGREE;
+            longitude += step * Math.sin(heading) / Geo.metersPerDegreeLongitude(latitude);
+            latitudes[i] = latitude;
+            longitudes[i] = longitude;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public double distanceTo() {
+        double sum = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            float[] results = new float[1];
+            VincentyDistance.distanceBetween(latitudes[i], longitudes[i], latitudes[i + 1], longitudes[i + 1], results);
+            sum += results[0];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public double haversine() {
+        double sum = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            sum += Distance.haversine(latitudes[i], longitudes[i], latitudes[i + 1], longitudes[i + 1]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public double equirectangular() {
+        double sum = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            sum += Distance.equirectangular(latitudes[i], longitudes[i], latitudes[i + 1], longitudes[i + 1]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public double between() {
+        double sum = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            sum += distance.between(latitudes[i], longitudes[i], latitudes[i + 1], longitudes[i + 1]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public double odometer() {
+        odometer.reset();
+        for (int i = 0; i < PAIRS; i++) {
+            odometer.add(latitudes[i], longitudes[i], 0);
+        }
+        return odometer.getDistanceInMeters();
+    }
+}
@@ -0,0 +1,62 @@
+package com.bikcrum.locationupdate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * Encoding fixes into {@link FixFrame}s for upload, and decoding them on the receiving side.
+ */
+@State(Scope.Thread)
+public class EncodingBenchmark {
+
+    private static final int FIXES_PER_FRAME = 300;
+
+    @Param({BenchmarkTrace.SYNTHETIC, BenchmarkTrace.REPLAY})
+    public String trace;
+
+    private BenchmarkTrace fixes;
+    private final FixFrame.Encoder encoder = new FixFrame.Encoder();
+    private byte[] frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        fixes = BenchmarkTrace.load(trace);
+        FixFrame.Encoder full = new FixFrame.Encoder();
+        for (int i = 0; i < FIXES_PER_FRAME; i++) {
+            fixes.advance();
+            full.add(fixes.latitude(), fixes.longitude(), fixes.accuracy(), fixes.time());
+        }
+        frame = full.toByteArray();
+    }
+
+    /**
+     * One fix added to a frame, which is started over every {@value #FIXES_PER_FRAME} fixes.
+     */
+    @Benchmark
+    public int encodeFix() {
+        if (encoder.size() == FIXES_PER_FRAME) {
+            encoder.reset();
+        }
+        fixes.advance();
+        encoder.add(fixes.latitude(), fixes.longitude(), fixes.accuracy(), fixes.time());
+        return encoder.length();
+    }
+
+    /**
+     * A whole frame of {@value #FIXES_PER_FRAME} fixes.
+     */
+    @Benchmark
+    public double decodeFrame() throws IOException {
+        FixFrame.Decoder decoder = new FixFrame.Decoder(frame, 0, frame.length);
+        double sum = 0;
+        while (decoder.next()) {
+            sum += decoder.getLatitude();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,53 @@
+package com.bikcrum.locationupdate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * The {@link FixProcessor} stages, one fix per operation. Geofences are measured by
+ * {@link GeofenceBenchmark}.
+ */
+@State(Scope.Thread)
+public class FilterBenchmark {
+
+    @Param({BenchmarkTrace.SYNTHETIC, BenchmarkTrace.REPLAY})
+    public String trace;
+
+    private BenchmarkTrace fixes;
+    private final Fix fix = new Fix();
+
+    private KalmanFilter kalmanFilter;
+    private TrackSimplifier simplifier;
+    private AdaptiveIntervalScheduler scheduler;
+
+    @Setup
+    public void setUp() throws IOException {
+        fixes = BenchmarkTrace.load(trace);
+        kalmanFilter = new KalmanFilter();
+        simplifier = new TrackSimplifier(fix -> true, 5);
+        scheduler = new AdaptiveIntervalScheduler();
+    }
+
+    @Benchmark
+    public boolean kalmanFilter() {
+        fixes.next(fix);
+        return kalmanFilter.process(fix);
+    }
+
+    @Benchmark
+    public boolean simplifier() {
+        fixes.next(fix);
+        return simplifier.process(fix);
+    }
+
+    @Benchmark
+    public boolean adaptiveInterval() {
+        fixes.next(fix);
+        return scheduler.process(fix);
+    }
+}
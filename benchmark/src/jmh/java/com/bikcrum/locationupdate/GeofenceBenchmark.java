@@ -0,0 +1,90 @@
+package com.bikcrum.locationupdate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * {@link GeofenceEngine} per fix, with circles and quadrilaterals of 20 m to 300 m within 20 km of
+ * the start of the trace: along the trace, and at fixes scattered over the whole area, which
+ * enter and leave fences far more often.
+ */
+@State(Scope.Thread)
+public class GeofenceBenchmark {
+
+    private static final int SCATTERED_FIXES = 1024;
+    private static final double SPREAD_METERS = 20000;
+
+    @Param({BenchmarkTrace.SYNTHETIC, BenchmarkTrace.REPLAY})
+    public String trace;
+
+    @Param({"1000", "50000"})
+    public int fences;
+
+    private BenchmarkTrace fixes;
+    private final Fix fix = new Fix();
+    private GeofenceEngine engine;
+
+    private final double[] scatteredLatitudes = new double[SCATTERED_FIXES];
+    private final double[] scatteredLongitudes = new double[SCATTERED_FIXES];
+    private long scatteredSecond;
+
+    @Setup
+    public void setUp() throws IOException {
+        fixes = BenchmarkTrace.load(trace);
+        fixes.advance();
+        double latitude = fixes.latitude();
+        double longitude = fixes.longitude();
+        double metersPerDegreeLongitude = Geo.metersPerDegreeLongitude(latitude);
+
+        engine = new GeofenceEngine();
+        Random random = new Random(2);
+        for (int i = 0; i < fences; i++) {
+            double fenceLatitude = latitude + (random.nextDouble() - 0.5) * SPREAD_METERS / Geo.METERS_PER_DEGREE;
+            double fenceLongitude = longitude + (random.nextDouble() - 0.5) * SPREAD_METERS / metersPerDegreeLongitude;
+            double size = 20 + random.nextDouble() * 280;
+            if (random.nextBoolean()) {
+                engine.add(Geofence.circle("fence" + i, fenceLatitude, fenceLongitude, (float) size));
+                continue;
+            }
+            double latitudeSize = size / Geo.METERS_PER_DEGREE;
+            double longitudeSize = size / metersPerDegreeLongitude;
+            engine.add(Geofence.polygon("fence" + i,
+                    new double[]{fenceLatitude, fenceLatitude + latitudeSize * random.nextDouble(),
+                            fenceLatitude + latitudeSize, fenceLatitude + latitudeSize * random.nextDouble()},
+                    new double[]{fenceLongitude, fenceLongitude - longitudeSize * random.nextDouble(),
+                            fenceLongitude, fenceLongitude + longitudeSize * random.nextDouble()}));
+        }
+        for (int i = 0; i < SCATTERED_FIXES; i++) {
+            scatteredLatitudes[i] = latitude + (random.nextDouble() - 0.5) * 2 * SPREAD_METERS / Geo.METERS_PER_DEGREE;
+            scatteredLongitudes[i] = longitude + (random.nextDouble() - 0.5) * 2 * SPREAD_METERS / metersPerDegreeLongitude;
+        }
+    }
+
+    @Benchmark
+    public boolean alongTrace() {
+        fixes.next(fix);
+        return engine.process(fix);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SCATTERED_FIXES)
+    public int scattered() {
+        int kept = 0;
+        for (int i = 0; i < SCATTERED_FIXES; i++) {
+            long second = scatteredSecond++;
+            fix.set(null, scatteredLatitudes[i], scatteredLongitudes[i], 5, 0, 0, second * 1000L,
+                    second * 1000000000L);
+            if (engine.process(fix)) {
+                kept++;
+            }
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,76 @@
+package com.bikcrum.locationupdate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Storing fixes: the in-memory {@link TrackHistory} and the memory-mapped {@link TrackLog}.
+ */
+@State(Scope.Thread)
+public class HistoryBenchmark {
+
+    @Param({BenchmarkTrace.SYNTHETIC, BenchmarkTrace.REPLAY})
+    public String trace;
+
+    private BenchmarkTrace fixes;
+    private final Fix fix = new Fix();
+
+    private TrackHistory history;
+    private TrackHistory.Snapshot snapshot;
+    private File logDirectory;
+    private TrackLog log;
+
+    @Setup
+    public void setUp() throws IOException {
+        fixes = BenchmarkTrace.load(trace);
+        history = new TrackHistory(3600);
+        for (int i = 0; i < 3600; i++) {
+            fixes.next(fix);
+            history.process(fix);
+        }
+        logDirectory = Files.createTempDirectory("track-log").toFile();
+        log = new TrackLog(logDirectory);
+    }
+
+    @TearDown
+    public void tearDown() {
+        log.close();
+        File[] files = logDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        logDirectory.delete();
+    }
+
+    @Benchmark
+    public boolean historyAdd() {
+        fixes.next(fix);
+        return history.process(fix);
+    }
+
+    /**
+     * Copies the last minute, into a reused snapshot.
+     */
+    @Benchmark
+    public int historySnapshot() {
+        long newest = history.getTime(history.getNextSequence() - 1);
+        snapshot = history.snapshot(newest - 60000, Long.MAX_VALUE, snapshot);
+        return snapshot.size();
+    }
+
+    @Benchmark
+    public boolean logAppend() {
+        fixes.next(fix);
+        return log.process(fix);
+    }
+}
@@ -0,0 +1,67 @@
+package com.bikcrum.locationupdate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * {@link MapMatcher} on a street grid 100 m apart around the trace, one fix per operation.
+ */
+@State(Scope.Thread)
+public class MapMatchBenchmark {
+
+    private static final double SPACING_IN_METERS = 100;
+
+    @Param({BenchmarkTrace.SYNTHETIC, BenchmarkTrace.REPLAY})
+    public String trace;
+
+    private BenchmarkTrace fixes;
+    private final Fix fix = new Fix();
+
+    private MapMatcher matcher;
+    private long matched;
+
+    @Setup
+    public void setUp() throws IOException {
+        fixes = BenchmarkTrace.load(trace);
+        double minLatitude = Double.MAX_VALUE, maxLatitude = -Double.MAX_VALUE;
+        double minLongitude = Double.MAX_VALUE, maxLongitude = -Double.MAX_VALUE;
+        for (int i = 0; i < fixes.size(); i++) {
+            fixes.advance();
+            minLatitude = Math.min(minLatitude, fixes.latitude());
+            maxLatitude = Math.max(maxLatitude, fixes.latitude());
+            minLongitude = Math.min(minLongitude, fixes.longitude());
+            maxLongitude = Math.max(maxLongitude, fixes.longitude());
+        }
+
+        // Streets a block beyond the trace on every side.
+        double latitudeSpacing = SPACING_IN_METERS / Geo.METERS_PER_DEGREE;
+        double longitudeSpacing = SPACING_IN_METERS / Geo.metersPerDegreeLongitude(minLatitude);
+        int rows = (int) Math.ceil((maxLatitude - minLatitude) / latitudeSpacing) + 3;
+        int columns = (int) Math.ceil((maxLongitude - minLongitude) / longitudeSpacing) + 3;
+        RoadGraph.Builder builder = new RoadGraph.Builder();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int node = builder.addNode(minLatitude + (row - 1) * latitudeSpacing,
+                        minLongitude + (column - 1) * longitudeSpacing);
+                if (column > 0) {
+                    builder.addRoad(node - 1, node, false);
+                }
+                if (row > 0) {
+                    builder.addRoad(node - columns, node, false);
+                }
+            }
+        }
+        matcher = new MapMatcher(builder.build(), (time, edge, latitude, longitude) -> matched++);
+    }
+
+    @Benchmark
+    public boolean mapMatcher() {
+        fixes.next(fix);
+        return matcher.process(fix);
+    }
+}
@@ -0,0 +1,102 @@
+package com.bikcrum.locationupdate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Nearest points of interest to a fix, per query: {@link PointIndex} against a linear scan with
+ * haversine over the same points, and building the index.
+ */
+@State(Scope.Thread)
+public class NearestBenchmark {
+
+    private static final int QUERIES = 1024;
+
+    @Param({"10000", "1000000"})
+    public int points;
+
+    // Points spread over a region of 10 by 10 degrees, queries within it.
+    private double[] latitudesAndLongitudes;
+    private final double[] queryLatitudes = new double[QUERIES];
+    private final double[] queryLongitudes = new double[QUERIES];
+
+    private PointIndex index;
+    private final int[] positions = new int[16];
+    private final double[] distances = new double[16];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(13);
+        latitudesAndLongitudes = new double[2 * points];
+        for (int i = 0; i < points; i++) {
+            latitudesAndLongitudes[2 * i] = 40 + random.nextDouble() * 10;
+            latitudesAndLongitudes[2 * i + 1] = -5 + random.nextDouble() * 10;
+        }
+        for (int i = 0; i < QUERIES; i++) {
+            queryLatitudes[i] = 40 + random.nextDouble() * 10;
+            queryLongitudes[i] = -5 + random.nextDouble() * 10;
+        }
+        index = new PointIndex(latitudesAndLongitudes);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int linearScan() {
+        int sum = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            int nearest = -1;
+            double nearestDistance = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < points; i++) {
+                double distance = Distance.haversine(queryLatitudes[q], queryLongitudes[q],
+                        latitudesAndLongitudes[2 * i], latitudesAndLongitudes[2 * i + 1]);
+                if (distance < nearestDistance) {
+                    nearestDistance = distance;
+                    nearest = i;
+                }
+            }
+            sum += nearest;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int nearest() {
+        int sum = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            sum += index.nearest(queryLatitudes[q], queryLongitudes[q]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int nearest16() {
+        int sum = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            sum += index.nearest(queryLatitudes[q], queryLongitudes[q], 16, positions, distances);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int withinRadius() {
+        int sum = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            sum += index.withinRadius(queryLatitudes[q], queryLongitudes[q], 1000, positions);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public PointIndex build() {
+        return new PointIndex(latitudesAndLongitudes);
+    }
+}
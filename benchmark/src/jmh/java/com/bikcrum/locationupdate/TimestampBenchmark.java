@@ -0,0 +1,39 @@
+package com.bikcrum.locationupdate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Time handling per fix: the time handed to {@link LocationUpdate.OnLocationUpdatedListener}s and
+ * {@link LocationUpdate.OnLazyLocationUpdatedListener}s, and parsing the times of recorded traces.
+ */
+@State(Scope.Thread)
+public class TimestampBenchmark {
+
+    private long time = 1539000000000L;
+
+    /**
+     * What a lazy listener that does not read the time costs.
+     */
+    @Benchmark
+    public CharSequence fixTime() {
+        time += 1000;
+        return new FixTime(time);
+    }
+
+    /**
+     * What an {@link LocationUpdate.OnLocationUpdatedListener} costs, whether it shows the time or
+     * not, and a lazy listener that shows it.
+     */
+    @Benchmark
+    public String formatTime() {
+        time += 1000;
+        return FixTime.format(time);
+    }
+
+    @Benchmark
+    public long parseIsoTime() {
+        return ReplayLocationSource.parseIsoTime("2018-10-08T12:00:00.123Z");
+    }
+}
@@ -0,0 +1,69 @@
+package com.bikcrum.locationupdate;
+
+/**
+ * The ellipsoidal distance {@code Location.distanceTo} computes, for comparison: Vincenty's inverse
+ * formula on the WGS84 ellipsoid, iterated until the longitude converges, with the result array
+ * {@code Location.distanceBetween} fills. The android.jar the benchmarks compile against only
+ * holds stubs, so the computation is repeated here.
+ */
+final class VincentyDistance {
+
+    private static final double A = 6378137.0;
+    private static final double B = 6356752.3142;
+    private static final double F = (A - B) / A;
+    private static final int MAX_ITERATIONS = 20;
+
+    private VincentyDistance() {
+    }
+
+    static void distanceBetween(double latitude1, double longitude1, double latitude2, double longitude2,
+                                float[] results) {
+        double aSqMinusBSqOverBSq = (A * A - B * B) / (B * B);
+        double l = Math.toRadians(longitude2 - longitude1);
+        double u1 = Math.atan((1.0 - F) * Math.tan(Math.toRadians(latitude1)));
+        double u2 = Math.atan((1.0 - F) * Math.tan(Math.toRadians(latitude2)));
+        double cosU1 = Math.cos(u1);
+        double cosU2 = Math.cos(u2);
+        double sinU1 = Math.sin(u1);
+        double sinU2 = Math.sin(u2);
+        double cosU1cosU2 = cosU1 * cosU2;
+        double sinU1sinU2 = sinU1 * sinU2;
+
+        double sigma = 0.0;
+        double deltaSigma = 0.0;
+        double cosSqAlpha;
+        double cos2SM;
+        double cosSigma;
+        double sinSigma;
+        double lambda = l;
+        double a = 0.0;
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            double lambdaOrig = lambda;
+            double cosLambda = Math.cos(lambda);
+            double sinLambda = Math.sin(lambda);
+            double t1 = cosU2 * sinLambda;
+            double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            double sinSqSigma = t1 * t1 + t2 * t2;
+            sinSigma = Math.sqrt(sinSqSigma);
+            cosSigma = sinU1sinU2 + cosU1cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = sinSigma == 0 ? 0.0 : cosU1cosU2 * sinLambda / sinSigma;
+            cosSqAlpha = 1.0 - sinAlpha * sinAlpha;
+            cos2SM = cosSqAlpha == 0 ? 0.0 : cosSigma - 2.0 * sinU1sinU2 / cosSqAlpha;
+
+            double uSquared = cosSqAlpha * aSqMinusBSqOverBSq;
+            a = 1 + (uSquared / 16384.0) * (4096.0 + uSquared * (-768 + uSquared * (320.0 - 175.0 * uSquared)));
+            double b = (uSquared / 1024.0) * (256.0 + uSquared * (-128.0 + uSquared * (74.0 - 47.0 * uSquared)));
+            double c = (F / 16.0) * cosSqAlpha * (4.0 + F * (4.0 - 3.0 * cosSqAlpha));
+            double cos2SMSq = cos2SM * cos2SM;
+            deltaSigma = b * sinSigma * (cos2SM + (b / 4.0) * (cosSigma * (-1.0 + 2.0 * cos2SMSq)
+                    - (b / 6.0) * cos2SM * (-3.0 + 4.0 * sinSigma * sinSigma) * (-3.0 + 4.0 * cos2SMSq)));
+            lambda = l + (1.0 - c) * F * sinAlpha
+                    * (sigma + c * sinSigma * (cos2SM + c * cosSigma * (-1.0 + 2.0 * cos2SM * cos2SM)));
+            if (Math.abs((lambda - lambdaOrig) / lambda) < 1.0e-12) {
+                break;
+            }
+        }
+        results[0] = (float) (B * a * (sigma - deltaSigma));
+    }
+}
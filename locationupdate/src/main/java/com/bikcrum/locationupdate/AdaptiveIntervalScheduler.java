@@ -0,0 +1,236 @@
+package com.bikcrum.locationupdate;
+
+import com.google.android.gms.location.LocationRequest;
+
+/**
+ * Picks the location request settings from how fast the device is moving.
+ * <p/>
+ * Each fix updates a smoothed speed, from {@link Fix#getSpeed()} or, when the provider reports
+ * none, from the distance to the previous fix. The speed puts the device into one of three
+ * {@link Motion}s, each with its own {@link Tier} of request settings. Moving to a faster motion
+ * needs {@link #setUpgradeFixCount(int)} fixes in a row, or for a stationary device just leaving
+ * the radius it was resting in. Moving to a slower motion needs the speed to stay below a lower
+ * threshold for {@link #setDowngradeDelayInMilliseconds(long)}, and a device only counts as
+ * stationary while it stays within {@link #setStationaryRadiusInMeters(float)}. That keeps the
+ * request from flapping at red lights and on noisy fixes.
+ *
+ * @see LocationUpdate#enableAdaptiveInterval()
+ */
+public final class AdaptiveIntervalScheduler implements FixProcessor {
+
+    public enum Motion {
+        STATIONARY, WALKING, DRIVING
+    }
+
+    /**
+     * Location request settings used while in a motion.
+     */
+    public static final class Tier {
+        private final long intervalInMilliseconds;
+        private final long fastestIntervalInMilliseconds;
+        private final int priority;
+        private final float smallestDisplacementInMeters;
+
+        /**
+         * @param priority one of the {@code LocationRequest.PRIORITY_} constants
+         */
+        public Tier(long intervalInMilliseconds, long fastestIntervalInMilliseconds, int priority,
+                    float smallestDisplacementInMeters) {
+            this.intervalInMilliseconds = intervalInMilliseconds;
+            this.fastestIntervalInMilliseconds = fastestIntervalInMilliseconds;
+            this.priority = priority;
+            this.smallestDisplacementInMeters = smallestDisplacementInMeters;
+        }
+
+        public long getIntervalInMilliseconds() {
+            return intervalInMilliseconds;
+        }
+
+        public long getFastestIntervalInMilliseconds() {
+            return fastestIntervalInMilliseconds;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public float getSmallestDisplacementInMeters() {
+            return smallestDisplacementInMeters;
+        }
+    }
+
+    public interface OnMotionChangedListener {
+        /**
+         * Called on the delivery thread.
+         */
+        void onMotionChanged(Motion motion, Tier tier);
+    }
+
+    // Exponential smoothing factor for the speed.
+    private static final double SPEED_SMOOTHING = 0.3;
+    // Slowing down has to go this far below a threshold, so noise around it does not flap.
+    private static final double DOWNGRADE_FACTOR = 0.75;
+
+    private final Tier[] tiers = {
+            new Tier(60000, 30000, LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, 20),
+            new Tier(10000, 5000, LocationRequest.PRIORITY_HIGH_ACCURACY, 5),
+            new Tier(5000, 2000, LocationRequest.PRIORITY_HIGH_ACCURACY, 10),
+    };
+
+    private float walkingSpeed = 0.8f;
+    private float drivingSpeed = 4f;
+    private float stationaryRadiusInMeters = 30f;
+    private int upgradeFixCount = 2;
+    private long downgradeDelayInMilliseconds = 120000;
+
+    private OnMotionChangedListener listener;
+
+    private Motion motion = Motion.WALKING;
+    private boolean hasPrevious;
+    private double previousLatitude;
+    private double previousLongitude;
+    private long previousElapsedRealtimeNanos;
+    private double smoothedSpeed;
+
+    private int fasterFixCount;
+    private long slowerSinceNanos = -1;
+    private double anchorLatitude;
+    private double anchorLongitude;
+
+    public void setOnMotionChangedListener(OnMotionChangedListener listener) {
+        this.listener = listener;
+    }
+
+    public void setTier(Motion motion, Tier tier) {
+        tiers[motion.ordinal()] = tier;
+    }
+
+    public Tier getTier(Motion motion) {
+        return tiers[motion.ordinal()];
+    }
+
+    public Motion getMotion() {
+        return motion;
+    }
+
+    /**
+     * @return the smoothed speed in m/s
+     */
+    public double getSpeed() {
+        return smoothedSpeed;
+    }
+
+    /**
+     * @param walkingSpeed in m/s, slower counts as stationary. Default is 0.8.
+     * @param drivingSpeed in m/s, faster counts as driving. Default is 4.
+     */
+    public void setSpeedThresholds(float walkingSpeed, float drivingSpeed) {
+        this.walkingSpeed = walkingSpeed;
+        this.drivingSpeed = drivingSpeed;
+    }
+
+    /**
+     * @param stationaryRadiusInMeters default is 30
+     */
+    public void setStationaryRadiusInMeters(float stationaryRadiusInMeters) {
+        this.stationaryRadiusInMeters = stationaryRadiusInMeters;
+    }
+
+    /**
+     * @param upgradeFixCount default is 2
+     */
+    public void setUpgradeFixCount(int upgradeFixCount) {
+        this.upgradeFixCount = upgradeFixCount;
+    }
+
+    /**
+     * @param downgradeDelayInMilliseconds default is 120000
+     */
+    public void setDowngradeDelayInMilliseconds(long downgradeDelayInMilliseconds) {
+        this.downgradeDelayInMilliseconds = downgradeDelayInMilliseconds;
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        if (fix.isProvisional()) {
+            return true;
+        }
+        double latitude = fix.getLatitude();
+        double longitude = fix.getLongitude();
+        long now = fix.getElapsedRealtimeNanos();
+
+        double speed = fix.getSpeed();
+        if (speed <= 0 && hasPrevious && now > previousElapsedRealtimeNanos) {
+            speed = Geo.haversine(previousLatitude, previousLongitude, latitude, longitude)
+                    / ((now - previousElapsedRealtimeNanos) / 1e9);
+        }
+        smoothedSpeed = hasPrevious ? smoothedSpeed + SPEED_SMOOTHING * (speed - smoothedSpeed) : speed;
+        hasPrevious = true;
+        previousLatitude = latitude;
+        previousLongitude = longitude;
+        previousElapsedRealtimeNanos = now;
+
+        Motion next = evaluate(latitude, longitude, now);
+        if (next != motion) {
+            motion = next;
+            fasterFixCount = 0;
+            slowerSinceNanos = -1;
+            anchorLatitude = latitude;
+            anchorLongitude = longitude;
+            if (listener != null) {
+                listener.onMotionChanged(motion, tiers[motion.ordinal()]);
+            }
+        }
+        return true;
+    }
+
+    private Motion evaluate(double latitude, double longitude, long now) {
+        if (motion == Motion.STATIONARY && Geo.haversine(anchorLatitude, anchorLongitude,
+                latitude, longitude) > stationaryRadiusInMeters) {
+            // With long intervals there may not be enough fixes to notice the speed, having left
+            // the resting place is enough.
+            return classify(smoothedSpeed, 1) == Motion.DRIVING ? Motion.DRIVING : Motion.WALKING;
+        }
+
+        Motion faster = classify(smoothedSpeed, 1);
+        if (faster.ordinal() > motion.ordinal()) {
+            slowerSinceNanos = -1;
+            return ++fasterFixCount >= upgradeFixCount ? faster : motion;
+        }
+        fasterFixCount = 0;
+
+        Motion slower = classify(smoothedSpeed, DOWNGRADE_FACTOR);
+        if (slower.ordinal() >= motion.ordinal()) {
+            slowerSinceNanos = -1;
+            return motion;
+        }
+        if (slowerSinceNanos < 0) {
+            slowerSinceNanos = now;
+            anchorLatitude = latitude;
+            anchorLongitude = longitude;
+            return motion;
+        }
+        if (slower == Motion.STATIONARY && Geo.haversine(anchorLatitude, anchorLongitude,
+                latitude, longitude) > stationaryRadiusInMeters) {
+            // Slow but still drifting away, not resting yet.
+            slowerSinceNanos = now;
+            anchorLatitude = latitude;
+            anchorLongitude = longitude;
+            return motion;
+        }
+        if (now - slowerSinceNanos >= downgradeDelayInMilliseconds * 1000000L) {
+            return slower;
+        }
+        return motion;
+    }
+
+    private Motion classify(double speed, double factor) {
+        if (speed >= drivingSpeed * factor) {
+            return Motion.DRIVING;
+        }
+        if (speed >= walkingSpeed * factor) {
+            return Motion.WALKING;
+        }
+        return Motion.STATIONARY;
+    }
+}
@@ -0,0 +1,144 @@
+package com.bikcrum.locationupdate;
+
+import android.location.Location;
+
+import java.util.List;
+
+/**
+ * Counts the components holding the shared connection, see {@link LocationUpdate#acquire()}, and
+ * shuts it down once nothing uses it: no reference, listener or stream subscriber is left.
+ * <p/>
+ * Background tracking holds a reference of its own while it runs in this process. Its setting is
+ * kept across processes, so a fix reaching {@link LocationUpdateReceiver} in a process started for
+ * it resumes tracking before the fix goes to the listeners. Main thread only.
+ */
+final class ConnectionReferences {
+
+    /**
+     * What the references drive, implemented by {@link LocationUpdate}.
+     */
+    interface Host {
+        /**
+         * Connects and starts updates, for the first reference.
+         */
+        void start();
+
+        /**
+         * @return true while listeners or stream subscribers are registered
+         */
+        boolean hasUsers();
+
+        /**
+         * Stops updates and closes the connection.
+         */
+        void shutDown();
+
+        /**
+         * @return the background tracking setting kept across processes
+         */
+        boolean isBackgroundTrackingEnabled();
+
+        /**
+         * Moves the running request to the background intent, or back to the callback.
+         */
+        void onBackgroundTrackingChanged(boolean backgroundTracking);
+
+        /**
+         * Cancels the background intent, which ends the requests made for it in any process.
+         */
+        void cancelBackgroundIntent();
+
+        /**
+         * Hands fixes of background tracking to the pipeline.
+         */
+        void deliver(List<Location> locations);
+    }
+
+    private final Host host;
+    private int references;
+    // Background tracking in this process, the setting across processes is kept by the host.
+    private boolean backgroundTracking;
+
+    ConnectionReferences(Host host) {
+        this.host = host;
+    }
+
+    int getCount() {
+        return references;
+    }
+
+    boolean isBackgroundTracking() {
+        return backgroundTracking;
+    }
+
+    void acquire() {
+        if (references++ == 0) {
+            host.start();
+        }
+    }
+
+    /**
+     * @throws IllegalStateException without a matching {@link #acquire()}
+     */
+    void release() {
+        if (references == 0) {
+            throw new IllegalStateException("release() without acquire()");
+        }
+        if (--references == 0) {
+            shutDownIfUnused();
+        }
+    }
+
+    /**
+     * @return true if nothing used the connection and it was shut down
+     */
+    boolean shutDownIfUnused() {
+        if (references > 0 || host.hasUsers()) {
+            return false;
+        }
+        host.shutDown();
+        return true;
+    }
+
+    /**
+     * Starts background tracking in this process, unless it runs already.
+     */
+    void resumeBackgroundTracking() {
+        if (backgroundTracking) {
+            return;
+        }
+        backgroundTracking = true;
+        host.onBackgroundTrackingChanged(true);
+        acquire();
+    }
+
+    /**
+     * Stops background tracking, also the requests an earlier process left behind.
+     */
+    void stopBackgroundTracking() {
+        if (!backgroundTracking) {
+            host.cancelBackgroundIntent();
+            return;
+        }
+        backgroundTracking = false;
+        host.onBackgroundTrackingChanged(false);
+        host.cancelBackgroundIntent();
+        release();
+    }
+
+    /**
+     * Fixes of background tracking, from {@link LocationUpdateReceiver}.
+     */
+    void onBackgroundLocations(List<Location> locations) {
+        if (!backgroundTracking) {
+            if (!host.isBackgroundTrackingEnabled()) {
+                // Left behind by a process that could not remove its request.
+                host.cancelBackgroundIntent();
+                return;
+            }
+            // The process was started for this fix.
+            resumeBackgroundTracking();
+        }
+        host.deliver(locations);
+    }
+}
@@ -0,0 +1,272 @@
+package com.bikcrum.locationupdate;
+
+import java.util.Random;
+
+/**
+ * Decides what to do next on the way from "updates wanted" to updates running, and how to get
+ * back there when something goes wrong.
+ * <p/>
+ * A satisfied settings check is cached for {@link #setSettingsTtlInMilliseconds(long)}, so
+ * reconnects and recreated activities request updates right away instead of asking the settings
+ * API again. A failed connection is retried with exponential backoff and jitter, as is a settings
+ * check that was not satisfied, which keeps a declined dialog from popping up again in a loop.
+ * After a suspension updates are requested again as soon as the client is back, and the client is
+ * reconnected if it does not come back on its own.
+ * <p/>
+ * The time from losing updates to requesting them again is recorded in {@link LocationMetrics},
+ * together with connection attempts and settings cache hits. Main thread only.
+ */
+final class ConnectionStateMachine {
+
+    /**
+     * What the state machine drives, implemented by {@link LocationUpdate}.
+     */
+    interface Host {
+        boolean isConnected();
+
+        void connect();
+
+        /**
+         * Checks the location settings, the result comes back through
+         * {@link #onSettingsSatisfied()}, {@link #onSettingsResolving()},
+         * {@link #onSettingsNotSatisfied()} or {@link #onSettingsDeclined()}.
+         */
+        void checkSettings();
+
+        void requestUpdates();
+
+        void postDelayed(Runnable task, long delayInMilliseconds);
+
+        void removeCallbacks(Runnable task);
+
+        long elapsedRealtimeNanos();
+    }
+
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private final Host host;
+    private final LocationMetrics metrics;
+    private final Random random;
+
+    private LocationUpdate.ConnectionState state = LocationUpdate.ConnectionState.DISCONNECTED;
+    private boolean wantUpdates;
+
+    private long settingsTtlNanos = 10L * 60 * 1000000000L;
+    private long settingsSatisfiedNanos = NEVER;
+
+    private long initialBackoffInMilliseconds = 1000;
+    private long maxBackoffInMilliseconds = 60000;
+    private long suspensionTimeoutInMilliseconds = 10000;
+    private int connectFailures;
+    private int settingsFailures;
+
+    // When updates were lost, NEVER while they run or are not wanted.
+    private long outageStartNanos = NEVER;
+
+    private final Runnable reconnect = this::reconnect;
+    private final Runnable recheckSettings = this::recheckSettings;
+
+    ConnectionStateMachine(Host host, LocationMetrics metrics) {
+        this(host, metrics, new Random());
+    }
+
+    ConnectionStateMachine(Host host, LocationMetrics metrics, Random random) {
+        this.host = host;
+        this.metrics = metrics;
+        this.random = random;
+    }
+
+    LocationUpdate.ConnectionState getState() {
+        return state;
+    }
+
+    /**
+     * @param settingsTtlInMilliseconds how long a satisfied settings check is trusted, 0 to check
+     *                                  on every connect
+     */
+    void setSettingsTtlInMilliseconds(long settingsTtlInMilliseconds) {
+        this.settingsTtlNanos = settingsTtlInMilliseconds * 1000000L;
+    }
+
+    void setBackoff(long initialBackoffInMilliseconds, long maxBackoffInMilliseconds) {
+        this.initialBackoffInMilliseconds = initialBackoffInMilliseconds;
+        this.maxBackoffInMilliseconds = maxBackoffInMilliseconds;
+    }
+
+    /**
+     * Forgets the cached settings check, for when the request asks for a different accuracy.
+     */
+    void invalidateSettings() {
+        settingsSatisfiedNanos = NEVER;
+    }
+
+    /**
+     * Updates are wanted: connects, checks the settings and requests updates, skipping what is
+     * done already.
+     */
+    void start() {
+        wantUpdates = true;
+        switch (state) {
+            case CONNECTING:
+            case CHECKING_SETTINGS:
+            case RESOLVING_SETTINGS:
+            case SUSPENDED:
+            case WAITING_TO_RETRY:
+                // Under way, or waiting for the client to come back.
+                return;
+            default:
+                if (host.isConnected()) {
+                    onConnected();
+                } else {
+                    connect();
+                }
+        }
+    }
+
+    /**
+     * Updates are no longer wanted. Retries are cancelled, the connection is left as it is.
+     */
+    void stop() {
+        wantUpdates = false;
+        outageStartNanos = NEVER;
+        host.removeCallbacks(reconnect);
+        host.removeCallbacks(recheckSettings);
+        state = host.isConnected() ? LocationUpdate.ConnectionState.CONNECTED
+                : LocationUpdate.ConnectionState.DISCONNECTED;
+    }
+
+    void onDisconnected() {
+        host.removeCallbacks(reconnect);
+        host.removeCallbacks(recheckSettings);
+        state = LocationUpdate.ConnectionState.DISCONNECTED;
+    }
+
+    void onConnected() {
+        connectFailures = 0;
+        host.removeCallbacks(reconnect);
+        if (!wantUpdates) {
+            state = LocationUpdate.ConnectionState.CONNECTED;
+            return;
+        }
+        if (settingsSatisfiedNanos != NEVER
+                && host.elapsedRealtimeNanos() - settingsSatisfiedNanos < settingsTtlNanos) {
+            metrics.recordSettingsCacheHit();
+            requestUpdates();
+            return;
+        }
+        state = LocationUpdate.ConnectionState.CHECKING_SETTINGS;
+        host.checkSettings();
+    }
+
+    void onSuspended() {
+        markOutage();
+        state = LocationUpdate.ConnectionState.SUSPENDED;
+        // The client reconnects on its own, step in if it takes too long.
+        host.removeCallbacks(reconnect);
+        host.postDelayed(reconnect, suspensionTimeoutInMilliseconds);
+    }
+
+    void onConnectionFailed() {
+        if (!wantUpdates) {
+            state = LocationUpdate.ConnectionState.DISCONNECTED;
+            return;
+        }
+        markOutage();
+        connectFailures++;
+        state = LocationUpdate.ConnectionState.WAITING_TO_RETRY;
+        host.removeCallbacks(reconnect);
+        host.postDelayed(reconnect, backoff(connectFailures));
+    }
+
+    void onSettingsSatisfied() {
+        settingsFailures = 0;
+        settingsSatisfiedNanos = host.elapsedRealtimeNanos();
+        if (wantUpdates) {
+            requestUpdates();
+        } else {
+            state = LocationUpdate.ConnectionState.CONNECTED;
+        }
+    }
+
+    /**
+     * The user was asked to change the settings.
+     */
+    void onSettingsResolving() {
+        state = LocationUpdate.ConnectionState.RESOLVING_SETTINGS;
+    }
+
+    /**
+     * The settings are not satisfied and may be later, the check is repeated with backoff.
+     */
+    void onSettingsNotSatisfied() {
+        invalidateSettings();
+        if (!wantUpdates) {
+            state = LocationUpdate.ConnectionState.CONNECTED;
+            return;
+        }
+        settingsFailures++;
+        state = LocationUpdate.ConnectionState.WAITING_TO_RETRY;
+        host.removeCallbacks(recheckSettings);
+        host.postDelayed(recheckSettings, backoff(settingsFailures));
+    }
+
+    /**
+     * The user declined to change the settings. Nothing is retried until {@link #start()}.
+     */
+    void onSettingsDeclined() {
+        invalidateSettings();
+        state = LocationUpdate.ConnectionState.SETTINGS_DECLINED;
+    }
+
+    private void connect() {
+        state = LocationUpdate.ConnectionState.CONNECTING;
+        metrics.recordConnectAttempt();
+        host.connect();
+    }
+
+    private void reconnect() {
+        if (!wantUpdates) {
+            return;
+        }
+        if (host.isConnected()) {
+            onConnected();
+        } else {
+            connect();
+        }
+    }
+
+    private void recheckSettings() {
+        if (!wantUpdates) {
+            return;
+        }
+        if (!host.isConnected()) {
+            connect();
+            return;
+        }
+        state = LocationUpdate.ConnectionState.CHECKING_SETTINGS;
+        host.checkSettings();
+    }
+
+    private void requestUpdates() {
+        host.requestUpdates();
+        state = LocationUpdate.ConnectionState.REQUESTING_UPDATES;
+        if (outageStartNanos != NEVER) {
+            metrics.recordRecovery(host.elapsedRealtimeNanos() - outageStartNanos);
+            outageStartNanos = NEVER;
+        }
+    }
+
+    private void markOutage() {
+        if (wantUpdates && outageStartNanos == NEVER) {
+            outageStartNanos = host.elapsedRealtimeNanos();
+        }
+    }
+
+    long backoff(int failures) {
+        long backoff = initialBackoffInMilliseconds << Math.min(failures - 1, 20);
+        backoff = Math.min(backoff, maxBackoffInMilliseconds);
+        // Jitter on the upper half, so many devices losing the service together do not come back
+        // together.
+        return backoff / 2 + (long) (random.nextDouble() * (backoff / 2 + 1));
+    }
+}
@@ -0,0 +1,83 @@
+package com.bikcrum.locationupdate;
+
+/**
+ * Distances between fixes, cheaper than {@link android.location.Location#distanceTo}.
+ * <p/>
+ * {@link #haversine} is the exact great circle distance on a sphere, within 0.5% of the
+ * ellipsoidal distance of {@code distanceTo} and without its iterations and objects.
+ * {@link #between} goes further for the short steps between consecutive fixes: the earth is taken
+ * as flat around the fixes, with the cosine of the latitude computed once per region of
+ * {@link #REGION_DEGREES} instead of per pair. It falls back to haversine where that would be off
+ * by more than {@link #MAX_RELATIVE_ERROR}, for steps over {@link #MAX_FLAT_METERS} or beyond
+ * {@link #MAX_FLAT_LATITUDE}.
+ * <p/>
+ * An instance keeps the region, it is not thread safe.
+ */
+public final class Distance {
+
+    /**
+     * Largest difference of {@link #between} to {@link #haversine}, relative to the distance.
+     */
+    public static final double MAX_RELATIVE_ERROR = 1e-3;
+
+    /**
+     * Longer steps use haversine.
+     */
+    public static final double MAX_FLAT_METERS = 2000;
+
+    /**
+     * Steps at higher latitudes, north or south, use haversine. The error of a cached cosine grows
+     * with the tangent of the latitude.
+     */
+    public static final double MAX_FLAT_LATITUDE = 70;
+
+    /**
+     * The cosine is computed again when the latitude moves further from where it was computed,
+     * about 550 m. With the step length this keeps the latitude the cosine is off by below
+     * 0.014 degrees, and its relative error below tan(70) * 0.014 * PI / 180 = 6.7e-4.
+     */
+    public static final double REGION_DEGREES = 0.005;
+
+    private double regionLatitude = Double.NaN;
+    private double regionMetersPerDegreeLongitude;
+
+    /**
+     * @return great circle distance in meters
+     */
+    public static double haversine(double latitude1, double longitude1, double latitude2, double longitude2) {
+        return Geo.haversine(latitude1, longitude1, latitude2, longitude2);
+    }
+
+    /**
+     * Flat earth distance with the cosine of the mean latitude, accurate for short distances away
+     * from the poles.
+     *
+     * @return distance in meters
+     */
+    public static double equirectangular(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double x = Geo.wrapLongitude(longitude2 - longitude1)
+                * Geo.metersPerDegreeLongitude((latitude1 + latitude2) / 2);
+        double y = (latitude2 - latitude1) * Geo.METERS_PER_DEGREE;
+        return Math.sqrt(x * x + y * y);
+    }
+
+    /**
+     * @return distance in meters, within {@link #MAX_RELATIVE_ERROR} of {@link #haversine}
+     */
+    public double between(double latitude1, double longitude1, double latitude2, double longitude2) {
+        if (Math.abs(latitude1) > MAX_FLAT_LATITUDE || Math.abs(latitude2) > MAX_FLAT_LATITUDE) {
+            return Geo.haversine(latitude1, longitude1, latitude2, longitude2);
+        }
+        if (!(Math.abs(latitude1 - regionLatitude) <= REGION_DEGREES)) {
+            regionLatitude = latitude1;
+            regionMetersPerDegreeLongitude = Geo.metersPerDegreeLongitude(latitude1);
+        }
+        double x = Geo.wrapLongitude(longitude2 - longitude1) * regionMetersPerDegreeLongitude;
+        double y = (latitude2 - latitude1) * Geo.METERS_PER_DEGREE;
+        double distance = Math.sqrt(x * x + y * y);
+        if (distance > MAX_FLAT_METERS) {
+            return Geo.haversine(latitude1, longitude1, latitude2, longitude2);
+        }
+        return distance;
+    }
+}
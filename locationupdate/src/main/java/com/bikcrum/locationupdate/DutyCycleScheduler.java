@@ -0,0 +1,271 @@
+package com.bikcrum.locationupdate;
+
+/**
+ * Alternates short bursts at {@link PowerProfile#HIGH_ACCURACY} with long idle windows at a
+ * cheaper profile, so GPS is only on for a small share of the time.
+ * <p/>
+ * A burst ends as soon as {@link #setTargetFixCount(int)} fixes within the target accuracy
+ * arrived, or after {@link #setMaxBurstInMilliseconds(long)} if they do not. The idle window that
+ * follows lasts {@link #setIdleInMilliseconds(long)}. A burst is skipped when a fix within the
+ * target arrived during the idle window anyway, for example because another app had GPS on, and
+ * the idle window is extended from that fix instead. So the device gets a fix within the target
+ * accuracy at least once per idle window whenever GPS can get one.
+ * <p/>
+ * The timer is driven by {@link LocationUpdate} while updates run, which swaps the request on
+ * every change of profile. Updates that stop end the phase, they start again with a burst. The
+ * counters tell how much of the time was spent in bursts and how many reached the target. Thread
+ * safe.
+ *
+ * @see LocationUpdate#enableDutyCycling()
+ */
+public final class DutyCycleScheduler implements FixProcessor {
+
+    public interface OnProfileChangedListener {
+        /**
+         * Called on the thread causing the change: the delivery thread for fixes ending a burst,
+         * the thread of {@link #onDeadline(long)} for the others.
+         */
+        void onProfileChanged(PowerProfile profile);
+    }
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    private PowerProfile idleProfile = PowerProfile.BALANCED;
+    private float targetAccuracyInMeters = 20;
+    private int targetFixCount = 1;
+    private long maxBurstNanos = 30 * 1000000000L;
+    private long idleNanos = 5 * 60 * 1000000000L;
+    private long burstIntervalInMilliseconds = 1000;
+
+    private OnProfileChangedListener listener;
+
+    private boolean started;
+    private boolean bursting;
+    private long phaseStartNanos;
+    private long deadlineNanos;
+    private int burstTargetFixes;
+    private long lastTargetFixNanos = NONE;
+
+    private long burstCount;
+    private long missedBurstCount;
+    private long skippedBurstCount;
+    private long fixCount;
+    private long onTargetFixCount;
+    private long burstNanos;
+    private long totalIdleNanos;
+
+    public synchronized void setOnProfileChangedListener(OnProfileChangedListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param idleProfile profile between bursts, default is {@link PowerProfile#BALANCED}
+     */
+    public synchronized void setIdleProfile(PowerProfile idleProfile) {
+        if (idleProfile == PowerProfile.HIGH_ACCURACY) {
+            throw new IllegalArgumentException("Idle profile must be cheaper than the bursts");
+        }
+        this.idleProfile = idleProfile;
+    }
+
+    /**
+     * @param targetAccuracyInMeters fixes this accurate end a burst, default is 20
+     */
+    public synchronized void setTargetAccuracyInMeters(float targetAccuracyInMeters) {
+        this.targetAccuracyInMeters = targetAccuracyInMeters;
+    }
+
+    /**
+     * @param targetFixCount fixes within the target accuracy that end a burst, default is 1
+     */
+    public synchronized void setTargetFixCount(int targetFixCount) {
+        this.targetFixCount = targetFixCount;
+    }
+
+    /**
+     * @param maxBurstInMilliseconds bursts end after this even without a fix within the target,
+     *                               default is 30000
+     */
+    public synchronized void setMaxBurstInMilliseconds(long maxBurstInMilliseconds) {
+        this.maxBurstNanos = maxBurstInMilliseconds * 1000000L;
+    }
+
+    /**
+     * @param idleInMilliseconds time between bursts, default is 300000
+     */
+    public synchronized void setIdleInMilliseconds(long idleInMilliseconds) {
+        this.idleNanos = idleInMilliseconds * 1000000L;
+    }
+
+    /**
+     * @param burstIntervalInMilliseconds the request interval is at most this during bursts, so
+     *                                    that a burst gets its fixes quickly. Default is 1000.
+     */
+    public synchronized void setBurstIntervalInMilliseconds(long burstIntervalInMilliseconds) {
+        this.burstIntervalInMilliseconds = burstIntervalInMilliseconds;
+    }
+
+    public synchronized long getBurstIntervalInMilliseconds() {
+        return burstIntervalInMilliseconds;
+    }
+
+    /**
+     * Starts with a burst. The listener is not called for it.
+     *
+     * @return when {@link #onDeadline(long)} is due, on the clock of the fixes
+     */
+    synchronized long start(long nowElapsedRealtimeNanos) {
+        started = true;
+        bursting = true;
+        phaseStartNanos = nowElapsedRealtimeNanos;
+        deadlineNanos = nowElapsedRealtimeNanos + maxBurstNanos;
+        burstTargetFixes = 0;
+        burstCount++;
+        return deadlineNanos;
+    }
+
+    /**
+     * Ends the current phase, for updates that stop. The time until now counts towards
+     * {@link #getDutyCycle()}, {@link #onDeadline(long)} changes nothing until the next
+     * {@link #start(long)}.
+     */
+    synchronized void stop(long nowElapsedRealtimeNanos) {
+        if (!started) {
+            return;
+        }
+        if (bursting) {
+            burstNanos += nowElapsedRealtimeNanos - phaseStartNanos;
+        } else {
+            totalIdleNanos += nowElapsedRealtimeNanos - phaseStartNanos;
+        }
+        started = false;
+        bursting = false;
+    }
+
+    /**
+     * Ends the phase if it is due: a burst without enough fixes within the target, or an idle
+     * window. Calls that are early, for example because a fix ended the burst since the timer was
+     * set, change nothing.
+     *
+     * @return when the next call is due
+     */
+    synchronized long onDeadline(long nowElapsedRealtimeNanos) {
+        if (!started || nowElapsedRealtimeNanos < deadlineNanos) {
+            return deadlineNanos;
+        }
+        if (bursting) {
+            missedBurstCount++;
+            startIdle(nowElapsedRealtimeNanos, nowElapsedRealtimeNanos + idleNanos);
+        } else if (lastTargetFixNanos != NONE && nowElapsedRealtimeNanos - lastTargetFixNanos < idleNanos) {
+            skippedBurstCount++;
+            deadlineNanos = lastTargetFixNanos + idleNanos;
+        } else {
+            totalIdleNanos += nowElapsedRealtimeNanos - phaseStartNanos;
+            bursting = true;
+            phaseStartNanos = nowElapsedRealtimeNanos;
+            deadlineNanos = nowElapsedRealtimeNanos + maxBurstNanos;
+            burstTargetFixes = 0;
+            burstCount++;
+            notifyProfile();
+        }
+        return deadlineNanos;
+    }
+
+    private void startIdle(long nowElapsedRealtimeNanos, long deadlineNanos) {
+        burstNanos += nowElapsedRealtimeNanos - phaseStartNanos;
+        bursting = false;
+        phaseStartNanos = nowElapsedRealtimeNanos;
+        this.deadlineNanos = deadlineNanos;
+        notifyProfile();
+    }
+
+    private void notifyProfile() {
+        if (listener != null) {
+            listener.onProfileChanged(getProfile());
+        }
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        if (fix.isProvisional()) {
+            return true;
+        }
+        add(fix.getAccuracy(), fix.getElapsedRealtimeNanos());
+        return true;
+    }
+
+    /**
+     * Counts a fix, for fixes that did not come through {@link LocationUpdate}.
+     *
+     * @param accuracy in meters, 0 if unknown
+     */
+    public synchronized void add(float accuracy, long elapsedRealtimeNanos) {
+        fixCount++;
+        if (accuracy <= 0 || accuracy > targetAccuracyInMeters) {
+            return;
+        }
+        onTargetFixCount++;
+        lastTargetFixNanos = Math.max(lastTargetFixNanos, elapsedRealtimeNanos);
+        // Fixes from before the burst, delivered late, do not tell whether GPS has a fix now.
+        if (started && bursting && elapsedRealtimeNanos >= phaseStartNanos
+                && ++burstTargetFixes >= targetFixCount) {
+            startIdle(elapsedRealtimeNanos, elapsedRealtimeNanos + idleNanos);
+        }
+    }
+
+    /**
+     * @return the profile of the current phase
+     */
+    public synchronized PowerProfile getProfile() {
+        return bursting || !started ? PowerProfile.HIGH_ACCURACY : idleProfile;
+    }
+
+    public synchronized long getBurstCount() {
+        return burstCount;
+    }
+
+    /**
+     * @return bursts that ended without enough fixes within the target accuracy
+     */
+    public synchronized long getMissedBurstCount() {
+        return missedBurstCount;
+    }
+
+    /**
+     * @return bursts skipped because a fix within the target came during the idle window
+     */
+    public synchronized long getSkippedBurstCount() {
+        return skippedBurstCount;
+    }
+
+    public synchronized long getFixCount() {
+        return fixCount;
+    }
+
+    /**
+     * @return fixes within the target accuracy
+     */
+    public synchronized long getOnTargetFixCount() {
+        return onTargetFixCount;
+    }
+
+    /**
+     * @return share of the time spent in bursts, 0 to 1, over the bursts and idle windows ended
+     */
+    public synchronized double getDutyCycle() {
+        long total = burstNanos + totalIdleNanos;
+        return total == 0 ? 0 : (double) burstNanos / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DutyCycleScheduler{profile=" + getProfile()
+                + ", bursts=" + burstCount
+                + ", missed=" + missedBurstCount
+                + ", skipped=" + skippedBurstCount
+                + ", fixes=" + fixCount
+                + ", onTarget=" + onTargetFixCount
+                + ", dutyCycle=" + Math.round(getDutyCycle() * 1000) / 10.0 + "%"
+                + '}';
+    }
+}
@@ -0,0 +1,123 @@
+package com.bikcrum.locationupdate;
+
+import android.location.Location;
+
+/**
+ * A location fix as primitives, handed to the {@link FixProcessor}s.
+ * <p/>
+ * A single instance is reused for every fix, so processors must copy the values they want to keep
+ * instead of holding on to the fix.
+ */
+public final class Fix {
+
+    private Location location;
+    private double latitude;
+    private double longitude;
+    private float accuracy;
+    private float speed;
+    private float bearing;
+    private long time;
+    private long elapsedRealtimeNanos;
+    private boolean provisional;
+
+    void set(Location location, long elapsedRealtimeNanos) {
+        set(location, location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                location.getSpeed(), location.getBearing(), location.getTime(), elapsedRealtimeNanos);
+    }
+
+    void set(Location location, double latitude, double longitude, float accuracy, float speed,
+             float bearing, long time, long elapsedRealtimeNanos) {
+        this.location = location;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.accuracy = accuracy;
+        this.speed = speed;
+        this.bearing = bearing;
+        this.time = time;
+        this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+        this.provisional = false;
+    }
+
+    void setProvisional(boolean provisional) {
+        this.provisional = provisional;
+    }
+
+    /**
+     * Replaces the position of the fix, for stages that correct it. The location is updated as
+     * well so that {@link LocationUpdate.OnLocationUpdatedListener}s see the same position.
+     */
+    void setPosition(double latitude, double longitude, float accuracy, float speed, float bearing) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.accuracy = accuracy;
+        this.speed = speed;
+        this.bearing = bearing;
+        if (location != null) {
+            location.setLatitude(latitude);
+            location.setLongitude(longitude);
+            location.setAccuracy(accuracy);
+            location.setSpeed(speed);
+            location.setBearing(bearing);
+        }
+    }
+
+    /**
+     * @return the location the fix was read from, may be null for fixes that did not come from
+     * the fused provider
+     */
+    public Location getLocation() {
+        return location;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * @return estimated horizontal accuracy in meters
+     */
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * @return speed in meters per second
+     */
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return bearing in degrees
+     */
+    public float getBearing() {
+        return bearing;
+    }
+
+    /**
+     * @return UTC time of the fix in milliseconds since January 1, 1970
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return time of the fix on the elapsed realtime clock in nanoseconds
+     */
+    public long getElapsedRealtimeNanos() {
+        return elapsedRealtimeNanos;
+    }
+
+    /**
+     * @return true for a cached fix delivered at start before the first fresh one, see
+     * {@link LocationUpdate#enableWarmStart(long)}. Its time is that of the cached fix, stages
+     * that record or learn from fixes should let it pass without using it.
+     */
+    public boolean isProvisional() {
+        return provisional;
+    }
+}
@@ -0,0 +1,220 @@
+package com.bikcrum.locationupdate;
+
+import android.location.Location;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Takes the fixes of the {@link LocationSource} through the {@link FixPipeline}, on the delivery
+ * executor when one is set, and hands batches to the
+ * {@link LocationUpdate.OnLocationsBatchedListener}.
+ * <p/>
+ * Fixes that come as primitives, from a {@link ReplayLocationSource} for example, go through the
+ * pipeline without allocating, unless an {@link LocationUpdate.OnLocationUpdatedListener} needs a
+ * {@link Location} for them.
+ * <p/>
+ * Each fix of a batch goes through the pipeline on its own, so processors and listeners do not
+ * need to know about batching. The batched listener then gets the fixes of the batch that reached
+ * the listeners, as the processors corrected them, in a list and a timestamp array that are
+ * reused from batch to batch.
+ */
+final class FixDelivery implements LocationSource.Callback {
+
+    /**
+     * What the delivery needs from the platform, implemented by {@link LocationUpdate}.
+     */
+    interface Host {
+        /**
+         * @return time of the fix on the elapsed realtime clock
+         */
+        long elapsedRealtimeNanos(Location location);
+
+        long elapsedRealtimeNanosNow();
+
+        /**
+         * @return a new location with the values of a fix that came as primitives, for the
+         * {@link LocationUpdate.OnLocationUpdatedListener}s
+         */
+        Location newLocation(double latitude, double longitude, float accuracy, float speed,
+                             float bearing, long time, long elapsedRealtimeNanos);
+
+        /**
+         * Runs on the delivery thread for each fresh fix that reached the listeners.
+         */
+        void onFixDelivered(Fix fix);
+    }
+
+    private final Host host;
+    private final FixPipeline pipeline;
+    private final LocationMetrics metrics;
+
+    private volatile Executor executor;
+    private volatile LocationUpdate.OnLocationsBatchedListener batchedListener;
+    private volatile Executor batchedListenerExecutor;
+    // Set on the delivery thread by the first fresh fix.
+    private volatile boolean freshFixReceived;
+
+    // Reused between batches so that batched delivery does not allocate per callback. Only
+    // touched on the thread calling the batched listener.
+    private final ArrayList<Location> batchBuffer = new ArrayList<>();
+    private long[] batchTimestamps = new long[0];
+
+    FixDelivery(Host host, FixPipeline pipeline, LocationMetrics metrics) {
+        this.host = host;
+        this.pipeline = pipeline;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param executor runs the pipeline, null to run it on the thread the source calls back on
+     */
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    void setBatchedListener(LocationUpdate.OnLocationsBatchedListener batchedListener) {
+        this.batchedListener = batchedListener;
+    }
+
+    LocationUpdate.OnLocationsBatchedListener getBatchedListener() {
+        return batchedListener;
+    }
+
+    /**
+     * @param batchedListenerExecutor calls the batched listener, null to call it on the delivery
+     *                                thread
+     */
+    void setBatchedListenerExecutor(Executor batchedListenerExecutor) {
+        this.batchedListenerExecutor = batchedListenerExecutor;
+    }
+
+    /**
+     * @return true once a fix from the source went through the pipeline, provisional fixes are
+     * not delivered after that
+     */
+    boolean isFreshFixReceived() {
+        return freshFixReceived;
+    }
+
+    @Override
+    public void onLocation(Location location) {
+        Executor executor = this.executor;
+        if (executor != null) {
+            executor.execute(() -> deliver(location));
+        } else {
+            deliver(location);
+        }
+    }
+
+    @Override
+    public void onLocations(List<Location> locations) {
+        Executor executor = this.executor;
+        if (executor != null) {
+            executor.execute(() -> deliver(locations));
+        } else {
+            deliver(locations);
+        }
+    }
+
+    @Override
+    public void onFix(double latitude, double longitude, float accuracy, float speed, float bearing,
+                      long time, long elapsedRealtimeNanos) {
+        Executor executor = this.executor;
+        if (executor != null) {
+            executor.execute(() -> deliver(latitude, longitude, accuracy, speed, bearing, time,
+                    elapsedRealtimeNanos));
+        } else {
+            deliver(latitude, longitude, accuracy, speed, bearing, time, elapsedRealtimeNanos);
+        }
+    }
+
+    /**
+     * Runs on the delivery thread.
+     *
+     * @return true if the fix passed the processors and was dispatched
+     */
+    private boolean deliver(Location location) {
+        long elapsedRealtimeNanos = host.elapsedRealtimeNanos(location);
+        metrics.recordFix(elapsedRealtimeNanos, host.elapsedRealtimeNanosNow());
+        freshFixReceived = true;
+        if (!pipeline.onFix(location, elapsedRealtimeNanos)) {
+            return false;
+        }
+        host.onFixDelivered(pipeline.getFix());
+        return true;
+    }
+
+    /**
+     * Runs on the delivery thread.
+     */
+    private void deliver(double latitude, double longitude, float accuracy, float speed, float bearing,
+                         long time, long elapsedRealtimeNanos) {
+        metrics.recordFix(elapsedRealtimeNanos, host.elapsedRealtimeNanosNow());
+        freshFixReceived = true;
+        boolean dispatched;
+        if (pipeline.needsLocation()) {
+            // A new one per fix, listeners on the main thread may read it after the next fix. The
+            // processors correct it along with the fix.
+            dispatched = pipeline.onFix(host.newLocation(latitude, longitude, accuracy, speed, bearing,
+                    time, elapsedRealtimeNanos), elapsedRealtimeNanos);
+        } else {
+            dispatched = pipeline.onFix(latitude, longitude, accuracy, speed, bearing, time,
+                    elapsedRealtimeNanos);
+        }
+        if (dispatched) {
+            host.onFixDelivered(pipeline.getFix());
+        }
+    }
+
+    /**
+     * Runs on the delivery thread.
+     */
+    private void deliver(List<Location> locations) {
+        // Listeners get each fix of the batch, the wakeup has been saved already. The processors
+        // correct the locations in place, those they drop are left out of the batch. It is copied
+        // only once a fix was dropped, the batch of the source is passed on otherwise.
+        List<Location> dispatched = locations;
+        for (int i = 0, len = locations.size(); i < len; i++) {
+            Location location = locations.get(i);
+            boolean kept = deliver(location);
+            if (dispatched != locations) {
+                if (kept) {
+                    dispatched.add(location);
+                }
+            } else if (!kept) {
+                dispatched = new ArrayList<>(locations.subList(0, i));
+            }
+        }
+        LocationUpdate.OnLocationsBatchedListener batchedListener = this.batchedListener;
+        if (batchedListener == null || dispatched.isEmpty()) {
+            return;
+        }
+        List<Location> batch = dispatched;
+        Executor batchedListenerExecutor = this.batchedListenerExecutor;
+        if (batchedListenerExecutor != null) {
+            batchedListenerExecutor.execute(() -> deliverBatch(batchedListener, batch));
+        } else {
+            deliverBatch(batchedListener, batch);
+        }
+    }
+
+    private void deliverBatch(LocationUpdate.OnLocationsBatchedListener batchedListener, List<Location> locations) {
+        int size = locations.size();
+        if (batchTimestamps.length < size) {
+            batchTimestamps = new long[Math.max(size, batchTimestamps.length * 2)];
+        }
+        batchBuffer.clear();
+        for (int i = 0; i < size; i++) {
+            Location location = locations.get(i);
+            batchBuffer.add(location);
+            batchTimestamps[i] = location.getTime();
+        }
+        batchedListener.onLocationsBatched(batchBuffer, batchTimestamps);
+    }
+}
@@ -0,0 +1,269 @@
+package com.bikcrum.locationupdate;
+
+import android.location.Location;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Registry of the listeners and fan-out of each fix to them.
+ * <p/>
+ * Subscribers are kept in a copy-on-write array: registering or removing a listener copies the
+ * array under a lock, dispatching only reads the current array and never blocks. Every subscriber
+ * may ask for its own interval, fixes coming faster than that are skipped for it, so a single
+ * location request running at the fastest interval can feed all of them.
+ * <p/>
+ * The {@link LocationUpdate.OnLocationUpdatedListener} variant gets the time formatted for each
+ * fix, the {@link LocationUpdate.OnLazyLocationUpdatedListener} variant as a {@link FixTime},
+ * which is only formatted if the listener reads it. With just
+ * {@link LocationUpdate.OnRawLocationUpdatedListener}s called on the delivery thread, dispatching
+ * a fix allocates nothing.
+ * <p/>
+ * With a main thread executor set, listeners that want to be called on the main thread are called
+ * through it instead of on the delivery thread, which is how fixes processed in the background hop
+ * back to the main thread.
+ */
+final class FixDispatcher {
+
+    /**
+     * Subscriber follows {@link #setDefaultOnMainThread(boolean)}.
+     */
+    static final int THREAD_DEFAULT = 0;
+    static final int THREAD_MAIN = 1;
+    static final int THREAD_DELIVERY = 2;
+
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private static final class Subscriber {
+        final LocationUpdate.OnLocationUpdatedListener listener;
+        final LocationUpdate.OnLazyLocationUpdatedListener lazyListener;
+        final LocationUpdate.OnRawLocationUpdatedListener rawListener;
+        final long intervalInMilliseconds;
+        final int thread;
+        final long intervalNanos;
+
+        // Only touched on the delivery thread.
+        long nextDueNanos = NEVER;
+
+        Subscriber(LocationUpdate.OnLocationUpdatedListener listener,
+                   LocationUpdate.OnLazyLocationUpdatedListener lazyListener,
+                   LocationUpdate.OnRawLocationUpdatedListener rawListener,
+                   long intervalInMilliseconds, int thread) {
+            this.listener = listener;
+            this.lazyListener = lazyListener;
+            this.rawListener = rawListener;
+            this.intervalInMilliseconds = intervalInMilliseconds;
+            this.thread = thread;
+            this.intervalNanos = intervalInMilliseconds * 1000000L;
+        }
+
+        boolean isFor(LocationUpdate.OnLocationUpdatedListener listener,
+                      LocationUpdate.OnLazyLocationUpdatedListener lazyListener,
+                      LocationUpdate.OnRawLocationUpdatedListener rawListener) {
+            return this.listener == listener && this.lazyListener == lazyListener
+                    && this.rawListener == rawListener;
+        }
+
+        /**
+         * Fixes arrive with some jitter, so a fix slightly before the due time is accepted. The
+         * next due time advances from the previous one rather than from the accepted fix, which
+         * keeps the early acceptance from drifting the subscriber to a shorter interval.
+         */
+        boolean accepts(long elapsedRealtimeNanos) {
+            if (intervalNanos <= 0) {
+                return true;
+            }
+            if (nextDueNanos != NEVER && elapsedRealtimeNanos < nextDueNanos - intervalNanos / 20) {
+                return false;
+            }
+            if (nextDueNanos == NEVER || elapsedRealtimeNanos - nextDueNanos >= intervalNanos) {
+                // First fix, or fixes stopped for a while: restart the schedule from this fix.
+                nextDueNanos = elapsedRealtimeNanos + intervalNanos;
+            } else {
+                nextDueNanos += intervalNanos;
+            }
+            return true;
+        }
+    }
+
+    private static final Subscriber[] EMPTY = new Subscriber[0];
+
+    private final Object lock = new Object();
+    private volatile Subscriber[] subscribers = EMPTY;
+
+    private volatile Executor mainThreadExecutor;
+    private volatile boolean defaultOnMainThread = true;
+    private volatile LocationMetrics metrics;
+
+    /**
+     * Registers the listener, replacing an earlier registration of the same listener.
+     *
+     * @param intervalInMilliseconds 0 to receive every fix
+     * @param thread                 one of {@link #THREAD_DEFAULT}, {@link #THREAD_MAIN} or
+     *                               {@link #THREAD_DELIVERY}
+     */
+    void add(LocationUpdate.OnLocationUpdatedListener listener, long intervalInMilliseconds, int thread) {
+        add(new Subscriber(listener, null, null, intervalInMilliseconds, thread));
+    }
+
+    void add(LocationUpdate.OnLazyLocationUpdatedListener listener, long intervalInMilliseconds, int thread) {
+        add(new Subscriber(null, listener, null, intervalInMilliseconds, thread));
+    }
+
+    void add(LocationUpdate.OnRawLocationUpdatedListener listener, long intervalInMilliseconds, int thread) {
+        add(new Subscriber(null, null, listener, intervalInMilliseconds, thread));
+    }
+
+    private void add(Subscriber subscriber) {
+        synchronized (lock) {
+            Subscriber[] current = subscribers;
+            int index = indexOf(current, subscriber.listener, subscriber.lazyListener, subscriber.rawListener);
+            Subscriber[] updated;
+            if (index >= 0) {
+                updated = current.clone();
+                updated[index] = subscriber;
+            } else {
+                updated = new Subscriber[current.length + 1];
+                System.arraycopy(current, 0, updated, 0, current.length);
+                updated[current.length] = subscriber;
+            }
+            subscribers = updated;
+        }
+    }
+
+    /**
+     * @return true if the listener was registered
+     */
+    boolean remove(LocationUpdate.OnLocationUpdatedListener listener) {
+        return remove(listener, null, null);
+    }
+
+    boolean remove(LocationUpdate.OnLazyLocationUpdatedListener listener) {
+        return remove(null, listener, null);
+    }
+
+    boolean remove(LocationUpdate.OnRawLocationUpdatedListener listener) {
+        return remove(null, null, listener);
+    }
+
+    private boolean remove(LocationUpdate.OnLocationUpdatedListener listener,
+                           LocationUpdate.OnLazyLocationUpdatedListener lazyListener,
+                           LocationUpdate.OnRawLocationUpdatedListener rawListener) {
+        synchronized (lock) {
+            Subscriber[] current = subscribers;
+            int index = indexOf(current, listener, lazyListener, rawListener);
+            if (index < 0) {
+                return false;
+            }
+            Subscriber[] updated = new Subscriber[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            subscribers = updated;
+            return true;
+        }
+    }
+
+    private static int indexOf(Subscriber[] subscribers,
+                               LocationUpdate.OnLocationUpdatedListener listener,
+                               LocationUpdate.OnLazyLocationUpdatedListener lazyListener,
+                               LocationUpdate.OnRawLocationUpdatedListener rawListener) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i].isFor(listener, lazyListener, rawListener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    boolean hasListener() {
+        return subscribers.length > 0;
+    }
+
+    /**
+     * @return true if an {@link LocationUpdate.OnLocationUpdatedListener} or
+     * {@link LocationUpdate.OnLazyLocationUpdatedListener} is registered, which needs a
+     * {@link Location} for each fix
+     */
+    boolean hasLocationListener() {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.rawListener == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param defaultIntervalInMilliseconds used for subscribers that did not ask for an interval
+     * @return the fastest interval any subscriber asked for, which is the interval the shared
+     * location request has to run at
+     */
+    long getFastestInterval(long defaultIntervalInMilliseconds) {
+        Subscriber[] current = subscribers;
+        if (current.length == 0) {
+            return defaultIntervalInMilliseconds;
+        }
+        long fastest = Long.MAX_VALUE;
+        for (Subscriber subscriber : current) {
+            long interval = subscriber.intervalInMilliseconds > 0
+                    ? subscriber.intervalInMilliseconds : defaultIntervalInMilliseconds;
+            fastest = Math.min(fastest, interval);
+        }
+        return fastest;
+    }
+
+    /**
+     * @param mainThreadExecutor null when fixes are delivered on the main thread already
+     */
+    void setMainThreadExecutor(Executor mainThreadExecutor) {
+        this.mainThreadExecutor = mainThreadExecutor;
+    }
+
+    void setDefaultOnMainThread(boolean defaultOnMainThread) {
+        this.defaultOnMainThread = defaultOnMainThread;
+    }
+
+    /**
+     * Records how long each listener call takes, null to stop.
+     */
+    void setMetrics(LocationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Must be called on the delivery thread.
+     */
+    void dispatch(Location location, double latitude, double longitude, float accuracy, long elapsedRealtimeNanos) {
+        Subscriber[] current = subscribers;
+        Executor mainThreadExecutor = this.mainThreadExecutor;
+        for (Subscriber subscriber : current) {
+            if (!subscriber.accepts(elapsedRealtimeNanos)) {
+                continue;
+            }
+            if (mainThreadExecutor != null && isOnMainThread(subscriber)) {
+                mainThreadExecutor.execute(() -> deliver(subscriber, location, latitude, longitude, accuracy, elapsedRealtimeNanos));
+            } else {
+                deliver(subscriber, location, latitude, longitude, accuracy, elapsedRealtimeNanos);
+            }
+        }
+    }
+
+    private boolean isOnMainThread(Subscriber subscriber) {
+        return subscriber.thread == THREAD_MAIN
+                || (subscriber.thread == THREAD_DEFAULT && defaultOnMainThread);
+    }
+
+    private void deliver(Subscriber subscriber, Location location, double latitude, double longitude, float accuracy, long elapsedRealtimeNanos) {
+        LocationMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        if (subscriber.rawListener != null) {
+            subscriber.rawListener.onLocationUpdated(latitude, longitude, accuracy, elapsedRealtimeNanos);
+        } else if (subscriber.lazyListener != null) {
+            subscriber.lazyListener.onLocationUpdated(location, new FixTime(System.currentTimeMillis()));
+        } else {
+            subscriber.listener.onLocationUpdated(location, FixTime.format(System.currentTimeMillis()));
+        }
+        if (metrics != null) {
+            metrics.recordCallback(System.nanoTime() - start);
+        }
+    }
+}
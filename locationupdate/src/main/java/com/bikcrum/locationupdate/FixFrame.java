@@ -0,0 +1,185 @@
+package com.bikcrum.locationupdate;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding of a batch of fixes, used by {@link FixUploader}.
+ * <p/>
+ * Positions are quantized to 1e-6 degrees (about 11 cm), times to milliseconds and accuracies to
+ * whole meters. The first fix is stored as is, every later fix as the difference to the one
+ * before. Differences are zig-zag encoded, so small negative numbers stay small, and written as
+ * varints of 7 bits per byte. Consecutive fixes at walking or driving speed then take 6 to 9 bytes.
+ * <p/>
+ * Layout: magic byte {@code 0xF1}, version byte, then per fix latitude, longitude and time as
+ * zig-zag varints and accuracy as a varint, until the end of the frame.
+ */
+public final class FixFrame {
+
+    static final int MAGIC = 0xF1;
+    static final int VERSION = 1;
+    static final double COORDINATE_SCALE = 1e6;
+
+    private FixFrame() {
+    }
+
+    /**
+     * Builds a frame fix by fix. The buffer is reused after {@link #reset()}.
+     */
+    public static final class Encoder {
+        private byte[] buffer = new byte[1024];
+        private int length;
+        private int count;
+
+        private long previousLatitude;
+        private long previousLongitude;
+        private long previousTime;
+
+        public Encoder() {
+            reset();
+        }
+
+        public void reset() {
+            buffer[0] = (byte) MAGIC;
+            buffer[1] = VERSION;
+            length = 2;
+            count = 0;
+            previousLatitude = 0;
+            previousLongitude = 0;
+            previousTime = 0;
+        }
+
+        public void add(double latitude, double longitude, float accuracy, long time) {
+            long quantizedLatitude = Math.round(latitude * COORDINATE_SCALE);
+            long quantizedLongitude = Math.round(longitude * COORDINATE_SCALE);
+            ensureCapacity(4 * 10);
+            writeVarint(zigZag(quantizedLatitude - previousLatitude));
+            writeVarint(zigZag(quantizedLongitude - previousLongitude));
+            writeVarint(zigZag(time - previousTime));
+            writeVarint(Math.max(0, Math.round(accuracy)));
+            previousLatitude = quantizedLatitude;
+            previousLongitude = quantizedLongitude;
+            previousTime = time;
+            count++;
+        }
+
+        /**
+         * @return number of fixes added since the last reset
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * @return frame length in bytes
+         */
+        public int length() {
+            return length;
+        }
+
+        /**
+         * @return the encoded frame, valid up to {@link #length()} until the next change
+         */
+        public byte[] buffer() {
+            return buffer;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+    }
+
+    /**
+     * Reads the fixes of a frame. Call {@link #next()} and read the current fix with the getters,
+     * like {@link TrackLog.Reader}.
+     */
+    public static final class Decoder {
+        private final byte[] frame;
+        private final int end;
+        private int position;
+
+        private long latitude;
+        private long longitude;
+        private long time;
+        private int accuracy;
+
+        public Decoder(byte[] frame, int offset, int length) throws IOException {
+            if (length < 2 || (frame[offset] & 0xff) != MAGIC) {
+                throw new IOException("Not a fix frame");
+            }
+            if (frame[offset + 1] != VERSION) {
+                throw new IOException("Unsupported fix frame version " + frame[offset + 1]);
+            }
+            this.frame = frame;
+            this.end = offset + length;
+            this.position = offset + 2;
+        }
+
+        /**
+         * @return false once all fixes were read
+         */
+        public boolean next() throws IOException {
+            if (position == end) {
+                return false;
+            }
+            latitude += unZigZag(readVarint());
+            longitude += unZigZag(readVarint());
+            time += unZigZag(readVarint());
+            accuracy = (int) readVarint();
+            return true;
+        }
+
+        public double getLatitude() {
+            return latitude / COORDINATE_SCALE;
+        }
+
+        public double getLongitude() {
+            return longitude / COORDINATE_SCALE;
+        }
+
+        public float getAccuracy() {
+            return accuracy;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position == end) {
+                    throw new IOException("Truncated fix frame");
+                }
+                byte b = frame[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in fix frame");
+        }
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
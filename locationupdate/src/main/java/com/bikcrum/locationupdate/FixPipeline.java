@@ -0,0 +1,123 @@
+package com.bikcrum.locationupdate;
+
+import android.location.Location;
+
+/**
+ * Runs each fix through the {@link FixProcessor}s and hands what is left to the
+ * {@link FixDispatcher}.
+ * <p/>
+ * Processors are kept in a copy-on-write array like the dispatcher's subscribers, so adding or
+ * removing one never blocks the delivery thread. The {@link Fix} is reused, nothing is allocated
+ * per fix.
+ */
+final class FixPipeline {
+
+    private static final FixProcessor[] EMPTY = new FixProcessor[0];
+
+    private final FixDispatcher dispatcher;
+    private final LocationMetrics metrics;
+    private final Fix fix = new Fix();
+
+    private final Object lock = new Object();
+    private volatile FixProcessor[] processors = EMPTY;
+
+    FixPipeline(FixDispatcher dispatcher) {
+        this(dispatcher, null);
+    }
+
+    /**
+     * @param metrics counts the fixes processors drop, may be null
+     */
+    FixPipeline(FixDispatcher dispatcher, LocationMetrics metrics) {
+        this.dispatcher = dispatcher;
+        this.metrics = metrics;
+    }
+
+    void add(FixProcessor processor) {
+        synchronized (lock) {
+            FixProcessor[] current = processors;
+            FixProcessor[] updated = new FixProcessor[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = processor;
+            processors = updated;
+        }
+    }
+
+    boolean remove(FixProcessor processor) {
+        synchronized (lock) {
+            FixProcessor[] current = processors;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == processor) {
+                    FixProcessor[] updated = new FixProcessor[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    processors = updated;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Must be called on the delivery thread.
+     *
+     * @return true if the fix passed the processors and was dispatched
+     */
+    boolean onFix(Location location, long elapsedRealtimeNanos) {
+        fix.set(location, elapsedRealtimeNanos);
+        return run();
+    }
+
+    /**
+     * Must be called on the delivery thread.
+     *
+     * @return true if the fix passed the processors and was dispatched
+     */
+    boolean onFix(double latitude, double longitude, float accuracy, float speed, float bearing,
+                  long time, long elapsedRealtimeNanos) {
+        fix.set(null, latitude, longitude, accuracy, speed, bearing, time, elapsedRealtimeNanos);
+        return run();
+    }
+
+    /**
+     * @return true if a listener takes fixes as {@link Location}s, so fixes that come as
+     * primitives need one made for them
+     */
+    boolean needsLocation() {
+        return dispatcher.hasLocationListener();
+    }
+
+    /**
+     * A cached fix delivered before the first fresh one, see {@link Fix#isProvisional()}. Must be
+     * called on the delivery thread.
+     */
+    boolean onProvisionalFix(Location location, long elapsedRealtimeNanos) {
+        fix.set(location, elapsedRealtimeNanos);
+        fix.setProvisional(true);
+        return run();
+    }
+
+    /**
+     * The fix last run through the pipeline, with the changes of the processors. Only valid on the
+     * delivery thread until the next fix.
+     */
+    Fix getFix() {
+        return fix;
+    }
+
+    private boolean run() {
+        FixProcessor[] current = processors;
+        for (FixProcessor processor : current) {
+            if (!processor.process(fix)) {
+                if (metrics != null) {
+                    metrics.recordDroppedFix();
+                }
+                return false;
+            }
+        }
+        dispatcher.dispatch(fix.getLocation(), fix.getLatitude(), fix.getLongitude(),
+                fix.getAccuracy(), fix.getElapsedRealtimeNanos());
+        return true;
+    }
+}
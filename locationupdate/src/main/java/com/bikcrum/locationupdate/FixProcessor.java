@@ -0,0 +1,16 @@
+package com.bikcrum.locationupdate;
+
+/**
+ * A stage that sees every fix before it reaches the listeners. Processors run on the delivery
+ * thread in the order they were added.
+ *
+ * @see LocationUpdate#addFixProcessor(FixProcessor)
+ */
+public interface FixProcessor {
+    /**
+     * @param fix reused for the next fix, copy what has to be kept. May be a cached
+     *            {@link Fix#isProvisional() provisional} fix at start.
+     * @return false to drop the fix, later processors and listeners will not see it
+     */
+    boolean process(Fix fix);
+}
@@ -0,0 +1,351 @@
+package com.bikcrum.locationupdate;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixes as a stream with flow control, following the Reactive Streams rules of
+ * {@code java.util.concurrent.Flow}, which is not available on the Android versions this library
+ * supports. A subscriber receives fixes only as far as it requested them, fixes coming faster are
+ * held in a buffer of its own and handled by its {@link Overflow} strategy when it is full.
+ * <p/>
+ * Publishing a fix copies it into each subscriber's buffer and schedules delivery on the
+ * subscriber's executor, it never waits for a subscriber. A slow subscriber therefore delays
+ * neither the delivery thread nor the other subscribers, it only loses fixes by its own strategy.
+ * Buffers hold primitives, no object is allocated per fix and subscriber.
+ *
+ * @see LocationUpdate#getFixStream()
+ */
+public final class FixStream {
+
+    public enum Overflow {
+        /**
+         * Keep only the latest fix not delivered yet.
+         */
+        CONFLATE,
+        /**
+         * Keep every fix, and fail the subscription with an {@link OverflowException} when the
+         * buffer is full.
+         */
+        BUFFER,
+        /**
+         * Drop the oldest fix in the buffer to make room for the new one.
+         */
+        DROP_OLDEST
+    }
+
+    public interface Subscriber {
+        /**
+         * Called first, request fixes from the subscription to start receiving them.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * @param fix reused for the next fix of this subscriber, copy what has to be kept. Its
+         *            {@link Fix#getLocation() location} is null.
+         */
+        void onNext(Fix fix);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * Asks for {@code n} more fixes, {@link Long#MAX_VALUE} for all of them.
+         */
+        void request(long n);
+
+        /**
+         * Stops delivery. Fixes in the buffer are dropped.
+         */
+        void cancel();
+    }
+
+    /**
+     * A {@link Overflow#BUFFER} subscriber fell behind by more than its buffer holds.
+     */
+    public static final class OverflowException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        OverflowException(int capacity) {
+            super("Subscriber fell behind by more than " + capacity + " fixes");
+        }
+    }
+
+    private static final StreamSubscription[] EMPTY = new StreamSubscription[0];
+
+    private final Object lock = new Object();
+    private volatile StreamSubscription[] subscriptions = EMPTY;
+    private boolean closed;
+    // Its threads end after a minute without deliveries.
+    private Executor defaultExecutor;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * Subscribes with {@link Overflow#CONFLATE}, delivering on a thread of its own.
+     */
+    public void subscribe(Subscriber subscriber) {
+        subscribe(subscriber, Overflow.CONFLATE, 1, null);
+    }
+
+    /**
+     * @param capacity fixes the buffer holds, ignored for {@link Overflow#CONFLATE}
+     * @param executor runs the deliveries to this subscriber, one at a time. Null to use a thread
+     *                 of its own whenever there is something to deliver.
+     */
+    public void subscribe(Subscriber subscriber, Overflow overflow, int capacity, Executor executor) {
+        if (overflow == Overflow.CONFLATE) {
+            capacity = 1;
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        boolean closed;
+        StreamSubscription subscription;
+        synchronized (lock) {
+            closed = this.closed;
+            subscription = new StreamSubscription(subscriber, overflow, capacity,
+                    executor != null ? executor : defaultExecutor());
+        }
+        subscriber.onSubscribe(subscription);
+        if (closed) {
+            subscription.complete();
+            return;
+        }
+        synchronized (lock) {
+            StreamSubscription[] current = subscriptions;
+            StreamSubscription[] updated = new StreamSubscription[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = subscription;
+            subscriptions = updated;
+        }
+    }
+
+    private Executor defaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "FixStream");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return defaultExecutor;
+    }
+
+    private void remove(StreamSubscription subscription) {
+        synchronized (lock) {
+            StreamSubscription[] current = subscriptions;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == subscription) {
+                    StreamSubscription[] updated = new StreamSubscription[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    subscriptions = updated;
+                    return;
+                }
+            }
+        }
+    }
+
+    public boolean hasSubscribers() {
+        return subscriptions.length > 0;
+    }
+
+    /**
+     * @return fixes dropped by {@link Overflow#CONFLATE} and {@link Overflow#DROP_OLDEST}
+     * subscribers, over all subscribers
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Must be called on the delivery thread.
+     */
+    void publish(Fix fix) {
+        for (StreamSubscription subscription : subscriptions) {
+            subscription.offer(fix);
+        }
+    }
+
+    /**
+     * Completes every subscriber once it received what is buffered for it, later subscribers are
+     * completed right away.
+     */
+    public void close() {
+        StreamSubscription[] current;
+        synchronized (lock) {
+            closed = true;
+            current = subscriptions;
+            subscriptions = EMPTY;
+        }
+        for (StreamSubscription subscription : current) {
+            subscription.complete();
+        }
+    }
+
+    private final class StreamSubscription implements Subscription, Runnable {
+        private final Subscriber subscriber;
+        private final Overflow overflow;
+        private final int capacity;
+        private final Executor executor;
+
+        // Ring buffer, guarded by this.
+        private final double[] latitudes;
+        private final double[] longitudes;
+        private final float[] accuracies;
+        private final float[] speeds;
+        private final float[] bearings;
+        private final long[] times;
+        private final long[] elapsedRealtimeNanos;
+        private final boolean[] provisional;
+        private int head;
+        private int size;
+        private long requested;
+        private boolean completing;
+        private boolean cancelled;
+        private Throwable error;
+
+        // Deliveries scheduled and not yet run, only one runs at a time.
+        private final AtomicInteger pending = new AtomicInteger();
+        // Only touched by the delivery running.
+        private final Fix fix = new Fix();
+
+        StreamSubscription(Subscriber subscriber, Overflow overflow, int capacity, Executor executor) {
+            this.subscriber = subscriber;
+            this.overflow = overflow;
+            this.capacity = capacity;
+            this.executor = executor;
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+            accuracies = new float[capacity];
+            speeds = new float[capacity];
+            bearings = new float[capacity];
+            times = new long[capacity];
+            elapsedRealtimeNanos = new long[capacity];
+            provisional = new boolean[capacity];
+        }
+
+        void offer(Fix fix) {
+            synchronized (this) {
+                if (cancelled || completing || error != null) {
+                    return;
+                }
+                if (size == capacity) {
+                    if (overflow == Overflow.BUFFER) {
+                        error = new OverflowException(capacity);
+                        size = 0;
+                    } else {
+                        head = (head + 1) % capacity;
+                        size--;
+                        droppedCount.incrementAndGet();
+                    }
+                }
+                if (error == null) {
+                    int tail = (head + size) % capacity;
+                    latitudes[tail] = fix.getLatitude();
+                    longitudes[tail] = fix.getLongitude();
+                    accuracies[tail] = fix.getAccuracy();
+                    speeds[tail] = fix.getSpeed();
+                    bearings[tail] = fix.getBearing();
+                    times[tail] = fix.getTime();
+                    elapsedRealtimeNanos[tail] = fix.getElapsedRealtimeNanos();
+                    provisional[tail] = fix.isProvisional();
+                    size++;
+                }
+            }
+            schedule();
+        }
+
+        void complete() {
+            synchronized (this) {
+                completing = true;
+            }
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                if (n <= 0) {
+                    // Rule 3.9 of Reactive Streams.
+                    error = new IllegalArgumentException("request " + n + ", must be positive");
+                } else {
+                    requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                size = 0;
+            }
+            remove(this);
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * Delivers what was requested and is buffered, until nothing new was scheduled meanwhile.
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                while (true) {
+                    Throwable error = null;
+                    boolean complete = false;
+                    synchronized (this) {
+                        if (cancelled) {
+                            return;
+                        }
+                        if (this.error != null) {
+                            error = this.error;
+                            cancelled = true;
+                        } else if (size > 0 && requested > 0) {
+                            fix.set(null, latitudes[head], longitudes[head], accuracies[head],
+                                    speeds[head], bearings[head], times[head], elapsedRealtimeNanos[head]);
+                            fix.setProvisional(provisional[head]);
+                            head = (head + 1) % capacity;
+                            size--;
+                            if (requested != Long.MAX_VALUE) {
+                                requested--;
+                            }
+                        } else if (completing && size == 0) {
+                            complete = true;
+                            cancelled = true;
+                        } else {
+                            break;
+                        }
+                    }
+                    if (error != null) {
+                        remove(this);
+                        subscriber.onError(error);
+                        return;
+                    }
+                    if (complete) {
+                        subscriber.onComplete();
+                        return;
+                    }
+                    subscriber.onNext(fix);
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
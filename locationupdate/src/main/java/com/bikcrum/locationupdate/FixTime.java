@@ -0,0 +1,61 @@
+package com.bikcrum.locationupdate;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+/**
+ * The time a fix was delivered, as handed to
+ * {@link LocationUpdate.OnLazyLocationUpdatedListener}s. Formatted with
+ * {@link DateFormat#getTimeInstance()} the first time it is read, so listeners that never look at
+ * it cost no formatting and take no lock.
+ */
+final class FixTime implements CharSequence {
+
+    // The formatter is not thread safe, fixes are read on the delivery and on the main thread.
+    private static final Object lock = new Object();
+    private static DateFormat timeFormat;
+    private static final Date date = new Date();
+
+    private final long timeInMillis;
+    // Racy but safe: a String is immutable, at worst two threads format it both.
+    private String formatted;
+
+    FixTime(long timeInMillis) {
+        this.timeInMillis = timeInMillis;
+    }
+
+    @Override
+    public int length() {
+        return toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        String formatted = this.formatted;
+        if (formatted == null) {
+            formatted = format(timeInMillis);
+            this.formatted = formatted;
+        }
+        return formatted;
+    }
+
+    static String format(long timeInMillis) {
+        synchronized (lock) {
+            if (timeFormat == null) {
+                timeFormat = DateFormat.getTimeInstance();
+            }
+            date.setTime(timeInMillis);
+            return timeFormat.format(date);
+        }
+    }
+}
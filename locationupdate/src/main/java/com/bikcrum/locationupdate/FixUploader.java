@@ -0,0 +1,367 @@
+package com.bikcrum.locationupdate;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gets fixes off the device in batches instead of one request per fix.
+ * <p/>
+ * Fixes are collected into a {@link FixFrame} until {@link #setMaxBatchSize(int)} fixes were added
+ * or the oldest is {@link #setMaxBatchAgeInMilliseconds(long)} old, then the frame is handed to the
+ * {@link Transport} on the uploader's own thread, so the delivery thread never waits for the
+ * network. When sending fails the frame and every later one is written to the spill directory, and
+ * sending is retried with exponential backoff and jitter. Once a send succeeds again the spilled
+ * frames go out oldest first. Spilled frames also survive the process, they are sent by the next
+ * uploader using the same directory.
+ */
+public final class FixUploader implements FixProcessor, Closeable {
+
+    /**
+     * Sends one frame. Called on the uploader thread, may block.
+     */
+    public interface Transport {
+        /**
+         * @throws IOException if the frame was not accepted, it will be sent again later
+         */
+        void send(byte[] frame, int offset, int length) throws IOException;
+    }
+
+    private static final String SPILL_SUFFIX = ".frame";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final Transport transport;
+    private final File spillDirectory;
+    private final ScheduledExecutorService executor;
+    private final Random random = new Random();
+
+    private int maxBatchSize = 300;
+    private long maxBatchAgeNanos = 60000L * 1000000L;
+    private long initialBackoffInMilliseconds = 1000;
+    private long maxBackoffInMilliseconds = 300000;
+    private long maxSpillBytes = 10 * 1024 * 1024;
+
+    // Batch being filled, guarded by itself.
+    private final FixFrame.Encoder encoder = new FixFrame.Encoder();
+    private long batchStartNanos;
+    private long batchGeneration;
+
+    // Uploader thread only.
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private boolean offline;
+    private int failures;
+    private long nextSpillSequence;
+
+    private final AtomicLong fixesSent = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+
+    /**
+     * @param spillDirectory where frames wait while offline, created if needed
+     */
+    public FixUploader(Transport transport, File spillDirectory) throws IOException {
+        if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+            throw new FileNotFoundException("Cannot create " + spillDirectory);
+        }
+        this.transport = transport;
+        this.spillDirectory = spillDirectory;
+        long[] sequences = spilledSequences();
+        nextSpillSequence = sequences.length > 0 ? sequences[sequences.length - 1] + 1 : 0;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "FixUploader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+        // Frames left over from an earlier run.
+        if (sequences.length > 0) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * @param maxBatchSize fixes per frame, default is 300
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchAgeInMilliseconds longest a fix waits before its batch is sent, default is
+     *                                  60000
+     */
+    public void setMaxBatchAgeInMilliseconds(long maxBatchAgeInMilliseconds) {
+        this.maxBatchAgeNanos = maxBatchAgeInMilliseconds * 1000000L;
+    }
+
+    /**
+     * @param initialBackoffInMilliseconds wait before the first retry, default is 1000
+     * @param maxBackoffInMilliseconds     longest wait between retries, default is 300000
+     */
+    public void setBackoff(long initialBackoffInMilliseconds, long maxBackoffInMilliseconds) {
+        this.initialBackoffInMilliseconds = initialBackoffInMilliseconds;
+        this.maxBackoffInMilliseconds = maxBackoffInMilliseconds;
+    }
+
+    /**
+     * @param maxSpillBytes disk space for frames waiting while offline, the oldest frames are
+     *                      dropped beyond it. Default is 10 MB.
+     */
+    public void setMaxSpillBytes(long maxSpillBytes) {
+        this.maxSpillBytes = maxSpillBytes;
+    }
+
+    public long getFixesSent() {
+        return fixesSent.get();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getSendFailures() {
+        return sendFailures.get();
+    }
+
+    /**
+     * @return frames given up on because the spill directory was full
+     */
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        if (executor.isShutdown() || fix.isProvisional()) {
+            return true;
+        }
+        synchronized (encoder) {
+            if (encoder.size() == 0) {
+                batchStartNanos = fix.getElapsedRealtimeNanos();
+                // Sends the batch when its age is up even if no further fix comes.
+                long generation = ++batchGeneration;
+                executor.schedule(() -> flush(generation), maxBatchAgeNanos, TimeUnit.NANOSECONDS);
+            }
+            encoder.add(fix.getLatitude(), fix.getLongitude(), fix.getAccuracy(), fix.getTime());
+            if (encoder.size() >= maxBatchSize
+                    || fix.getElapsedRealtimeNanos() - batchStartNanos >= maxBatchAgeNanos) {
+                seal();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends the fixes collected so far without waiting for the batch to fill.
+     */
+    public void flush() {
+        synchronized (encoder) {
+            if (encoder.size() > 0) {
+                seal();
+            }
+        }
+    }
+
+    private void flush(long generation) {
+        synchronized (encoder) {
+            if (generation == batchGeneration && encoder.size() > 0) {
+                seal();
+            }
+        }
+    }
+
+    /**
+     * Sends the current batch and stops. Frames that could not be sent yet stay in the spill
+     * directory for the next uploader.
+     */
+    @Override
+    public void close() {
+        flush();
+        executor.execute(this::spillQueue);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void seal() {
+        byte[] frame = encoder.toByteArray();
+        encoder.reset();
+        batchGeneration++;
+        executor.execute(() -> {
+            if (offline) {
+                spill(frame);
+            } else {
+                queue.add(frame);
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Sends the spilled frames, then the queued ones, until one fails.
+     */
+    private void drain() {
+        for (long sequence : spilledSequences()) {
+            File file = spillFile(sequence);
+            byte[] frame;
+            try {
+                frame = readFile(file);
+            } catch (IOException e) {
+                // Unreadable, nothing to retry.
+                framesDropped.incrementAndGet();
+                file.delete();
+                continue;
+            }
+            if (!send(frame)) {
+                // Offline again, the frames queued since are kept on disk as well.
+                spillQueue();
+                return;
+            }
+            file.delete();
+        }
+        while (!queue.isEmpty()) {
+            if (!send(queue.peek())) {
+                spillQueue();
+                return;
+            }
+            queue.poll();
+        }
+        offline = false;
+        failures = 0;
+    }
+
+    private boolean send(byte[] frame) {
+        try {
+            transport.send(frame, 0, frame.length);
+        } catch (IOException | RuntimeException e) {
+            sendFailures.incrementAndGet();
+            offline = true;
+            scheduleRetry();
+            return false;
+        }
+        framesSent.incrementAndGet();
+        bytesSent.addAndGet(frame.length);
+        fixesSent.addAndGet(countFixes(frame));
+        return true;
+    }
+
+    private void scheduleRetry() {
+        long backoff = initialBackoffInMilliseconds << Math.min(failures, 20);
+        backoff = Math.min(backoff, maxBackoffInMilliseconds);
+        failures++;
+        // Full jitter on the upper half, so many devices coming back online do not retry together.
+        long delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2 + 1));
+        if (!executor.isShutdown()) {
+            executor.schedule(this::drain, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void spillQueue() {
+        while (!queue.isEmpty()) {
+            spill(queue.poll());
+        }
+    }
+
+    private void spill(byte[] frame) {
+        File temporary = new File(spillDirectory, nextSpillSequence + TEMPORARY_SUFFIX);
+        File file = spillFile(nextSpillSequence);
+        try (FileOutputStream output = new FileOutputStream(temporary)) {
+            output.write(frame);
+            output.getFD().sync();
+        } catch (IOException e) {
+            framesDropped.incrementAndGet();
+            temporary.delete();
+            return;
+        }
+        if (!temporary.renameTo(file)) {
+            framesDropped.incrementAndGet();
+            temporary.delete();
+            return;
+        }
+        nextSpillSequence++;
+        trimSpill();
+    }
+
+    private void trimSpill() {
+        long[] sequences = spilledSequences();
+        long total = 0;
+        for (long sequence : sequences) {
+            total += spillFile(sequence).length();
+        }
+        for (int i = 0; i < sequences.length && total > maxSpillBytes; i++) {
+            File oldest = spillFile(sequences[i]);
+            total -= oldest.length();
+            oldest.delete();
+            framesDropped.incrementAndGet();
+        }
+    }
+
+    private File spillFile(long sequence) {
+        return new File(spillDirectory, String.format(Locale.US, "%016d%s", sequence, SPILL_SUFFIX));
+    }
+
+    private long[] spilledSequences() {
+        String[] names = spillDirectory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] sequences = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.endsWith(SPILL_SUFFIX)) {
+                continue;
+            }
+            try {
+                sequences[count++] = Long.parseLong(name.substring(0, name.length() - SPILL_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                // not a frame
+            }
+        }
+        sequences = Arrays.copyOf(sequences, count);
+        Arrays.sort(sequences);
+        return sequences;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    private static int countFixes(byte[] frame) {
+        int count = 0;
+        try {
+            FixFrame.Decoder decoder = new FixFrame.Decoder(frame, 0, frame.length);
+            while (decoder.next()) {
+                count++;
+            }
+        } catch (IOException e) {
+            // counted what could be read
+        }
+        return count;
+    }
+}
@@ -0,0 +1,115 @@
+package com.bikcrum.locationupdate;
+
+import android.app.PendingIntent;
+import android.location.Location;
+import android.os.Looper;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationListener;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+
+/**
+ * Fixes from the fused location provider of Google Play services. The client is connected and
+ * disconnected by {@link LocationUpdate}, updates are only requested while it is connected.
+ * <p/>
+ * When the request allows the provider to hold fixes back ({@code maxWaitTime} above the
+ * interval), batches are received with a {@link LocationCallback}, otherwise each fix with a
+ * {@link LocationListener}. For background tracking the request is registered with a
+ * {@link PendingIntent} instead, which keeps delivering after the process is gone, see
+ * {@link LocationUpdate#enableBackgroundTracking()}.
+ */
+public final class FusedLocationSource implements LocationSource {
+
+    private final GoogleApiClient client;
+    private volatile Callback callback;
+    // Main thread only.
+    private PendingIntent pendingIntent;
+    private PendingIntent registeredPendingIntent;
+
+    private final LocationListener locationListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(Location location) {
+            Callback callback = FusedLocationSource.this.callback;
+            if (callback != null) {
+                callback.onLocation(location);
+            }
+        }
+    };
+
+    private final LocationCallback locationCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult locationResult) {
+            Callback callback = FusedLocationSource.this.callback;
+            if (callback != null) {
+                callback.onLocations(locationResult.getLocations());
+            }
+        }
+    };
+
+    public FusedLocationSource(GoogleApiClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public void requestUpdates(LocationRequest request, Looper looper, Callback callback) {
+        if (!client.isConnected()) {
+            return;
+        }
+        this.callback = callback;
+        if (pendingIntent != null) {
+            LocationServices.FusedLocationApi.removeLocationUpdates(client, locationListener);
+            LocationServices.FusedLocationApi.removeLocationUpdates(client, locationCallback);
+            // Requesting again with the same intent replaces the previous request.
+            LocationServices.FusedLocationApi.requestLocationUpdates(client, request, pendingIntent);
+            registeredPendingIntent = pendingIntent;
+            return;
+        }
+        removePendingIntentUpdates();
+        if (request.getMaxWaitTime() > request.getInterval()) {
+            LocationServices.FusedLocationApi.removeLocationUpdates(client, locationListener);
+            LocationServices.FusedLocationApi.requestLocationUpdates(client, request, locationCallback, looper);
+        } else {
+            LocationServices.FusedLocationApi.removeLocationUpdates(client, locationCallback);
+            LocationServices.FusedLocationApi.requestLocationUpdates(client, request, locationListener, looper);
+        }
+    }
+
+    /**
+     * Delivers updates requested from now on to the intent instead of the callback, or to the
+     * callback again when null. Updates requested before have to be requested again.
+     */
+    void setPendingIntent(PendingIntent pendingIntent) {
+        this.pendingIntent = pendingIntent;
+    }
+
+    private void removePendingIntentUpdates() {
+        if (registeredPendingIntent != null) {
+            LocationServices.FusedLocationApi.removeLocationUpdates(client, registeredPendingIntent);
+            registeredPendingIntent = null;
+        }
+    }
+
+    /**
+     * @return the most recent fix the provider has, possibly from another app and some time ago,
+     * or null when it has none or the client is not connected
+     */
+    public Location getLastLocation() {
+        if (!client.isConnected()) {
+            return null;
+        }
+        return LocationServices.FusedLocationApi.getLastLocation(client);
+    }
+
+    @Override
+    public void removeUpdates() {
+        if (!client.isConnected()) {
+            return;
+        }
+        LocationServices.FusedLocationApi.removeLocationUpdates(client, locationListener);
+        LocationServices.FusedLocationApi.removeLocationUpdates(client, locationCallback);
+        removePendingIntentUpdates();
+    }
+}
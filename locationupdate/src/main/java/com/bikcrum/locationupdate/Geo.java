@@ -0,0 +1,50 @@
+package com.bikcrum.locationupdate;
+
+/**
+ * Spherical earth helpers shared by the fix processors.
+ */
+final class Geo {
+
+    /**
+     * Mean earth radius in meters.
+     */
+    static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    static final double METERS_PER_DEGREE = EARTH_RADIUS_METERS * Math.PI / 180;
+
+    private Geo() {
+    }
+
+    /**
+     * @return meters per degree of longitude at the given latitude
+     */
+    static double metersPerDegreeLongitude(double latitude) {
+        return METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+    }
+
+    /**
+     * @return great circle distance in meters
+     */
+    static double haversine(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double phi1 = Math.toRadians(latitude1);
+        double phi2 = Math.toRadians(latitude2);
+        double sinHalfDeltaPhi = Math.sin((phi2 - phi1) / 2);
+        double sinHalfDeltaLambda = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+        double h = sinHalfDeltaPhi * sinHalfDeltaPhi
+                + Math.cos(phi1) * Math.cos(phi2) * sinHalfDeltaLambda * sinHalfDeltaLambda;
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    /**
+     * @return the longitude difference taken the short way around, -180 to 180
+     */
+    static double wrapLongitude(double deltaLongitude) {
+        if (deltaLongitude > 180) {
+            return deltaLongitude - 360;
+        }
+        if (deltaLongitude < -180) {
+            return deltaLongitude + 360;
+        }
+        return deltaLongitude;
+    }
+}
@@ -0,0 +1,39 @@
+package com.bikcrum.locationupdate;
+
+import android.content.Context;
+import android.location.Address;
+import android.location.Geocoder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Resolves addresses with the platform {@link Geocoder}, for a {@link PlaceCache}. The geocoder
+ * blocks on the network, the cache calls it on its own executor.
+ */
+public final class GeocoderResolver implements PlaceCache.Resolver<Address> {
+
+    private final Geocoder geocoder;
+
+    public GeocoderResolver(Context context) {
+        this(context, Locale.getDefault());
+    }
+
+    public GeocoderResolver(Context context, Locale locale) {
+        geocoder = new Geocoder(context, locale);
+    }
+
+    /**
+     * @return false if the device has no geocoder, every lookup would fail
+     */
+    public static boolean isPresent() {
+        return Geocoder.isPresent();
+    }
+
+    @Override
+    public Address resolve(double latitude, double longitude) throws IOException {
+        List<Address> addresses = geocoder.getFromLocation(latitude, longitude, 1);
+        return addresses == null || addresses.isEmpty() ? null : addresses.get(0);
+    }
+}
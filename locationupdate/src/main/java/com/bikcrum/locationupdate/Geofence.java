@@ -0,0 +1,135 @@
+package com.bikcrum.locationupdate;
+
+/**
+ * A circular or polygonal area watched by a {@link GeofenceEngine}.
+ * <p/>
+ * Polygons are given as latitude and longitude arrays of their vertices, the last vertex connects
+ * back to the first. Fences must not cross the 180th meridian. A fence can be added to one engine
+ * at a time.
+ */
+public final class Geofence {
+
+    private final String id;
+    private final double latitude;
+    private final double longitude;
+    private final float radiusInMeters;
+    private final double[] latitudes;
+    private final double[] longitudes;
+
+    // Bounding box in degrees.
+    final double minLatitude;
+    final double maxLatitude;
+    final double minLongitude;
+    final double maxLongitude;
+
+    private final double metersPerDegreeLongitude;
+    private final double radiusSquared;
+
+    // State kept by the engine that holds the fence.
+    boolean added;
+    boolean inside;
+    boolean dwelled;
+    long enteredNanos;
+
+    private Geofence(String id, double latitude, double longitude, float radiusInMeters,
+                     double[] latitudes, double[] longitudes) {
+        if (id == null) {
+            throw new IllegalArgumentException("id must not be null");
+        }
+        this.id = id;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.radiusInMeters = radiusInMeters;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.metersPerDegreeLongitude = Geo.metersPerDegreeLongitude(latitude);
+        this.radiusSquared = (double) radiusInMeters * radiusInMeters;
+
+        if (latitudes == null) {
+            double latitudeSpan = radiusInMeters / Geo.METERS_PER_DEGREE;
+            double longitudeSpan = radiusInMeters / Math.max(metersPerDegreeLongitude, 1);
+            minLatitude = latitude - latitudeSpan;
+            maxLatitude = latitude + latitudeSpan;
+            minLongitude = longitude - longitudeSpan;
+            maxLongitude = longitude + longitudeSpan;
+        } else {
+            double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+            double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+            for (int i = 0; i < latitudes.length; i++) {
+                minLat = Math.min(minLat, latitudes[i]);
+                maxLat = Math.max(maxLat, latitudes[i]);
+                minLon = Math.min(minLon, longitudes[i]);
+                maxLon = Math.max(maxLon, longitudes[i]);
+            }
+            minLatitude = minLat;
+            maxLatitude = maxLat;
+            minLongitude = minLon;
+            maxLongitude = maxLon;
+        }
+    }
+
+    public static Geofence circle(String id, double latitude, double longitude, float radiusInMeters) {
+        if (radiusInMeters <= 0) {
+            throw new IllegalArgumentException("radiusInMeters must be positive");
+        }
+        return new Geofence(id, latitude, longitude, radiusInMeters, null, null);
+    }
+
+    /**
+     * The arrays are copied.
+     */
+    public static Geofence polygon(String id, double[] latitudes, double[] longitudes) {
+        if (latitudes.length != longitudes.length || latitudes.length < 3) {
+            throw new IllegalArgumentException("A polygon needs at least 3 vertices");
+        }
+        return new Geofence(id, 0, 0, 0, latitudes.clone(), longitudes.clone());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return radius of a circle, 0 for a polygon
+     */
+    public float getRadiusInMeters() {
+        return radiusInMeters;
+    }
+
+    public boolean isPolygon() {
+        return latitudes != null;
+    }
+
+    /**
+     * @return true if the point is inside the fence
+     */
+    public boolean contains(double latitude, double longitude) {
+        if (latitude < minLatitude || latitude > maxLatitude
+                || longitude < minLongitude || longitude > maxLongitude) {
+            return false;
+        }
+        if (latitudes == null) {
+            // Fences are small, a flat earth around the center is accurate enough.
+            double north = (latitude - this.latitude) * Geo.METERS_PER_DEGREE;
+            double east = (longitude - this.longitude) * metersPerDegreeLongitude;
+            return north * north + east * east <= radiusSquared;
+        }
+        // Ray casting, counts the edges crossed going east from the point.
+        boolean inside = false;
+        for (int i = 0, j = latitudes.length - 1; i < latitudes.length; j = i++) {
+            if ((latitudes[i] > latitude) != (latitudes[j] > latitude)
+                    && longitude < longitudes[i] + (latitude - latitudes[i])
+                    * (longitudes[j] - longitudes[i]) / (latitudes[j] - latitudes[i])) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * @return true while the engine holding the fence considers the device inside
+     */
+    public boolean isInside() {
+        return inside;
+    }
+}
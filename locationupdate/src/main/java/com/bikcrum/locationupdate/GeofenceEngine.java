@@ -0,0 +1,312 @@
+package com.bikcrum.locationupdate;
+
+import java.util.Arrays;
+
+/**
+ * Checks every fix against a large number of {@link Geofence}s and reports when the device enters,
+ * leaves or stays in one.
+ * <p/>
+ * Fences are indexed in a uniform grid of square cells. A fix is only tested against the fences
+ * overlapping its cell and the fences it is already inside, so the cost of a fix does not grow with
+ * the number of fences. Fences can be added and removed at any time from any thread, only the
+ * cells they overlap are touched. Fences covering more than {@link #MAX_CELLS_PER_FENCE} cells are
+ * not worth indexing and are tested on every fix.
+ * <p/>
+ * Transitions are reported on the delivery thread, after the fix was evaluated, so listeners may
+ * add and remove fences. Evaluating a fix allocates nothing.
+ * <p/>
+ * {@link Fix#isProvisional() Provisional} fixes are evaluated like any other, so the fences around
+ * a cached position are entered right at start. Check the flag on the reported fix to tell.
+ */
+public final class GeofenceEngine implements FixProcessor {
+
+    public static final int TRANSITION_ENTER = 1;
+    public static final int TRANSITION_EXIT = 2;
+    public static final int TRANSITION_DWELL = 4;
+
+    public static final float DEFAULT_CELL_SIZE_IN_METERS = 1000;
+    static final int MAX_CELLS_PER_FENCE = 64;
+
+    public interface OnGeofenceTransitionListener {
+        /**
+         * @param transition one of {@link #TRANSITION_ENTER}, {@link #TRANSITION_EXIT} or
+         *                   {@link #TRANSITION_DWELL}
+         * @param fix        the fix that caused the transition, only valid during the call
+         */
+        void onGeofenceTransition(Geofence geofence, int transition, Fix fix);
+    }
+
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+
+    private static final class Cell {
+        Geofence[] fences = new Geofence[4];
+        int size;
+
+        void add(Geofence fence) {
+            if (size == fences.length) {
+                Geofence[] grown = new Geofence[size * 2];
+                System.arraycopy(fences, 0, grown, 0, size);
+                fences = grown;
+            }
+            fences[size++] = fence;
+        }
+
+        void remove(Geofence fence) {
+            for (int i = 0; i < size; i++) {
+                if (fences[i] == fence) {
+                    fences[i] = fences[--size];
+                    fences[size] = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    private final double cellSizeInDegrees;
+
+    // Open addressing map from cell key to cell, linear probing. Empty cells are kept.
+    private long[] keys = newKeys(64);
+    private Cell[] cells = new Cell[64];
+    private int cellCount;
+
+    private final Cell large = new Cell();
+    private final Cell inside = new Cell();
+    private int fenceCount;
+
+    private long dwellDelayNanos = 300000L * 1000000L;
+    private volatile OnGeofenceTransitionListener listener;
+
+    // Transitions of the current fix, reported once the lock is released.
+    private Geofence[] eventFences = new Geofence[8];
+    private int[] eventTransitions = new int[8];
+    private int eventCount;
+
+    public GeofenceEngine() {
+        this(DEFAULT_CELL_SIZE_IN_METERS);
+    }
+
+    /**
+     * @param cellSizeInMeters side of a grid cell, around the size of a typical fence works best
+     */
+    public GeofenceEngine(float cellSizeInMeters) {
+        if (cellSizeInMeters <= 0) {
+            throw new IllegalArgumentException("cellSizeInMeters must be positive");
+        }
+        cellSizeInDegrees = cellSizeInMeters / Geo.METERS_PER_DEGREE;
+    }
+
+    public void setOnGeofenceTransitionListener(OnGeofenceTransitionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param dwellDelayInMilliseconds time inside a fence before {@link #TRANSITION_DWELL} is
+     *                                 reported, default is 300000
+     */
+    public synchronized void setDwellDelayInMilliseconds(long dwellDelayInMilliseconds) {
+        this.dwellDelayNanos = dwellDelayInMilliseconds * 1000000L;
+    }
+
+    /**
+     * @return number of fences held
+     */
+    public synchronized int size() {
+        return fenceCount;
+    }
+
+    /**
+     * Starts watching the fence. The device counts as outside until the next fix.
+     */
+    public synchronized void add(Geofence fence) {
+        if (fence.added) {
+            throw new IllegalStateException("Geofence " + fence.getId() + " is already added");
+        }
+        fence.added = true;
+        fence.inside = false;
+        fence.dwelled = false;
+        fenceCount++;
+        if (cellsCovered(fence) > MAX_CELLS_PER_FENCE) {
+            large.add(fence);
+            return;
+        }
+        int minRow = row(fence.minLatitude), maxRow = row(fence.maxLatitude);
+        int minColumn = column(fence.minLongitude), maxColumn = column(fence.maxLongitude);
+        for (int r = minRow; r <= maxRow; r++) {
+            for (int c = minColumn; c <= maxColumn; c++) {
+                getOrCreateCell(key(r, c)).add(fence);
+            }
+        }
+    }
+
+    /**
+     * Stops watching the fence, without reporting an exit.
+     *
+     * @return true if the fence was held
+     */
+    public synchronized boolean remove(Geofence fence) {
+        if (!fence.added) {
+            return false;
+        }
+        fence.added = false;
+        fenceCount--;
+        if (fence.inside) {
+            fence.inside = false;
+            inside.remove(fence);
+        }
+        if (cellsCovered(fence) > MAX_CELLS_PER_FENCE) {
+            large.remove(fence);
+            return true;
+        }
+        int minRow = row(fence.minLatitude), maxRow = row(fence.maxLatitude);
+        int minColumn = column(fence.minLongitude), maxColumn = column(fence.maxLongitude);
+        for (int r = minRow; r <= maxRow; r++) {
+            for (int c = minColumn; c <= maxColumn; c++) {
+                Cell cell = getCell(key(r, c));
+                if (cell != null) {
+                    cell.remove(fence);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        synchronized (this) {
+            evaluate(fix.getLatitude(), fix.getLongitude(), fix.getElapsedRealtimeNanos());
+        }
+        OnGeofenceTransitionListener listener = this.listener;
+        for (int i = 0; i < eventCount; i++) {
+            if (listener != null) {
+                listener.onGeofenceTransition(eventFences[i], eventTransitions[i], fix);
+            }
+            eventFences[i] = null;
+        }
+        eventCount = 0;
+        return true;
+    }
+
+    private void evaluate(double latitude, double longitude, long now) {
+        // Fences the device was in, from the end so that leaving one does not skip the next.
+        for (int i = inside.size - 1; i >= 0; i--) {
+            Geofence fence = inside.fences[i];
+            if (!fence.contains(latitude, longitude)) {
+                fence.inside = false;
+                inside.remove(fence);
+                addEvent(fence, TRANSITION_EXIT);
+            } else if (!fence.dwelled && now - fence.enteredNanos >= dwellDelayNanos) {
+                fence.dwelled = true;
+                addEvent(fence, TRANSITION_DWELL);
+            }
+        }
+
+        Cell cell = getCell(key(row(latitude), column(longitude)));
+        if (cell != null) {
+            enter(cell, latitude, longitude, now);
+        }
+        enter(large, latitude, longitude, now);
+    }
+
+    private void enter(Cell candidates, double latitude, double longitude, long now) {
+        for (int i = 0; i < candidates.size; i++) {
+            Geofence fence = candidates.fences[i];
+            if (!fence.inside && fence.contains(latitude, longitude)) {
+                fence.inside = true;
+                fence.dwelled = false;
+                fence.enteredNanos = now;
+                inside.add(fence);
+                addEvent(fence, TRANSITION_ENTER);
+            }
+        }
+    }
+
+    private void addEvent(Geofence fence, int transition) {
+        if (eventCount == eventFences.length) {
+            Geofence[] fences = new Geofence[eventCount * 2];
+            int[] transitions = new int[eventCount * 2];
+            System.arraycopy(eventFences, 0, fences, 0, eventCount);
+            System.arraycopy(eventTransitions, 0, transitions, 0, eventCount);
+            eventFences = fences;
+            eventTransitions = transitions;
+        }
+        eventFences[eventCount] = fence;
+        eventTransitions[eventCount] = transition;
+        eventCount++;
+    }
+
+    private long cellsCovered(Geofence fence) {
+        return (long) (row(fence.maxLatitude) - row(fence.minLatitude) + 1)
+                * (column(fence.maxLongitude) - column(fence.minLongitude) + 1);
+    }
+
+    private int row(double latitude) {
+        return (int) Math.floor(latitude / cellSizeInDegrees);
+    }
+
+    private int column(double longitude) {
+        return (int) Math.floor(longitude / cellSizeInDegrees);
+    }
+
+    private static long key(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+
+    private static long[] newKeys(int capacity) {
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, EMPTY_KEY);
+        return keys;
+    }
+
+    private static int hash(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private Cell getCell(long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key, mask); ; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return cells[i];
+            }
+            if (keys[i] == EMPTY_KEY) {
+                return null;
+            }
+        }
+    }
+
+    private Cell getOrCreateCell(long key) {
+        Cell cell = getCell(key);
+        if (cell != null) {
+            return cell;
+        }
+        if ((cellCount + 1) * 2 > keys.length) {
+            grow();
+        }
+        cell = new Cell();
+        put(keys, cells, key, cell);
+        cellCount++;
+        return cell;
+    }
+
+    private void grow() {
+        long[] grownKeys = newKeys(keys.length * 2);
+        Cell[] grownCells = new Cell[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY_KEY) {
+                put(grownKeys, grownCells, keys[i], cells[i]);
+            }
+        }
+        keys = grownKeys;
+        cells = grownCells;
+    }
+
+    private static void put(long[] keys, Cell[] cells, long key, Cell cell) {
+        int mask = keys.length - 1;
+        int i = hash(key, mask);
+        while (keys[i] != EMPTY_KEY) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        cells[i] = cell;
+    }
+}
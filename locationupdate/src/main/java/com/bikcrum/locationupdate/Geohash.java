@@ -0,0 +1,140 @@
+package com.bikcrum.locationupdate;
+
+/**
+ * Geohash cells as {@code long}s instead of strings.
+ * <p/>
+ * Latitude and longitude are quantized to 31 bits each and their bits interleaved, longitude
+ * first, into a 62 bit hash. A cell of {@code bits} bits is the top {@code bits} bits of that hash,
+ * so the cell of a coarser resolution is found with a shift, see {@link #parent(long, int, int)}.
+ * The bits are the same as those of a standard geohash string, 5 per character.
+ */
+public final class Geohash {
+
+    /**
+     * Finest resolution, about 1 cm.
+     */
+    public static final int MAX_BITS = 62;
+
+    private static final int AXIS_BITS = 31;
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    private Geohash() {
+    }
+
+    /**
+     * @param bits resolution, 1 to {@link #MAX_BITS}. 25 bits give cells of about 5 km, 35 bits
+     *             about 150 m and 40 bits about 20 m near the equator.
+     * @return the cell holding the position
+     */
+    public static long encode(double latitude, double longitude, int bits) {
+        checkBits(bits);
+        long latitudeBits = quantize((latitude + 90) / 180);
+        long longitudeBits = quantize((longitude + 180) / 360);
+        long hash = spread(longitudeBits) << 1 | spread(latitudeBits);
+        return hash >>> (MAX_BITS - bits);
+    }
+
+    /**
+     * @return the cell of {@code parentBits} bits holding the cell
+     */
+    public static long parent(long hash, int bits, int parentBits) {
+        checkBits(bits);
+        if (parentBits < 1 || parentBits > bits) {
+            throw new IllegalArgumentException("parentBits " + parentBits + " not in 1.." + bits);
+        }
+        return hash >>> (bits - parentBits);
+    }
+
+    /**
+     * @return latitude of the center of the cell
+     */
+    public static double decodeLatitude(long hash, int bits) {
+        checkBits(bits);
+        int latitudeBits = bits / 2;
+        long index = compact(hash << (MAX_BITS - bits)) >>> (AXIS_BITS - latitudeBits);
+        return -90 + (index + 0.5) * 180 / (1L << latitudeBits);
+    }
+
+    /**
+     * @return longitude of the center of the cell
+     */
+    public static double decodeLongitude(long hash, int bits) {
+        checkBits(bits);
+        int longitudeBits = (bits + 1) / 2;
+        long index = compact(hash << (MAX_BITS - bits) >>> 1) >>> (AXIS_BITS - longitudeBits);
+        return -180 + (index + 0.5) * 360 / (1L << longitudeBits);
+    }
+
+    /**
+     * @param bits a multiple of 5
+     * @return the standard geohash string of the cell
+     */
+    public static String toBase32(long hash, int bits) {
+        checkBits(bits);
+        if (bits % 5 != 0) {
+            throw new IllegalArgumentException("bits " + bits + " is not a multiple of 5");
+        }
+        char[] chars = new char[bits / 5];
+        for (int i = chars.length - 1; i >= 0; i--) {
+            chars[i] = BASE32.charAt((int) (hash & 31));
+            hash >>>= 5;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return the cell of a standard geohash string, of 5 bits per character
+     */
+    public static long fromBase32(String geohash) {
+        checkBits(geohash.length() * 5);
+        long hash = 0;
+        for (int i = 0; i < geohash.length(); i++) {
+            int value = BASE32.indexOf(Character.toLowerCase(geohash.charAt(i)));
+            if (value < 0) {
+                throw new IllegalArgumentException("Not a geohash: " + geohash);
+            }
+            hash = hash << 5 | value;
+        }
+        return hash;
+    }
+
+    private static void checkBits(int bits) {
+        if (bits < 1 || bits > MAX_BITS) {
+            throw new IllegalArgumentException("bits " + bits + " not in 1.." + MAX_BITS);
+        }
+    }
+
+    /**
+     * @param fraction position on the axis, 0 to 1
+     */
+    private static long quantize(double fraction) {
+        long value = (long) Math.floor(fraction * (1L << AXIS_BITS));
+        return Math.max(0, Math.min((1L << AXIS_BITS) - 1, value));
+    }
+
+    /**
+     * Moves the low 31 bits to the even bit positions.
+     */
+    private static long spread(long value) {
+        value &= 0x7fffffffL;
+        value = (value | value << 16) & 0x0000ffff0000ffffL;
+        value = (value | value << 8) & 0x00ff00ff00ff00ffL;
+        value = (value | value << 4) & 0x0f0f0f0f0f0f0f0fL;
+        value = (value | value << 2) & 0x3333333333333333L;
+        value = (value | value << 1) & 0x5555555555555555L;
+        return value;
+    }
+
+    /**
+     * Inverse of {@link #spread(long)}, gathers the even bits.
+     */
+    private static long compact(long value) {
+        value &= 0x5555555555555555L;
+        value = (value | value >>> 1) & 0x3333333333333333L;
+        value = (value | value >>> 2) & 0x0f0f0f0f0f0f0f0fL;
+        value = (value | value >>> 4) & 0x00ff00ff00ff00ffL;
+        value = (value | value >>> 8) & 0x0000ffff0000ffffL;
+        value = (value | value >>> 16) & 0x00000000ffffffffL;
+        return value;
+    }
+}
@@ -0,0 +1,247 @@
+package com.bikcrum.locationupdate;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Visit counts and dwell time per {@link Geohash} cell, for heatmaps built on the device.
+ * <p/>
+ * Each fix counts one visit to its cell, and the time until the next fix is added to the dwell
+ * time of the cell, unless the gap is longer than {@link #setMaxDwellGapInMilliseconds(long)}.
+ * Cells are kept in primitive hash maps, adding a fix to a known cell allocates nothing. Cells can
+ * be {@link #rollUp(int) rolled up} to coarser resolutions and stored in a compact snapshot with
+ * {@link #toByteArray()}.
+ * <p/>
+ * Written on the delivery thread, readable from any thread.
+ */
+public final class Heatmap implements FixProcessor {
+
+    static final int MAGIC = 0xF2;
+    static final int VERSION = 1;
+
+    public interface Visitor {
+        void visit(long cell, long count, long dwellInMilliseconds);
+    }
+
+    private final int bits;
+    private final LongLongMap counts = new LongLongMap(256);
+    private final LongLongMap dwell = new LongLongMap(256);
+    private long totalCount;
+
+    private long maxDwellGapNanos = 5 * 60 * 1000000000L;
+    private long previousCell;
+    private long previousElapsedRealtimeNanos = Long.MIN_VALUE;
+
+    /**
+     * @param bits resolution of the cells, see {@link Geohash#encode(double, double, int)}
+     */
+    public Heatmap(int bits) {
+        if (bits < 1 || bits > Geohash.MAX_BITS) {
+            throw new IllegalArgumentException("bits " + bits + " not in 1.." + Geohash.MAX_BITS);
+        }
+        this.bits = bits;
+    }
+
+    /**
+     * @param maxDwellGapInMilliseconds longer gaps between fixes, such as a lost signal, do not add
+     *                                  to the dwell time. 5 minutes by default.
+     */
+    public synchronized void setMaxDwellGapInMilliseconds(long maxDwellGapInMilliseconds) {
+        this.maxDwellGapNanos = maxDwellGapInMilliseconds * 1000000L;
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        if (fix.isProvisional()) {
+            return true;
+        }
+        add(fix.getLatitude(), fix.getLongitude(), fix.getElapsedRealtimeNanos());
+        return true;
+    }
+
+    /**
+     * Adds a fix, for fixes that did not come through {@link LocationUpdate}.
+     */
+    public synchronized void add(double latitude, double longitude, long elapsedRealtimeNanos) {
+        long cell = Geohash.encode(latitude, longitude, bits);
+        if (previousElapsedRealtimeNanos != Long.MIN_VALUE) {
+            long gap = elapsedRealtimeNanos - previousElapsedRealtimeNanos;
+            if (gap > 0 && gap <= maxDwellGapNanos) {
+                dwell.add(previousCell, gap / 1000000L);
+            }
+        }
+        counts.add(cell, 1);
+        totalCount++;
+        previousCell = cell;
+        previousElapsedRealtimeNanos = elapsedRealtimeNanos;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * @return number of cells visited
+     */
+    public synchronized int getCellCount() {
+        return counts.size();
+    }
+
+    /**
+     * @return number of fixes added
+     */
+    public synchronized long getTotalCount() {
+        return totalCount;
+    }
+
+    public synchronized long getCount(long cell) {
+        return counts.get(cell, 0);
+    }
+
+    public synchronized long getDwellInMilliseconds(long cell) {
+        return dwell.get(cell, 0);
+    }
+
+    /**
+     * @return visits of the cell holding the position
+     */
+    public long getCount(double latitude, double longitude) {
+        return getCount(Geohash.encode(latitude, longitude, bits));
+    }
+
+    /**
+     * Visits every cell, in no particular order. Adding fixes waits until it returns, keep the
+     * visitor short or work on a {@link #rollUp(int) copy}.
+     */
+    public synchronized void forEach(Visitor visitor) {
+        counts.forEach((cell, count) -> visitor.visit(cell, count, dwell.get(cell, 0)));
+    }
+
+    /**
+     * @param bits resolution of the copy, at most {@link #getBits()}
+     * @return a copy with the cells merged into their parents of {@code bits} bits
+     */
+    public synchronized Heatmap rollUp(int bits) {
+        if (bits < 1 || bits > this.bits) {
+            throw new IllegalArgumentException("bits " + bits + " not in 1.." + this.bits);
+        }
+        Heatmap heatmap = new Heatmap(bits);
+        int shift = this.bits - bits;
+        counts.forEach((cell, count) -> heatmap.counts.add(cell >>> shift, count));
+        dwell.forEach((cell, dwellInMilliseconds) -> heatmap.dwell.add(cell >>> shift, dwellInMilliseconds));
+        heatmap.totalCount = totalCount;
+        heatmap.maxDwellGapNanos = maxDwellGapNanos;
+        return heatmap;
+    }
+
+    public synchronized void clear() {
+        counts.clear();
+        dwell.clear();
+        totalCount = 0;
+        previousElapsedRealtimeNanos = Long.MIN_VALUE;
+    }
+
+    /**
+     * Layout: magic byte {@code 0xF2}, version byte, bits byte, then the number of cells and per
+     * cell, in ascending order, the difference to the previous cell, the count and the dwell time
+     * in milliseconds, all as varints. Cells of one area are close, so a cell takes a few bytes.
+     *
+     * @return the cells in a compact form, read back with {@link #fromByteArray(byte[])}
+     */
+    public synchronized byte[] toByteArray() {
+        long[] cells = counts.keys();
+        Arrays.sort(cells);
+        Writer writer = new Writer(16 + cells.length * 8);
+        writer.writeByte(MAGIC);
+        writer.writeByte(VERSION);
+        writer.writeByte(bits);
+        writer.writeVarint(cells.length);
+        long previous = 0;
+        for (long cell : cells) {
+            writer.writeVarint(cell - previous);
+            writer.writeVarint(counts.get(cell, 0));
+            writer.writeVarint(dwell.get(cell, 0));
+            previous = cell;
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the bytes are not a heatmap snapshot
+     */
+    public static Heatmap fromByteArray(byte[] bytes) throws IOException {
+        if (bytes.length < 4 || (bytes[0] & 0xff) != MAGIC) {
+            throw new IOException("Not a heatmap");
+        }
+        if (bytes[1] != VERSION) {
+            throw new IOException("Unsupported heatmap version " + bytes[1]);
+        }
+        int bits = bytes[2];
+        if (bits < 1 || bits > Geohash.MAX_BITS) {
+            throw new IOException("Invalid heatmap resolution " + bits);
+        }
+        Heatmap heatmap = new Heatmap(bits);
+        int[] position = {3};
+        long cellCount = readVarint(bytes, position);
+        long cell = 0;
+        for (long i = 0; i < cellCount; i++) {
+            cell += readVarint(bytes, position);
+            long count = readVarint(bytes, position);
+            heatmap.counts.put(cell, count);
+            long dwellInMilliseconds = readVarint(bytes, position);
+            if (dwellInMilliseconds != 0) {
+                heatmap.dwell.put(cell, dwellInMilliseconds);
+            }
+            heatmap.totalCount += count;
+        }
+        return heatmap;
+    }
+
+    private static long readVarint(byte[] bytes, int[] position) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] == bytes.length) {
+                throw new IOException("Truncated heatmap");
+            }
+            byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in heatmap");
+    }
+
+    private static final class Writer {
+        private byte[] buffer;
+        private int length;
+
+        Writer(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[length++] = (byte) value;
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.bikcrum.locationupdate;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in fixed buckets. Recording is a few atomic updates, without locks or
+ * allocation, so it can run on the delivery thread for every fix.
+ * <p/>
+ * Buckets follow a 1, 2, 5 series from 1 microsecond to 100 seconds, plus one for anything
+ * longer. Percentiles read from a {@link Snapshot} are interpolated within their bucket, so they
+ * are accurate to about the width of it.
+ */
+public final class Histogram {
+
+    private static final long[] UPPER_BOUNDS_NANOS;
+
+    static {
+        long[] bounds = new long[24];
+        long decade = 1000;
+        for (int i = 0; i < bounds.length; i += 3) {
+            bounds[i] = decade;
+            bounds[i + 1] = decade * 2;
+            bounds[i + 2] = decade * 5;
+            decade *= 10;
+        }
+        UPPER_BOUNDS_NANOS = Arrays.copyOf(bounds, bounds.length + 1);
+        UPPER_BOUNDS_NANOS[bounds.length] = decade;
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(UPPER_BOUNDS_NANOS.length + 1);
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos negative values, from clocks that disagree, are recorded as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketOf(nanos));
+        sumNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // Lost against another thread, check again.
+        }
+    }
+
+    static int bucketOf(long nanos) {
+        int index = Arrays.binarySearch(UPPER_BOUNDS_NANOS, nanos);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Upper bounds of the buckets in nanoseconds, inclusive. The last bucket, for anything longer,
+     * has no bound.
+     */
+    public static long[] getUpperBoundsNanos() {
+        return UPPER_BOUNDS_NANOS.clone();
+    }
+
+    /**
+     * Copies the current counts. Values recorded while copying may be missing from the sum and the
+     * maximum but present in the counts, or the other way round.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, sumNanos.get(), maxNanos.get());
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sumNanos;
+        private final long maxNanos;
+
+        Snapshot(long[] counts, long sumNanos, long maxNanos) {
+            this.counts = counts;
+            long count = 0;
+            for (long bucket : counts) {
+                count += bucket;
+            }
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSumNanos() {
+            return sumNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : sumNanos / count;
+        }
+
+        /**
+         * @param percentile from 0 to 100
+         * @return 0 when nothing was recorded
+         */
+        public long getPercentileNanos(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long below = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (below + counts[i] >= rank) {
+                    long lower = i == 0 ? 0 : UPPER_BOUNDS_NANOS[i - 1];
+                    long upper = i < UPPER_BOUNDS_NANOS.length ? UPPER_BOUNDS_NANOS[i] : maxNanos;
+                    long value = lower + (long) ((upper - lower) * ((double) (rank - below) / counts[i]));
+                    return Math.min(value, maxNanos);
+                }
+                below += counts[i];
+            }
+            return maxNanos;
+        }
+
+        /**
+         * Count of each bucket, see {@link Histogram#getUpperBoundsNanos()}.
+         */
+        public long[] getCounts() {
+            return counts;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count
+                    + " mean=" + getMeanNanos() / 1000 + "us"
+                    + " p50=" + getPercentileNanos(50) / 1000 + "us"
+                    + " p99=" + getPercentileNanos(99) / 1000 + "us"
+                    + " max=" + maxNanos / 1000 + "us";
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.bikcrum.locationupdate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Posts each frame to an HTTP endpoint with content type {@link #CONTENT_TYPE}. Any 2xx response
+ * counts as accepted, anything else makes the {@link FixUploader} retry later.
+ */
+public final class HttpUploadTransport implements FixUploader.Transport {
+
+    public static final String CONTENT_TYPE = "application/x-fix-frame";
+
+    private final URL url;
+    private int timeoutInMilliseconds = 15000;
+
+    public HttpUploadTransport(URL url) {
+        this.url = url;
+    }
+
+    /**
+     * @param timeoutInMilliseconds connect and read timeout, default is 15000
+     */
+    public void setTimeoutInMilliseconds(int timeoutInMilliseconds) {
+        this.timeoutInMilliseconds = timeoutInMilliseconds;
+    }
+
+    @Override
+    public void send(byte[] frame, int offset, int length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        boolean accepted = false;
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(timeoutInMilliseconds);
+            connection.setReadTimeout(timeoutInMilliseconds);
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(frame, offset, length);
+            }
+            int code = connection.getResponseCode();
+            if (code < 200 || code >= 300) {
+                throw new IOException("Upload rejected with HTTP " + code);
+            }
+            // Read the body so the connection can be reused.
+            try (InputStream input = connection.getInputStream()) {
+                byte[] buffer = new byte[256];
+                while (input.read(buffer) != -1) {
+                    // discard
+                }
+            }
+            accepted = true;
+        } finally {
+            if (!accepted) {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.bikcrum.locationupdate;
+
+/**
+ * Smooths the fix stream with a constant velocity Kalman filter and drops outliers before they
+ * reach the listeners.
+ * <p/>
+ * A fix is rejected when its accuracy is worse than {@link #setMaxAccuracy(float)}, or when
+ * reaching it from the filtered position would take more than {@link #setMaxSpeed(float)}, even
+ * after allowing for the accuracy of both. Accepted fixes update the filter and are replaced by the
+ * filtered position, speed and bearing. After {@link #setMaxConsecutiveRejections(int)} rejections
+ * in a row the filter assumes it was the one that went wrong, for example after a tunnel, and
+ * starts over from the next fix.
+ * <p/>
+ * The filter works in meters on a plane touching the earth at a reference point, which is moved
+ * along when the track gets far from it. North and east use the same noise model, so they share a
+ * single 2x2 covariance. All state is primitive, filtering allocates nothing.
+ */
+public final class KalmanFilter implements FixProcessor {
+
+    private static final double REANCHOR_DISTANCE_METERS = 50000;
+
+    private float accelerationNoise = 1f;
+    private float maxSpeed = 70f;
+    private float maxAccuracy = 100f;
+    private int maxConsecutiveRejections = 5;
+
+    private boolean initialized;
+    private double referenceLatitude;
+    private double referenceLongitude;
+    private double metersPerDegreeLongitude;
+
+    // State: position (m) and velocity (m/s) north and east.
+    private double north;
+    private double east;
+    private double velocityNorth;
+    private double velocityEast;
+
+    // Shared covariance of [position, velocity] for each axis.
+    private double p00;
+    private double p01;
+    private double p11;
+
+    private long lastElapsedRealtimeNanos;
+    private int consecutiveRejections;
+
+    private long acceptedCount;
+    private long rejectedCount;
+
+    /**
+     * @param accelerationNoise standard deviation of the acceleration the model allows, in m/s^2.
+     *                          Higher follows turns faster, lower smooths more. Default is 1.
+     */
+    public void setAccelerationNoise(float accelerationNoise) {
+        this.accelerationNoise = accelerationNoise;
+    }
+
+    /**
+     * @param maxSpeed in m/s, default is 70
+     */
+    public void setMaxSpeed(float maxSpeed) {
+        this.maxSpeed = maxSpeed;
+    }
+
+    /**
+     * @param maxAccuracy in meters, fixes less accurate than this are dropped. Default is 100.
+     */
+    public void setMaxAccuracy(float maxAccuracy) {
+        this.maxAccuracy = maxAccuracy;
+    }
+
+    /**
+     * @param maxConsecutiveRejections default is 5
+     */
+    public void setMaxConsecutiveRejections(int maxConsecutiveRejections) {
+        this.maxConsecutiveRejections = maxConsecutiveRejections;
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Forgets the track, the next fix starts a new one.
+     */
+    public void reset() {
+        initialized = false;
+        consecutiveRejections = 0;
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        if (fix.isProvisional()) {
+            // Too old to start the estimate from.
+            return true;
+        }
+        float accuracy = Math.max(fix.getAccuracy(), 1f);
+        if (accuracy > maxAccuracy) {
+            rejectedCount++;
+            return false;
+        }
+        if (!initialized) {
+            start(fix.getLatitude(), fix.getLongitude(), accuracy, fix.getElapsedRealtimeNanos());
+            acceptedCount++;
+            return true;
+        }
+
+        double measuredNorth = (fix.getLatitude() - referenceLatitude) * Geo.METERS_PER_DEGREE;
+        // Taken the short way around, a track crossing the antimeridian is not a 360 degree jump.
+        double measuredEast = Geo.wrapLongitude(fix.getLongitude() - referenceLongitude) * metersPerDegreeLongitude;
+        double dt = (fix.getElapsedRealtimeNanos() - lastElapsedRealtimeNanos) / 1e9;
+
+        if (isOutlier(measuredNorth, measuredEast, accuracy, dt)) {
+            rejectedCount++;
+            if (++consecutiveRejections > maxConsecutiveRejections) {
+                reset();
+            }
+            return false;
+        }
+        consecutiveRejections = 0;
+        acceptedCount++;
+
+        if (dt > 0) {
+            predict(dt);
+            lastElapsedRealtimeNanos = fix.getElapsedRealtimeNanos();
+        }
+        update(measuredNorth, measuredEast, accuracy);
+
+        double latitude = referenceLatitude + north / Geo.METERS_PER_DEGREE;
+        double longitude = Geo.wrapLongitude(referenceLongitude + east / metersPerDegreeLongitude);
+        float speed = (float) Math.sqrt(velocityNorth * velocityNorth + velocityEast * velocityEast);
+        float bearing = (float) Math.toDegrees(Math.atan2(velocityEast, velocityNorth));
+        if (bearing < 0) {
+            bearing += 360;
+        }
+        fix.setPosition(latitude, longitude, (float) Math.sqrt(p00), speed, bearing);
+
+        if (Math.abs(north) > REANCHOR_DISTANCE_METERS || Math.abs(east) > REANCHOR_DISTANCE_METERS) {
+            anchor(latitude, longitude);
+            north = 0;
+            east = 0;
+        }
+        return true;
+    }
+
+    private void start(double latitude, double longitude, float accuracy, long elapsedRealtimeNanos) {
+        anchor(latitude, longitude);
+        north = 0;
+        east = 0;
+        velocityNorth = 0;
+        velocityEast = 0;
+        p00 = (double) accuracy * accuracy;
+        p01 = 0;
+        // Nothing is known about the velocity yet.
+        p11 = (double) maxSpeed * maxSpeed;
+        lastElapsedRealtimeNanos = elapsedRealtimeNanos;
+        consecutiveRejections = 0;
+        initialized = true;
+    }
+
+    private void anchor(double latitude, double longitude) {
+        referenceLatitude = latitude;
+        referenceLongitude = longitude;
+        metersPerDegreeLongitude = Math.max(Geo.metersPerDegreeLongitude(latitude), 1);
+    }
+
+    private boolean isOutlier(double measuredNorth, double measuredEast, float accuracy, double dt) {
+        double elapsed = Math.max(dt, 0);
+        double deltaNorth = measuredNorth - (north + velocityNorth * elapsed);
+        double deltaEast = measuredEast - (east + velocityEast * elapsed);
+        double distance = Math.sqrt(deltaNorth * deltaNorth + deltaEast * deltaEast);
+        // Both positions are uncertain, only the distance beyond that counts.
+        double unexplained = distance - accuracy - Math.sqrt(p00);
+        return unexplained > maxSpeed * Math.max(dt, 1);
+    }
+
+    private void predict(double dt) {
+        north += velocityNorth * dt;
+        east += velocityEast * dt;
+
+        // P = F P F' + Q with F = [1 dt; 0 1] and Q from white noise acceleration.
+        double q = (double) accelerationNoise * accelerationNoise;
+        double dt2 = dt * dt;
+        double newP00 = p00 + 2 * dt * p01 + dt2 * p11 + q * dt2 * dt2 / 4;
+        double newP01 = p01 + dt * p11 + q * dt2 * dt / 2;
+        double newP11 = p11 + q * dt2;
+        p00 = newP00;
+        p01 = newP01;
+        p11 = newP11;
+    }
+
+    private void update(double measuredNorth, double measuredEast, float accuracy) {
+        // Only the position is measured, H = [1 0].
+        double r = (double) accuracy * accuracy;
+        double s = p00 + r;
+        double k0 = p00 / s;
+        double k1 = p01 / s;
+
+        double innovationNorth = measuredNorth - north;
+        double innovationEast = measuredEast - east;
+        north += k0 * innovationNorth;
+        east += k0 * innovationEast;
+        velocityNorth += k1 * innovationNorth;
+        velocityEast += k1 * innovationEast;
+
+        // P = (I - K H) P
+        double newP00 = (1 - k0) * p00;
+        double newP01 = (1 - k0) * p01;
+        double newP11 = p11 - k1 * p01;
+        p00 = newP00;
+        p01 = newP01;
+        p11 = newP11;
+    }
+}
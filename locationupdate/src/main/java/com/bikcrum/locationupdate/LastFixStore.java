@@ -0,0 +1,115 @@
+package com.bikcrum.locationupdate;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.os.Build;
+
+/**
+ * Keeps the last fix that reached the listeners in {@link SharedPreferences}, so that the next
+ * start can show a position before the first fresh fix arrives.
+ * <p/>
+ * The fix is copied on every call, which is cheap, but only written every
+ * {@link #WRITE_INTERVAL_NANOS} of fix time and on {@link #flush()}, so the disk is not touched
+ * once per fix.
+ */
+final class LastFixStore {
+
+    static final String PREFERENCES = "com.bikcrum.locationupdate.last_fix";
+    static final long WRITE_INTERVAL_NANOS = 60L * 1000000000L;
+
+    private static final String KEY_LATITUDE = "latitude";
+    private static final String KEY_LONGITUDE = "longitude";
+    private static final String KEY_ACCURACY = "accuracy";
+    private static final String KEY_TIME = "time";
+
+    private final Context context;
+    private SharedPreferences preferences;
+
+    // Latest fix, written on the delivery thread and flushed from the main thread.
+    private double latitude;
+    private double longitude;
+    private float accuracy;
+    private long time;
+    private boolean dirty;
+    private long writtenElapsedRealtimeNanos = Long.MIN_VALUE;
+
+    LastFixStore(Context context) {
+        this.context = context;
+    }
+
+    private SharedPreferences preferences() {
+        if (preferences == null) {
+            preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        }
+        return preferences;
+    }
+
+    /**
+     * Runs on the delivery thread for every fix that reached the listeners.
+     */
+    void onFix(Fix fix) {
+        boolean write;
+        synchronized (this) {
+            latitude = fix.getLatitude();
+            longitude = fix.getLongitude();
+            accuracy = fix.getAccuracy();
+            time = fix.getTime();
+            dirty = true;
+            write = writtenElapsedRealtimeNanos == Long.MIN_VALUE
+                    || fix.getElapsedRealtimeNanos() - writtenElapsedRealtimeNanos >= WRITE_INTERVAL_NANOS;
+            if (write) {
+                writtenElapsedRealtimeNanos = fix.getElapsedRealtimeNanos();
+            }
+        }
+        if (write) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the latest fix if it was not written yet. The write itself happens in the background.
+     */
+    void flush() {
+        SharedPreferences.Editor editor;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            editor = preferences().edit()
+                    .putLong(KEY_LATITUDE, Double.doubleToRawLongBits(latitude))
+                    .putLong(KEY_LONGITUDE, Double.doubleToRawLongBits(longitude))
+                    .putFloat(KEY_ACCURACY, accuracy)
+                    .putLong(KEY_TIME, time);
+        }
+        editor.apply();
+    }
+
+    /**
+     * @param maxAgeInMilliseconds older fixes are not returned
+     * @param nowElapsedRealtimeNanos  used to place the fix on the elapsed realtime clock, which
+     *                                 starts over at every boot
+     * @return the stored fix with the {@link LocationUpdate#PROVIDER_CACHED} provider, or null
+     */
+    Location load(long maxAgeInMilliseconds, long nowElapsedRealtimeNanos) {
+        SharedPreferences preferences = preferences();
+        if (!preferences.contains(KEY_TIME)) {
+            return null;
+        }
+        long time = preferences.getLong(KEY_TIME, 0);
+        long age = System.currentTimeMillis() - time;
+        if (age < 0 || age > maxAgeInMilliseconds) {
+            return null;
+        }
+        Location location = new Location(LocationUpdate.PROVIDER_CACHED);
+        location.setLatitude(Double.longBitsToDouble(preferences.getLong(KEY_LATITUDE, 0)));
+        location.setLongitude(Double.longBitsToDouble(preferences.getLong(KEY_LONGITUDE, 0)));
+        location.setAccuracy(preferences.getFloat(KEY_ACCURACY, 0));
+        location.setTime(time);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            location.setElapsedRealtimeNanos(nowElapsedRealtimeNanos - age * 1000000L);
+        }
+        return location;
+    }
+}
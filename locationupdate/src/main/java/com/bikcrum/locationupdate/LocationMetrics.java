@@ -0,0 +1,323 @@
+package com.bikcrum.locationupdate;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and {@link Histogram}s of what happens to fixes on their way to the listeners: how old
+ * they are when they arrive, how far apart they come compared to the requested interval, how long
+ * listeners hold the thread calling them, and how often the connection and the settings check get
+ * in the way.
+ * <p/>
+ * Recording never blocks and allocates nothing, it is always on. Take a {@link #snapshot()} to
+ * export the values, for example to logs or an analytics backend.
+ *
+ * @see LocationUpdate#getMetrics()
+ */
+public final class LocationMetrics {
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    /**
+     * Priority recorded while no updates are requested.
+     */
+    static final int NO_REQUEST = -1;
+
+    interface Clock {
+        long elapsedRealtimeNanos();
+    }
+
+    /**
+     * Fixes further apart than this times the requested interval are counted as late.
+     */
+    static final double LATE_FACTOR = 1.5;
+
+    private final Histogram fixAge = new Histogram();
+    private final Histogram fixInterval = new Histogram();
+    private final Histogram callbackDuration = new Histogram();
+    private final Histogram settingsCheckDuration = new Histogram();
+    private final Histogram recoveryDuration = new Histogram();
+
+    private final AtomicLong fixCount = new AtomicLong();
+    private final AtomicLong lateFixCount = new AtomicLong();
+    private final AtomicLong droppedFixCount = new AtomicLong();
+    private final AtomicLong suspensionCount = new AtomicLong();
+    private final AtomicLong settingsNotSatisfiedCount = new AtomicLong();
+    private final AtomicLong settingsCacheHitCount = new AtomicLong();
+    private final AtomicLong connectAttemptCount = new AtomicLong();
+
+    private volatile long requestedIntervalInMilliseconds;
+
+    // Only touched on the delivery thread.
+    private long previousFixNanos = NONE;
+
+    // Time spent requesting updates, and at high accuracy. Requests change rarely, a lock is cheap.
+    private final Clock clock;
+    private final Object requestLock = new Object();
+    private int requestPriority = NO_REQUEST;
+    private long requestSinceNanos;
+    private long requestNanos;
+    private long highAccuracyNanos;
+
+    public LocationMetrics() {
+        this(System::nanoTime);
+    }
+
+    /**
+     * @param clock for the request times, the clock fixes are timed with so time asleep counts
+     */
+    LocationMetrics(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Must be called on the delivery thread, as each fix arrives.
+     *
+     * @param fixElapsedRealtimeNanos time of the fix
+     * @param nowElapsedRealtimeNanos time of arrival, on the same clock
+     */
+    void recordFix(long fixElapsedRealtimeNanos, long nowElapsedRealtimeNanos) {
+        fixCount.incrementAndGet();
+        fixAge.record(nowElapsedRealtimeNanos - fixElapsedRealtimeNanos);
+        if (previousFixNanos != NONE) {
+            long interval = fixElapsedRealtimeNanos - previousFixNanos;
+            fixInterval.record(interval);
+            long requested = requestedIntervalInMilliseconds;
+            if (requested > 0 && interval > requested * LATE_FACTOR * 1000000L) {
+                lateFixCount.incrementAndGet();
+            }
+        }
+        previousFixNanos = fixElapsedRealtimeNanos;
+    }
+
+    /**
+     * A {@link FixProcessor} stopped the fix before the listeners.
+     */
+    void recordDroppedFix() {
+        droppedFixCount.incrementAndGet();
+    }
+
+    void recordCallback(long durationNanos) {
+        callbackDuration.record(durationNanos);
+    }
+
+    void recordSuspension() {
+        suspensionCount.incrementAndGet();
+    }
+
+    void recordSettingsCheck(long durationNanos, boolean satisfied) {
+        settingsCheckDuration.record(durationNanos);
+        if (!satisfied) {
+            settingsNotSatisfiedCount.incrementAndGet();
+        }
+    }
+
+    void recordSettingsCacheHit() {
+        settingsCacheHitCount.incrementAndGet();
+    }
+
+    void recordConnectAttempt() {
+        connectAttemptCount.incrementAndGet();
+    }
+
+    /**
+     * @param durationNanos from losing the connection to requesting updates again
+     */
+    void recordRecovery(long durationNanos) {
+        recoveryDuration.record(durationNanos);
+    }
+
+    /**
+     * @param priority the {@code LocationRequest.PRIORITY_} requested from now on, or
+     *                 {@link #NO_REQUEST} when updates stop
+     */
+    void recordRequest(int priority) {
+        synchronized (requestLock) {
+            long now = clock.elapsedRealtimeNanos();
+            addRequestTime(now);
+            requestPriority = priority;
+            requestSinceNanos = now;
+        }
+    }
+
+    private void addRequestTime(long now) {
+        if (requestPriority == NO_REQUEST) {
+            return;
+        }
+        requestNanos += now - requestSinceNanos;
+        if (requestPriority == PowerProfile.HIGH_ACCURACY.getPriority()) {
+            highAccuracyNanos += now - requestSinceNanos;
+        }
+        requestSinceNanos = now;
+    }
+
+    void setRequestedIntervalInMilliseconds(long requestedIntervalInMilliseconds) {
+        this.requestedIntervalInMilliseconds = requestedIntervalInMilliseconds;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public static final class Snapshot {
+        private final long fixCount;
+        private final long lateFixCount;
+        private final long droppedFixCount;
+        private final long suspensionCount;
+        private final long settingsNotSatisfiedCount;
+        private final long settingsCacheHitCount;
+        private final long connectAttemptCount;
+        private final long requestedIntervalInMilliseconds;
+        private final long requestTimeInMilliseconds;
+        private final long highAccuracyTimeInMilliseconds;
+        private final Histogram.Snapshot fixAge;
+        private final Histogram.Snapshot fixInterval;
+        private final Histogram.Snapshot callbackDuration;
+        private final Histogram.Snapshot settingsCheckDuration;
+        private final Histogram.Snapshot recoveryDuration;
+
+        Snapshot(LocationMetrics metrics) {
+            fixCount = metrics.fixCount.get();
+            lateFixCount = metrics.lateFixCount.get();
+            droppedFixCount = metrics.droppedFixCount.get();
+            suspensionCount = metrics.suspensionCount.get();
+            settingsNotSatisfiedCount = metrics.settingsNotSatisfiedCount.get();
+            settingsCacheHitCount = metrics.settingsCacheHitCount.get();
+            connectAttemptCount = metrics.connectAttemptCount.get();
+            requestedIntervalInMilliseconds = metrics.requestedIntervalInMilliseconds;
+            synchronized (metrics.requestLock) {
+                metrics.addRequestTime(metrics.clock.elapsedRealtimeNanos());
+                requestTimeInMilliseconds = metrics.requestNanos / 1000000L;
+                highAccuracyTimeInMilliseconds = metrics.highAccuracyNanos / 1000000L;
+            }
+            fixAge = metrics.fixAge.snapshot();
+            fixInterval = metrics.fixInterval.snapshot();
+            callbackDuration = metrics.callbackDuration.snapshot();
+            settingsCheckDuration = metrics.settingsCheckDuration.snapshot();
+            recoveryDuration = metrics.recoveryDuration.snapshot();
+        }
+
+        /**
+         * Fixes received from the location source, including those dropped later.
+         */
+        public long getFixCount() {
+            return fixCount;
+        }
+
+        /**
+         * Fixes that came more than 1.5 times the requested interval after the previous one.
+         */
+        public long getLateFixCount() {
+            return lateFixCount;
+        }
+
+        /**
+         * Fixes stopped by a {@link FixProcessor}, for example rejected by the {@link KalmanFilter}.
+         */
+        public long getDroppedFixCount() {
+            return droppedFixCount;
+        }
+
+        /**
+         * Times the connection to Google Play services was suspended.
+         */
+        public long getSuspensionCount() {
+            return suspensionCount;
+        }
+
+        /**
+         * Settings checks that found the location settings not satisfied.
+         */
+        public long getSettingsNotSatisfiedCount() {
+            return settingsNotSatisfiedCount;
+        }
+
+        /**
+         * Connects that requested updates without a settings check, because a recent one was
+         * satisfied. The checks made are counted by {@link #getSettingsCheckDuration()}.
+         */
+        public long getSettingsCacheHitCount() {
+            return settingsCacheHitCount;
+        }
+
+        /**
+         * Connections started, the first one and every reconnect.
+         */
+        public long getConnectAttemptCount() {
+            return connectAttemptCount;
+        }
+
+        public long getRequestedIntervalInMilliseconds() {
+            return requestedIntervalInMilliseconds;
+        }
+
+        /**
+         * Time updates were requested, at any priority.
+         */
+        public long getRequestTimeInMilliseconds() {
+            return requestTimeInMilliseconds;
+        }
+
+        /**
+         * Time updates were requested at high accuracy, which keeps GPS on. Compare with
+         * {@link #getRequestTimeInMilliseconds()} to see what {@link PowerProfile}s and
+         * {@link DutyCycleScheduler duty cycling} save.
+         */
+        public long getHighAccuracyTimeInMilliseconds() {
+            return highAccuracyTimeInMilliseconds;
+        }
+
+        /**
+         * Time from each fix to its arrival on the delivery thread.
+         */
+        public Histogram.Snapshot getFixAge() {
+            return fixAge;
+        }
+
+        /**
+         * Time between consecutive fixes, to compare with {@link #getRequestedIntervalInMilliseconds()}.
+         */
+        public Histogram.Snapshot getFixInterval() {
+            return fixInterval;
+        }
+
+        /**
+         * Time each listener call took.
+         */
+        public Histogram.Snapshot getCallbackDuration() {
+            return callbackDuration;
+        }
+
+        /**
+         * Time from checking the location settings to the result.
+         */
+        public Histogram.Snapshot getSettingsCheckDuration() {
+            return settingsCheckDuration;
+        }
+
+        /**
+         * Time from a suspended or failed connection to updates being requested again.
+         */
+        public Histogram.Snapshot getRecoveryDuration() {
+            return recoveryDuration;
+        }
+
+        @Override
+        public String toString() {
+            return "fixes=" + fixCount
+                    + " late=" + lateFixCount
+                    + " dropped=" + droppedFixCount
+                    + " suspensions=" + suspensionCount
+                    + " settingsNotSatisfied=" + settingsNotSatisfiedCount
+                    + " settingsCacheHits=" + settingsCacheHitCount
+                    + " connectAttempts=" + connectAttemptCount
+                    + " requestedInterval=" + requestedIntervalInMilliseconds + "ms"
+                    + " requestTime=" + requestTimeInMilliseconds + "ms"
+                    + " highAccuracyTime=" + highAccuracyTimeInMilliseconds + "ms"
+                    + "\nfixAge: " + fixAge
+                    + "\nfixInterval: " + fixInterval
+                    + "\ncallbackDuration: " + callbackDuration
+                    + "\nsettingsCheckDuration: " + settingsCheckDuration
+                    + "\nrecoveryDuration: " + recoveryDuration;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.bikcrum.locationupdate;
+
+import android.location.Location;
+import android.os.Looper;
+
+import com.google.android.gms.location.LocationRequest;
+
+import java.util.List;
+
+/**
+ * Where {@link LocationUpdate} gets its fixes from. The fused location provider is the default,
+ * see {@link FusedLocationSource}; {@link ReplayLocationSource} plays back recorded traces.
+ *
+ * @see LocationUpdate#setLocationSource(LocationSource)
+ */
+public interface LocationSource {
+
+    interface Callback {
+        void onLocation(Location location);
+
+        /**
+         * Fixes the source held back and hands over together, oldest first.
+         */
+        void onLocations(List<Location> locations);
+
+        /**
+         * A fix from a source that does not produce {@link Location} objects. One is made with the
+         * {@link LocationUpdate#PROVIDER_REPLAY} provider for listeners that need it.
+         */
+        void onFix(double latitude, double longitude, float accuracy, float speed, float bearing,
+                   long time, long elapsedRealtimeNanos);
+    }
+
+    /**
+     * Starts updates, replacing an earlier request.
+     *
+     * @param request interval and accuracy wanted, a source may ignore what it cannot honor
+     * @param looper  thread to call back on, null to let the source pick one
+     */
+    void requestUpdates(LocationRequest request, Looper looper, Callback callback);
+
+    void removeUpdates();
+}
@@ -18,13 +18,22 @@ package com.bikcrum.locationupdate;
 import android.Manifest;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.PendingIntent;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.IntentSender;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
@@ -35,15 +44,15 @@ import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.PendingResult;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
-import com.google.android.gms.location.LocationListener;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.location.LocationSettingsRequest;
 import com.google.android.gms.location.LocationSettingsResult;
 import com.google.android.gms.location.LocationSettingsStatusCodes;
 
-import java.text.DateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Using location settings.
@@ -67,22 +76,44 @@ public class LocationUpdate {
 
     private static final String TAG = "LocationUpdate";
 
+    /**
+     * Provider of the provisional locations delivered by the warm start, see
+     * {@link #enableWarmStart(long)}.
+     */
+    public static final String PROVIDER_CACHED = "cached";
+
+    /**
+     * Provider of the locations made for {@link OnLocationUpdatedListener}s and
+     * {@link OnLazyLocationUpdatedListener}s from fixes a
+     * {@link LocationSource} hands over as primitives, such as those of a
+     * {@link ReplayLocationSource}.
+     */
+    public static final String PROVIDER_REPLAY = "replay";
+
+
+    static final String BACKGROUND_PREFERENCES = "com.bikcrum.locationupdate.background";
+    private static final String KEY_BACKGROUND_TRACKING = "tracking";
 
     private static final int REQUEST_CHECK_SETTINGS = 1;
     private static final int REQUEST_LOCATION_PERMISSION = 2;
-    private static final long UPDATE_INTERVAL_IN_MILLISECONDS = 10000;
-    private static final long FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS =
-            UPDATE_INTERVAL_IN_MILLISECONDS / 2;
     private boolean forceUserToCheckOk = true;
 
     private GoogleApiClient mGoogleApiClient;
-    private LocationRequest mLocationRequest;
     private LocationSettingsRequest mLocationSettingsRequest;
 
-    private long locationUpdateIntervalInMilliseconds = UPDATE_INTERVAL_IN_MILLISECONDS;
-    private long locationFastestUpdateIntervalInMilliseconds = FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS;
+    private boolean backgroundDelivery = false;
+    private boolean listenerOnMainThread = true;
+    private Executor deliveryExecutor;
+    private HandlerThread deliveryThread;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Executor mainThreadExecutor = command -> mainHandler.post(command);
+
+    // Application context, outlives the activities using this instance.
+    private final Context context;
+    // Attached activities, each once, the most recently attached last.
+    private final ArrayList<Activity> activities = new ArrayList<>();
 
-    private Activity activity;
+    private boolean requestingLocationUpdates = false;
 
     private static LocationUpdate INSTANCE;
 
@@ -90,24 +121,558 @@ public class LocationUpdate {
         void onLocationUpdated(Location mCurrentLocation, String mLastUpdateTime);
     }
 
-    private OnLocationUpdatedListener listener;
+    /**
+     * Variant of {@link OnLocationUpdatedListener} that formats the time only if it is read, so
+     * listeners that do not show it cost no formatting and take no lock.
+     */
+    public interface OnLazyLocationUpdatedListener {
+        /**
+         * @param lastUpdateTime when the fix was delivered, formatted as a time of day only when
+         *                       read, for example by {@code toString()} or {@code setText()}
+         */
+        void onLocationUpdated(Location location, CharSequence lastUpdateTime);
+    }
 
-    private LocationUpdate(Activity activity) {
-        this.activity = activity;
-        if (!(activity instanceof OnLocationUpdatedListener)) {
-            throw new RuntimeException("Must implement OnLocationUpdatedListener");
-        } else {
-            listener = ((OnLocationUpdatedListener) activity);
-        }
+    /**
+     * Allocation free variant of {@link OnLocationUpdatedListener}. Nothing is formatted or
+     * allocated per fix when only this listener is implemented.
+     */
+    public interface OnRawLocationUpdatedListener {
+        /**
+         * @param elapsedRealtimeNanos time of the fix on the {@link SystemClock#elapsedRealtimeNanos()}
+         *                             time base
+         */
+        void onLocationUpdated(double latitude, double longitude, float accuracy, long elapsedRealtimeNanos);
+    }
+
+    /**
+     * Receives fixes in batches when batching is enabled with
+     * {@link #setMaxWaitTimeInMilliseconds(long)}. Registered {@link OnLocationUpdatedListener}s
+     * still receive each fix of the batch on its own.
+     */
+    public interface OnLocationsBatchedListener {
+        /**
+         * @param locations  fixes in the batch that passed the {@link FixProcessor}s, oldest first
+         *                   and as corrected by them. The list is reused for the next batch, so
+         *                   copy it if it has to outlive this call.
+         * @param timestamps {@link Location#getTime()} of each fix; {@code timestamps[i]} belongs to
+         *                   {@code locations.get(i)}. The array is reused and may be longer than
+         *                   the list.
+         */
+        void onLocationsBatched(List<Location> locations, long[] timestamps);
     }
 
+    /**
+     * Where getting updates from the fused location provider stands, see
+     * {@link #getConnectionState()}.
+     */
+    public enum ConnectionState {
+        DISCONNECTED,
+        CONNECTING,
+        /**
+         * Connected, updates are not wanted.
+         */
+        CONNECTED,
+        CHECKING_SETTINGS,
+        /**
+         * The user is asked to change the location settings.
+         */
+        RESOLVING_SETTINGS,
+        /**
+         * The user declined to change the location settings, updates wait for the next
+         * {@link #startLocationUpdates()}.
+         */
+        SETTINGS_DECLINED,
+        REQUESTING_UPDATES,
+        /**
+         * The connection was lost, updates are requested again once it is back.
+         */
+        SUSPENDED,
+        /**
+         * A connection or settings check failed and is retried after a backoff.
+         */
+        WAITING_TO_RETRY
+    }
+
+    private final LocationMetrics metrics = new LocationMetrics(LocationUpdate::elapsedRealtimeNanosNow);
+    private final FixDispatcher dispatcher = new FixDispatcher();
+    private final FixPipeline pipeline = new FixPipeline(dispatcher, metrics);
+    private final FixStream fixStream = new FixStream();
+    private final FixDelivery delivery;
+    private TrackHistory trackHistory;
+
+    // Null until the fused source is created with the client, unless another source was set.
+    private LocationSource locationSource;
+
+    // The location request and the intervals, tiers and profiles it is built from.
+    private final RequestSettings requestSettings;
+    private AdaptiveIntervalScheduler adaptiveScheduler;
+    private TripSegmenter tripSegmenter;
+    private DutyCycleScheduler dutyCycleScheduler;
+    private final Runnable dutyCycleTimer = this::onDutyCycleDeadline;
+
+    // System.nanoTime() when the running settings check was started.
+    private long settingsCheckStartNanos;
+
+    private final ConnectionStateMachine connection;
+    // Priority the cached settings check was made for.
+    private int settingsPriority = -1;
+
+    // Null unless the warm start is enabled.
+    private LastFixStore lastFixStore;
+    private long warmStartMaxAgeInMilliseconds;
+    // Time of the last provisional fix delivered. Main thread only.
+    private long provisionalTime = Long.MIN_VALUE;
+
+    // Components holding the connection, see acquire(), background tracking among them.
+    private final ConnectionReferences references;
+    private PendingIntent backgroundIntent;
+
+    private LocationUpdate(Context context) {
+        this.context = context.getApplicationContext();
+        dispatcher.setMetrics(metrics);
+        connection = new ConnectionStateMachine(connectionHost, metrics);
+        delivery = new FixDelivery(deliveryHost, pipeline, metrics);
+        requestSettings = new RequestSettings(requestHost, metrics);
+        references = new ConnectionReferences(referencesHost);
+    }
+
+    /**
+     * Returns the shared instance and attaches the activity to it. The activity is used to ask for
+     * permissions and location settings, and is registered as listener if it implements
+     * {@link OnLocationUpdatedListener}, {@link OnLazyLocationUpdatedListener},
+     * {@link OnRawLocationUpdatedListener} or {@link OnLocationsBatchedListener}. Activities already attached stay attached until their
+     * own {@link #onDestroy(Activity)}, so a screen opened on top does not cut off the one below.
+     */
     public static synchronized LocationUpdate getInstance(Activity activity) {
+        LocationUpdate instance = getInstance((Context) activity);
+        instance.attachActivity(activity);
+        return instance;
+    }
+
+    /**
+     * Returns the shared instance without attaching an activity, for services and other
+     * components that register listeners with {@link #addOnLocationUpdatedListener} or
+     * {@link #addOnRawLocationUpdatedListener}. Permissions have to be granted already.
+     */
+    public static synchronized LocationUpdate getInstance(Context context) {
         if (INSTANCE == null) {
-            INSTANCE = new LocationUpdate(activity);
+            INSTANCE = new LocationUpdate(context);
         }
         return INSTANCE;
     }
 
+    private void attachActivity(Activity activity) {
+        if (activities.remove(activity)) {
+            // Attached already, it is the most recent one again.
+            activities.add(activity);
+            return;
+        }
+        activities.add(activity);
+        if (activity instanceof OnLocationUpdatedListener) {
+            dispatcher.add((OnLocationUpdatedListener) activity, 0, FixDispatcher.THREAD_DEFAULT);
+        }
+        if (activity instanceof OnLazyLocationUpdatedListener) {
+            dispatcher.add((OnLazyLocationUpdatedListener) activity, 0, FixDispatcher.THREAD_DEFAULT);
+        }
+        if (activity instanceof OnRawLocationUpdatedListener) {
+            dispatcher.add((OnRawLocationUpdatedListener) activity, 0, FixDispatcher.THREAD_DEFAULT);
+        }
+        if (activity instanceof OnLocationsBatchedListener) {
+            delivery.setBatchedListener((OnLocationsBatchedListener) activity);
+        }
+        onListenersChanged();
+    }
+
+    private void detachActivity(Activity activity) {
+        if (!activities.remove(activity)) {
+            return;
+        }
+        if (activity instanceof OnLocationUpdatedListener) {
+            dispatcher.remove((OnLocationUpdatedListener) activity);
+        }
+        if (activity instanceof OnLazyLocationUpdatedListener) {
+            dispatcher.remove((OnLazyLocationUpdatedListener) activity);
+        }
+        if (activity instanceof OnRawLocationUpdatedListener) {
+            dispatcher.remove((OnRawLocationUpdatedListener) activity);
+        }
+        if (delivery.getBatchedListener() == activity) {
+            // Batches go to the most recent activity left that takes them.
+            OnLocationsBatchedListener batchedListener = null;
+            for (int i = activities.size() - 1; i >= 0 && batchedListener == null; i--) {
+                if (activities.get(i) instanceof OnLocationsBatchedListener) {
+                    batchedListener = (OnLocationsBatchedListener) activities.get(i);
+                }
+            }
+            delivery.setBatchedListener(batchedListener);
+        }
+        onListenersChanged();
+    }
+
+    /**
+     * @return the most recently attached activity that is not finishing, to show dialogs on, null
+     * if there is none
+     */
+    private Activity getActivity() {
+        for (int i = activities.size() - 1; i >= 0; i--) {
+            Activity activity = activities.get(i);
+            if (activity.isFinishing()) {
+                continue;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && activity.isDestroyed()) {
+                continue;
+            }
+            return activity;
+        }
+        return null;
+    }
+
+    /**
+     * Registers a listener that receives every fix.
+     */
+    public void addOnLocationUpdatedListener(OnLocationUpdatedListener listener) {
+        addOnLocationUpdatedListener(listener, 0);
+    }
+
+    /**
+     * Registers a listener that receives at most one fix per {@code intervalInMilliseconds}. The
+     * location request runs at the fastest interval any listener asked for, slower listeners
+     * skip the fixes in between.
+     *
+     * @param intervalInMilliseconds 0 receives every fix and asks for the interval set with
+     *                               {@link #setLocationUpdateIntervalInMilliseconds(long)}
+     */
+    public void addOnLocationUpdatedListener(OnLocationUpdatedListener listener, long intervalInMilliseconds) {
+        dispatcher.add(listener, intervalInMilliseconds, FixDispatcher.THREAD_DEFAULT);
+        onListenersChanged();
+    }
+
+    /**
+     * @param onMainThread overrides {@link #setListenerOnMainThread(boolean)} for this listener
+     */
+    public void addOnLocationUpdatedListener(OnLocationUpdatedListener listener, long intervalInMilliseconds, boolean onMainThread) {
+        dispatcher.add(listener, intervalInMilliseconds, onMainThread ? FixDispatcher.THREAD_MAIN : FixDispatcher.THREAD_DELIVERY);
+        onListenersChanged();
+    }
+
+    public void removeOnLocationUpdatedListener(OnLocationUpdatedListener listener) {
+        if (dispatcher.remove(listener)) {
+            onListenersChanged();
+        }
+    }
+
+    /**
+     * Registers a listener that receives every fix.
+     */
+    public void addOnLazyLocationUpdatedListener(OnLazyLocationUpdatedListener listener) {
+        addOnLazyLocationUpdatedListener(listener, 0);
+    }
+
+    /**
+     * @see #addOnLocationUpdatedListener(OnLocationUpdatedListener, long)
+     */
+    public void addOnLazyLocationUpdatedListener(OnLazyLocationUpdatedListener listener, long intervalInMilliseconds) {
+        dispatcher.add(listener, intervalInMilliseconds, FixDispatcher.THREAD_DEFAULT);
+        onListenersChanged();
+    }
+
+    /**
+     * @param onMainThread overrides {@link #setListenerOnMainThread(boolean)} for this listener
+     */
+    public void addOnLazyLocationUpdatedListener(OnLazyLocationUpdatedListener listener, long intervalInMilliseconds, boolean onMainThread) {
+        dispatcher.add(listener, intervalInMilliseconds, onMainThread ? FixDispatcher.THREAD_MAIN : FixDispatcher.THREAD_DELIVERY);
+        onListenersChanged();
+    }
+
+    public void removeOnLazyLocationUpdatedListener(OnLazyLocationUpdatedListener listener) {
+        if (dispatcher.remove(listener)) {
+            onListenersChanged();
+        }
+    }
+
+    /**
+     * Registers a listener that receives every fix.
+     */
+    public void addOnRawLocationUpdatedListener(OnRawLocationUpdatedListener listener) {
+        addOnRawLocationUpdatedListener(listener, 0);
+    }
+
+    /**
+     * @see #addOnLocationUpdatedListener(OnLocationUpdatedListener, long)
+     */
+    public void addOnRawLocationUpdatedListener(OnRawLocationUpdatedListener listener, long intervalInMilliseconds) {
+        dispatcher.add(listener, intervalInMilliseconds, FixDispatcher.THREAD_DEFAULT);
+        onListenersChanged();
+    }
+
+    /**
+     * @param onMainThread overrides {@link #setListenerOnMainThread(boolean)} for this listener
+     */
+    public void addOnRawLocationUpdatedListener(OnRawLocationUpdatedListener listener, long intervalInMilliseconds, boolean onMainThread) {
+        dispatcher.add(listener, intervalInMilliseconds, onMainThread ? FixDispatcher.THREAD_MAIN : FixDispatcher.THREAD_DELIVERY);
+        onListenersChanged();
+    }
+
+    public void removeOnRawLocationUpdatedListener(OnRawLocationUpdatedListener listener) {
+        if (dispatcher.remove(listener)) {
+            onListenersChanged();
+        }
+    }
+
+    /**
+     * Adds a stage that sees every fix, on the delivery thread, before the listeners do.
+     */
+    public void addFixProcessor(FixProcessor processor) {
+        pipeline.add(processor);
+    }
+
+    public void removeFixProcessor(FixProcessor processor) {
+        pipeline.remove(processor);
+    }
+
+    /**
+     * Keeps the last {@code capacity} fixes in memory, for example 3600 for an hour at one fix
+     * per second. Calling it again replaces the history.
+     *
+     * @return the history, readable from any thread
+     */
+    public TrackHistory enableTrackHistory(int capacity) {
+        disableTrackHistory();
+        trackHistory = new TrackHistory(capacity);
+        pipeline.add(trackHistory);
+        return trackHistory;
+    }
+
+    public void disableTrackHistory() {
+        if (trackHistory != null) {
+            pipeline.remove(trackHistory);
+            trackHistory = null;
+        }
+    }
+
+    /**
+     * @return the history enabled with {@link #enableTrackHistory(int)}, or null
+     */
+    public TrackHistory getTrackHistory() {
+        return trackHistory;
+    }
+
+    /**
+     * Delivers a position right at start instead of after the first fresh fix: the last fix that
+     * reached the listeners is kept on disk, and is delivered in {@link #onCreate(Bundle)} when it
+     * is younger than {@code maxAgeInMilliseconds}. Once connected, the last location of the fused
+     * provider follows if it is more recent.
+     * <p/>
+     * These provisional fixes carry the {@link #PROVIDER_CACHED} provider and their original time,
+     * {@link FixProcessor}s see them flagged with {@link Fix#isProvisional()}. They stop as soon
+     * as the first fresh fix arrives. Call before {@link #onCreate(Bundle)}.
+     *
+     * @param maxAgeInMilliseconds older fixes are not delivered, for example 30 minutes
+     */
+    public void enableWarmStart(long maxAgeInMilliseconds) {
+        if (lastFixStore == null) {
+            lastFixStore = new LastFixStore(context);
+        }
+        warmStartMaxAgeInMilliseconds = maxAgeInMilliseconds;
+    }
+
+    /**
+     * Stops keeping and delivering the last fix. What is already on disk stays there.
+     */
+    public void disableWarmStart() {
+        lastFixStore = null;
+    }
+
+    /**
+     * Fix age, interval, listener duration and connection counters, recorded from the start.
+     *
+     * @return the metrics, readable from any thread with {@link LocationMetrics#snapshot()}
+     */
+    public LocationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Fixes that reached the listeners, provisional ones included, for subscribers that want to
+     * control how many they take. Subscribers keep the updates running like listeners do.
+     */
+    public FixStream getFixStream() {
+        return fixStream;
+    }
+
+    /**
+     * Lets the request follow how fast the device moves: slow and coarse while it rests, fast and
+     * precise while it moves. The interval of the current motion replaces the one set with
+     * {@link #setLocationUpdateIntervalInMilliseconds(long)}, listeners that asked for their own
+     * interval keep it.
+     *
+     * @return the scheduler, to tune the tiers and thresholds
+     */
+    public AdaptiveIntervalScheduler enableAdaptiveInterval() {
+        disableAdaptiveInterval();
+        AdaptiveIntervalScheduler scheduler = new AdaptiveIntervalScheduler();
+        scheduler.setOnMotionChangedListener((motion, tier) -> {
+            Log.d(TAG, "Motion changed to " + motion);
+            mainHandler.post(() -> {
+                if (adaptiveScheduler == scheduler) {
+                    requestSettings.setMotionTier(tier);
+                }
+            });
+        });
+        adaptiveScheduler = scheduler;
+        pipeline.add(scheduler);
+        requestSettings.setMotionTier(scheduler.getTier(scheduler.getMotion()));
+        return scheduler;
+    }
+
+    public void disableAdaptiveInterval() {
+        if (adaptiveScheduler != null) {
+            pipeline.remove(adaptiveScheduler);
+            adaptiveScheduler = null;
+            requestSettings.setMotionTier(null);
+        }
+    }
+
+    /**
+     * Splits the fixes into trips and stays, and optionally makes the request cheaper during
+     * stays. While in a stay the stay tier replaces the settings of the current motion, the first
+     * fix leaving the stay brings them back.
+     *
+     * @param stayTier request settings during stays, null to leave the request as it is
+     * @return the segmenter, to set the listener and tune the thresholds
+     */
+    public TripSegmenter enableTripSegmentation(AdaptiveIntervalScheduler.Tier stayTier) {
+        disableTripSegmentation();
+        TripSegmenter segmenter = new TripSegmenter();
+        segmenter.setOnStayChangedListener(staying -> mainHandler.post(() -> {
+            if (tripSegmenter == segmenter) {
+                requestSettings.setStaying(staying);
+            }
+        }));
+        tripSegmenter = segmenter;
+        requestSettings.setStayTier(stayTier);
+        pipeline.add(segmenter);
+        return segmenter;
+    }
+
+    public void disableTripSegmentation() {
+        if (tripSegmenter != null) {
+            pipeline.remove(tripSegmenter);
+            tripSegmenter = null;
+            requestSettings.setStaying(false);
+            requestSettings.setStayTier(null);
+        }
+    }
+
+    /**
+     * Sets the power the request may use while no tier of the adaptive interval or of a stay
+     * applies. The request is swapped on the running connection.
+     *
+     * @param profile default is {@link PowerProfile#HIGH_ACCURACY}
+     */
+    public void setPowerProfile(PowerProfile profile) {
+        requestSettings.setPowerProfile(profile);
+    }
+
+    public PowerProfile getPowerProfile() {
+        return requestSettings.getPowerProfile();
+    }
+
+    /**
+     * Keeps GPS off most of the time: short high accuracy bursts until a fix within the target
+     * accuracy arrives, then long idle windows at a cheaper profile. The duty cycle decides the
+     * power of the request over the power profile and the tiers, the intervals stay theirs except
+     * during bursts. Compare {@link LocationMetrics.Snapshot#getHighAccuracyTimeInMilliseconds()}
+     * with and without it to see the savings. The cycle only runs while updates do, and starts
+     * again with a burst when they resume.
+     *
+     * @return the scheduler, to tune the target, the burst and idle times, and read the counters
+     */
+    public DutyCycleScheduler enableDutyCycling() {
+        disableDutyCycling();
+        DutyCycleScheduler scheduler = new DutyCycleScheduler();
+        scheduler.setOnProfileChangedListener(profile -> mainHandler.post(() -> {
+            if (dutyCycleScheduler == scheduler) {
+                Log.d(TAG, "Duty cycle profile changed to " + profile);
+                requestSettings.setDutyCycleProfile(profile, scheduler.getBurstIntervalInMilliseconds());
+            }
+        }));
+        dutyCycleScheduler = scheduler;
+        pipeline.add(scheduler);
+        if (requestingLocationUpdates) {
+            startDutyCycle();
+        }
+        return scheduler;
+    }
+
+    public void disableDutyCycling() {
+        if (dutyCycleScheduler != null) {
+            stopDutyCycle();
+            pipeline.remove(dutyCycleScheduler);
+            dutyCycleScheduler = null;
+            requestSettings.setDutyCycleProfile(null, 0);
+        }
+    }
+
+    /**
+     * Starts with a burst, as updates start.
+     */
+    private void startDutyCycle() {
+        long now = elapsedRealtimeNanosNow();
+        long deadline = dutyCycleScheduler.start(now);
+        requestSettings.setDutyCycleProfile(dutyCycleScheduler.getProfile(),
+                dutyCycleScheduler.getBurstIntervalInMilliseconds());
+        mainHandler.removeCallbacks(dutyCycleTimer);
+        mainHandler.postDelayed(dutyCycleTimer, (deadline - now) / 1000000L);
+    }
+
+    /**
+     * Ends the phase as updates stop, the timer must not wake the app while nothing runs.
+     */
+    private void stopDutyCycle() {
+        mainHandler.removeCallbacks(dutyCycleTimer);
+        if (dutyCycleScheduler != null) {
+            dutyCycleScheduler.stop(elapsedRealtimeNanosNow());
+        }
+    }
+
+    private void onDutyCycleDeadline() {
+        if (dutyCycleScheduler == null) {
+            return;
+        }
+        long now = elapsedRealtimeNanosNow();
+        long deadline = dutyCycleScheduler.onDeadline(now);
+        mainHandler.postDelayed(dutyCycleTimer, Math.max(0, (deadline - now) / 1000000L));
+    }
+
+    /**
+     * Keeps the shared location request at the fastest interval any listener asked for. Listeners
+     * may be registered from any thread, the request is only touched on the main thread.
+     */
+    private void onListenersChanged() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mainHandler.post(this::onListenersChanged);
+            return;
+        }
+        requestSettings.onListenersChanged();
+    }
+
+    private final RequestSettings.Host requestHost = new RequestSettings.Host() {
+        @Override
+        public long getFastestInterval(long defaultIntervalInMilliseconds) {
+            return dispatcher.getFastestInterval(defaultIntervalInMilliseconds);
+        }
+
+        @Override
+        public void onRequestChanged(LocationRequest request) {
+            buildLocationSettingsRequest();
+            if (requestingLocationUpdates) {
+                requestUpdates();
+            }
+        }
+    };
+
     //setup listeners
     private GoogleApiClient.ConnectionCallbacks connectionCallbacks = new GoogleApiClient.ConnectionCallbacks() {
         /**
@@ -127,15 +692,57 @@ public class LocationUpdate {
             // user launches the activityInstance,
             // moves to a new location, and then changes the device orientation, the original location
             // is displayed as the activityInstance is re-created.
-            if (ActivityCompat.checkSelfPermission(activity, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED && ActivityCompat.checkSelfPermission(activity, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            if (!hasLocationPermission()) {
                 return;
             }
-            checkLocationSettings();
+            deliverLastLocation();
+            connection.onConnected();
         }
 
         @Override
         public void onConnectionSuspended(int cause) {
             Log.d(TAG, "Connection suspended");
+            metrics.recordSuspension();
+            metrics.recordRequest(LocationMetrics.NO_REQUEST);
+            requestingLocationUpdates = false;
+            connection.onSuspended();
+        }
+    };
+
+    private final ConnectionStateMachine.Host connectionHost = new ConnectionStateMachine.Host() {
+        @Override
+        public boolean isConnected() {
+            return mGoogleApiClient != null && mGoogleApiClient.isConnected();
+        }
+
+        @Override
+        public void connect() {
+            mGoogleApiClient.connect();
+        }
+
+        @Override
+        public void checkSettings() {
+            checkLocationSettings();
+        }
+
+        @Override
+        public void requestUpdates() {
+            LocationUpdate.this.requestUpdates();
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayInMilliseconds) {
+            mainHandler.postDelayed(task, delayInMilliseconds);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            mainHandler.removeCallbacks(task);
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return elapsedRealtimeNanosNow();
         }
     };
 
@@ -145,55 +752,176 @@ public class LocationUpdate {
             // Refer to the javadoc for ConnectionResult to see what error codes might be returned in
             // onConnectionFailed.
             Log.d(TAG, "Connection failed: ConnectionResult.getErrorCode() = " + result.getErrorCode());
+            connection.onConnectionFailed();
         }
     };
 
-    private LocationListener locationListener = new LocationListener() {
+    private final FixDelivery.Host deliveryHost = new FixDelivery.Host() {
         @Override
-        public void onLocationChanged(Location location) {
-            String mLastUpdateTime = DateFormat.getTimeInstance().format(new Date());
-            listener.onLocationUpdated(location, mLastUpdateTime);
+        public long elapsedRealtimeNanos(Location location) {
+            return LocationUpdate.elapsedRealtimeNanos(location);
+        }
+
+        @Override
+        public long elapsedRealtimeNanosNow() {
+            return LocationUpdate.elapsedRealtimeNanosNow();
+        }
+
+        @Override
+        public Location newLocation(double latitude, double longitude, float accuracy, float speed,
+                                    float bearing, long time, long elapsedRealtimeNanos) {
+            Location location = new Location(PROVIDER_REPLAY);
+            location.setLatitude(latitude);
+            location.setLongitude(longitude);
+            location.setAccuracy(accuracy);
+            location.setSpeed(speed);
+            location.setBearing(bearing);
+            location.setTime(time);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                location.setElapsedRealtimeNanos(elapsedRealtimeNanos);
+            }
+            return location;
+        }
+
+        @Override
+        public void onFixDelivered(Fix fix) {
+            LocationUpdate.this.onFixDelivered(fix);
         }
     };
 
+    /**
+     * Runs on the delivery thread for each fresh fix that reached the listeners.
+     */
+    private void onFixDelivered(Fix fix) {
+        fixStream.publish(fix);
+        LastFixStore lastFixStore = this.lastFixStore;
+        if (lastFixStore != null) {
+            lastFixStore.onFix(fix);
+        }
+    }
+
+    /**
+     * Delivers the fix kept from an earlier run, if the warm start is enabled and no fresh fix
+     * arrived yet.
+     */
+    private void deliverStoredFix() {
+        if (lastFixStore == null || delivery.isFreshFixReceived()) {
+            return;
+        }
+        Location location = lastFixStore.load(warmStartMaxAgeInMilliseconds, elapsedRealtimeNanosNow());
+        if (location != null) {
+            deliverProvisional(location);
+        }
+    }
+
+    /**
+     * Delivers the last location of the fused provider, if it is more recent than the provisional
+     * fix delivered so far and no fresh fix arrived yet.
+     */
+    private void deliverLastLocation() {
+        if (lastFixStore == null || delivery.isFreshFixReceived() || !(locationSource instanceof FusedLocationSource)) {
+            return;
+        }
+        Location lastLocation = ((FusedLocationSource) locationSource).getLastLocation();
+        if (lastLocation == null || lastLocation.getTime() <= provisionalTime
+                || System.currentTimeMillis() - lastLocation.getTime() > warmStartMaxAgeInMilliseconds) {
+            return;
+        }
+        Location location = new Location(lastLocation);
+        location.setProvider(PROVIDER_CACHED);
+        deliverProvisional(location);
+    }
+
+    private void deliverProvisional(Location location) {
+        provisionalTime = location.getTime();
+        Runnable provisional = () -> {
+            if (!delivery.isFreshFixReceived() && pipeline.onProvisionalFix(location, elapsedRealtimeNanos(location))) {
+                fixStream.publish(pipeline.getFix());
+            }
+        };
+        if (deliveryExecutor != null) {
+            deliveryExecutor.execute(provisional);
+        } else if (backgroundDelivery) {
+            new Handler(getDeliveryLooper()).post(provisional);
+        } else {
+            provisional.run();
+        }
+    }
+
     private ResultCallback<LocationSettingsResult> resultCallback = new ResultCallback<LocationSettingsResult>() {
         @Override
         public void onResult(LocationSettingsResult locationSettingsResult) {
             final Status status = locationSettingsResult.getStatus();
+            metrics.recordSettingsCheck(System.nanoTime() - settingsCheckStartNanos,
+                    status.getStatusCode() == LocationSettingsStatusCodes.SUCCESS);
             switch (status.getStatusCode()) {
                 case LocationSettingsStatusCodes.SUCCESS:
                     Log.d(TAG, "All location settings are satisfied.");
-                    startLocationUpdates();
+                    connection.onSettingsSatisfied();
                     break;
                 case LocationSettingsStatusCodes.RESOLUTION_REQUIRED:
                     Log.d(TAG, "Location settings are not satisfied. Show the user a dialog to" +
                             "upgrade location settings ");
 
+                    Activity activity = getActivity();
+                    if (activity == null) {
+                        Log.d(TAG, "No activity attached to show the dialog.");
+                        connection.onSettingsNotSatisfied();
+                        break;
+                    }
                     try {
                         // Show the dialog by calling startResolutionForResult(), and check the result
                         // in onActivityResult().
                         status.startResolutionForResult(activity, REQUEST_CHECK_SETTINGS);
+                        connection.onSettingsResolving();
                     } catch (IntentSender.SendIntentException e) {
                         Log.d(TAG, "PendingIntent unable to execute request.");
+                        connection.onSettingsNotSatisfied();
                     }
                     break;
                 case LocationSettingsStatusCodes.SETTINGS_CHANGE_UNAVAILABLE:
                     Log.d(TAG, "Location settings are inadequate, and cannot be fixed here. Dialog " +
                             "not created.");
+                    connection.onSettingsNotSatisfied();
                     break;
             }
         }
     };
 
-    public void onCreate(Bundle savedInstanceState) {
-        buildGoogleApiClient();
-        createLocationRequest();
-        buildLocationSettingsRequest();
+    /**
+     * {@link Location#getElapsedRealtimeNanos()} is only available from API 17, older devices
+     * fall back to the time the fix was received.
+     */
+    static long elapsedRealtimeNanos(Location location) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return location.getElapsedRealtimeNanos();
+        }
+        return SystemClock.elapsedRealtime() * 1000000L;
+    }
 
-        if (mGoogleApiClient != null && mGoogleApiClient.isConnected()) {
-            checkLocationSettings();
+    /**
+     * Same clock as {@link #elapsedRealtimeNanos(Location)}.
+     */
+    private static long elapsedRealtimeNanosNow() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+        return SystemClock.elapsedRealtime() * 1000000L;
+    }
+
+    public void onCreate(Bundle savedInstanceState) {
+        deliverStoredFix();
+        if (!usesFusedProvider()) {
+            // No connection, permission or settings to take care of.
+            createLocationRequest();
+            startLocationUpdates();
             return;
         }
+        if (mGoogleApiClient == null) {
+            buildGoogleApiClient();
+        }
+        createLocationRequest();
+        buildLocationSettingsRequest();
 
         connectGoogleApiClient();
     }
@@ -204,36 +932,171 @@ public class LocationUpdate {
      * @param locationUpdateIntervalInMilliseconds default is 1000 ms
      */
     public void setLocationUpdateIntervalInMilliseconds(long locationUpdateIntervalInMilliseconds) {
-        this.locationUpdateIntervalInMilliseconds = locationUpdateIntervalInMilliseconds;
-        if (mLocationRequest != null) {
-            mLocationRequest.setInterval(locationUpdateIntervalInMilliseconds);
-        }
+        requestSettings.setUpdateIntervalInMilliseconds(locationUpdateIntervalInMilliseconds);
     }
 
     /**
-     * Set Fastest Location Update Interval time
+     * Set Fastest Location Update Interval time. The request is swapped on the running
+     * connection.
      *
      * @param locationFastestUpdateIntervalInMilliseconds default is 5000 ms
      */
     public void setLocationFastestUpdateIntervalInMilliseconds(long locationFastestUpdateIntervalInMilliseconds) {
-        this.locationFastestUpdateIntervalInMilliseconds = locationFastestUpdateIntervalInMilliseconds;
-        if (mLocationRequest != null) {
-            mLocationRequest.setInterval(locationFastestUpdateIntervalInMilliseconds);
+        requestSettings.setFastestUpdateIntervalInMilliseconds(locationFastestUpdateIntervalInMilliseconds);
+    }
+
+    /**
+     * Enables batched delivery. The fused provider is allowed to hold fixes for up to
+     * {@code maxWaitTimeInMilliseconds} and hand them over together, so the app is woken up once
+     * per batch instead of once per fix. Batches go to {@link OnLocationsBatchedListener} if the
+     * activity implements it, otherwise each fix of the batch is passed to
+     * {@link OnLocationUpdatedListener}. The request is swapped on the running connection.
+     *
+     * @param maxWaitTimeInMilliseconds default is 0 ms, which delivers every fix as soon as it
+     *                                  arrives. Values not larger than the update interval
+     *                                  disable batching as well.
+     */
+    public void setMaxWaitTimeInMilliseconds(long maxWaitTimeInMilliseconds) {
+        requestSettings.setMaxWaitTimeInMilliseconds(maxWaitTimeInMilliseconds);
+    }
+
+    /**
+     * Receive fixes on a dedicated background {@link HandlerThread} instead of the main thread,
+     * so that work done per fix does not compete with drawing.
+     * <p/>
+     * Takes effect the next time updates are started.
+     *
+     * @param backgroundDelivery default is false
+     * @see #setListenerOnMainThread(boolean)
+     */
+    public void setBackgroundDelivery(boolean backgroundDelivery) {
+        this.backgroundDelivery = backgroundDelivery;
+        updateListenerExecutor();
+    }
+
+    /**
+     * Process fixes on the given executor. Fixes are received on the background
+     * {@link HandlerThread} and handed to the executor from there, one at a time and in order, so
+     * a thread pool shared with other work may be passed as well.
+     * <p/>
+     * Takes effect the next time updates are started.
+     *
+     * @param deliveryExecutor default is null, which processes fixes on the thread that received
+     *                         them
+     * @see #setListenerOnMainThread(boolean)
+     */
+    public void setDeliveryExecutor(Executor deliveryExecutor) {
+        // The pipeline is not thread safe, fixes must not overlap whatever threads run them.
+        this.deliveryExecutor = deliveryExecutor != null ? new SerialExecutor(deliveryExecutor) : null;
+        delivery.setExecutor(this.deliveryExecutor);
+        updateListenerExecutor();
+    }
+
+    /**
+     * When fixes are delivered off the main thread, decides whether the listeners are called back
+     * on the main thread (for example because they update views) or directly on the delivery
+     * thread. Has no effect when fixes are delivered on the main thread. Listeners registered with
+     * an explicit {@code onMainThread} keep their own choice.
+     *
+     * @param listenerOnMainThread default is true
+     */
+    public void setListenerOnMainThread(boolean listenerOnMainThread) {
+        this.listenerOnMainThread = listenerOnMainThread;
+        updateListenerExecutor();
+    }
+
+    private boolean isDeliveredOffMainThread() {
+        return backgroundDelivery || deliveryExecutor != null;
+    }
+
+    private void updateListenerExecutor() {
+        dispatcher.setMainThreadExecutor(isDeliveredOffMainThread() ? mainThreadExecutor : null);
+        dispatcher.setDefaultOnMainThread(listenerOnMainThread);
+        delivery.setBatchedListenerExecutor(isDeliveredOffMainThread() && listenerOnMainThread ? mainThreadExecutor : null);
+    }
+
+    private Looper getDeliveryLooper() {
+        if (!isDeliveredOffMainThread()) {
+            return Looper.getMainLooper();
+        }
+        if (deliveryThread == null) {
+            deliveryThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            deliveryThread.start();
+        }
+        return deliveryThread.getLooper();
+    }
+
+    private void quitDeliveryThread() {
+        if (deliveryThread != null) {
+            deliveryThread.quit();
+            deliveryThread = null;
         }
     }
 
+    /**
+     * Takes fixes from the given source instead of the fused location provider, for example a
+     * {@link ReplayLocationSource} to run the app on a recorded trace. Call before
+     * {@link #onCreate(Bundle)}.
+     */
+    public void setLocationSource(LocationSource locationSource) {
+        if (this.locationSource != null && requestingLocationUpdates) {
+            this.locationSource.removeUpdates();
+        }
+        if (locationSource instanceof ReplayLocationSource) {
+            // Replayed fixes are timed like fresh ones from the provider.
+            ((ReplayLocationSource) locationSource).setClock(LocationUpdate::elapsedRealtimeNanosNow);
+        }
+        this.locationSource = locationSource;
+    }
+
+    private boolean usesFusedProvider() {
+        return locationSource == null || locationSource instanceof FusedLocationSource;
+    }
+
     public void setForceUserToCheckOk(boolean forceUserToCheckOk) {
         this.forceUserToCheckOk = forceUserToCheckOk;
     }
 
+    /**
+     * How long a satisfied location settings check is trusted. Connecting again within this time,
+     * after a suspension or for a recreated activity, requests updates without asking the settings
+     * API again. A request for higher accuracy is always checked.
+     *
+     * @param settingsCacheTtlInMilliseconds default is 10 minutes, 0 checks on every connect
+     */
+    public void setSettingsCacheTtlInMilliseconds(long settingsCacheTtlInMilliseconds) {
+        connection.setSettingsTtlInMilliseconds(settingsCacheTtlInMilliseconds);
+    }
+
+    /**
+     * Failed connections and unsatisfied settings checks are retried after a wait that doubles
+     * with every failure, with jitter, up to the maximum.
+     *
+     * @param initialBackoffInMilliseconds default is 1000
+     * @param maxBackoffInMilliseconds     default is 60000
+     */
+    public void setReconnectBackoff(long initialBackoffInMilliseconds, long maxBackoffInMilliseconds) {
+        connection.setBackoff(initialBackoffInMilliseconds, maxBackoffInMilliseconds);
+    }
+
+    /**
+     * Main thread only.
+     */
+    public ConnectionState getConnectionState() {
+        return connection.getState();
+    }
+
     public void onRequestPermissionsResult(final int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         Log.d(TAG, "on request permission result");
         if (requestCode == REQUEST_LOCATION_PERMISSION) {
+            final Activity activity = getActivity();
             for (int i = 0, len = permissions.length; i < len; i++) {
                 String permission = permissions[i];
                 if (grantResults[i] == PackageManager.PERMISSION_DENIED) {
                     // user rejected the permission
-                    boolean showRationale = ActivityCompat.shouldShowRequestPermissionRationale(activity, permission);
+                    // Without an activity there is nothing to show the dialog on.
+                    boolean showRationale = activity == null
+                            || ActivityCompat.shouldShowRequestPermissionRationale(activity, permission);
                     if (!showRationale) {
                         // user also CHECKED "never ask again"
                         // you can either enable some fall back,
@@ -278,11 +1141,15 @@ public class LocationUpdate {
 
     private synchronized void buildGoogleApiClient() {
         Log.d(TAG, "Building GoogleApiClient");
-        mGoogleApiClient = new GoogleApiClient.Builder(activity)
+        mGoogleApiClient = new GoogleApiClient.Builder(context)
                 .addConnectionCallbacks(connectionCallbacks)
                 .addOnConnectionFailedListener(connectionFailedListener)
                 .addApi(LocationServices.API)
                 .build();
+        if (locationSource == null) {
+            locationSource = new FusedLocationSource(mGoogleApiClient);
+            applyBackgroundIntent();
+        }
     }
 
     /**
@@ -299,19 +1166,18 @@ public class LocationUpdate {
      * updates.
      */
     private void createLocationRequest() {
-        mLocationRequest = LocationRequest.create();
-
         // Sets the desired interval for active location updates. This interval is
         // inexact. You may not receive updates at all if no location sources are available, or
         // you may receive them slower than requested. You may also receive updates faster than
         // requested if other applications are requesting location at a faster interval.
-        mLocationRequest.setInterval(locationUpdateIntervalInMilliseconds);
-
+        //
         // Sets the fastest rate for active location updates. This interval is exact, and your
         // application will never receive updates faster than this value.
-        mLocationRequest.setFastestInterval(locationFastestUpdateIntervalInMilliseconds);
-
-        mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+        //
+        // The interval is the fastest one any listener asked for. The priority is that of the
+        // power profile, high accuracy by default, unless the adaptive interval, a stay or the
+        // duty cycle picked something else.
+        requestSettings.createRequest();
     }
 
     /**
@@ -320,8 +1186,14 @@ public class LocationUpdate {
      * if a device has the needed location settings.
      */
     private void buildLocationSettingsRequest() {
+        LocationRequest request = requestSettings.getRequest();
+        if (request.getPriority() != settingsPriority) {
+            // A satisfied check says nothing about a more demanding request.
+            settingsPriority = request.getPriority();
+            connection.invalidateSettings();
+        }
         LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder();
-        builder.addLocationRequest(mLocationRequest);
+        builder.addLocationRequest(request);
         mLocationSettingsRequest = builder.build();
     }
 
@@ -331,6 +1203,7 @@ public class LocationUpdate {
      * LocationSettingsRequest)} method, with the results provided through a {@code PendingResult}.
      */
     private void checkLocationSettings() {
+        settingsCheckStartNanos = System.nanoTime();
         PendingResult<LocationSettingsResult> result =
                 LocationServices.SettingsApi.checkLocationSettings(
                         mGoogleApiClient,
@@ -347,13 +1220,15 @@ public class LocationUpdate {
                 switch (resultCode) {
                     case Activity.RESULT_OK:
                         Log.d(TAG, "User agreed to make required location settings changes.");
-                        startLocationUpdates();
+                        connection.onSettingsSatisfied();
                         break;
                     case Activity.RESULT_CANCELED:
                         Log.d(TAG, "User chose not to make required location settings changes. force user to check off = " + forceUserToCheckOk);
-                        //forced user to check ok
+                        //forced user to check ok, asking again after a backoff rather than right away
                         if (forceUserToCheckOk) {
-                            checkLocationSettings();
+                            connection.onSettingsNotSatisfied();
+                        } else {
+                            connection.onSettingsDeclined();
                         }
                         break;
                 }
@@ -365,28 +1240,36 @@ public class LocationUpdate {
     }
 
     /**
-     * Requests location updates from the FusedLocationApi.
+     * Requests location updates from the location source, the FusedLocationApi unless another
+     * source was set.
      */
     public void startLocationUpdates() {
-        if (ActivityCompat.checkSelfPermission(activity, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED && ActivityCompat.checkSelfPermission(activity, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            ActivityCompat.requestPermissions(activity, new String[]{Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_COARSE_LOCATION}, REQUEST_LOCATION_PERMISSION);
+        if (!usesFusedProvider()) {
+            requestUpdates();
             return;
         }
-        if (mGoogleApiClient == null || !mGoogleApiClient.isConnected() || mLocationRequest == null) {
+        if (!hasLocationPermission()) {
+            requestLocationPermission();
             return;
         }
-        LocationServices.FusedLocationApi.requestLocationUpdates(
-                mGoogleApiClient,
-                mLocationRequest,
-                locationListener
-        ).setResultCallback(new ResultCallback<Status>() {
-            @Override
-            public void onResult(Status status) {
-                // mRequestingLocationUpdates = true;
-                //setButtonsEnabledState();
-            }
-        });
+        if (mGoogleApiClient != null) {
+            // Connects and checks the settings first where needed.
+            connection.start();
+        }
+    }
 
+    private void requestUpdates() {
+        LocationRequest request = requestSettings.getRequest();
+        if (locationSource == null || request == null) {
+            return;
+        }
+        if (!requestingLocationUpdates && dutyCycleScheduler != null) {
+            // Updates resume, the request starts out with the burst.
+            startDutyCycle();
+        }
+        locationSource.requestUpdates(request, getDeliveryLooper(), delivery);
+        requestingLocationUpdates = true;
+        metrics.recordRequest(request.getPriority());
     }
 
     /**
@@ -396,36 +1279,200 @@ public class LocationUpdate {
         // It is a good practice to remove location requests when the activityInstance is in a paused or
         // stopped state. Doing so helps battery performance and is especially
         // recommended in applications that request frequent location updates.
-        if (mGoogleApiClient == null || !mGoogleApiClient.isConnected()) {
-            return;
+        requestingLocationUpdates = false;
+        if (locationSource != null) {
+            locationSource.removeUpdates();
         }
-        LocationServices.FusedLocationApi.removeLocationUpdates(
-                mGoogleApiClient,
-                locationListener
-        ).setResultCallback(status -> {
-            //   mRequestingLocationUpdates = false;
-            // setButtonsEnabledState();
-        });
+        stopDutyCycle();
+        metrics.recordRequest(LocationMetrics.NO_REQUEST);
+        connection.stop();
+        if (lastFixStore != null) {
+            lastFixStore.flush();
+        }
+    }
+
+    /**
+     * Detaches the activity. Updates are stopped and the connection is closed once no listener,
+     * stream subscriber or {@link #acquire() reference} is left, other screens and services keep
+     * receiving fixes over the shared connection.
+     */
+    public void onDestroy(Activity activity) {
+        detachActivity(activity);
+        references.shutDownIfUnused();
     }
 
+    /**
+     * Detaches the most recently attached activity, which is not necessarily the one being
+     * destroyed when several are attached.
+     *
+     * @deprecated use {@link #onDestroy(Activity)}
+     */
+    @Deprecated
     public void onDestroy() {
-        stopLocationUpdates();
-        disconnectGoogleApiClient();
+        onDestroy(activities.isEmpty() ? null : activities.get(activities.size() - 1));
+    }
+
+    /**
+     * Keeps the connection and updates running until the matching {@link #release()}, for
+     * components that outlive the activities, such as a service. The first reference connects and
+     * starts updates as {@link #onCreate(Bundle)} does. While referenced, activities coming and
+     * going reuse the connection instead of connecting and checking the settings again. Main
+     * thread only.
+     */
+    public void acquire() {
+        references.acquire();
+    }
+
+    /**
+     * Gives up a reference taken with {@link #acquire()}. The last one stops updates and closes
+     * the connection, unless listeners or stream subscribers are left.
+     */
+    public void release() {
+        references.release();
+    }
+
+    private final ConnectionReferences.Host referencesHost = new ConnectionReferences.Host() {
+        @Override
+        public void start() {
+            onCreate(null);
+        }
+
+        @Override
+        public boolean hasUsers() {
+            return dispatcher.hasListener() || fixStream.hasSubscribers();
+        }
+
+        @Override
+        public void shutDown() {
+            stopLocationUpdates();
+            disconnectGoogleApiClient();
+            quitDeliveryThread();
+        }
+
+        @Override
+        public boolean isBackgroundTrackingEnabled() {
+            return LocationUpdate.this.isBackgroundTrackingEnabled();
+        }
+
+        @Override
+        public void onBackgroundTrackingChanged(boolean backgroundTracking) {
+            applyBackgroundIntent();
+            if (requestingLocationUpdates) {
+                // Requesting again moves the request between the intent and the callback.
+                requestUpdates();
+            }
+        }
+
+        @Override
+        public void cancelBackgroundIntent() {
+            LocationUpdate.this.cancelBackgroundIntent();
+        }
+
+        @Override
+        public void deliver(List<Location> locations) {
+            if (deliveryExecutor == null && backgroundDelivery) {
+                new Handler(getDeliveryLooper()).post(() -> delivery.onLocations(locations));
+            } else {
+                delivery.onLocations(locations);
+            }
+        }
+    };
+
+    /**
+     * Keeps tracking without an activity or service: the request is registered with a
+     * {@link PendingIntent} to {@link LocationUpdateReceiver}, which hands the fixes to the
+     * listeners, and the connection is {@link #acquire() referenced} until
+     * {@link #disableBackgroundTracking()}.
+     * <p/>
+     * The setting is kept on disk. When the process was killed, the provider keeps delivering and
+     * the next fix starts it again: tracking resumes, and the fixes reach the listeners registered
+     * again in {@code Application.onCreate()}. Location permission must be granted already. Main
+     * thread only.
+     */
+    public void enableBackgroundTracking() {
+        getBackgroundPreferences().edit().putBoolean(KEY_BACKGROUND_TRACKING, true).apply();
+        references.resumeBackgroundTracking();
+    }
+
+    public void disableBackgroundTracking() {
+        getBackgroundPreferences().edit().putBoolean(KEY_BACKGROUND_TRACKING, false).apply();
+        references.stopBackgroundTracking();
+    }
+
+    public boolean isBackgroundTrackingEnabled() {
+        return getBackgroundPreferences().getBoolean(KEY_BACKGROUND_TRACKING, false);
+    }
+
+    private void applyBackgroundIntent() {
+        if (locationSource instanceof FusedLocationSource) {
+            ((FusedLocationSource) locationSource).setPendingIntent(references.isBackgroundTracking() ? getBackgroundIntent() : null);
+        }
+    }
+
+    private PendingIntent getBackgroundIntent() {
+        if (backgroundIntent == null) {
+            backgroundIntent = PendingIntent.getBroadcast(context, 0, newBackgroundIntent(),
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+        }
+        return backgroundIntent;
+    }
+
+    private Intent newBackgroundIntent() {
+        return new Intent(context, LocationUpdateReceiver.class).setAction(LocationUpdateReceiver.ACTION_LOCATIONS);
+    }
+
+    /**
+     * The provider drops requests for a cancelled intent, which also ends requests that could
+     * not be removed because the client was not connected, such as those of an earlier process.
+     */
+    private void cancelBackgroundIntent() {
+        PendingIntent intent = backgroundIntent != null ? backgroundIntent
+                : PendingIntent.getBroadcast(context, 0, newBackgroundIntent(), PendingIntent.FLAG_NO_CREATE);
+        if (intent != null) {
+            intent.cancel();
+        }
+        backgroundIntent = null;
+    }
+
+    private SharedPreferences getBackgroundPreferences() {
+        return context.getSharedPreferences(BACKGROUND_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Fixes of background tracking, from {@link LocationUpdateReceiver} on the main thread.
+     */
+    void onBackgroundLocations(List<Location> locations) {
+        references.onBackgroundLocations(locations);
     }
 
     private void connectGoogleApiClient() {
-        if (ActivityCompat.checkSelfPermission(activity, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED && ActivityCompat.checkSelfPermission(activity, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            ActivityCompat.requestPermissions(activity, new String[]{Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_COARSE_LOCATION}, REQUEST_LOCATION_PERMISSION);
+        if (!hasLocationPermission()) {
+            requestLocationPermission();
             return;
         }
         if (mGoogleApiClient != null) {
-            mGoogleApiClient.connect();
+            connection.start();
+        }
+    }
+
+    private boolean hasLocationPermission() {
+        return ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED
+                || ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private void requestLocationPermission() {
+        Activity activity = getActivity();
+        if (activity == null) {
+            Log.d(TAG, "Location permission is missing and there is no activity to ask for it.");
+            return;
         }
+        ActivityCompat.requestPermissions(activity, new String[]{Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_COARSE_LOCATION}, REQUEST_LOCATION_PERMISSION);
     }
 
     private void disconnectGoogleApiClient() {
         if (mGoogleApiClient != null && mGoogleApiClient.isConnected()) {
             mGoogleApiClient.disconnect();
         }
+        connection.onDisconnected();
     }
 }
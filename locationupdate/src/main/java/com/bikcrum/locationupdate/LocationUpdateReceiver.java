@@ -0,0 +1,31 @@
+package com.bikcrum.locationupdate;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.google.android.gms.location.LocationResult;
+
+/**
+ * Receives the fixes of background tracking from the fused location provider and hands them to
+ * the listeners of {@link LocationUpdate}. Declared in the manifest of the library, so it also
+ * runs when the process was gone: the fixes then reach the listeners registered again in
+ * {@code Application.onCreate()}.
+ * <p/>
+ * A receiver rather than a service, since services cannot be started from the background on
+ * Android 8 and later.
+ *
+ * @see LocationUpdate#enableBackgroundTracking()
+ */
+public final class LocationUpdateReceiver extends BroadcastReceiver {
+
+    static final String ACTION_LOCATIONS = "com.bikcrum.locationupdate.action.LOCATIONS";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ACTION_LOCATIONS.equals(intent.getAction()) || !LocationResult.hasResult(intent)) {
+            return;
+        }
+        LocationUpdate.getInstance(context).onBackgroundLocations(LocationResult.extractResult(intent).getLocations());
+    }
+}
@@ -0,0 +1,179 @@
+package com.bikcrum.locationupdate;
+
+import java.util.Arrays;
+
+/**
+ * Map from {@code long} to {@code long} without boxing, with open addressing and linear probing in
+ * a single array of alternating keys and values. Geohash cells of one area share most of their
+ * bits, so keys are mixed before probing.
+ * <p/>
+ * Not thread safe.
+ */
+final class LongLongMap {
+
+    interface Visitor {
+        void visit(long key, long value);
+    }
+
+    // Marks a free slot. The key itself is kept outside the table.
+    private static final long FREE = Long.MIN_VALUE;
+
+    private long[] table;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    private boolean hasFreeKey;
+    private long freeKeyValue;
+
+    LongLongMap() {
+        this(16);
+    }
+
+    LongLongMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        table = new long[capacity * 2];
+        Arrays.fill(table, 0, table.length, FREE);
+        mask = capacity - 1;
+        // Load factor 0.5 keeps probe sequences short.
+        resizeAt = capacity / 2;
+    }
+
+    int size() {
+        return size + (hasFreeKey ? 1 : 0);
+    }
+
+    boolean containsKey(long key) {
+        if (key == FREE) {
+            return hasFreeKey;
+        }
+        return table[slot(key)] == key;
+    }
+
+    /**
+     * @return the value, or {@code missing} if the key is not in the map
+     */
+    long get(long key, long missing) {
+        if (key == FREE) {
+            return hasFreeKey ? freeKeyValue : missing;
+        }
+        int slot = slot(key);
+        return table[slot] == key ? table[slot + 1] : missing;
+    }
+
+    void put(long key, long value) {
+        if (key == FREE) {
+            hasFreeKey = true;
+            freeKeyValue = value;
+            return;
+        }
+        int slot = slot(key);
+        if (table[slot] == key) {
+            table[slot + 1] = value;
+            return;
+        }
+        insert(slot, key, value);
+    }
+
+    /**
+     * Adds to the value of the key, a missing key counts as 0.
+     *
+     * @return the new value
+     */
+    long add(long key, long delta) {
+        if (key == FREE) {
+            freeKeyValue = (hasFreeKey ? freeKeyValue : 0) + delta;
+            hasFreeKey = true;
+            return freeKeyValue;
+        }
+        int slot = slot(key);
+        if (table[slot] == key) {
+            return table[slot + 1] += delta;
+        }
+        insert(slot, key, delta);
+        return delta;
+    }
+
+    void clear() {
+        Arrays.fill(table, 0, table.length, FREE);
+        size = 0;
+        hasFreeKey = false;
+    }
+
+    /**
+     * Visits every entry, in no particular order. The map must not be changed meanwhile.
+     */
+    void forEach(Visitor visitor) {
+        if (hasFreeKey) {
+            visitor.visit(FREE, freeKeyValue);
+        }
+        for (int slot = 0; slot < table.length; slot += 2) {
+            if (table[slot] != FREE) {
+                visitor.visit(table[slot], table[slot + 1]);
+            }
+        }
+    }
+
+    /**
+     * @return the keys, in no particular order
+     */
+    long[] keys() {
+        long[] keys = new long[size()];
+        int i = 0;
+        if (hasFreeKey) {
+            keys[i++] = FREE;
+        }
+        for (int slot = 0; slot < table.length; slot += 2) {
+            if (table[slot] != FREE) {
+                keys[i++] = table[slot];
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return index of the key in the table, or of the free slot where it would go
+     */
+    private int slot(long key) {
+        int index = (int) mix(key) & mask;
+        while (true) {
+            long current = table[index * 2];
+            if (current == key || current == FREE) {
+                return index * 2;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void insert(int slot, long key, long value) {
+        table[slot] = key;
+        table[slot + 1] = value;
+        if (++size > resizeAt) {
+            long[] old = table;
+            allocate((mask + 1) * 2);
+            for (int i = 0; i < old.length; i += 2) {
+                if (old[i] != FREE) {
+                    int newSlot = slot(old[i]);
+                    table[newSlot] = old[i];
+                    table[newSlot + 1] = old[i + 1];
+                }
+            }
+        }
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads every key bit over the low bits.
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
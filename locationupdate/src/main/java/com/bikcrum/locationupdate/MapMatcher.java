@@ -0,0 +1,467 @@
+package com.bikcrum.locationupdate;
+
+import java.util.Arrays;
+
+/**
+ * Snaps fixes onto the roads of a {@link RoadGraph}, with a hidden Markov model as described by
+ * Newson and Krumm, "Hidden Markov Map Matching Through Noise and Sparseness".
+ * <p/>
+ * The states of a fix are the points of the nearby edges closest to it. A state is more likely the
+ * closer it is to the fix, and a step between the states of two fixes is more likely the closer
+ * the route between them along the roads is to the straight distance between the fixes, so the
+ * match follows roads that can actually be driven instead of jumping to whichever road is closest.
+ * Routes are found with a search bounded in distance and in nodes.
+ * <p/>
+ * The most likely sequence of states (Viterbi) is kept for a window of fixes. Once the window is
+ * full, the oldest fix is decided from the most likely state of the newest one and reported, so
+ * matches lag by the window size. All pending fixes are decided at once when the model breaks, at
+ * a fix with no road nearby, after a gap or when no route joins two fixes, and on {@link #flush()}.
+ * <p/>
+ * The work per fix is bounded by the number of states and the search limits, and allocates nothing
+ * once the buffers have grown. Matches are reported on the delivery thread, the counters can be
+ * read from any thread.
+ */
+public final class MapMatcher implements FixProcessor {
+
+    public interface OnMatchListener {
+        /**
+         * @param time      of the fix, in milliseconds
+         * @param edge      the edge of the {@link RoadGraph} the fix was matched on
+         * @param latitude  the point of the edge the fix was matched to
+         * @param longitude the point of the edge the fix was matched to
+         */
+        void onMatch(long time, int edge, double latitude, double longitude);
+    }
+
+    private final RoadGraph graph;
+    private final OnMatchListener listener;
+    private final int windowSize;
+
+    private double searchRadiusInMeters = 50;
+    private double minSigmaInMeters = 4;
+    private double betaInMeters = 10;
+    private double maxGapInMeters = 2000;
+    private int maxSearchNodes = 2000;
+    private float maxAccuracyInMeters = 100;
+
+    // Window of steps, a ring of windowSize. Per step and state: the edge, the offset along it, the
+    // log likelihood of the best sequence ending in it, its state in the step before and the route
+    // distance from there.
+    private final long[] times;
+    private final double[][] latitudes;
+    private final double[][] longitudes;
+    private final int[][] edges;
+    private final double[][] offsets;
+    private final double[][] scores;
+    private final int[][] previousStates;
+    private final double[][] routeDistances;
+    private final int[] stateCounts;
+    private int first;
+    private int stepCount;
+
+    // Candidates of the current fix, the scores of their best transitions, the states decided.
+    private final int[] candidateEdges;
+    private final double[] candidateOffsets;
+    private final double[] candidateDistances;
+    private final double[] transitionScores;
+    private final int[] decided;
+
+    // Route search, distances per node are reset through the list of nodes reached.
+    private final double[] nodeDistances;
+    private int[] reached = new int[64];
+    private int reachedCount;
+    private int[] heapNodes = new int[64];
+    private double[] heapDistances = new double[64];
+    private int heapSize;
+
+    private double lastLatitude;
+    private double lastLongitude;
+
+    private volatile long matchedCount;
+    private volatile long unmatchedCount;
+    private volatile long breakCount;
+    private volatile double matchedDistanceInMeters;
+
+    /**
+     * Window of 8 fixes with up to 8 states each.
+     */
+    public MapMatcher(RoadGraph graph, OnMatchListener listener) {
+        this(graph, listener, 8, 8);
+    }
+
+    /**
+     * @param windowSize fixes kept before the oldest is decided, matches lag by as many fixes.
+     *                   Longer windows decide better at junctions.
+     * @param maxStates  nearest edges considered per fix, the work per fix grows with its square
+     */
+    public MapMatcher(RoadGraph graph, OnMatchListener listener, int windowSize, int maxStates) {
+        if (windowSize < 1 || maxStates < 1) {
+            throw new IllegalArgumentException("windowSize and maxStates must be positive");
+        }
+        this.graph = graph;
+        this.listener = listener;
+        this.windowSize = windowSize;
+        times = new long[windowSize];
+        latitudes = new double[windowSize][maxStates];
+        longitudes = new double[windowSize][maxStates];
+        edges = new int[windowSize][maxStates];
+        offsets = new double[windowSize][maxStates];
+        scores = new double[windowSize][maxStates];
+        previousStates = new int[windowSize][maxStates];
+        routeDistances = new double[windowSize][maxStates];
+        stateCounts = new int[windowSize];
+        candidateEdges = new int[maxStates];
+        candidateOffsets = new double[maxStates];
+        candidateDistances = new double[maxStates];
+        transitionScores = new double[maxStates];
+        decided = new int[windowSize];
+        nodeDistances = new double[graph.getNodeCount()];
+        Arrays.fill(nodeDistances, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param searchRadiusInMeters edges further from a fix are not considered, default is 50
+     */
+    public void setSearchRadiusInMeters(double searchRadiusInMeters) {
+        this.searchRadiusInMeters = searchRadiusInMeters;
+    }
+
+    /**
+     * The distance of a fix to the road is taken as normally distributed with the accuracy of the
+     * fix as standard deviation, but no less than this.
+     *
+     * @param minSigmaInMeters default is 4
+     */
+    public void setMinSigmaInMeters(double minSigmaInMeters) {
+        this.minSigmaInMeters = minSigmaInMeters;
+    }
+
+    /**
+     * The difference between the route and the straight distance of consecutive fixes is taken as
+     * exponentially distributed with this mean. Larger values allow more detours.
+     *
+     * @param betaInMeters default is 10
+     */
+    public void setBetaInMeters(double betaInMeters) {
+        this.betaInMeters = betaInMeters;
+    }
+
+    /**
+     * @param maxGapInMeters fixes further apart break the model, default is 2000
+     */
+    public void setMaxGapInMeters(double maxGapInMeters) {
+        this.maxGapInMeters = maxGapInMeters;
+    }
+
+    /**
+     * @param maxSearchNodes nodes a route search may visit, bounds the work per fix, default is 2000
+     */
+    public void setMaxSearchNodes(int maxSearchNodes) {
+        this.maxSearchNodes = maxSearchNodes;
+    }
+
+    /**
+     * @param maxAccuracyInMeters less accurate fixes are ignored, default is 100
+     */
+    public void setMaxAccuracyInMeters(float maxAccuracyInMeters) {
+        this.maxAccuracyInMeters = maxAccuracyInMeters;
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        if (fix.isProvisional()) {
+            return true;
+        }
+        add(fix.getTime(), fix.getLatitude(), fix.getLongitude(), fix.getAccuracy());
+        return true;
+    }
+
+    /**
+     * Adds a fix, for fixes that did not come through {@link LocationUpdate}. Only one thread may
+     * add.
+     *
+     * @param accuracy in meters, 0 if unknown
+     */
+    public void add(long time, double latitude, double longitude, float accuracy) {
+        if (accuracy > maxAccuracyInMeters) {
+            return;
+        }
+        int count = graph.findEdges(latitude, longitude, searchRadiusInMeters,
+                candidateEdges, candidateOffsets, candidateDistances);
+        if (count == 0) {
+            unmatchedCount++;
+            breakSequence();
+            return;
+        }
+        double gap = stepCount == 0 ? 0 : Geo.haversine(lastLatitude, lastLongitude, latitude, longitude);
+        if (gap > maxGapInMeters) {
+            breakSequence();
+        }
+
+        double sigma = Math.max(minSigmaInMeters, accuracy);
+        int step = (first + stepCount) % windowSize;
+        for (int state = 0; state < count; state++) {
+            double distance = candidateDistances[state] / sigma;
+            edges[step][state] = candidateEdges[state];
+            offsets[step][state] = candidateOffsets[state];
+            latitudes[step][state] = graph.getLatitudeAt(candidateEdges[state], candidateOffsets[state]);
+            longitudes[step][state] = graph.getLongitudeAt(candidateEdges[state], candidateOffsets[state]);
+            scores[step][state] = -0.5 * distance * distance;
+            previousStates[step][state] = -1;
+            routeDistances[step][state] = 0;
+        }
+        times[step] = time;
+        stateCounts[step] = count;
+
+        if (stepCount > 0 && !transition((step + windowSize - 1) % windowSize, step, gap)) {
+            // No route from any state of the fix before, start over from this one.
+            breakSequence();
+        }
+        stepCount++;
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        if (stepCount == windowSize) {
+            decideOldest();
+        }
+    }
+
+    private void breakSequence() {
+        if (stepCount > 0) {
+            breakCount++;
+        }
+        flush();
+    }
+
+    /**
+     * Decides and reports all fixes not reported yet, for example at the end of a trip. The next
+     * fix starts a new sequence.
+     */
+    public void flush() {
+        if (stepCount > 0) {
+            decideAll();
+        }
+        first = (first + stepCount) % windowSize;
+        stepCount = 0;
+    }
+
+    /**
+     * Adds to the states of {@code step} the score of the best state of {@code previous} to come
+     * from, and links them to it.
+     *
+     * @return false if no state of {@code step} can be reached, the states are left unchanged
+     */
+    private boolean transition(int previous, int step, double gap) {
+        int previousCount = stateCounts[previous];
+        int count = stateCounts[step];
+        Arrays.fill(transitionScores, 0, count, Double.NEGATIVE_INFINITY);
+        double limit = 2 * gap + 2 * searchRadiusInMeters;
+        for (int from = 0; from < previousCount; from++) {
+            int fromEdge = edges[previous][from];
+            double remaining = graph.getEdgeLengthInMeters(fromEdge) - offsets[previous][from];
+            searchRoutes(graph.getEdgeTo(fromEdge), limit);
+            for (int to = 0; to < count; to++) {
+                int toEdge = edges[step][to];
+                double route;
+                if (toEdge == fromEdge) {
+                    // Along the same edge a little backwards is noise. It is kept negative, so it
+                    // costs more than going forward, which tells the direction of two way roads,
+                    // and the distance of the sequence does not grow with the noise.
+                    route = offsets[step][to] - offsets[previous][from];
+                } else {
+                    double between = nodeDistances[graph.getEdgeFrom(toEdge)];
+                    if (between == Double.POSITIVE_INFINITY) {
+                        continue;
+                    }
+                    route = remaining + between + offsets[step][to];
+                }
+                double score = scores[previous][from] - Math.abs(route - gap) / betaInMeters;
+                if (score > transitionScores[to]) {
+                    transitionScores[to] = score;
+                    previousStates[step][to] = from;
+                    routeDistances[step][to] = route;
+                }
+            }
+            resetRoutes();
+        }
+
+        double max = Double.NEGATIVE_INFINITY;
+        for (int to = 0; to < count; to++) {
+            max = Math.max(max, scores[step][to] + transitionScores[to]);
+        }
+        if (max == Double.NEGATIVE_INFINITY) {
+            for (int to = 0; to < count; to++) {
+                previousStates[step][to] = -1;
+                routeDistances[step][to] = 0;
+            }
+            return false;
+        }
+        // Keep the scores near 0, they would otherwise drift down without bound.
+        for (int to = 0; to < count; to++) {
+            scores[step][to] += transitionScores[to] - max;
+        }
+        return true;
+    }
+
+    /**
+     * Dijkstra from a node, until the heap is empty, beyond the limit or too many nodes were
+     * visited. Leaves the distances in {@link #nodeDistances}.
+     */
+    private void searchRoutes(int start, double limit) {
+        reach(start, 0);
+        int visited = 0;
+        while (heapSize > 0 && visited < maxSearchNodes) {
+            int node = heapNodes[0];
+            double distance = heapDistances[0];
+            pop();
+            if (distance > nodeDistances[node]) {
+                continue;
+            }
+            visited++;
+            for (int edge = graph.getFirstEdge(node), end = graph.getEndEdge(node); edge < end; edge++) {
+                double next = distance + graph.getEdgeLengthInMeters(edge);
+                if (next <= limit && next < nodeDistances[graph.getEdgeTo(edge)]) {
+                    reach(graph.getEdgeTo(edge), next);
+                }
+            }
+        }
+        heapSize = 0;
+    }
+
+    private void reach(int node, double distance) {
+        if (nodeDistances[node] == Double.POSITIVE_INFINITY) {
+            if (reachedCount == reached.length) {
+                reached = Arrays.copyOf(reached, reachedCount * 2);
+            }
+            reached[reachedCount++] = node;
+        }
+        nodeDistances[node] = distance;
+        if (heapSize == heapNodes.length) {
+            heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+            heapDistances = Arrays.copyOf(heapDistances, heapSize * 2);
+        }
+        int index = heapSize++;
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (heapDistances[parent] <= distance) {
+                break;
+            }
+            heapNodes[index] = heapNodes[parent];
+            heapDistances[index] = heapDistances[parent];
+            index = parent;
+        }
+        heapNodes[index] = node;
+        heapDistances[index] = distance;
+    }
+
+    private void pop() {
+        int node = heapNodes[--heapSize];
+        double distance = heapDistances[heapSize];
+        int index = 0;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapDistances[child + 1] < heapDistances[child]) {
+                child++;
+            }
+            if (heapDistances[child] >= distance) {
+                break;
+            }
+            heapNodes[index] = heapNodes[child];
+            heapDistances[index] = heapDistances[child];
+            index = child;
+        }
+        heapNodes[index] = node;
+        heapDistances[index] = distance;
+    }
+
+    private void resetRoutes() {
+        for (int i = 0; i < reachedCount; i++) {
+            nodeDistances[reached[i]] = Double.POSITIVE_INFINITY;
+        }
+        reachedCount = 0;
+    }
+
+    /**
+     * Reports the oldest step on the most likely sequence ending in the newest one, and drops it.
+     */
+    private void decideOldest() {
+        int step = (first + stepCount - 1) % windowSize;
+        int state = bestState(step);
+        for (int i = stepCount - 1; i > 0; i--) {
+            state = previousStates[step][state];
+            step = (step + windowSize - 1) % windowSize;
+        }
+        report(step, state);
+        first = (first + 1) % windowSize;
+        stepCount--;
+    }
+
+    /**
+     * Reports all steps on the most likely sequence ending in the newest one, oldest first.
+     */
+    private void decideAll() {
+        int step = (first + stepCount - 1) % windowSize;
+        int state = bestState(step);
+        for (int i = stepCount - 1; ; i--) {
+            decided[i] = state;
+            if (i == 0) {
+                break;
+            }
+            state = previousStates[step][state];
+            step = (step + windowSize - 1) % windowSize;
+        }
+        for (int i = 0; i < stepCount; i++) {
+            report((first + i) % windowSize, decided[i]);
+        }
+    }
+
+    private int bestState(int step) {
+        int best = 0;
+        for (int state = 1; state < stateCounts[step]; state++) {
+            if (scores[step][state] > scores[step][best]) {
+                best = state;
+            }
+        }
+        return best;
+    }
+
+    private void report(int step, int state) {
+        if (previousStates[step][state] >= 0) {
+            matchedDistanceInMeters += routeDistances[step][state];
+        }
+        matchedCount++;
+        listener.onMatch(times[step], edges[step][state], latitudes[step][state], longitudes[step][state]);
+    }
+
+    /**
+     * @return fixes matched and reported
+     */
+    public long getMatchedCount() {
+        return matchedCount;
+    }
+
+    /**
+     * @return fixes with no road within the search radius
+     */
+    public long getUnmatchedCount() {
+        return unmatchedCount;
+    }
+
+    /**
+     * @return times the sequence was started over, at a fix with no road nearby, after a gap or
+     * when no route joined two fixes
+     */
+    public long getBreakCount() {
+        return breakCount;
+    }
+
+    /**
+     * @return distance along the roads between the fixes reported, for mileage. Steps back along
+     * an edge are noise and are taken off again.
+     */
+    public double getMatchedDistanceInMeters() {
+        return matchedDistanceInMeters;
+    }
+}
@@ -0,0 +1,89 @@
+package com.bikcrum.locationupdate;
+
+/**
+ * Distance travelled, summed over the fixes with {@link Distance#between}.
+ * <p/>
+ * A resting device still reports fixes scattered around its position, and summing them would let
+ * the distance grow without moving. A step only counts once the accuracy circles of its two fixes
+ * no longer overlap, shorter ones are jitter and are measured again from the same point with the
+ * next fix. Slow movement is therefore counted in longer steps rather than lost.
+ * <p/>
+ * Written on the delivery thread, readable from any thread.
+ */
+public final class Odometer implements FixProcessor {
+
+    private final Distance distance = new Distance();
+
+    private float maxAccuracyInMeters = 100;
+
+    private boolean hasAnchor;
+    private double anchorLatitude;
+    private double anchorLongitude;
+    private float anchorAccuracy;
+    private volatile double distanceInMeters;
+    private volatile long stepCount;
+
+    /**
+     * @param maxAccuracyInMeters less accurate fixes are ignored, default is 100
+     */
+    public void setMaxAccuracyInMeters(float maxAccuracyInMeters) {
+        this.maxAccuracyInMeters = maxAccuracyInMeters;
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        if (fix.isProvisional()) {
+            return true;
+        }
+        add(fix.getLatitude(), fix.getLongitude(), fix.getAccuracy());
+        return true;
+    }
+
+    /**
+     * Adds a fix, for fixes that did not come through {@link LocationUpdate}. Only one thread may
+     * add.
+     *
+     * @param accuracy in meters, 0 if unknown
+     */
+    public void add(double latitude, double longitude, float accuracy) {
+        if (accuracy > maxAccuracyInMeters) {
+            return;
+        }
+        if (!hasAnchor) {
+            hasAnchor = true;
+            anchorLatitude = latitude;
+            anchorLongitude = longitude;
+            anchorAccuracy = accuracy;
+            return;
+        }
+        double step = distance.between(anchorLatitude, anchorLongitude, latitude, longitude);
+        if (step <= anchorAccuracy + accuracy) {
+            return;
+        }
+        distanceInMeters += step;
+        stepCount++;
+        anchorLatitude = latitude;
+        anchorLongitude = longitude;
+        anchorAccuracy = accuracy;
+    }
+
+    public double getDistanceInMeters() {
+        return distanceInMeters;
+    }
+
+    /**
+     * @return number of steps counted, fixes that moved further than the accuracies allow for
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * Starts from 0 at the next fix. Must be called on the thread adding fixes.
+     */
+    public void reset() {
+        hasAnchor = false;
+        distanceInMeters = 0;
+        stepCount = 0;
+    }
+}
@@ -0,0 +1,262 @@
+package com.bikcrum.locationupdate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Caches reverse geocoding and other place lookups by {@link Geohash} cell, so that fixes a few
+ * meters apart share one lookup.
+ * <p/>
+ * A place is looked up once per cell, at the center of the cell, and kept for the time to live.
+ * At most {@code maxSize} cells are kept, the least recently used one is evicted first. Lookups of
+ * a cell while it is being resolved wait for that resolution instead of starting another one.
+ * Failed lookups are not cached. The counters tell how many lookups the cache answered.
+ * <p/>
+ * Thread safe.
+ *
+ * @param <T> the place, for example an {@link android.location.Address}
+ * @see GeocoderResolver
+ */
+public final class PlaceCache<T> {
+
+    /**
+     * Looks up the place at a position, called on the executor of the cache.
+     */
+    public interface Resolver<T> {
+        /**
+         * @return the place, or null if there is none. Null is cached like any place.
+         */
+        T resolve(double latitude, double longitude) throws Exception;
+    }
+
+    /**
+     * Called on the calling thread when the place is cached, else on the executor of the cache.
+     */
+    public interface Callback<T> {
+        void onPlace(T place);
+
+        void onError(Exception e);
+    }
+
+    interface Clock {
+        long nanoTime();
+    }
+
+    private static final class Entry<T> {
+        final T place;
+        final long createdNanos;
+
+        Entry(T place, long createdNanos) {
+            this.place = place;
+            this.createdNanos = createdNanos;
+        }
+    }
+
+    private final Resolver<T> resolver;
+    private final int bits;
+    private final long ttlNanos;
+    private final Executor executor;
+    private final Clock clock;
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<Long, Entry<T>> entries;
+    // Callbacks waiting for the cells being resolved.
+    private final Map<Long, List<Callback<T>>> inFlight = new HashMap<>();
+
+    private long lookupCount;
+    private long hitCount;
+    private long coalescedCount;
+    private long evictionCount;
+    private long errorCount;
+
+    /**
+     * Cells of 40 bits, about 20 by 40 m near the equator, at most 256 of them for an hour, resolved
+     * on a thread of their own.
+     */
+    public PlaceCache(Resolver<T> resolver) {
+        this(resolver, 40, 256, 60 * 60 * 1000, null);
+    }
+
+    /**
+     * @param bits     cell size, see {@link Geohash#encode(double, double, int)}
+     * @param executor runs the resolver, null to use a thread per lookup running at the time
+     */
+    public PlaceCache(Resolver<T> resolver, int bits, int maxSize, long ttlInMilliseconds, Executor executor) {
+        this(resolver, bits, maxSize, ttlInMilliseconds, executor, System::nanoTime);
+    }
+
+    PlaceCache(Resolver<T> resolver, int bits, int maxSize, long ttlInMilliseconds, Executor executor, Clock clock) {
+        if (bits < 1 || bits > Geohash.MAX_BITS) {
+            throw new IllegalArgumentException("bits " + bits + " not in 1.." + Geohash.MAX_BITS);
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.resolver = resolver;
+        this.bits = bits;
+        this.ttlNanos = ttlInMilliseconds * 1000000L;
+        this.executor = executor != null ? executor : Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "PlaceCache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.clock = clock;
+        entries = new LinkedHashMap<Long, Entry<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry<T>> eldest) {
+                if (size() > maxSize) {
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Looks up the place of the cell holding the position.
+     */
+    public void lookup(double latitude, double longitude, Callback<T> callback) {
+        long cell = Geohash.encode(latitude, longitude, bits);
+        Entry<T> entry;
+        synchronized (lock) {
+            lookupCount++;
+            entry = entries.get(cell);
+            if (entry != null && clock.nanoTime() - entry.createdNanos >= ttlNanos) {
+                entries.remove(cell);
+                entry = null;
+            }
+            if (entry != null) {
+                hitCount++;
+            } else {
+                List<Callback<T>> waiting = inFlight.get(cell);
+                if (waiting != null) {
+                    coalescedCount++;
+                    waiting.add(callback);
+                    return;
+                }
+                waiting = new ArrayList<>(2);
+                waiting.add(callback);
+                inFlight.put(cell, waiting);
+            }
+        }
+        if (entry != null) {
+            callback.onPlace(entry.place);
+        } else {
+            executor.execute(() -> resolve(cell));
+        }
+    }
+
+    private void resolve(long cell) {
+        T place = null;
+        Exception error = null;
+        try {
+            place = resolver.resolve(Geohash.decodeLatitude(cell, bits), Geohash.decodeLongitude(cell, bits));
+        } catch (Exception e) {
+            error = e;
+        }
+        List<Callback<T>> waiting;
+        synchronized (lock) {
+            waiting = inFlight.remove(cell);
+            if (error == null) {
+                entries.put(cell, new Entry<>(place, clock.nanoTime()));
+            } else {
+                errorCount++;
+            }
+        }
+        for (Callback<T> callback : waiting) {
+            if (error == null) {
+                callback.onPlace(place);
+            } else {
+                callback.onError(error);
+            }
+        }
+    }
+
+    /**
+     * Forgets the cached places, lookups running are not affected.
+     */
+    public void clear() {
+        synchronized (lock) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (lock) {
+            return entries.size();
+        }
+    }
+
+    public long getLookupCount() {
+        synchronized (lock) {
+            return lookupCount;
+        }
+    }
+
+    /**
+     * @return lookups answered from the cache
+     */
+    public long getHitCount() {
+        synchronized (lock) {
+            return hitCount;
+        }
+    }
+
+    /**
+     * @return lookups that waited for a lookup of the same cell running at the time
+     */
+    public long getCoalescedCount() {
+        synchronized (lock) {
+            return coalescedCount;
+        }
+    }
+
+    /**
+     * @return lookups that called the resolver
+     */
+    public long getResolveCount() {
+        synchronized (lock) {
+            return lookupCount - hitCount - coalescedCount;
+        }
+    }
+
+    public long getEvictionCount() {
+        synchronized (lock) {
+            return evictionCount;
+        }
+    }
+
+    public long getErrorCount() {
+        synchronized (lock) {
+            return errorCount;
+        }
+    }
+
+    /**
+     * @return share of lookups that did not call the resolver, 0 to 1
+     */
+    public double getHitRate() {
+        synchronized (lock) {
+            return lookupCount == 0 ? 0 : (double) (hitCount + coalescedCount) / lookupCount;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return "PlaceCache{size=" + entries.size()
+                    + ", lookups=" + lookupCount
+                    + ", hits=" + hitCount
+                    + ", coalesced=" + coalescedCount
+                    + ", evictions=" + evictionCount
+                    + ", errors=" + errorCount
+                    + '}';
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.bikcrum.locationupdate;
+
+/**
+ * Immutable index of points for nearest neighbour and radius queries, such as the stores closest
+ * to each fix.
+ * <p/>
+ * Points are placed on the unit sphere as 3D vectors, where the straight line (chord) between two
+ * points orders them exactly as the great circle distance does, with no projection error and no
+ * special cases at the poles or the antimeridian. The vectors form a k-d tree packed into arrays:
+ * the median of a range is its root, split along the axis the range spreads most, with the lower
+ * and upper half as subtrees. Building sorts the points into that order by quickselect.
+ * <p/>
+ * Queries write into arrays of the caller and allocate nothing. The index is never changed after
+ * it is built, and any number of threads may query it at the same time.
+ */
+public final class PointIndex {
+
+    // Ranges this small are left unordered and scanned, splitting them costs more than it saves.
+    private static final int LEAF_SIZE = 8;
+
+    private final int size;
+    // Unit vectors in tree order, x, y and z of each point one after the other.
+    private final double[] vectors;
+    // Index of each point in the input.
+    private final int[] ids;
+    // Split axis of each node, 0 to 2.
+    private final byte[] axes;
+
+    /**
+     * @param latitudesAndLongitudes latitude and longitude of each point, one after the other.
+     *                               Query results refer to the points by their position, 0 for
+     *                               the first pair.
+     */
+    public PointIndex(double[] latitudesAndLongitudes) {
+        if (latitudesAndLongitudes.length % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of coordinates");
+        }
+        size = latitudesAndLongitudes.length / 2;
+        vectors = new double[3 * size];
+        ids = new int[size];
+        axes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            double latitude = Math.toRadians(latitudesAndLongitudes[2 * i]);
+            double longitude = Math.toRadians(latitudesAndLongitudes[2 * i + 1]);
+            double cosLatitude = Math.cos(latitude);
+            vectors[3 * i] = cosLatitude * Math.cos(longitude);
+            vectors[3 * i + 1] = cosLatitude * Math.sin(longitude);
+            vectors[3 * i + 2] = Math.sin(latitude);
+            ids[i] = i;
+        }
+        if (size > 0) {
+            build(0, size, -1, -1, -1, 1, 1, 1);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return position of the nearest point, -1 if the index is empty
+     */
+    public int nearest(double latitude, double longitude) {
+        if (size == 0) {
+            return -1;
+        }
+        double latitudeRadians = Math.toRadians(latitude);
+        double longitudeRadians = Math.toRadians(longitude);
+        double cosLatitude = Math.cos(latitudeRadians);
+        int node = searchNearest(0, size, cosLatitude * Math.cos(longitudeRadians),
+                cosLatitude * Math.sin(longitudeRadians), Math.sin(latitudeRadians), (size - 1) >>> 1);
+        return ids[node];
+    }
+
+    /**
+     * Finds the {@code k} nearest points, nearest first.
+     *
+     * @param positions        receives the positions of the points, at least {@code k} long
+     * @param distancesInMeters receives their great circle distances, at least {@code k} long
+     * @return number of points found, {@code k} unless the index holds fewer
+     */
+    public int nearest(double latitude, double longitude, int k, int[] positions, double[] distancesInMeters) {
+        if (k < 1 || positions.length < k || distancesInMeters.length < k) {
+            throw new IllegalArgumentException("k " + k + " not in 1.." + Math.min(positions.length, distancesInMeters.length));
+        }
+        double latitudeRadians = Math.toRadians(latitude);
+        double longitudeRadians = Math.toRadians(longitude);
+        double cosLatitude = Math.cos(latitudeRadians);
+        double x = cosLatitude * Math.cos(longitudeRadians);
+        double y = cosLatitude * Math.sin(longitudeRadians);
+        double z = Math.sin(latitudeRadians);
+
+        // The arrays hold a max heap on the squared chord while searching.
+        int count = searchNearest(0, size, x, y, z, k, positions, distancesInMeters, 0);
+
+        // Heap sort into ascending order, then chords into meters.
+        for (int end = count - 1; end > 0; end--) {
+            swap(positions, distancesInMeters, 0, end);
+            siftDown(positions, distancesInMeters, 0, end);
+        }
+        for (int i = 0; i < count; i++) {
+            distancesInMeters[i] = chordToMeters(distancesInMeters[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Finds the points within a radius, in no particular order.
+     *
+     * @param positions receives the positions of the points found, as many as fit
+     * @return number of points within the radius, may be more than fit into {@code positions}
+     */
+    public int withinRadius(double latitude, double longitude, double radiusInMeters, int[] positions) {
+        double latitudeRadians = Math.toRadians(latitude);
+        double longitudeRadians = Math.toRadians(longitude);
+        double cosLatitude = Math.cos(latitudeRadians);
+        double angle = Math.min(Math.PI, radiusInMeters / Geo.EARTH_RADIUS_METERS);
+        double chord = 2 * Math.sin(angle / 2);
+        return searchRadius(0, size, cosLatitude * Math.cos(longitudeRadians),
+                cosLatitude * Math.sin(longitudeRadians), Math.sin(latitudeRadians), chord * chord,
+                positions, 0);
+    }
+
+    /**
+     * @return node of the nearest point found in the range, {@code best} if none is nearer
+     */
+    private int searchNearest(int low, int high, double x, double y, double z, int best) {
+        if (high - low <= LEAF_SIZE) {
+            double bestChord = squaredChord(best, x, y, z);
+            for (int i = low; i < high; i++) {
+                double chord = squaredChord(i, x, y, z);
+                if (chord < bestChord) {
+                    bestChord = chord;
+                    best = i;
+                }
+            }
+            return best;
+        }
+        int middle = (low + high) >>> 1;
+        if (squaredChord(middle, x, y, z) < squaredChord(best, x, y, z)) {
+            best = middle;
+        }
+        double split = splitDistance(middle, x, y, z);
+        if (split < 0) {
+            best = searchNearest(low, middle, x, y, z, best);
+            if (split * split < squaredChord(best, x, y, z)) {
+                best = searchNearest(middle + 1, high, x, y, z, best);
+            }
+        } else {
+            best = searchNearest(middle + 1, high, x, y, z, best);
+            if (split * split < squaredChord(best, x, y, z)) {
+                best = searchNearest(low, middle, x, y, z, best);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return number of points in the heap after searching the range
+     */
+    private int searchNearest(int low, int high, double x, double y, double z, int k,
+                              int[] heap, double[] heapChords, int count) {
+        if (high - low <= LEAF_SIZE) {
+            for (int i = low; i < high; i++) {
+                count = offer(i, squaredChord(i, x, y, z), k, heap, heapChords, count);
+            }
+            return count;
+        }
+        int middle = (low + high) >>> 1;
+        count = offer(middle, squaredChord(middle, x, y, z), k, heap, heapChords, count);
+
+        double split = splitDistance(middle, x, y, z);
+        if (split < 0) {
+            count = searchNearest(low, middle, x, y, z, k, heap, heapChords, count);
+            if (count < k || split * split < heapChords[0]) {
+                count = searchNearest(middle + 1, high, x, y, z, k, heap, heapChords, count);
+            }
+        } else {
+            count = searchNearest(middle + 1, high, x, y, z, k, heap, heapChords, count);
+            if (count < k || split * split < heapChords[0]) {
+                count = searchNearest(low, middle, x, y, z, k, heap, heapChords, count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds a node to the heap if it holds fewer than {@code k} points or the node is nearer than
+     * the farthest one.
+     *
+     * @return number of points in the heap
+     */
+    private int offer(int node, double chord, int k, int[] heap, double[] heapChords, int count) {
+        if (count < k) {
+            heap[count] = ids[node];
+            heapChords[count] = chord;
+            siftUp(heap, heapChords, count);
+            return count + 1;
+        }
+        if (chord < heapChords[0]) {
+            heap[0] = ids[node];
+            heapChords[0] = chord;
+            siftDown(heap, heapChords, 0, count);
+        }
+        return count;
+    }
+
+    private int searchRadius(int low, int high, double x, double y, double z, double maxChord,
+                             int[] positions, int count) {
+        if (high - low <= LEAF_SIZE) {
+            for (int i = low; i < high; i++) {
+                count = collect(i, x, y, z, maxChord, positions, count);
+            }
+            return count;
+        }
+        int middle = (low + high) >>> 1;
+        count = collect(middle, x, y, z, maxChord, positions, count);
+        double split = splitDistance(middle, x, y, z);
+        if (split < 0 || split * split <= maxChord) {
+            count = searchRadius(low, middle, x, y, z, maxChord, positions, count);
+        }
+        if (split >= 0 || split * split <= maxChord) {
+            count = searchRadius(middle + 1, high, x, y, z, maxChord, positions, count);
+        }
+        return count;
+    }
+
+    private int collect(int node, double x, double y, double z, double maxChord, int[] positions, int count) {
+        if (squaredChord(node, x, y, z) > maxChord) {
+            return count;
+        }
+        if (count < positions.length) {
+            positions[count] = ids[node];
+        }
+        return count + 1;
+    }
+
+    /**
+     * @return how far the query lies beyond the split plane of the node, negative on the lower side
+     */
+    private double splitDistance(int node, double x, double y, double z) {
+        switch (axes[node]) {
+            case 0:
+                return x - vectors[3 * node];
+            case 1:
+                return y - vectors[3 * node + 1];
+            default:
+                return z - vectors[3 * node + 2];
+        }
+    }
+
+    private double squaredChord(int node, double x, double y, double z) {
+        double dx = vectors[3 * node] - x;
+        double dy = vectors[3 * node + 1] - y;
+        double dz = vectors[3 * node + 2] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static double chordToMeters(double squaredChord) {
+        double chord = Math.sqrt(squaredChord);
+        return 2 * Math.asin(Math.min(1, chord / 2)) * Geo.EARTH_RADIUS_METERS;
+    }
+
+    /**
+     * Builds the subtree of a range, whose points lie within the given bounds. The bounds are
+     * narrowed at each split rather than measured, so the axis with the widest bounds is split.
+     */
+    private void build(int low, int high, double minX, double minY, double minZ,
+                       double maxX, double maxY, double maxZ) {
+        while (high - low > LEAF_SIZE) {
+            double spreadX = maxX - minX;
+            double spreadY = maxY - minY;
+            double spreadZ = maxZ - minZ;
+            int axis = spreadX >= spreadY && spreadX >= spreadZ ? 0 : spreadY >= spreadZ ? 1 : 2;
+            int middle = (low + high) >>> 1;
+            select(low, high - 1, middle, axis);
+            axes[middle] = (byte) axis;
+            double split = vectors[3 * middle + axis];
+            // Recurse into the lower half, loop on the upper one.
+            build(low, middle, minX, minY, minZ,
+                    axis == 0 ? split : maxX, axis == 1 ? split : maxY, axis == 2 ? split : maxZ);
+            low = middle + 1;
+            if (axis == 0) {
+                minX = split;
+            } else if (axis == 1) {
+                minY = split;
+            } else {
+                minZ = split;
+            }
+        }
+    }
+
+    /**
+     * Quickselect: moves the {@code k}th smallest point along the axis to {@code k}, smaller or
+     * equal ones below it and larger or equal ones above it.
+     */
+    private void select(int left, int right, int k, int axis) {
+        double[] values = vectors;
+        while (left < right) {
+            // Median of three as pivot.
+            int middle = (left + right) >>> 1;
+            if (values[3 * middle + axis] < values[3 * left + axis]) {
+                swapPoints(middle, left);
+            }
+            if (values[3 * right + axis] < values[3 * left + axis]) {
+                swapPoints(right, left);
+            }
+            if (values[3 * right + axis] < values[3 * middle + axis]) {
+                swapPoints(right, middle);
+            }
+            double pivot = values[3 * middle + axis];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[3 * i + axis] < pivot) {
+                    i++;
+                }
+                while (values[3 * j + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swapPoints(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swapPoints(int i, int j) {
+        double[] values = vectors;
+        for (int c = 0; c < 3; c++) {
+            double value = values[3 * i + c];
+            values[3 * i + c] = values[3 * j + c];
+            values[3 * j + c] = value;
+        }
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+    }
+
+    private static void siftUp(int[] heap, double[] chords, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (chords[parent] >= chords[index]) {
+                return;
+            }
+            swap(heap, chords, parent, index);
+            index = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, double[] chords, int index, int count) {
+        while (true) {
+            int largest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < count && chords[left] > chords[largest]) {
+                largest = left;
+            }
+            if (right < count && chords[right] > chords[largest]) {
+                largest = right;
+            }
+            if (largest == index) {
+                return;
+            }
+            swap(heap, chords, index, largest);
+            index = largest;
+        }
+    }
+
+    private static void swap(int[] heap, double[] chords, int i, int j) {
+        int id = heap[i];
+        heap[i] = heap[j];
+        heap[j] = id;
+        double chord = chords[i];
+        chords[i] = chords[j];
+        chords[j] = chord;
+    }
+}
@@ -0,0 +1,41 @@
+package com.bikcrum.locationupdate;
+
+import com.google.android.gms.location.LocationRequest;
+
+/**
+ * How much power the location request may use, from GPS on every fix to none at all.
+ *
+ * @see LocationUpdate#setPowerProfile(PowerProfile)
+ * @see DutyCycleScheduler
+ */
+public enum PowerProfile {
+    /**
+     * GPS, fixes within a few meters. The default.
+     */
+    HIGH_ACCURACY(LocationRequest.PRIORITY_HIGH_ACCURACY),
+    /**
+     * Mostly Wi-Fi and cell towers, fixes within about 100 m.
+     */
+    BALANCED(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY),
+    /**
+     * Cell towers, fixes within about 10 km.
+     */
+    LOW_POWER(LocationRequest.PRIORITY_LOW_POWER),
+    /**
+     * Only fixes other apps requested, at no cost of their own.
+     */
+    PASSIVE(LocationRequest.PRIORITY_NO_POWER);
+
+    private final int priority;
+
+    PowerProfile(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return the {@code LocationRequest.PRIORITY_} constant of the profile
+     */
+    public int getPriority() {
+        return priority;
+    }
+}
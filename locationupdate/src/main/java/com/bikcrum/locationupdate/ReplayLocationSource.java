@@ -0,0 +1,440 @@
+package com.bikcrum.locationupdate;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.gms.location.LocationRequest;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Plays back a recorded trace as if it came from a provider, at real time or faster.
+ * <p/>
+ * Traces are read from GPX ({@code trkpt}, {@code rtept} or {@code wpt} elements), from CSV with a
+ * header row, or from a {@link TrackLog} directory, and held in primitive arrays. Fixes are handed
+ * out as primitives with {@link Callback#onFix}, which allocates nothing per fix unless an
+ * {@link LocationUpdate.OnLocationUpdatedListener} needs a {@link Location}. Elapsed realtime
+ * nanos start at the elapsed realtime clock when the replay starts and follow the trace times from
+ * there, so processors see the original spacing between fixes however fast the trace is played,
+ * and fix ages measured against the clock stay small when played in real time.
+ * <p/>
+ * Nothing here needs a device, {@link #replay(Callback)} runs the trace on the calling thread of a
+ * plain JVM, for example to measure the fix pipeline.
+ */
+public final class ReplayLocationSource implements LocationSource {
+
+    private double[] latitudes = new double[256];
+    private double[] longitudes = new double[256];
+    private float[] accuracies = new float[256];
+    private float[] speeds = new float[256];
+    private float[] bearings = new float[256];
+    private long[] times = new long[256];
+    private int size;
+
+    private volatile double speedFactor = 1;
+    private volatile boolean looping;
+    private volatile LocationMetrics.Clock clock = System::nanoTime;
+
+    // Changed by removeUpdates(), a replay stops when it no longer matches the one it started with.
+    private volatile long generation;
+    private Thread thread;
+
+    /**
+     * Creates an empty trace, fill it with {@link #add}.
+     */
+    public ReplayLocationSource() {
+    }
+
+    /**
+     * @param time UTC time in milliseconds, must not go backwards
+     */
+    public void add(double latitude, double longitude, float accuracy, float speed, float bearing, long time) {
+        if (size == times.length) {
+            int capacity = size * 2;
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            accuracies = Arrays.copyOf(accuracies, capacity);
+            speeds = Arrays.copyOf(speeds, capacity);
+            bearings = Arrays.copyOf(bearings, capacity);
+            times = Arrays.copyOf(times, capacity);
+        }
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        accuracies[size] = accuracy;
+        speeds[size] = speed;
+        bearings[size] = bearing;
+        times[size] = time;
+        size++;
+    }
+
+    /**
+     * @return number of fixes in the trace
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param speedFactor 1 plays in real time, 1000 a thousand times faster, 0 as fast as the
+     *                    callback takes the fixes. Default is 1.
+     */
+    public void setSpeedFactor(double speedFactor) {
+        this.speedFactor = speedFactor;
+    }
+
+    /**
+     * @param looping start over at the end, default is false. Times keep increasing from lap to
+     *                lap.
+     */
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+
+    /**
+     * @param clock the elapsed realtime clock replayed fixes are timed on, default is
+     *              {@link System#nanoTime()}
+     */
+    void setClock(LocationMetrics.Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Plays the trace on a new thread, or through the looper if one is given. The request is
+     * ignored, every fix of the trace is played.
+     */
+    @Override
+    public synchronized void requestUpdates(LocationRequest request, Looper looper, Callback callback) {
+        removeUpdates();
+        Callback target = looper == null ? callback : new LooperCallback(new Handler(looper), callback);
+        long generation = this.generation;
+        thread = new Thread(() -> play(target, generation), "ReplayLocationSource");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the trace started by {@link #requestUpdates} or {@link #replay(Callback)}.
+     */
+    @Override
+    public synchronized void removeUpdates() {
+        generation++;
+        if (thread != null) {
+            // Wakes it up if it waits for the next fix.
+            LockSupport.unpark(thread);
+            thread = null;
+        }
+    }
+
+    /**
+     * Plays the trace on the calling thread, until the end or until {@link #removeUpdates()}.
+     *
+     * @return number of fixes played
+     */
+    public long replay(Callback callback) {
+        return play(callback, generation);
+    }
+
+    private long play(Callback callback, long generation) {
+        if (size == 0) {
+            return 0;
+        }
+        long startNanos = System.nanoTime();
+        long elapsedRealtimeStartNanos = clock.elapsedRealtimeNanos();
+        long lapNanos = (times[size - 1] - times[0]) * 1000000L + 1000000000L;
+        long played = 0;
+        for (int lap = 0; ; lap++) {
+            for (int i = 0; i < size; i++) {
+                long offsetNanos = lap * lapNanos + (times[i] - times[0]) * 1000000L;
+                double speedFactor = this.speedFactor;
+                if (speedFactor > 0) {
+                    long due = startNanos + (long) (offsetNanos / speedFactor);
+                    for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                        LockSupport.parkNanos(wait);
+                        if (generation != this.generation) {
+                            return played;
+                        }
+                    }
+                }
+                if (generation != this.generation) {
+                    return played;
+                }
+                callback.onFix(latitudes[i], longitudes[i], accuracies[i], speeds[i], bearings[i],
+                        times[i] + lap * lapNanos / 1000000L, elapsedRealtimeStartNanos + offsetNanos);
+                played++;
+            }
+            if (!looping) {
+                return played;
+            }
+        }
+    }
+
+    /**
+     * Reads a GPX file. Accuracy is estimated from {@code hdop} when present, speed and bearing
+     * are read from the GPX 1.0 {@code speed} and {@code course} elements. Points without a time
+     * are spaced one second apart.
+     */
+    public static ReplayLocationSource fromGpx(InputStream input) throws IOException {
+        ReplayLocationSource source = new ReplayLocationSource();
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.newSAXParser().parse(input, new GpxHandler(source));
+        } catch (ParserConfigurationException | SAXException | IllegalArgumentException | NullPointerException e) {
+            throw new IOException("Invalid GPX: " + e.getMessage(), e);
+        }
+        return source;
+    }
+
+    /**
+     * Reads CSV with a header row naming the columns: {@code latitude} (or {@code lat}),
+     * {@code longitude} (or {@code lon}, {@code lng}), {@code time} as UTC milliseconds or ISO 8601,
+     * and optionally {@code accuracy}, {@code speed} and {@code bearing}. Empty lines and lines
+     * starting with {@code #} are skipped.
+     */
+    public static ReplayLocationSource fromCsv(Reader reader) throws IOException {
+        ReplayLocationSource source = new ReplayLocationSource();
+        BufferedReader lines = new BufferedReader(reader);
+        int latitude = -1, longitude = -1, time = -1, accuracy = -1, speed = -1, bearing = -1;
+        String line;
+        int lineNumber = 0;
+        boolean header = true;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] columns = line.split(",");
+            if (header) {
+                for (int i = 0; i < columns.length; i++) {
+                    switch (columns[i].trim().toLowerCase(Locale.US)) {
+                        case "latitude":
+                        case "lat":
+                            latitude = i;
+                            break;
+                        case "longitude":
+                        case "lon":
+                        case "lng":
+                            longitude = i;
+                            break;
+                        case "time":
+                            time = i;
+                            break;
+                        case "accuracy":
+                            accuracy = i;
+                            break;
+                        case "speed":
+                            speed = i;
+                            break;
+                        case "bearing":
+                            bearing = i;
+                            break;
+                    }
+                }
+                if (latitude < 0 || longitude < 0 || time < 0) {
+                    throw new IOException("CSV header needs latitude, longitude and time columns");
+                }
+                header = false;
+                continue;
+            }
+            try {
+                source.add(Double.parseDouble(columns[latitude].trim()),
+                        Double.parseDouble(columns[longitude].trim()),
+                        floatColumn(columns, accuracy),
+                        floatColumn(columns, speed),
+                        floatColumn(columns, bearing),
+                        parseTime(columns[time].trim()));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid CSV line " + lineNumber + ": " + line, e);
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Reads every valid record of a {@link TrackLog}.
+     */
+    public static ReplayLocationSource fromTrackLog(File directory) throws IOException {
+        ReplayLocationSource source = new ReplayLocationSource();
+        TrackLog.Reader reader = new TrackLog.Reader(directory);
+        while (reader.next()) {
+            source.add(reader.getLatitude(), reader.getLongitude(), reader.getAccuracy(),
+                    reader.getSpeed(), reader.getBearing(), reader.getTime());
+        }
+        return source;
+    }
+
+    private static float floatColumn(String[] columns, int index) {
+        if (index < 0 || index >= columns.length || columns[index].trim().isEmpty()) {
+            return 0;
+        }
+        return Float.parseFloat(columns[index].trim());
+    }
+
+    private static long parseTime(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return parseIsoTime(value);
+            }
+        }
+        return Long.parseLong(value);
+    }
+
+    /**
+     * Parses {@code yyyy-MM-ddTHH:mm:ss}, optionally with fractional seconds, followed by
+     * {@code Z} or an offset like {@code +05:45}.
+     *
+     * @return UTC time in milliseconds
+     */
+    static long parseIsoTime(String value) {
+        if (value.length() < 19 || value.charAt(4) != '-' || value.charAt(10) != 'T') {
+            throw new NumberFormatException("Not an ISO 8601 time: " + value);
+        }
+        int year = Integer.parseInt(value.substring(0, 4));
+        int month = Integer.parseInt(value.substring(5, 7));
+        int day = Integer.parseInt(value.substring(8, 10));
+        int hour = Integer.parseInt(value.substring(11, 13));
+        int minute = Integer.parseInt(value.substring(14, 16));
+        int second = Integer.parseInt(value.substring(17, 19));
+        int position = 19;
+        long millis = 0;
+        if (position < value.length() && value.charAt(position) == '.') {
+            int start = ++position;
+            while (position < value.length() && Character.isDigit(value.charAt(position))) {
+                position++;
+            }
+            String fraction = (value.substring(start, position) + "000").substring(0, 3);
+            millis = Integer.parseInt(fraction);
+        }
+        long offsetMinutes = 0;
+        if (position < value.length() && value.charAt(position) != 'Z') {
+            int sign = value.charAt(position) == '-' ? -1 : 1;
+            offsetMinutes = sign * (Integer.parseInt(value.substring(position + 1, position + 3)) * 60
+                    + Integer.parseInt(value.substring(position + 4, position + 6)));
+        }
+        // Days since 1970-01-01 in the proleptic Gregorian calendar.
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+        return ((days * 24 + hour) * 60 + minute - offsetMinutes) * 60000L + second * 1000L + millis;
+    }
+
+    private static final class GpxHandler extends DefaultHandler {
+        private final ReplayLocationSource source;
+        private final StringBuilder text = new StringBuilder();
+
+        private boolean inPoint;
+        private double latitude;
+        private double longitude;
+        private long time;
+        private float accuracy;
+        private float speed;
+        private float bearing;
+
+        GpxHandler(ReplayLocationSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            String name = localName.isEmpty() ? qName : localName;
+            if (name.equals("trkpt") || name.equals("rtept") || name.equals("wpt")) {
+                inPoint = true;
+                latitude = Double.parseDouble(attributes.getValue("lat"));
+                longitude = Double.parseDouble(attributes.getValue("lon"));
+                time = Long.MIN_VALUE;
+                accuracy = 0;
+                speed = 0;
+                bearing = 0;
+            }
+            text.setLength(0);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            text.append(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (!inPoint) {
+                return;
+            }
+            String name = localName.isEmpty() ? qName : localName;
+            String value = text.toString().trim();
+            switch (name) {
+                case "time":
+                    time = parseIsoTime(value);
+                    break;
+                case "hdop":
+                    // Typical user equivalent range error of a consumer receiver.
+                    accuracy = Float.parseFloat(value) * 5;
+                    break;
+                case "speed":
+                    speed = Float.parseFloat(value);
+                    break;
+                case "course":
+                    bearing = Float.parseFloat(value);
+                    break;
+                case "trkpt":
+                case "rtept":
+                case "wpt":
+                    if (time == Long.MIN_VALUE) {
+                        time = source.size == 0 ? 0 : source.times[source.size - 1] + 1000;
+                    }
+                    source.add(latitude, longitude, accuracy, speed, bearing, time);
+                    inPoint = false;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Hands each fix to the looper's thread.
+     */
+    private static final class LooperCallback implements Callback {
+        private final Handler handler;
+        private final Callback callback;
+
+        LooperCallback(Handler handler, Callback callback) {
+            this.handler = handler;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onLocation(Location location) {
+            handler.post(() -> callback.onLocation(location));
+        }
+
+        @Override
+        public void onLocations(List<Location> locations) {
+            handler.post(() -> callback.onLocations(locations));
+        }
+
+        @Override
+        public void onFix(double latitude, double longitude, float accuracy, float speed,
+                          float bearing, long time, long elapsedRealtimeNanos) {
+            handler.post(() -> callback.onFix(latitude, longitude, accuracy, speed, bearing, time,
+                    elapsedRealtimeNanos));
+        }
+    }
+}
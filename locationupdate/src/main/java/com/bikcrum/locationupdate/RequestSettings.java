@@ -0,0 +1,204 @@
+package com.bikcrum.locationupdate;
+
+import com.google.android.gms.location.LocationRequest;
+
+/**
+ * Builds the shared {@link LocationRequest} from the intervals set by the app and its listeners,
+ * the power profile, the tiers of the adaptive interval and of stays, and the duty cycle, and
+ * hands it back to the {@link Host} whenever one of them changes so the running request is
+ * replaced. Main thread only.
+ */
+final class RequestSettings {
+
+    /**
+     * What the settings drive, implemented by {@link LocationUpdate}.
+     */
+    interface Host {
+        /**
+         * @return the fastest interval any listener asked for, {@code defaultIntervalInMilliseconds}
+         * if none asked for a faster one
+         */
+        long getFastestInterval(long defaultIntervalInMilliseconds);
+
+        /**
+         * The request changed, check the settings for it and request updates again where they
+         * run. Requesting again with the same callback replaces the previous request.
+         */
+        void onRequestChanged(LocationRequest request);
+    }
+
+    static final long UPDATE_INTERVAL_IN_MILLISECONDS = 10000;
+    static final long FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS = UPDATE_INTERVAL_IN_MILLISECONDS / 2;
+
+    private final Host host;
+    private final LocationMetrics metrics;
+
+    // Null until created.
+    private LocationRequest request;
+
+    private long updateIntervalInMilliseconds = UPDATE_INTERVAL_IN_MILLISECONDS;
+    private long fastestUpdateIntervalInMilliseconds = FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS;
+    private long maxWaitTimeInMilliseconds = 0;
+    private long requestedIntervalInMilliseconds = UPDATE_INTERVAL_IN_MILLISECONDS;
+
+    // Settings of the current motion while adaptive, null otherwise.
+    private AdaptiveIntervalScheduler.Tier motionTier;
+    // Settings while in a stay, null to keep those of the motion.
+    private AdaptiveIntervalScheduler.Tier stayTier;
+    private boolean staying;
+    // Settings the request is built from, null for the defaults.
+    private AdaptiveIntervalScheduler.Tier requestTier;
+    // Priority of the request unless a tier or the duty cycle sets one.
+    private PowerProfile powerProfile = PowerProfile.HIGH_ACCURACY;
+    // Profile of the current duty cycle phase, null unless duty cycling.
+    private PowerProfile dutyCycleProfile;
+    private long burstIntervalInMilliseconds;
+
+    RequestSettings(Host host, LocationMetrics metrics) {
+        this.host = host;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Creates the request from the current settings, replacing the previous one.
+     */
+    LocationRequest createRequest() {
+        request = LocationRequest.create();
+        requestedIntervalInMilliseconds = host.getFastestInterval(getDefaultInterval());
+        applyIntervals();
+        applyAccuracy();
+        return request;
+    }
+
+    /**
+     * @return the request, null until {@link #createRequest()}
+     */
+    LocationRequest getRequest() {
+        return request;
+    }
+
+    void setUpdateIntervalInMilliseconds(long updateIntervalInMilliseconds) {
+        this.updateIntervalInMilliseconds = updateIntervalInMilliseconds;
+        onListenersChanged();
+    }
+
+    void setFastestUpdateIntervalInMilliseconds(long fastestUpdateIntervalInMilliseconds) {
+        this.fastestUpdateIntervalInMilliseconds = fastestUpdateIntervalInMilliseconds;
+        apply();
+    }
+
+    void setMaxWaitTimeInMilliseconds(long maxWaitTimeInMilliseconds) {
+        this.maxWaitTimeInMilliseconds = maxWaitTimeInMilliseconds;
+        apply();
+    }
+
+    void setPowerProfile(PowerProfile powerProfile) {
+        this.powerProfile = powerProfile;
+        apply();
+    }
+
+    PowerProfile getPowerProfile() {
+        return powerProfile;
+    }
+
+    /**
+     * @param motionTier settings of the current motion, null to use the defaults
+     */
+    void setMotionTier(AdaptiveIntervalScheduler.Tier motionTier) {
+        this.motionTier = motionTier;
+        apply();
+    }
+
+    /**
+     * @param stayTier settings while in a stay, null to keep those of the motion
+     */
+    void setStayTier(AdaptiveIntervalScheduler.Tier stayTier) {
+        this.stayTier = stayTier;
+        if (staying) {
+            apply();
+        }
+    }
+
+    void setStaying(boolean staying) {
+        if (this.staying != staying) {
+            this.staying = staying;
+            apply();
+        }
+    }
+
+    /**
+     * @param profile                     profile of the current phase, null to stop duty cycling
+     * @param burstIntervalInMilliseconds interval while the profile is
+     *                                    {@link PowerProfile#HIGH_ACCURACY}
+     */
+    void setDutyCycleProfile(PowerProfile profile, long burstIntervalInMilliseconds) {
+        dutyCycleProfile = profile;
+        this.burstIntervalInMilliseconds = burstIntervalInMilliseconds;
+        apply();
+    }
+
+    /**
+     * Keeps the request at the fastest interval any listener asked for.
+     */
+    void onListenersChanged() {
+        long interval = host.getFastestInterval(getDefaultInterval());
+        if (interval == requestedIntervalInMilliseconds) {
+            return;
+        }
+        requestedIntervalInMilliseconds = interval;
+        if (request != null) {
+            applyIntervals();
+            host.onRequestChanged(request);
+        }
+    }
+
+    private void apply() {
+        // A stay overrides the motion.
+        requestTier = staying && stayTier != null ? stayTier : motionTier;
+        requestedIntervalInMilliseconds = host.getFastestInterval(getDefaultInterval());
+        if (request != null) {
+            applyIntervals();
+            applyAccuracy();
+            host.onRequestChanged(request);
+        }
+    }
+
+    private long getDefaultInterval() {
+        return requestTier != null ? requestTier.getIntervalInMilliseconds() : updateIntervalInMilliseconds;
+    }
+
+    private void applyIntervals() {
+        long fastest = requestTier != null
+                ? requestTier.getFastestIntervalInMilliseconds() : fastestUpdateIntervalInMilliseconds;
+        long interval = requestedIntervalInMilliseconds;
+        if (isDutyCycleBursting()) {
+            // A burst wants its fixes quickly, whatever the interval is otherwise.
+            interval = Math.min(interval, burstIntervalInMilliseconds);
+        }
+        request.setInterval(interval);
+        request.setFastestInterval(Math.min(fastest, interval));
+        // Zero delivers each fix as soon as it is available, more holds fixes back for a batch.
+        request.setMaxWaitTime(maxWaitTimeInMilliseconds);
+        metrics.setRequestedIntervalInMilliseconds(interval);
+    }
+
+    private void applyAccuracy() {
+        if (requestTier != null) {
+            request.setPriority(requestTier.getPriority());
+            request.setSmallestDisplacement(requestTier.getSmallestDisplacementInMeters());
+        } else {
+            request.setPriority(powerProfile.getPriority());
+            request.setSmallestDisplacement(0);
+        }
+        if (dutyCycleProfile != null) {
+            request.setPriority(dutyCycleProfile.getPriority());
+            if (isDutyCycleBursting()) {
+                request.setSmallestDisplacement(0);
+            }
+        }
+    }
+
+    private boolean isDutyCycleBursting() {
+        return dutyCycleProfile == PowerProfile.HIGH_ACCURACY;
+    }
+}
@@ -0,0 +1,472 @@
+package com.bikcrum.locationupdate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Road network for {@link MapMatcher}: nodes at intersections and along curves, joined by straight
+ * segments.
+ * <p/>
+ * Each road added to the {@link Builder} becomes one directed edge, or two for a two way road, one
+ * per direction. Edges are numbered from their start node, so the edges leaving a node follow each
+ * other; {@link #getEdgeRoad(int)} maps an edge back to its road. Edges are indexed in a uniform
+ * grid of {@link #CELL_SIZE_IN_METERS}, so finding the edges near a fix only looks at a few cells.
+ * <p/>
+ * The graph is stored in a compact binary form, see {@link #toByteArray()}, to ship with the app
+ * or download per region. It is never changed after it is built, and any number of threads may
+ * read it at the same time.
+ */
+public final class RoadGraph {
+
+    static final int MAGIC = 0xF3;
+    static final int VERSION = 1;
+
+    /**
+     * Side of a grid cell of the edge index.
+     */
+    public static final double CELL_SIZE_IN_METERS = 200;
+
+    private static final double CELL_SIZE_IN_DEGREES = CELL_SIZE_IN_METERS / Geo.METERS_PER_DEGREE;
+
+    /**
+     * Collects nodes and roads, then builds the graph.
+     */
+    public static final class Builder {
+        private double[] latitudes = new double[64];
+        private double[] longitudes = new double[64];
+        private int nodeCount;
+        private int[] roadFrom = new int[64];
+        private int[] roadTo = new int[64];
+        private boolean[] roadOneWay = new boolean[64];
+        private int roadCount;
+
+        /**
+         * @return the node, numbered from 0 in the order added
+         */
+        public int addNode(double latitude, double longitude) {
+            if (nodeCount == latitudes.length) {
+                latitudes = Arrays.copyOf(latitudes, nodeCount * 2);
+                longitudes = Arrays.copyOf(longitudes, nodeCount * 2);
+            }
+            latitudes[nodeCount] = latitude;
+            longitudes[nodeCount] = longitude;
+            return nodeCount++;
+        }
+
+        /**
+         * Adds a straight road between two nodes. Curved roads are a chain of nodes.
+         *
+         * @param oneWay true if the road can only be travelled from {@code from} to {@code to}
+         * @return the road, numbered from 0 in the order added
+         */
+        public int addRoad(int from, int to, boolean oneWay) {
+            if (from < 0 || from >= nodeCount || to < 0 || to >= nodeCount) {
+                throw new IllegalArgumentException("Road " + from + " to " + to + " between unknown nodes");
+            }
+            if (roadCount == roadFrom.length) {
+                roadFrom = Arrays.copyOf(roadFrom, roadCount * 2);
+                roadTo = Arrays.copyOf(roadTo, roadCount * 2);
+                roadOneWay = Arrays.copyOf(roadOneWay, roadCount * 2);
+            }
+            roadFrom[roadCount] = from;
+            roadTo[roadCount] = to;
+            roadOneWay[roadCount] = oneWay;
+            return roadCount++;
+        }
+
+        public RoadGraph build() {
+            return new RoadGraph(Arrays.copyOf(latitudes, nodeCount), Arrays.copyOf(longitudes, nodeCount),
+                    Arrays.copyOf(roadFrom, roadCount), Arrays.copyOf(roadTo, roadCount),
+                    Arrays.copyOf(roadOneWay, roadCount));
+        }
+    }
+
+    private final double[] nodeLatitudes;
+    private final double[] nodeLongitudes;
+    private final int[] roadFrom;
+    private final int[] roadTo;
+    private final boolean[] roadOneWay;
+
+    // Edges sorted by start node, the edges of node n are firstEdge[n] to firstEdge[n + 1].
+    private final int[] firstEdge;
+    private final int[] edgeFrom;
+    private final int[] edgeTo;
+    private final int[] edgeRoad;
+    private final double[] edgeLengths;
+
+    // Cell key to (start << 32 | count) in cellEdges.
+    private final LongLongMap cells;
+    private final int[] cellEdges;
+
+    private RoadGraph(double[] nodeLatitudes, double[] nodeLongitudes, int[] roadFrom, int[] roadTo,
+                      boolean[] roadOneWay) {
+        this.nodeLatitudes = nodeLatitudes;
+        this.nodeLongitudes = nodeLongitudes;
+        this.roadFrom = roadFrom;
+        this.roadTo = roadTo;
+        this.roadOneWay = roadOneWay;
+
+        int nodeCount = nodeLatitudes.length;
+        firstEdge = new int[nodeCount + 1];
+        int edgeCount = 0;
+        for (int road = 0; road < roadFrom.length; road++) {
+            firstEdge[roadFrom[road] + 1]++;
+            edgeCount++;
+            if (!roadOneWay[road]) {
+                firstEdge[roadTo[road] + 1]++;
+                edgeCount++;
+            }
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            firstEdge[node + 1] += firstEdge[node];
+        }
+        edgeFrom = new int[edgeCount];
+        edgeTo = new int[edgeCount];
+        edgeRoad = new int[edgeCount];
+        edgeLengths = new double[edgeCount];
+        int[] next = Arrays.copyOf(firstEdge, nodeCount);
+        for (int road = 0; road < roadFrom.length; road++) {
+            addEdge(next, road, roadFrom[road], roadTo[road]);
+            if (!roadOneWay[road]) {
+                addEdge(next, road, roadTo[road], roadFrom[road]);
+            }
+        }
+
+        // Count the edges per cell, then place them.
+        cells = new LongLongMap(edgeCount);
+        int entryCount = 0;
+        for (int edge = 0; edge < edgeCount; edge++) {
+            entryCount += forEachCell(edge, false);
+        }
+        cellEdges = new int[entryCount];
+        long[] keys = cells.keys();
+        int start = 0;
+        for (long key : keys) {
+            long count = cells.get(key, 0);
+            cells.put(key, (long) start << 32);
+            start += count;
+        }
+        for (int edge = 0; edge < edgeCount; edge++) {
+            forEachCell(edge, true);
+        }
+    }
+
+    private void addEdge(int[] next, int road, int from, int to) {
+        int edge = next[from]++;
+        edgeFrom[edge] = from;
+        edgeTo[edge] = to;
+        edgeRoad[edge] = road;
+        edgeLengths[edge] = Geo.haversine(nodeLatitudes[from], nodeLongitudes[from],
+                nodeLatitudes[to], nodeLongitudes[to]);
+    }
+
+    /**
+     * Visits the cells of points along the edge at half a cell apart, so every point of the edge
+     * is within a quarter cell of a visited cell. A straight edge does not come back to a cell it
+     * left. Counts the edge in each cell, or places it after the edges placed there before.
+     *
+     * @return number of cells visited
+     */
+    private int forEachCell(int edge, boolean place) {
+        double latitude1 = nodeLatitudes[edgeFrom[edge]];
+        double longitude1 = nodeLongitudes[edgeFrom[edge]];
+        double latitude2 = nodeLatitudes[edgeTo[edge]];
+        double longitude2 = nodeLongitudes[edgeTo[edge]];
+        int steps = 1 + (int) (edgeLengths[edge] / (CELL_SIZE_IN_METERS / 2));
+        long previous = 0;
+        int visited = 0;
+        for (int step = 0; step <= steps; step++) {
+            double fraction = (double) step / steps;
+            long key = key(row(latitude1 + (latitude2 - latitude1) * fraction),
+                    column(longitude1 + (longitude2 - longitude1) * fraction));
+            if (visited > 0 && key == previous) {
+                continue;
+            }
+            previous = key;
+            visited++;
+            if (place) {
+                long value = cells.get(key, 0);
+                cellEdges[(int) (value >>> 32) + (int) value] = edge;
+                cells.put(key, value + 1);
+            } else {
+                cells.add(key, 1);
+            }
+        }
+        return visited;
+    }
+
+    public int getNodeCount() {
+        return nodeLatitudes.length;
+    }
+
+    public double getNodeLatitude(int node) {
+        return nodeLatitudes[node];
+    }
+
+    public double getNodeLongitude(int node) {
+        return nodeLongitudes[node];
+    }
+
+    public int getRoadCount() {
+        return roadFrom.length;
+    }
+
+    public int getEdgeCount() {
+        return edgeFrom.length;
+    }
+
+    public int getEdgeFrom(int edge) {
+        return edgeFrom[edge];
+    }
+
+    public int getEdgeTo(int edge) {
+        return edgeTo[edge];
+    }
+
+    /**
+     * @return the road the edge was built from, in the order roads were added
+     */
+    public int getEdgeRoad(int edge) {
+        return edgeRoad[edge];
+    }
+
+    public double getEdgeLengthInMeters(int edge) {
+        return edgeLengths[edge];
+    }
+
+    int getFirstEdge(int node) {
+        return firstEdge[node];
+    }
+
+    int getEndEdge(int node) {
+        return firstEdge[node + 1];
+    }
+
+    /**
+     * Finds the edges passing within a radius of a position, nearest first, and the point of each
+     * edge nearest to the position. Allocates nothing.
+     *
+     * @param edges     receives the edges, at most as many as fit
+     * @param offsets   receives the distance of the nearest point from the start of each edge
+     * @param distances receives the distance of the nearest point from the position
+     * @return number of edges found
+     */
+    public int findEdges(double latitude, double longitude, double radiusInMeters,
+                         int[] edges, double[] offsets, double[] distances) {
+        int capacity = Math.min(edges.length, Math.min(offsets.length, distances.length));
+        double metersPerDegreeLongitude = Geo.metersPerDegreeLongitude(latitude);
+        double margin = radiusInMeters + CELL_SIZE_IN_METERS / 4;
+        int minRow = row(latitude - margin / Geo.METERS_PER_DEGREE);
+        int maxRow = row(latitude + margin / Geo.METERS_PER_DEGREE);
+        int minColumn = column(longitude - margin / metersPerDegreeLongitude);
+        int maxColumn = column(longitude + margin / metersPerDegreeLongitude);
+        int count = 0;
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                long value = cells.get(key(row, column), -1);
+                if (value == -1) {
+                    continue;
+                }
+                int start = (int) (value >>> 32);
+                int end = start + (int) value;
+                for (int i = start; i < end; i++) {
+                    count = offerEdge(cellEdges[i], latitude, longitude, metersPerDegreeLongitude,
+                            radiusInMeters, edges, offsets, distances, count, capacity);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Projects the position onto the edge, in meters on a plane around the position, and inserts
+     * the edge in order of distance unless it is there already, too far or farther than all.
+     *
+     * @return number of edges found
+     */
+    private int offerEdge(int edge, double latitude, double longitude, double metersPerDegreeLongitude,
+                          double radiusInMeters, int[] edges, double[] offsets, double[] distances,
+                          int count, int capacity) {
+        for (int i = 0; i < count; i++) {
+            if (edges[i] == edge) {
+                return count;
+            }
+        }
+        double x1 = (nodeLongitudes[edgeFrom[edge]] - longitude) * metersPerDegreeLongitude;
+        double y1 = (nodeLatitudes[edgeFrom[edge]] - latitude) * Geo.METERS_PER_DEGREE;
+        double x2 = (nodeLongitudes[edgeTo[edge]] - longitude) * metersPerDegreeLongitude;
+        double y2 = (nodeLatitudes[edgeTo[edge]] - latitude) * Geo.METERS_PER_DEGREE;
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double squaredLength = dx * dx + dy * dy;
+        double fraction = squaredLength == 0 ? 0 : Math.max(0, Math.min(1, -(x1 * dx + y1 * dy) / squaredLength));
+        double x = x1 + dx * fraction;
+        double y = y1 + dy * fraction;
+        double distance = Math.sqrt(x * x + y * y);
+        if (distance > radiusInMeters || (count == capacity && distance >= distances[count - 1])) {
+            return count;
+        }
+        int i = count == capacity ? count - 1 : count++;
+        for (; i > 0 && distances[i - 1] > distance; i--) {
+            edges[i] = edges[i - 1];
+            offsets[i] = offsets[i - 1];
+            distances[i] = distances[i - 1];
+        }
+        edges[i] = edge;
+        offsets[i] = fraction * edgeLengths[edge];
+        distances[i] = distance;
+        return count;
+    }
+
+    /**
+     * @return latitude of the point at a distance from the start of the edge
+     */
+    public double getLatitudeAt(int edge, double offsetInMeters) {
+        double fraction = edgeLengths[edge] == 0 ? 0 : offsetInMeters / edgeLengths[edge];
+        return nodeLatitudes[edgeFrom[edge]] + (nodeLatitudes[edgeTo[edge]] - nodeLatitudes[edgeFrom[edge]]) * fraction;
+    }
+
+    /**
+     * @return longitude of the point at a distance from the start of the edge
+     */
+    public double getLongitudeAt(int edge, double offsetInMeters) {
+        double fraction = edgeLengths[edge] == 0 ? 0 : offsetInMeters / edgeLengths[edge];
+        return nodeLongitudes[edgeFrom[edge]] + (nodeLongitudes[edgeTo[edge]] - nodeLongitudes[edgeFrom[edge]]) * fraction;
+    }
+
+    private static int row(double latitude) {
+        return (int) Math.floor(latitude / CELL_SIZE_IN_DEGREES);
+    }
+
+    private static int column(double longitude) {
+        return (int) Math.floor(longitude / CELL_SIZE_IN_DEGREES);
+    }
+
+    private static long key(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+
+    /**
+     * Layout: magic byte {@code 0xF3}, version byte, the number of nodes, per node latitude and
+     * longitude in 1e-6 degrees as the zig-zag difference to the node before, the number of roads
+     * and per road the zig-zag difference of its start node to the start of the road before and
+     * the zig-zag difference of its end node to its start node, shifted left by one with the one
+     * way flag in the lowest bit, all as varints. The edge index is rebuilt when reading. Nodes
+     * added along the roads take 4 to 6 bytes, roads 2 to 4.
+     *
+     * @return the graph in a compact form, read back with {@link #fromByteArray(byte[])}
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(16 + nodeLatitudes.length * 6 + roadFrom.length * 4);
+        output.write(MAGIC);
+        output.write(VERSION);
+        writeVarint(output, nodeLatitudes.length);
+        long previousLatitude = 0;
+        long previousLongitude = 0;
+        for (int node = 0; node < nodeLatitudes.length; node++) {
+            long latitude = Math.round(nodeLatitudes[node] * FixFrame.COORDINATE_SCALE);
+            long longitude = Math.round(nodeLongitudes[node] * FixFrame.COORDINATE_SCALE);
+            writeVarint(output, FixFrame.zigZag(latitude - previousLatitude));
+            writeVarint(output, FixFrame.zigZag(longitude - previousLongitude));
+            previousLatitude = latitude;
+            previousLongitude = longitude;
+        }
+        writeVarint(output, roadFrom.length);
+        int previousFrom = 0;
+        for (int road = 0; road < roadFrom.length; road++) {
+            writeVarint(output, FixFrame.zigZag(roadFrom[road] - previousFrom));
+            writeVarint(output, FixFrame.zigZag(roadTo[road] - roadFrom[road]) << 1 | (roadOneWay[road] ? 1 : 0));
+            previousFrom = roadFrom[road];
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the bytes are not a road graph
+     */
+    public static RoadGraph fromByteArray(byte[] bytes) throws IOException {
+        if (bytes.length < 4 || (bytes[0] & 0xff) != MAGIC) {
+            throw new IOException("Not a road graph");
+        }
+        if (bytes[1] != VERSION) {
+            throw new IOException("Unsupported road graph version " + bytes[1]);
+        }
+        int[] position = {2};
+        int nodeCount = readCount(bytes, position);
+        double[] latitudes = new double[nodeCount];
+        double[] longitudes = new double[nodeCount];
+        long latitude = 0;
+        long longitude = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            latitude += FixFrame.unZigZag(readVarint(bytes, position));
+            longitude += FixFrame.unZigZag(readVarint(bytes, position));
+            latitudes[node] = latitude / FixFrame.COORDINATE_SCALE;
+            longitudes[node] = longitude / FixFrame.COORDINATE_SCALE;
+        }
+        int roadCount = readCount(bytes, position);
+        int[] roadFrom = new int[roadCount];
+        int[] roadTo = new int[roadCount];
+        boolean[] roadOneWay = new boolean[roadCount];
+        long from = 0;
+        for (int road = 0; road < roadCount; road++) {
+            from += FixFrame.unZigZag(readVarint(bytes, position));
+            long value = readVarint(bytes, position);
+            long to = from + FixFrame.unZigZag(value >>> 1);
+            if (from < 0 || from >= nodeCount || to < 0 || to >= nodeCount) {
+                throw new IOException("Road " + road + " between unknown nodes");
+            }
+            roadFrom[road] = (int) from;
+            roadTo[road] = (int) to;
+            roadOneWay[road] = (value & 1) != 0;
+        }
+        return new RoadGraph(latitudes, longitudes, roadFrom, roadTo, roadOneWay);
+    }
+
+    /**
+     * Reads a graph written with {@link #toByteArray()}, for example from a file or an asset.
+     * Does not close the stream.
+     */
+    public static RoadGraph read(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return fromByteArray(bytes.toByteArray());
+    }
+
+    private static void writeVarint(ByteArrayOutputStream output, long value) {
+        while ((value & ~0x7fL) != 0) {
+            output.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private static int readCount(byte[] bytes, int[] position) throws IOException {
+        long count = readVarint(bytes, position);
+        // Every entry takes at least two bytes.
+        if (count > (bytes.length - position[0]) / 2) {
+            throw new IOException("Truncated road graph");
+        }
+        return (int) count;
+    }
+
+    private static long readVarint(byte[] bytes, int[] position) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] == bytes.length) {
+                throw new IOException("Truncated road graph");
+            }
+            byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in road graph");
+    }
+}
@@ -0,0 +1,53 @@
+package com.bikcrum.locationupdate;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time and in the order they were submitted, on the threads of the executor
+ * it wraps. The fix pipeline reuses a single {@link Fix} and keeps the state of its processors and
+ * subscribers without locks, so it must never run on two threads at once, whatever executor the
+ * app hands in.
+ * <p/>
+ * Each task is handed to the wrapped executor only once the previous one finished, which also
+ * orders what the tasks wrote: the next task sees it.
+ */
+final class SerialExecutor implements Executor {
+
+    private final Executor executor;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private Runnable active;
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+        tasks.add(() -> {
+            try {
+                task.run();
+            } finally {
+                scheduleNext();
+            }
+        });
+        if (active == null) {
+            scheduleNext();
+        }
+    }
+
+    private synchronized void scheduleNext() {
+        active = tasks.poll();
+        if (active != null) {
+            try {
+                executor.execute(active);
+            } catch (RuntimeException e) {
+                // Rejected, for example by an executor that was shut down: drop the queue rather
+                // than stall every later task behind it.
+                active = null;
+                tasks.clear();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.bikcrum.locationupdate;
+
+/**
+ * Bounded in-memory history of the last fixes, stored in parallel primitive arrays so that a long
+ * session costs a fixed amount of memory (36 bytes per fix) and no garbage.
+ * <p/>
+ * Every fix gets a sequence number, counting from 0. Only the last {@link #getCapacity()} fixes are
+ * kept, older sequences are overwritten. The history is written by a single thread, the delivery
+ * thread. Readers on other threads can either read single values by sequence and confirm with
+ * {@link #isRetained(long)} afterwards that the slot was not overwritten meanwhile, or take a
+ * consistent copy with {@link #snapshot(Snapshot)}.
+ * <p/>
+ * Slots are written and read under a lock. Checking a sequence counter after reading plain arrays,
+ * as a seqlock does, is not enough in Java: the memory model lets the array reads move after the
+ * final volatile read, so a torn fix could pass the check. Fences that prevent this, or a
+ * {@code StampedLock}, need API 24. The lock is uncontended for nearly every fix, and a snapshot
+ * holds it only for the copy.
+ */
+public final class TrackHistory implements FixProcessor {
+
+    private final int capacity;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final float[] accuracies;
+    private final float[] speeds;
+    private final float[] bearings;
+    private final long[] times;
+
+    private final Object lock = new Object();
+    // Number of fixes ever written. Only changed under the lock, volatile for the sizes.
+    private volatile long count;
+
+    public TrackHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        accuracies = new float[capacity];
+        speeds = new float[capacity];
+        bearings = new float[capacity];
+        times = new long[capacity];
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        if (fix.isProvisional()) {
+            return true;
+        }
+        add(fix.getLatitude(), fix.getLongitude(), fix.getAccuracy(), fix.getSpeed(),
+                fix.getBearing(), fix.getTime());
+        return true;
+    }
+
+    /**
+     * Appends a fix. Only one thread may write.
+     */
+    public void add(double latitude, double longitude, float accuracy, float speed, float bearing, long time) {
+        synchronized (lock) {
+            long sequence = count;
+            int slot = (int) (sequence % capacity);
+            latitudes[slot] = latitude;
+            longitudes[slot] = longitude;
+            accuracies[slot] = accuracy;
+            speeds[slot] = speed;
+            bearings[slot] = bearing;
+            times[slot] = time;
+            count = sequence + 1;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of fixes currently held
+     */
+    public int size() {
+        return (int) Math.min(count, capacity);
+    }
+
+    /**
+     * @return sequence of the oldest fix still held, equal to {@link #getNextSequence()} when empty
+     */
+    public long getOldestSequence() {
+        return Math.max(0, count - capacity);
+    }
+
+    /**
+     * @return sequence the next fix will get, the newest fix is one below
+     */
+    public long getNextSequence() {
+        return count;
+    }
+
+    /**
+     * @return true if the fix with this sequence is held and was not overwritten. Check after
+     * reading values of a sequence close to {@link #getOldestSequence()}, the writer may have
+     * overwritten it meanwhile.
+     */
+    public boolean isRetained(long sequence) {
+        synchronized (lock) {
+            return sequence >= count - capacity && sequence < count;
+        }
+    }
+
+    public double getLatitude(long sequence) {
+        synchronized (lock) {
+            return latitudes[slot(sequence)];
+        }
+    }
+
+    public double getLongitude(long sequence) {
+        synchronized (lock) {
+            return longitudes[slot(sequence)];
+        }
+    }
+
+    public float getAccuracy(long sequence) {
+        synchronized (lock) {
+            return accuracies[slot(sequence)];
+        }
+    }
+
+    public float getSpeed(long sequence) {
+        synchronized (lock) {
+            return speeds[slot(sequence)];
+        }
+    }
+
+    public float getBearing(long sequence) {
+        synchronized (lock) {
+            return bearings[slot(sequence)];
+        }
+    }
+
+    public long getTime(long sequence) {
+        synchronized (lock) {
+            return times[slot(sequence)];
+        }
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    /**
+     * Finds the first fix at or after the given time, assuming fix times do not go backwards.
+     *
+     * @param time UTC time in milliseconds
+     * @return its sequence, or {@link #getNextSequence()} if every held fix is older
+     */
+    public long findSequenceAtOrAfter(long time) {
+        synchronized (lock) {
+            long low = getOldestSequence();
+            long high = count;
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                if (times[slot(middle)] < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Copies all held fixes.
+     *
+     * @param reuse snapshot to copy into, or null to create a new one
+     */
+    public Snapshot snapshot(Snapshot reuse) {
+        return snapshot(Long.MIN_VALUE, Long.MAX_VALUE, reuse);
+    }
+
+    /**
+     * Copies the held fixes with {@code fromTime <= time < toTime}.
+     *
+     * @param reuse snapshot to copy into, or null to create a new one. Its arrays are reused when
+     *              large enough.
+     */
+    public Snapshot snapshot(long fromTime, long toTime, Snapshot reuse) {
+        Snapshot snapshot = reuse != null ? reuse : new Snapshot();
+        synchronized (lock) {
+            long from = findSequenceAtOrAfter(fromTime);
+            long to = findSequenceAtOrAfter(toTime);
+            int size = (int) Math.max(0, to - from);
+            snapshot.ensureCapacity(size);
+            for (int i = 0; i < size; i++) {
+                int slot = slot(from + i);
+                snapshot.latitudes[i] = latitudes[slot];
+                snapshot.longitudes[i] = longitudes[slot];
+                snapshot.accuracies[i] = accuracies[slot];
+                snapshot.speeds[i] = speeds[slot];
+                snapshot.bearings[i] = bearings[slot];
+                snapshot.times[i] = times[slot];
+            }
+            snapshot.size = size;
+        }
+        return snapshot;
+    }
+
+    /**
+     * A copy of part of the history. Values are in parallel arrays, index {@code i} for
+     * {@code 0 <= i < size()} is one fix, oldest first. The arrays may be longer than
+     * {@link #size()}.
+     */
+    public static final class Snapshot {
+        private int size;
+        private double[] latitudes = new double[0];
+        private double[] longitudes = new double[0];
+        private float[] accuracies = new float[0];
+        private float[] speeds = new float[0];
+        private float[] bearings = new float[0];
+        private long[] times = new long[0];
+
+        private void ensureCapacity(int size) {
+            if (latitudes.length >= size) {
+                return;
+            }
+            latitudes = new double[size];
+            longitudes = new double[size];
+            accuracies = new float[size];
+            speeds = new float[size];
+            bearings = new float[size];
+            times = new long[size];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public double[] getLatitudes() {
+            return latitudes;
+        }
+
+        public double[] getLongitudes() {
+            return longitudes;
+        }
+
+        public float[] getAccuracies() {
+            return accuracies;
+        }
+
+        public float[] getSpeeds() {
+            return speeds;
+        }
+
+        public float[] getBearings() {
+            return bearings;
+        }
+
+        public long[] getTimes() {
+            return times;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.bikcrum.locationupdate;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of fixes on disk that survives the process being killed.
+ * <p/>
+ * Fixes are written as fixed-width binary records into memory-mapped segment files, so an append
+ * is a memory copy and the kernel writes the pages back on its own. Each record carries a CRC32,
+ * on restart the last segment is scanned and writing continues after the last valid record. A
+ * record half written when the process died fails its checksum and is overwritten.
+ * <p/>
+ * Segments are named by their index ({@code 00000000.seg}, {@code 00000001.seg}, ...) and hold
+ * {@code recordsPerSegment} records each. Use {@link Reader} to iterate over the log.
+ * <p/>
+ * Record layout, little endian: latitude (double), longitude (double), accuracy (float), speed
+ * (float), bearing (float), time (long), elapsed realtime nanos (long), CRC32 of the preceding 44
+ * bytes (int).
+ */
+public final class TrackLog implements FixProcessor, Closeable {
+
+    public static final int RECORD_SIZE = 48;
+    public static final int DEFAULT_RECORDS_PER_SEGMENT = 65536;
+
+    private static final int HEADER_SIZE = 16;
+    // A segment is mapped into a single buffer, which int positions address.
+    private static final int MAX_RECORDS_PER_SEGMENT = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+    private static final int MAGIC = 0x544c4f47; // "TLOG"
+    private static final short VERSION = 1;
+    private static final int CHECKSUMMED_SIZE = RECORD_SIZE - 4;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File directory;
+    private final int recordsPerSegment;
+
+    // Record is assembled here first so the checksum can be computed without allocating.
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final ByteBuffer recordBuffer = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+
+    private int segmentIndex;
+    private MappedByteBuffer segment;
+    private int recordsInSegment;
+    private IOException error;
+
+    public TrackLog(File directory) throws IOException {
+        this(directory, DEFAULT_RECORDS_PER_SEGMENT);
+    }
+
+    /**
+     * Opens the log in {@code directory}, creating it if needed, and recovers the position after
+     * the last valid record.
+     *
+     * @param recordsPerSegment at most 44739242, so that a segment stays below 2 GB
+     */
+    public TrackLog(File directory, int recordsPerSegment) throws IOException {
+        if (recordsPerSegment <= 0 || recordsPerSegment > MAX_RECORDS_PER_SEGMENT) {
+            throw new IllegalArgumentException("recordsPerSegment must be between 1 and " + MAX_RECORDS_PER_SEGMENT);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new FileNotFoundException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+
+        int[] indexes = segmentIndexes(directory);
+        segmentIndex = indexes.length > 0 ? indexes[indexes.length - 1] : 0;
+        segment = map(segmentFile(directory, segmentIndex), recordsPerSegment, true);
+        recordsInSegment = countValidRecords(segment, recordsPerSegment);
+    }
+
+    /**
+     * Logging stops at the first I/O error, see {@link #getError()}. The fix is passed on either
+     * way.
+     */
+    @Override
+    public boolean process(Fix fix) {
+        if (error == null && !fix.isProvisional()) {
+            try {
+                append(fix.getLatitude(), fix.getLongitude(), fix.getAccuracy(), fix.getSpeed(),
+                        fix.getBearing(), fix.getTime(), fix.getElapsedRealtimeNanos());
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends a record. Only one thread may write.
+     */
+    public void append(double latitude, double longitude, float accuracy, float speed, float bearing,
+                       long time, long elapsedRealtimeNanos) throws IOException {
+        if (segment == null) {
+            throw new IOException("TrackLog is closed");
+        }
+        if (recordsInSegment == recordsPerSegment) {
+            rollOver();
+        }
+        recordBuffer.clear();
+        recordBuffer.putDouble(latitude)
+                .putDouble(longitude)
+                .putFloat(accuracy)
+                .putFloat(speed)
+                .putFloat(bearing)
+                .putLong(time)
+                .putLong(elapsedRealtimeNanos);
+        crc.reset();
+        crc.update(record, 0, CHECKSUMMED_SIZE);
+        recordBuffer.putInt((int) crc.getValue());
+
+        segment.position(HEADER_SIZE + recordsInSegment * RECORD_SIZE);
+        segment.put(record);
+        recordsInSegment++;
+    }
+
+    private void rollOver() throws IOException {
+        segment.force();
+        segmentIndex++;
+        segment = map(segmentFile(directory, segmentIndex), recordsPerSegment, true);
+        recordsInSegment = 0;
+    }
+
+    /**
+     * Writes the mapped pages to the storage device. Records already survive the process dying
+     * without this, it only matters if the device loses power.
+     */
+    public void flush() {
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        segment = null;
+    }
+
+    /**
+     * @return the error that stopped {@link #process(Fix)} from logging, or null
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    private static MappedByteBuffer map(File file, int recordsPerSegment, boolean writable) throws IOException {
+        long size = HEADER_SIZE + (long) recordsPerSegment * RECORD_SIZE;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, writable ? "rw" : "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (!writable) {
+                size = Math.min(size, channel.size());
+            }
+            MappedByteBuffer buffer = channel.map(
+                    writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (writable && buffer.getInt(0) != MAGIC) {
+                buffer.putInt(0, MAGIC);
+                buffer.putShort(4, VERSION);
+                buffer.putShort(6, (short) RECORD_SIZE);
+                buffer.putInt(8, recordsPerSegment);
+            } else if (buffer.getInt(0) != MAGIC || buffer.getShort(6) != RECORD_SIZE) {
+                throw new IOException(file + " is not a track log segment");
+            }
+            // The mapping stays valid after the channel is closed.
+            return buffer;
+        }
+    }
+
+    private static int countValidRecords(ByteBuffer segment, int capacity) {
+        int count = 0;
+        CRC32 crc = new CRC32();
+        byte[] record = new byte[RECORD_SIZE];
+        while (count < capacity && HEADER_SIZE + (count + 1) * RECORD_SIZE <= segment.limit()) {
+            if (!readRecord(segment, count, record, crc)) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private static boolean readRecord(ByteBuffer segment, int index, byte[] record, CRC32 crc) {
+        segment.position(HEADER_SIZE + index * RECORD_SIZE);
+        segment.get(record);
+        crc.reset();
+        crc.update(record, 0, CHECKSUMMED_SIZE);
+        int stored = (record[CHECKSUMMED_SIZE] & 0xff)
+                | (record[CHECKSUMMED_SIZE + 1] & 0xff) << 8
+                | (record[CHECKSUMMED_SIZE + 2] & 0xff) << 16
+                | (record[CHECKSUMMED_SIZE + 3] & 0xff) << 24;
+        return stored == (int) crc.getValue();
+    }
+
+    private static File segmentFile(File directory, int index) {
+        return new File(directory, String.format(Locale.US, "%08d%s", index, SEGMENT_SUFFIX));
+    }
+
+    private static int[] segmentIndexes(File directory) {
+        String[] names = directory.list();
+        if (names == null) {
+            return new int[0];
+        }
+        int[] indexes = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                indexes[count++] = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        indexes = Arrays.copyOf(indexes, count);
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    /**
+     * Iterates over every valid record of a log, oldest first, without creating an object per
+     * record. Call {@link #next()} and read the current record with the getters.
+     * <pre>
+     * TrackLog.Reader reader = new TrackLog.Reader(directory);
+     * while (reader.next()) {
+     *     double latitude = reader.getLatitude();
+     * }
+     * </pre>
+     * Reading stops at the first invalid record of a segment and continues with the next segment.
+     */
+    public static final class Reader {
+
+        private final File directory;
+        private final int[] segmentIndexes;
+        private final byte[] record = new byte[RECORD_SIZE];
+        private final ByteBuffer recordBuffer = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+        private final CRC32 crc = new CRC32();
+
+        private int segmentPosition = -1;
+        private MappedByteBuffer segment;
+        private int recordIndex;
+        private int recordCapacity;
+
+        public Reader(File directory) {
+            this.directory = directory;
+            this.segmentIndexes = segmentIndexes(directory);
+        }
+
+        /**
+         * @return false once all records were read
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                if (segment != null && recordIndex < recordCapacity
+                        && readRecord(segment, recordIndex, record, crc)) {
+                    recordIndex++;
+                    return true;
+                }
+                if (++segmentPosition >= segmentIndexes.length) {
+                    segment = null;
+                    return false;
+                }
+                segment = map(segmentFile(directory, segmentIndexes[segmentPosition]), MAX_RECORDS_PER_SEGMENT, false);
+                recordCapacity = (segment.limit() - HEADER_SIZE) / RECORD_SIZE;
+                recordIndex = 0;
+            }
+        }
+
+        public double getLatitude() {
+            return recordBuffer.getDouble(0);
+        }
+
+        public double getLongitude() {
+            return recordBuffer.getDouble(8);
+        }
+
+        public float getAccuracy() {
+            return recordBuffer.getFloat(16);
+        }
+
+        public float getSpeed() {
+            return recordBuffer.getFloat(20);
+        }
+
+        public float getBearing() {
+            return recordBuffer.getFloat(24);
+        }
+
+        public long getTime() {
+            return recordBuffer.getLong(28);
+        }
+
+        public long getElapsedRealtimeNanos() {
+            return recordBuffer.getLong(36);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.bikcrum.locationupdate;
+
+/**
+ * Drops the fixes that carry no information about the shape of the track, before they are stored
+ * or uploaded.
+ * <p/>
+ * Works like Douglas-Peucker with a tolerance in meters, but in a single pass: the last kept fix
+ * is the anchor, and a cone of directions from it narrows with every fix so that a line from the
+ * anchor through the cone passes within the tolerance of all fixes seen since. While the next fix
+ * falls inside the cone nothing is kept. When it falls outside, the fix before it is kept and
+ * becomes the new anchor. A fix closer to the anchor than an earlier one, as when turning back,
+ * ends the line as well. State is a few numbers, each fix costs the same and allocates nothing.
+ * <p/>
+ * Kept fixes are passed to the downstream processor, for example a {@link TrackLog}, one fix late.
+ * So that a straight stretch is not held back forever, a fix is also kept after
+ * {@link #setMaxDelayInMilliseconds(long)}. All fixes are passed on to the later stages of the
+ * pipeline unchanged, call {@link #flush()} when updates stop to also hand over the last one.
+ */
+public final class TrackSimplifier implements FixProcessor {
+
+    private final FixProcessor downstream;
+    // Half the tolerance goes to the distance off the line, half to a fix beyond the end of it.
+    private final double sideToleranceInMeters;
+    private long maxDelayNanos = 60000L * 1000000L;
+
+    // Copy of the last fix, kept if the next one leaves the cone.
+    private final Fix pending = new Fix();
+    private boolean hasPending;
+
+    private boolean hasAnchor;
+    private double anchorLatitude;
+    private double anchorLongitude;
+    private long anchorElapsedRealtimeNanos;
+    private double metersPerDegreeLongitude;
+
+    // Directions in radians: the cone is [center + low, center + high].
+    private boolean hasCone;
+    private double coneCenter;
+    private double coneLow;
+    private double coneHigh;
+    private double maxDistance;
+
+    private long inputCount;
+    private long outputCount;
+
+    /**
+     * @param downstream        receives the kept fixes
+     * @param toleranceInMeters how far a dropped fix may be from the simplified track
+     */
+    public TrackSimplifier(FixProcessor downstream, double toleranceInMeters) {
+        if (toleranceInMeters <= 0) {
+            throw new IllegalArgumentException("toleranceInMeters must be positive");
+        }
+        this.downstream = downstream;
+        this.sideToleranceInMeters = toleranceInMeters / Math.sqrt(2);
+    }
+
+    /**
+     * @param maxDelayInMilliseconds longest time between kept fixes, default is 60000
+     */
+    public void setMaxDelayInMilliseconds(long maxDelayInMilliseconds) {
+        this.maxDelayNanos = maxDelayInMilliseconds * 1000000L;
+    }
+
+    public long getInputCount() {
+        return inputCount;
+    }
+
+    public long getOutputCount() {
+        return outputCount;
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        if (fix.isProvisional()) {
+            return true;
+        }
+        inputCount++;
+        double latitude = fix.getLatitude();
+        double longitude = fix.getLongitude();
+        long now = fix.getElapsedRealtimeNanos();
+
+        if (!hasAnchor) {
+            keep(fix);
+            return true;
+        }
+        if (!fitsCone(latitude, longitude)) {
+            // The pending fix is the last one the line from the anchor can reach.
+            keep(pending);
+            fitsCone(latitude, longitude);
+        }
+        if (now - anchorElapsedRealtimeNanos >= maxDelayNanos) {
+            keep(fix);
+            return true;
+        }
+        pending.set(null, latitude, longitude, fix.getAccuracy(), fix.getSpeed(), fix.getBearing(),
+                fix.getTime(), now);
+        hasPending = true;
+        return true;
+    }
+
+    /**
+     * Hands the last fix to the downstream processor if it was not kept yet, so the simplified
+     * track ends where the track ended.
+     */
+    public void flush() {
+        if (hasPending) {
+            keep(pending);
+        }
+    }
+
+    /**
+     * Narrows the cone to the fix if it is inside.
+     *
+     * @return false if the fix is outside the cone, which is left unchanged
+     */
+    private boolean fitsCone(double latitude, double longitude) {
+        double north = (latitude - anchorLatitude) * Geo.METERS_PER_DEGREE;
+        double east = (longitude - anchorLongitude) * metersPerDegreeLongitude;
+        double distance = Math.sqrt(north * north + east * east);
+        if (distance < maxDistance - sideToleranceInMeters) {
+            // Turned back, the line would end before a fix seen since the anchor.
+            return false;
+        }
+        if (distance <= sideToleranceInMeters) {
+            // Any line from the anchor passes close enough.
+            return true;
+        }
+        double halfWidth = Math.asin(sideToleranceInMeters / distance);
+        double direction = Math.atan2(east, north);
+        if (!hasCone) {
+            hasCone = true;
+            maxDistance = distance;
+            coneCenter = direction;
+            coneLow = -halfWidth;
+            coneHigh = halfWidth;
+            return true;
+        }
+        double relative = direction - coneCenter;
+        if (relative > Math.PI) {
+            relative -= 2 * Math.PI;
+        } else if (relative < -Math.PI) {
+            relative += 2 * Math.PI;
+        }
+        if (relative < coneLow || relative > coneHigh) {
+            return false;
+        }
+        coneLow = Math.max(coneLow, relative - halfWidth);
+        coneHigh = Math.min(coneHigh, relative + halfWidth);
+        maxDistance = Math.max(maxDistance, distance);
+        return true;
+    }
+
+    private void keep(Fix fix) {
+        hasAnchor = true;
+        hasCone = false;
+        maxDistance = 0;
+        hasPending = false;
+        anchorLatitude = fix.getLatitude();
+        anchorLongitude = fix.getLongitude();
+        anchorElapsedRealtimeNanos = fix.getElapsedRealtimeNanos();
+        metersPerDegreeLongitude = Math.max(Geo.metersPerDegreeLongitude(anchorLatitude), 1);
+        outputCount++;
+        downstream.process(fix);
+    }
+}
@@ -0,0 +1,211 @@
+package com.bikcrum.locationupdate;
+
+/**
+ * Splits the fixes into trips and stays.
+ * <p/>
+ * Fixes are collected into a candidate stay while they stay within
+ * {@link #setStayRadiusInMeters(float)} of its center, the running mean of its fixes. Once the
+ * candidate spans {@link #setMinStayDurationInMilliseconds(long)} it becomes a stay, dated back to
+ * its first fix, and ends with the first fix whose accuracy circle lies entirely outside the
+ * radius. A fix leaving the candidate before that starts a new one. Each fix costs constant work,
+ * and the state is a handful of fields however long the stay or trip.
+ *
+ * @see LocationUpdate#enableTripSegmentation(AdaptiveIntervalScheduler.Tier)
+ */
+public final class TripSegmenter implements FixProcessor {
+
+    public enum Segment {
+        /**
+         * No fix yet, or not enough to tell.
+         */
+        UNKNOWN, TRIP, STAY
+    }
+
+    /**
+     * Called on the delivery thread. Times are UTC times of fixes, in milliseconds.
+     */
+    public interface OnSegmentListener {
+        /**
+         * @param arrivalTime time of the first fix of the stay
+         */
+        void onStayStarted(double latitude, double longitude, long arrivalTime);
+
+        /**
+         * @param departureTime time of the last fix of the stay
+         */
+        void onStayEnded(double latitude, double longitude, long arrivalTime, long departureTime);
+
+        void onTripStarted(long departureTime);
+
+        /**
+         * @param distanceInMeters length of the path up to the arrival
+         */
+        void onTripEnded(long departureTime, long arrivalTime, double distanceInMeters);
+    }
+
+    /**
+     * Told about stays by {@link LocationUpdate}, to change the request while staying.
+     */
+    interface OnStayChangedListener {
+        void onStayChanged(boolean staying);
+    }
+
+    private float stayRadiusInMeters = 50;
+    private long minStayDurationNanos = 5 * 60 * 1000000000L;
+    private float maxAccuracyInMeters = 100;
+
+    private OnSegmentListener listener;
+    private OnStayChangedListener stayChangedListener;
+
+    private volatile Segment segment = Segment.UNKNOWN;
+
+    private boolean hasPrevious;
+    private double previousLatitude;
+    private double previousLongitude;
+
+    // Candidate stay, or the stay itself while in one.
+    private double latitudeSum;
+    private double longitudeSum;
+    private int fixCount;
+    private long firstTime;
+    private long firstElapsedRealtimeNanos;
+    private long lastTime;
+    // Trip distance when the candidate started, the trip ends there if it becomes a stay.
+    private double candidateTripDistance;
+
+    private long tripDepartureTime;
+    private double tripDistance;
+
+    public void setOnSegmentListener(OnSegmentListener listener) {
+        this.listener = listener;
+    }
+
+    void setOnStayChangedListener(OnStayChangedListener stayChangedListener) {
+        this.stayChangedListener = stayChangedListener;
+    }
+
+    /**
+     * @param stayRadiusInMeters default is 50
+     */
+    public void setStayRadiusInMeters(float stayRadiusInMeters) {
+        this.stayRadiusInMeters = stayRadiusInMeters;
+    }
+
+    /**
+     * @param minStayDurationInMilliseconds shorter stops belong to the trip, default is 300000
+     */
+    public void setMinStayDurationInMilliseconds(long minStayDurationInMilliseconds) {
+        this.minStayDurationNanos = minStayDurationInMilliseconds * 1000000L;
+    }
+
+    /**
+     * @param maxAccuracyInMeters less accurate fixes are ignored, default is 100
+     */
+    public void setMaxAccuracyInMeters(float maxAccuracyInMeters) {
+        this.maxAccuracyInMeters = maxAccuracyInMeters;
+    }
+
+    /**
+     * Readable from any thread.
+     */
+    public Segment getSegment() {
+        return segment;
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        if (fix.isProvisional() || fix.getAccuracy() > maxAccuracyInMeters) {
+            return true;
+        }
+        add(fix.getLatitude(), fix.getLongitude(), fix.getAccuracy(), fix.getTime(),
+                fix.getElapsedRealtimeNanos());
+        return true;
+    }
+
+    /**
+     * Adds a fix, for fixes that did not come through {@link LocationUpdate}.
+     */
+    public void add(double latitude, double longitude, float accuracy, long time, long elapsedRealtimeNanos) {
+        if (!hasPrevious) {
+            hasPrevious = true;
+            startCandidate(latitude, longitude, time, elapsedRealtimeNanos);
+        } else {
+            if (segment != Segment.STAY) {
+                tripDistance += Geo.haversine(previousLatitude, previousLongitude, latitude, longitude);
+            }
+            double distance = Geo.haversine(latitudeSum / fixCount, longitudeSum / fixCount, latitude, longitude);
+            boolean inside = distance - accuracy <= stayRadiusInMeters;
+            if (segment == Segment.STAY) {
+                if (inside) {
+                    extend(latitude, longitude, time);
+                } else {
+                    leaveStay(latitude, longitude, time, elapsedRealtimeNanos);
+                }
+            } else if (distance <= stayRadiusInMeters) {
+                extend(latitude, longitude, time);
+                if (elapsedRealtimeNanos - firstElapsedRealtimeNanos >= minStayDurationNanos) {
+                    enterStay();
+                }
+            } else {
+                if (segment == Segment.UNKNOWN) {
+                    startTrip(firstTime);
+                }
+                startCandidate(latitude, longitude, time, elapsedRealtimeNanos);
+            }
+        }
+        previousLatitude = latitude;
+        previousLongitude = longitude;
+    }
+
+    private void startCandidate(double latitude, double longitude, long time, long elapsedRealtimeNanos) {
+        latitudeSum = latitude;
+        longitudeSum = longitude;
+        fixCount = 1;
+        firstTime = time;
+        firstElapsedRealtimeNanos = elapsedRealtimeNanos;
+        lastTime = time;
+        candidateTripDistance = tripDistance;
+    }
+
+    private void extend(double latitude, double longitude, long time) {
+        latitudeSum += latitude;
+        longitudeSum += longitude;
+        fixCount++;
+        lastTime = time;
+    }
+
+    private void enterStay() {
+        if (segment == Segment.TRIP && listener != null) {
+            listener.onTripEnded(tripDepartureTime, firstTime, candidateTripDistance);
+        }
+        segment = Segment.STAY;
+        if (listener != null) {
+            listener.onStayStarted(latitudeSum / fixCount, longitudeSum / fixCount, firstTime);
+        }
+        if (stayChangedListener != null) {
+            stayChangedListener.onStayChanged(true);
+        }
+    }
+
+    private void leaveStay(double latitude, double longitude, long time, long elapsedRealtimeNanos) {
+        long departureTime = lastTime;
+        if (listener != null) {
+            listener.onStayEnded(latitudeSum / fixCount, longitudeSum / fixCount, firstTime, departureTime);
+        }
+        startTrip(departureTime);
+        // The way out of the stay counts from its last fix.
+        tripDistance = Geo.haversine(previousLatitude, previousLongitude, latitude, longitude);
+        startCandidate(latitude, longitude, time, elapsedRealtimeNanos);
+        if (stayChangedListener != null) {
+            stayChangedListener.onStayChanged(false);
+        }
+    }
+
+    private void startTrip(long departureTime) {
+        segment = Segment.TRIP;
+        tripDepartureTime = departureTime;
+        if (listener != null) {
+            listener.onTripStarted(departureTime);
+        }
+    }
+}
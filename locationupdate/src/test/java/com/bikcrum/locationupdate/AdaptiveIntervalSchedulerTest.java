@@ -0,0 +1,82 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link AdaptiveIntervalScheduler}, runs on the development machine (host).
+ */
+public class AdaptiveIntervalSchedulerTest {
+
+    private static final double START_LATITUDE = 27.7172;
+    private static final double START_LONGITUDE = 85.3240;
+
+    private final Fix fix = new Fix();
+    private final List<AdaptiveIntervalScheduler.Motion> changes = new ArrayList<>();
+
+    private AdaptiveIntervalScheduler newScheduler() {
+        AdaptiveIntervalScheduler scheduler = new AdaptiveIntervalScheduler();
+        scheduler.setOnMotionChangedListener((motion, tier) -> changes.add(motion));
+        return scheduler;
+    }
+
+    private void feed(AdaptiveIntervalScheduler scheduler, double northMeters, float speed, int second) {
+        double latitude = START_LATITUDE + northMeters / Geo.METERS_PER_DEGREE;
+        fix.set(null, latitude, START_LONGITUDE, 5, speed, 0, second * 1000L, second * 1000000000L);
+        assertTrue(scheduler.process(fix));
+    }
+
+    @Test
+    public void slowsDownOnlyAfterRestingForTheDelay() {
+        AdaptiveIntervalScheduler scheduler = newScheduler();
+        for (int second = 0; second < 100; second++) {
+            feed(scheduler, 0, 0, second);
+        }
+        assertEquals(AdaptiveIntervalScheduler.Motion.WALKING, scheduler.getMotion());
+        for (int second = 100; second < 140; second++) {
+            feed(scheduler, 0, 0, second);
+        }
+        assertEquals(AdaptiveIntervalScheduler.Motion.STATIONARY, scheduler.getMotion());
+        assertEquals(1, changes.size());
+    }
+
+    @Test
+    public void leavingTheRestingPlaceSpeedsUp() {
+        AdaptiveIntervalScheduler scheduler = newScheduler();
+        scheduler.setDowngradeDelayInMilliseconds(10000);
+        for (int second = 0; second < 20; second++) {
+            feed(scheduler, 0, 0, second);
+        }
+        assertEquals(AdaptiveIntervalScheduler.Motion.STATIONARY, scheduler.getMotion());
+
+        // One fix a minute while stationary, the next one is already 80 m away.
+        feed(scheduler, 80, 0, 80);
+        assertEquals(AdaptiveIntervalScheduler.Motion.WALKING, scheduler.getMotion());
+
+        for (int second = 81; second < 90; second++) {
+            feed(scheduler, 80 + (second - 80) * 15, 15, second);
+        }
+        assertEquals(AdaptiveIntervalScheduler.Motion.DRIVING, scheduler.getMotion());
+    }
+
+    @Test
+    public void doesNotFlapAroundAThreshold() {
+        AdaptiveIntervalScheduler scheduler = newScheduler();
+        Random random = new Random(7);
+        double north = 0;
+        // Driving in city traffic, speed keeps crossing the driving threshold, short stops.
+        for (int second = 0; second < 1800; second++) {
+            float speed = (second % 90) < 20 ? 0 : (float) (4 + random.nextGaussian() * 2);
+            speed = Math.max(speed, 0);
+            north += speed;
+            feed(scheduler, north, speed, second);
+        }
+        assertEquals(AdaptiveIntervalScheduler.Motion.DRIVING, scheduler.getMotion());
+        assertTrue("changes: " + changes, changes.size() <= 2);
+    }
+}
@@ -0,0 +1,219 @@
+package com.bikcrum.locationupdate;
+
+import android.location.Location;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link ConnectionReferences}, runs on the development machine (host).
+ * Robolectric backs the {@link Location}s of the receiver batches.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConnectionReferencesTest {
+
+    /**
+     * Counts what the references ask for, with listeners registered while {@link #users} is set.
+     */
+    private static final class TestHost implements ConnectionReferences.Host {
+        boolean users;
+        boolean backgroundEnabled;
+        int starts;
+        int shutDowns;
+        int cancelledIntents;
+        final List<Boolean> backgroundChanges = new ArrayList<>();
+        FixDelivery delivery;
+
+        @Override
+        public void start() {
+            starts++;
+        }
+
+        @Override
+        public boolean hasUsers() {
+            return users;
+        }
+
+        @Override
+        public void shutDown() {
+            shutDowns++;
+        }
+
+        @Override
+        public boolean isBackgroundTrackingEnabled() {
+            return backgroundEnabled;
+        }
+
+        @Override
+        public void onBackgroundTrackingChanged(boolean backgroundTracking) {
+            backgroundChanges.add(backgroundTracking);
+        }
+
+        @Override
+        public void cancelBackgroundIntent() {
+            cancelledIntents++;
+        }
+
+        @Override
+        public void deliver(List<Location> locations) {
+            delivery.onLocations(locations);
+        }
+    }
+
+    private final TestHost host = new TestHost();
+    private final ConnectionReferences references = new ConnectionReferences(host);
+
+    @Test
+    public void release_withoutAcquire_throws() {
+        try {
+            references.release();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        references.acquire();
+        references.release();
+        try {
+            references.release();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(0, references.getCount());
+        assertEquals(1, host.shutDowns);
+    }
+
+    @Test
+    public void acquire_startsOnceForAllReferences() {
+        references.acquire();
+        references.acquire();
+        assertEquals(1, host.starts);
+        assertEquals(2, references.getCount());
+
+        references.release();
+        assertEquals(0, host.shutDowns);
+        references.release();
+        assertEquals(1, host.shutDowns);
+    }
+
+    @Test
+    public void lastRelease_keepsRunningWhileListenersAreLeft() {
+        host.users = true;
+        references.acquire();
+
+        references.release();
+        assertEquals(0, host.shutDowns);
+
+        // The last listener goes with its activity.
+        host.users = false;
+        assertTrue(references.shutDownIfUnused());
+        assertEquals(1, host.shutDowns);
+    }
+
+    @Test
+    public void activityDestroy_whileReferenced_keepsRunning() {
+        // A service holds the connection, the activity listening as well is destroyed.
+        host.users = true;
+        references.acquire();
+        host.users = false;
+        assertFalse(references.shutDownIfUnused());
+        assertEquals(0, host.shutDowns);
+
+        // A new activity reuses the running connection.
+        host.users = true;
+        references.acquire();
+        assertEquals(1, host.starts);
+        references.release();
+        references.release();
+        assertEquals(0, host.shutDowns);
+
+        host.users = false;
+        assertTrue(references.shutDownIfUnused());
+        assertEquals(1, host.shutDowns);
+    }
+
+    @Test
+    public void backgroundTracking_holdsAReferenceUntilStopped() {
+        references.resumeBackgroundTracking();
+        references.resumeBackgroundTracking();
+        assertTrue(references.isBackgroundTracking());
+        assertEquals(1, references.getCount());
+        assertEquals(1, host.starts);
+
+        assertFalse(references.shutDownIfUnused());
+        references.stopBackgroundTracking();
+        assertFalse(references.isBackgroundTracking());
+        assertEquals(1, host.shutDowns);
+        assertEquals(1, host.cancelledIntents);
+        assertEquals(2, host.backgroundChanges.size());
+        assertTrue(host.backgroundChanges.get(0));
+        assertFalse(host.backgroundChanges.get(1));
+
+        // Not tracking in this process, requests of an earlier one are cancelled.
+        references.stopBackgroundTracking();
+        assertEquals(2, host.cancelledIntents);
+        assertEquals(1, host.shutDowns);
+    }
+
+    @Test
+    public void receiverFixes_inNewProcess_resumeTrackingAndReachListeners() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        List<Double> latitudes = new ArrayList<>();
+        dispatcher.add((LocationUpdate.OnRawLocationUpdatedListener) (latitude, longitude, accuracy, elapsedRealtimeNanos) -> latitudes.add(latitude),
+                0, FixDispatcher.THREAD_DELIVERY);
+        FixPipeline pipeline = new FixPipeline(dispatcher);
+        TrackHistory history = new TrackHistory(10);
+        pipeline.add(history);
+        host.delivery = new FixDelivery(new FixDeliveryTest.TestHost(), pipeline, new LocationMetrics());
+        host.backgroundEnabled = true;
+
+        references.onBackgroundLocations(batch(27.7172, 27.7173));
+
+        assertTrue(references.isBackgroundTracking());
+        assertEquals(1, references.getCount());
+        assertEquals(1, host.starts);
+        assertEquals(2, history.size());
+        assertEquals(2, latitudes.size());
+        assertEquals(27.7173, latitudes.get(1), 0);
+
+        // Later fixes go straight through.
+        references.onBackgroundLocations(batch(27.7174));
+        assertEquals(1, host.starts);
+        assertEquals(3, history.size());
+    }
+
+    @Test
+    public void receiverFixes_afterTrackingWasDisabled_cancelTheIntent() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        int[] received = new int[1];
+        dispatcher.add((LocationUpdate.OnRawLocationUpdatedListener) (latitude, longitude, accuracy, elapsedRealtimeNanos) -> received[0]++,
+                0, FixDispatcher.THREAD_DELIVERY);
+        host.delivery = new FixDelivery(new FixDeliveryTest.TestHost(), new FixPipeline(dispatcher), new LocationMetrics());
+
+        references.onBackgroundLocations(batch(27.7172));
+
+        assertEquals(0, received[0]);
+        assertEquals(1, host.cancelledIntents);
+        assertFalse(references.isBackgroundTracking());
+        assertEquals(0, host.starts);
+    }
+
+    private static List<Location> batch(double... latitudes) {
+        List<Location> locations = new ArrayList<>();
+        for (int i = 0; i < latitudes.length; i++) {
+            Location location = new Location("fused");
+            location.setLatitude(latitudes[i]);
+            location.setLongitude(85.3240);
+            location.setAccuracy(5);
+            location.setTime(1539000000000L + i * 1000L);
+            location.setElapsedRealtimeNanos((1 + i) * 1000000000L);
+            locations.add(location);
+        }
+        return locations;
+    }
+}
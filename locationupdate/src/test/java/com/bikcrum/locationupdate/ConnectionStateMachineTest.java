@@ -0,0 +1,209 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link ConnectionStateMachine}, runs on the development machine (host).
+ */
+public class ConnectionStateMachineTest {
+
+    private static final long MILLISECOND = 1000000L;
+
+    /**
+     * Records what the state machine asks for, with a clock and a queue of delayed tasks that only
+     * move when the test says so.
+     */
+    private static final class FakeHost implements ConnectionStateMachine.Host {
+        boolean connected;
+        int connects;
+        int settingsChecks;
+        int requests;
+        long nowNanos = 1000 * MILLISECOND;
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<Long> dueNanos = new ArrayList<>();
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void connect() {
+            connects++;
+        }
+
+        @Override
+        public void checkSettings() {
+            settingsChecks++;
+        }
+
+        @Override
+        public void requestUpdates() {
+            requests++;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayInMilliseconds) {
+            tasks.add(task);
+            dueNanos.add(nowNanos + delayInMilliseconds * MILLISECOND);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            for (int i = tasks.size() - 1; i >= 0; i--) {
+                if (tasks.get(i) == task) {
+                    tasks.remove(i);
+                    dueNanos.remove(i);
+                }
+            }
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return nowNanos;
+        }
+
+        /**
+         * @return delay of the single pending task in milliseconds
+         */
+        long pendingDelay() {
+            assertEquals(1, tasks.size());
+            return (dueNanos.get(0) - nowNanos) / MILLISECOND;
+        }
+
+        void runPending() {
+            nowNanos = dueNanos.remove(0);
+            tasks.remove(0).run();
+        }
+    }
+
+    private final FakeHost host = new FakeHost();
+    private final LocationMetrics metrics = new LocationMetrics();
+    private final ConnectionStateMachine machine = new ConnectionStateMachine(host, metrics, new Random(1));
+
+    private void connectWithSatisfiedSettings() {
+        machine.start();
+        assertEquals(LocationUpdate.ConnectionState.CONNECTING, machine.getState());
+        host.connected = true;
+        machine.onConnected();
+        assertEquals(LocationUpdate.ConnectionState.CHECKING_SETTINGS, machine.getState());
+        machine.onSettingsSatisfied();
+        assertEquals(LocationUpdate.ConnectionState.REQUESTING_UPDATES, machine.getState());
+    }
+
+    @Test
+    public void settingsCheck_isCachedForTtl() {
+        machine.setSettingsTtlInMilliseconds(60000);
+        connectWithSatisfiedSettings();
+        assertEquals(1, host.settingsChecks);
+
+        // A recreated activity starts again within the TTL.
+        host.nowNanos += 30000 * MILLISECOND;
+        machine.start();
+        assertEquals(1, host.settingsChecks);
+        assertEquals(2, host.requests);
+
+        // After the TTL the settings are checked again.
+        host.nowNanos += 31000 * MILLISECOND;
+        machine.start();
+        assertEquals(2, host.settingsChecks);
+        assertEquals(LocationUpdate.ConnectionState.CHECKING_SETTINGS, machine.getState());
+
+        LocationMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getSettingsCacheHitCount());
+        assertEquals(1, snapshot.getConnectAttemptCount());
+    }
+
+    @Test
+    public void suspension_requestsAgainWithoutSettingsCheck() {
+        connectWithSatisfiedSettings();
+        host.connected = false;
+        machine.onSuspended();
+        assertEquals(LocationUpdate.ConnectionState.SUSPENDED, machine.getState());
+
+        // The client comes back on its own after 2 s.
+        host.nowNanos += 2000 * MILLISECOND;
+        host.connected = true;
+        machine.onConnected();
+        assertEquals(LocationUpdate.ConnectionState.REQUESTING_UPDATES, machine.getState());
+        assertEquals(2, host.requests);
+        assertEquals(1, host.settingsChecks);
+        assertTrue(host.tasks.isEmpty());
+
+        Histogram.Snapshot recovery = metrics.snapshot().getRecoveryDuration();
+        assertEquals(1, recovery.getCount());
+        assertEquals(2000 * MILLISECOND, recovery.getMaxNanos());
+    }
+
+    @Test
+    public void suspension_reconnectsWhenClientDoesNotComeBack() {
+        connectWithSatisfiedSettings();
+        host.connected = false;
+        machine.onSuspended();
+        host.runPending();
+        assertEquals(LocationUpdate.ConnectionState.CONNECTING, machine.getState());
+        assertEquals(2, host.connects);
+    }
+
+    @Test
+    public void failedConnection_retriesWithGrowingJitteredBackoff() {
+        machine.setBackoff(1000, 16000);
+        machine.start();
+        long[] maxDelays = {1000, 2000, 4000, 8000, 16000, 16000};
+        for (long maxDelay : maxDelays) {
+            machine.onConnectionFailed();
+            assertEquals(LocationUpdate.ConnectionState.WAITING_TO_RETRY, machine.getState());
+            long delay = host.pendingDelay();
+            assertTrue(delay + " ms", delay >= maxDelay / 2 && delay <= maxDelay);
+            host.runPending();
+            assertEquals(LocationUpdate.ConnectionState.CONNECTING, machine.getState());
+        }
+        assertEquals(maxDelays.length + 1, host.connects);
+
+        host.connected = true;
+        machine.onConnected();
+        machine.onSettingsSatisfied();
+        assertEquals(1, host.requests);
+        assertEquals(1, metrics.snapshot().getRecoveryDuration().getCount());
+    }
+
+    @Test
+    public void forcedSettingsDialog_isNotShownAgainRightAway() {
+        machine.start();
+        host.connected = true;
+        machine.onConnected();
+        machine.onSettingsResolving();
+
+        // Each cancel asks again only after a growing wait.
+        long previous = 0;
+        for (int i = 0; i < 4; i++) {
+            machine.onSettingsNotSatisfied();
+            long delay = host.pendingDelay();
+            assertTrue(delay > previous / 2 && delay >= 500);
+            previous = delay;
+            assertEquals(i + 1, host.settingsChecks);
+            host.runPending();
+            assertEquals(i + 2, host.settingsChecks);
+            machine.onSettingsResolving();
+        }
+    }
+
+    @Test
+    public void stop_cancelsRetries() {
+        machine.start();
+        machine.onConnectionFailed();
+        machine.stop();
+        assertTrue(host.tasks.isEmpty());
+        assertEquals(LocationUpdate.ConnectionState.DISCONNECTED, machine.getState());
+
+        // A late failure while stopped is not retried.
+        machine.onConnectionFailed();
+        assertTrue(host.tasks.isEmpty());
+    }
+}
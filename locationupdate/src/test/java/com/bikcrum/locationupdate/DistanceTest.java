@@ -0,0 +1,58 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link Distance}, runs on the development machine (host).
+ */
+public class DistanceTest {
+
+    @Test
+    public void between_staysWithinErrorBound() {
+        Distance distance = new Distance();
+        Random random = new Random(3);
+        double latitude = 0;
+        double longitude = 0;
+        double worst = 0;
+        for (int i = 0; i < 1000000; i++) {
+            if (i % 1000 == 0) {
+                // Start a new walk somewhere else.
+                latitude = (random.nextDouble() - 0.5) * 170;
+                longitude = (random.nextDouble() - 0.5) * 360;
+            }
+            double step = random.nextDouble() < 0.01 ? random.nextDouble() * 50000 : random.nextDouble() * 300;
+            double heading = random.nextDouble() * 2 * Math.PI;
+            double nextLatitude = Math.max(-89, Math.min(89, latitude + step * Math.cos(heading) / Geo.METERS_PER_DEGREE));
+            double nextLongitude = longitude + step * Math.sin(heading) / Geo.metersPerDegreeLongitude(latitude);
+            if (nextLongitude > 180) {
+                nextLongitude -= 360;
+            }
+
+            double exact = Distance.haversine(latitude, longitude, nextLatitude, nextLongitude);
+            double fast = distance.between(latitude, longitude, nextLatitude, nextLongitude);
+            if (exact > 1) {
+                worst = Math.max(worst, Math.abs(fast - exact) / exact);
+            }
+            latitude = nextLatitude;
+            longitude = nextLongitude;
+        }
+        assertTrue("relative error " + worst, worst <= Distance.MAX_RELATIVE_ERROR);
+    }
+
+    @Test
+    public void distances_crossAntimeridian() {
+        assertEquals(Distance.haversine(0, 179.9995, 0, -179.9995),
+                new Distance().between(0, 179.9995, 0, -179.9995), 1e-6);
+        assertEquals(111, Distance.equirectangular(0, 179.9995, 0, -179.9995), 1);
+    }
+
+    @Test
+    public void haversine_matchesKnownDistance() {
+        // Paris to London, about 343.5 km on a sphere.
+        assertEquals(343.5, Distance.haversine(48.8566, 2.3522, 51.5074, -0.1278) / 1000, 0.5);
+    }
+}
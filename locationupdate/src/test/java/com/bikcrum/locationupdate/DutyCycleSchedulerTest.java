@@ -0,0 +1,165 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link DutyCycleScheduler}, runs on the development machine (host).
+ */
+public class DutyCycleSchedulerTest {
+
+    private static final long SECOND = 1000000000L;
+
+    private final List<PowerProfile> changes = new ArrayList<>();
+
+    private DutyCycleScheduler newScheduler() {
+        DutyCycleScheduler scheduler = new DutyCycleScheduler();
+        scheduler.setOnProfileChangedListener(changes::add);
+        return scheduler;
+    }
+
+    @Test
+    public void burst_endsOnTargetFix() {
+        DutyCycleScheduler scheduler = newScheduler();
+        assertEquals(30 * SECOND, scheduler.start(0));
+        assertEquals(PowerProfile.HIGH_ACCURACY, scheduler.getProfile());
+
+        scheduler.add(60, 2 * SECOND);
+        assertEquals(PowerProfile.HIGH_ACCURACY, scheduler.getProfile());
+        scheduler.add(8, 5 * SECOND);
+        assertEquals(PowerProfile.BALANCED, scheduler.getProfile());
+        assertEquals(1, changes.size());
+
+        // The timer set for the burst is early now, and is moved to the end of the idle window.
+        assertEquals(305 * SECOND, scheduler.onDeadline(30 * SECOND));
+        assertEquals(PowerProfile.BALANCED, scheduler.getProfile());
+        assertEquals(335 * SECOND, scheduler.onDeadline(305 * SECOND));
+        assertEquals(PowerProfile.HIGH_ACCURACY, scheduler.getProfile());
+        assertEquals(2, scheduler.getBurstCount());
+        assertEquals(0, scheduler.getMissedBurstCount());
+        assertEquals(5.0 / 305, scheduler.getDutyCycle(), 1e-9);
+    }
+
+    @Test
+    public void stop_endsThePhaseUntilStartedAgain() {
+        DutyCycleScheduler scheduler = newScheduler();
+        scheduler.start(0);
+        scheduler.add(8, 5 * SECOND);
+        // Updates stop 100 s into the idle window.
+        scheduler.stop(105 * SECOND);
+        assertEquals(5.0 / 105, scheduler.getDutyCycle(), 1e-9);
+
+        // A timer left behind changes nothing.
+        scheduler.onDeadline(305 * SECOND);
+        assertEquals(1, scheduler.getBurstCount());
+        assertEquals(1, changes.size());
+        scheduler.stop(400 * SECOND);
+        assertEquals(5.0 / 105, scheduler.getDutyCycle(), 1e-9);
+
+        // Updates resume with a burst.
+        assertEquals(1030 * SECOND, scheduler.start(1000 * SECOND));
+        assertEquals(PowerProfile.HIGH_ACCURACY, scheduler.getProfile());
+        assertEquals(2, scheduler.getBurstCount());
+        scheduler.add(8, 1010 * SECOND);
+        assertEquals(PowerProfile.BALANCED, scheduler.getProfile());
+        assertEquals(1310 * SECOND, scheduler.onDeadline(1030 * SECOND));
+    }
+
+    @Test
+    public void burst_endsAfterMaxWithoutTargetFix() {
+        DutyCycleScheduler scheduler = newScheduler();
+        scheduler.setIdleProfile(PowerProfile.PASSIVE);
+        scheduler.start(0);
+        scheduler.add(50, 10 * SECOND);
+        assertEquals(330 * SECOND, scheduler.onDeadline(30 * SECOND));
+        assertEquals(PowerProfile.PASSIVE, scheduler.getProfile());
+        assertEquals(1, scheduler.getMissedBurstCount());
+    }
+
+    @Test
+    public void burst_ignoresFixesFromBeforeIt() {
+        DutyCycleScheduler scheduler = newScheduler();
+        scheduler.start(0);
+        scheduler.add(8, 5 * SECOND);
+        scheduler.onDeadline(305 * SECOND);
+        assertEquals(PowerProfile.HIGH_ACCURACY, scheduler.getProfile());
+
+        // Taken during the idle window, delivered late.
+        scheduler.add(8, 300 * SECOND);
+        assertEquals(PowerProfile.HIGH_ACCURACY, scheduler.getProfile());
+    }
+
+    @Test
+    public void burst_needsTargetFixCount() {
+        DutyCycleScheduler scheduler = newScheduler();
+        scheduler.setTargetFixCount(3);
+        scheduler.start(0);
+        scheduler.add(8, SECOND);
+        scheduler.add(8, 2 * SECOND);
+        assertEquals(PowerProfile.HIGH_ACCURACY, scheduler.getProfile());
+        scheduler.add(8, 3 * SECOND);
+        assertEquals(PowerProfile.BALANCED, scheduler.getProfile());
+    }
+
+    @Test
+    public void burst_skippedAfterTargetFixWhileIdle() {
+        DutyCycleScheduler scheduler = newScheduler();
+        scheduler.start(0);
+        scheduler.add(8, 5 * SECOND);
+        // Another app had GPS on.
+        scheduler.add(5, 200 * SECOND);
+        assertEquals(500 * SECOND, scheduler.onDeadline(305 * SECOND));
+        assertEquals(PowerProfile.BALANCED, scheduler.getProfile());
+        assertEquals(1, scheduler.getSkippedBurstCount());
+        assertEquals(1, changes.size());
+    }
+
+    @Test
+    public void dutyCycle_keepsTargetFixesWithLittleGps() {
+        // Two hours of a device whose GPS needs 5 to 15 s for a fix within 10 m, and whose
+        // cheaper fixes are within 40 to 100 m every 60 s, on a timer firing on time.
+        DutyCycleScheduler scheduler = newScheduler();
+        Random random = new Random(3);
+        long end = 7200 * SECOND;
+        long deadline = scheduler.start(0);
+        long burstStart = 0;
+        long gpsFixAt = burstStart + (5 + random.nextInt(11)) * SECOND;
+        long nextCheapFix = 60 * SECOND;
+        long lastTargetFix = 0;
+        long longestWithoutTarget = 0;
+        for (long now = 0; now < end; now += SECOND / 10) {
+            if (scheduler.getProfile() == PowerProfile.HIGH_ACCURACY) {
+                if (now >= gpsFixAt) {
+                    scheduler.add(10, now);
+                    longestWithoutTarget = Math.max(longestWithoutTarget, now - lastTargetFix);
+                    lastTargetFix = now;
+                }
+            } else if (now >= nextCheapFix) {
+                scheduler.add(40 + random.nextInt(61), now);
+                nextCheapFix = now + 60 * SECOND;
+            }
+            if (now >= deadline) {
+                PowerProfile before = scheduler.getProfile();
+                deadline = scheduler.onDeadline(now);
+                if (before != PowerProfile.HIGH_ACCURACY && scheduler.getProfile() == PowerProfile.HIGH_ACCURACY) {
+                    gpsFixAt = now + (5 + random.nextInt(11)) * SECOND;
+                }
+            }
+        }
+        assertTrue("GPS on " + scheduler.getDutyCycle(), scheduler.getDutyCycle() < 0.05);
+        assertEquals(0, scheduler.getMissedBurstCount());
+        // A target fix at least every idle window plus a burst.
+        assertTrue(longestWithoutTarget <= 315 * SECOND);
+        assertEquals(scheduler.getBurstCount() - 1, changes.size() / 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setIdleProfile_rejectsHighAccuracy() {
+        new DutyCycleScheduler().setIdleProfile(PowerProfile.HIGH_ACCURACY);
+    }
+}
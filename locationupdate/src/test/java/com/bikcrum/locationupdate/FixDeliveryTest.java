@@ -0,0 +1,276 @@
+package com.bikcrum.locationupdate;
+
+import android.location.Location;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link FixDelivery}, runs on the development machine (host).
+ * Robolectric provides {@link Location}, the mockable android.jar only has stubs of it.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FixDeliveryTest {
+
+    /**
+     * Times fixes by their {@link Location#getElapsedRealtimeNanos()}.
+     */
+    static final class TestHost implements FixDelivery.Host {
+        long nowNanos;
+        int delivered;
+
+        @Override
+        public long elapsedRealtimeNanos(Location location) {
+            return location.getElapsedRealtimeNanos();
+        }
+
+        @Override
+        public long elapsedRealtimeNanosNow() {
+            return nowNanos;
+        }
+
+        @Override
+        public Location newLocation(double latitude, double longitude, float accuracy, float speed,
+                                    float bearing, long time, long elapsedRealtimeNanos) {
+            Location location = new Location(LocationUpdate.PROVIDER_REPLAY);
+            location.setLatitude(latitude);
+            location.setLongitude(longitude);
+            location.setAccuracy(accuracy);
+            location.setSpeed(speed);
+            location.setBearing(bearing);
+            location.setTime(time);
+            location.setElapsedRealtimeNanos(elapsedRealtimeNanos);
+            return location;
+        }
+
+        @Override
+        public void onFixDelivered(Fix fix) {
+            delivered++;
+        }
+    }
+
+    /**
+     * Runs tasks when told to, like a handler of another thread.
+     */
+    private static final class QueueExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            for (int i = 0; i < tasks.size(); i++) {
+                tasks.get(i).run();
+            }
+            tasks.clear();
+        }
+    }
+
+    private static Location location(double latitude, long time) {
+        Location location = new Location("fused");
+        location.setLatitude(latitude);
+        location.setLongitude(85.3240);
+        location.setAccuracy(5);
+        location.setTime(time);
+        location.setElapsedRealtimeNanos(time * 1000000L);
+        return location;
+    }
+
+    private static List<Location> batch(int size, long firstTime) {
+        List<Location> locations = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            locations.add(location(27.7172 + i * 0.0001, firstTime + i * 1000L));
+        }
+        return locations;
+    }
+
+    @Test
+    public void batch_reachesBatchedListenerWithTimestamps() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        TestHost host = new TestHost();
+        FixDelivery delivery = new FixDelivery(host, new FixPipeline(dispatcher), new LocationMetrics());
+        List<List<Location>> batches = new ArrayList<>();
+        List<long[]> timestamps = new ArrayList<>();
+        delivery.setBatchedListener((locations, times) -> {
+            batches.add(locations);
+            timestamps.add(times);
+            assertTrue(locations.size() <= times.length);
+            for (int i = 0; i < locations.size(); i++) {
+                assertEquals(locations.get(i).getTime(), times[i]);
+            }
+        });
+
+        List<Location> first = batch(3, 1539000000000L);
+        delivery.onLocations(first);
+        assertEquals(1, batches.size());
+        assertEquals(first, batches.get(0));
+
+        // The list and the array are reused, and grow for a larger batch.
+        List<Location> second = batch(2, 1539000060000L);
+        delivery.onLocations(second);
+        assertSame(batches.get(0), batches.get(1));
+        assertSame(timestamps.get(0), timestamps.get(1));
+        assertEquals(second, batches.get(1));
+
+        delivery.onLocations(batch(10, 1539000120000L));
+        assertEquals(10, batches.get(2).size());
+        assertTrue(timestamps.get(2).length >= 10);
+    }
+
+    @Test
+    public void batch_eachFixGoesThroughThePipeline() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        List<Double> latitudes = new ArrayList<>();
+        dispatcher.add((LocationUpdate.OnRawLocationUpdatedListener) (latitude, longitude, accuracy, elapsedRealtimeNanos) -> latitudes.add(latitude),
+                0, FixDispatcher.THREAD_DELIVERY);
+        FixPipeline pipeline = new FixPipeline(dispatcher);
+        TrackHistory history = new TrackHistory(10);
+        pipeline.add(history);
+        TestHost host = new TestHost();
+        LocationMetrics metrics = new LocationMetrics();
+        FixDelivery delivery = new FixDelivery(host, pipeline, metrics);
+        int[] batches = new int[1];
+        delivery.setBatchedListener((locations, times) -> batches[0]++);
+
+        assertFalse(delivery.isFreshFixReceived());
+        delivery.onLocations(batch(4, 1539000000000L));
+
+        assertEquals(Arrays.asList(27.7172, 27.7173, 27.7174, 27.7175), roundedTo4(latitudes));
+        assertEquals(4, history.size());
+        assertEquals(4, host.delivered);
+        assertEquals(4, metrics.snapshot().getFixCount());
+        assertEquals(1, batches[0]);
+        assertTrue(delivery.isFreshFixReceived());
+    }
+
+    @Test
+    public void batch_batchedListenerGetsOnlyDispatchedCorrectedFixes() {
+        FixPipeline pipeline = new FixPipeline(new FixDispatcher());
+        // Drops every other fix and moves the others north.
+        int[] seen = new int[1];
+        pipeline.add(fix -> seen[0]++ % 2 == 0);
+        pipeline.add(fix -> {
+            fix.setPosition(fix.getLatitude() + 1, fix.getLongitude(), fix.getAccuracy(),
+                    fix.getSpeed(), fix.getBearing());
+            return true;
+        });
+        FixDelivery delivery = new FixDelivery(new TestHost(), pipeline, new LocationMetrics());
+        List<Location> received = new ArrayList<>();
+        long[][] timestamps = new long[1][];
+        int[] batches = new int[1];
+        delivery.setBatchedListener((locations, times) -> {
+            batches[0]++;
+            received.clear();
+            received.addAll(locations);
+            timestamps[0] = times;
+        });
+
+        List<Location> batch = batch(5, 1539000000000L);
+        delivery.onLocations(batch);
+
+        assertEquals(1, batches[0]);
+        assertEquals(Arrays.asList(batch.get(0), batch.get(2), batch.get(4)), received);
+        assertEquals(28.7172, received.get(0).getLatitude(), 1e-9);
+        assertEquals(28.7176, received.get(2).getLatitude(), 1e-9);
+        assertEquals(batch.get(2).getTime(), timestamps[0][1]);
+
+        // A batch dropped as a whole does not reach the batched listener.
+        pipeline.add(fix -> false);
+        delivery.onLocations(batch(3, 1539000060000L));
+        assertEquals(1, batches[0]);
+    }
+
+    @Test
+    public void batch_withoutBatchedListener_isDeliveredFixByFix() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        int[] received = new int[1];
+        dispatcher.add((LocationUpdate.OnRawLocationUpdatedListener) (latitude, longitude, accuracy, elapsedRealtimeNanos) -> received[0]++,
+                0, FixDispatcher.THREAD_DELIVERY);
+        FixDelivery delivery = new FixDelivery(new TestHost(), new FixPipeline(dispatcher), new LocationMetrics());
+
+        delivery.onLocations(batch(5, 1539000000000L));
+
+        assertEquals(5, received[0]);
+    }
+
+    @Test
+    public void executors_runPipelineAndBatchedListenerWhereAsked() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        int[] received = new int[1];
+        dispatcher.add((LocationUpdate.OnRawLocationUpdatedListener) (latitude, longitude, accuracy, elapsedRealtimeNanos) -> received[0]++,
+                0, FixDispatcher.THREAD_DELIVERY);
+        FixDelivery delivery = new FixDelivery(new TestHost(), new FixPipeline(dispatcher), new LocationMetrics());
+        QueueExecutor deliveryThread = new QueueExecutor();
+        QueueExecutor mainThread = new QueueExecutor();
+        delivery.setExecutor(deliveryThread);
+        delivery.setBatchedListenerExecutor(mainThread);
+        int[] batches = new int[1];
+        delivery.setBatchedListener((locations, times) -> batches[0]++);
+
+        delivery.onLocations(batch(3, 1539000000000L));
+        delivery.onLocation(location(27.7172, 1539000010000L));
+        assertEquals(0, received[0]);
+
+        deliveryThread.runAll();
+        assertEquals(4, received[0]);
+        assertEquals(0, batches[0]);
+
+        mainThread.runAll();
+        assertEquals(1, batches[0]);
+    }
+
+    @Test
+    public void serialExecutor_neverRunsThePipelineConcurrently() throws InterruptedException {
+        int fixes = 2000;
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(fixes);
+        FixPipeline pipeline = new FixPipeline(new FixDispatcher());
+        pipeline.add(fix -> {
+            if (running.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            Thread.yield();
+            running.decrementAndGet();
+            done.countDown();
+            return true;
+        });
+        FixDelivery delivery = new FixDelivery(new TestHost(), pipeline, new LocationMetrics());
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        // Like LocationUpdate#setDeliveryExecutor, which wraps what the app hands in.
+        delivery.setExecutor(new SerialExecutor(pool));
+
+        try {
+            for (int i = 0; i < fixes; i++) {
+                delivery.onFix(27.7172, 85.3240, 5, 0, 0, 1539000000000L + i, i * 1000000L);
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(0, overlaps.get());
+    }
+
+    private static List<Double> roundedTo4(List<Double> values) {
+        List<Double> rounded = new ArrayList<>();
+        for (double value : values) {
+            rounded.add(Math.round(value * 10000) / 10000.0);
+        }
+        return rounded;
+    }
+}
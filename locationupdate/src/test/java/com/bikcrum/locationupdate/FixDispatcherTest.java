@@ -0,0 +1,228 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link FixDispatcher}, runs on the development machine (host).
+ */
+public class FixDispatcherTest {
+
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 1000000;
+
+    private static class CountingListener implements LocationUpdate.OnRawLocationUpdatedListener {
+        long count;
+        double latitudeSum;
+
+        @Override
+        public void onLocationUpdated(double latitude, double longitude, float accuracy, long elapsedRealtimeNanos) {
+            count++;
+            latitudeSum += latitude;
+        }
+    }
+
+    private static class BothListener implements LocationUpdate.OnLocationUpdatedListener,
+            LocationUpdate.OnRawLocationUpdatedListener {
+        int count;
+        int rawCount;
+
+        @Override
+        public void onLocationUpdated(android.location.Location mCurrentLocation, String mLastUpdateTime) {
+            count++;
+        }
+
+        @Override
+        public void onLocationUpdated(double latitude, double longitude, float accuracy, long elapsedRealtimeNanos) {
+            rawCount++;
+        }
+    }
+
+    @Test
+    public void rawListener_receivesPrimitives() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        final double[] received = new double[4];
+        dispatcher.add((latitude, longitude, accuracy, elapsedRealtimeNanos) -> {
+            received[0] = latitude;
+            received[1] = longitude;
+            received[2] = accuracy;
+            received[3] = elapsedRealtimeNanos;
+        }, 0, FixDispatcher.THREAD_DEFAULT);
+
+        dispatcher.dispatch(null, 27.7, 85.3, 5f, 42L);
+
+        assertEquals(27.7, received[0], 0);
+        assertEquals(85.3, received[1], 0);
+        assertEquals(5f, received[2], 0);
+        assertEquals(42L, (long) received[3]);
+    }
+
+    @Test
+    public void listenerExecutor_defersListenerCalls() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        CountingListener listener = new CountingListener();
+        List<Runnable> posted = new ArrayList<>();
+        dispatcher.add(listener, 0, FixDispatcher.THREAD_DEFAULT);
+        dispatcher.setMainThreadExecutor(posted::add);
+
+        dispatcher.dispatch(null, 27.7, 85.3, 5f, 42L);
+        assertEquals(0, listener.count);
+        assertEquals(1, posted.size());
+
+        posted.get(0).run();
+        assertEquals(1, listener.count);
+        assertEquals(27.7, listener.latitudeSum, 0);
+    }
+
+    @Test
+    public void listenerExecutor_onlyUsedForMainThreadSubscribers() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        CountingListener mainListener = new CountingListener();
+        CountingListener deliveryListener = new CountingListener();
+        List<Runnable> posted = new ArrayList<>();
+        dispatcher.add(mainListener, 0, FixDispatcher.THREAD_MAIN);
+        dispatcher.add(deliveryListener, 0, FixDispatcher.THREAD_DELIVERY);
+        dispatcher.setMainThreadExecutor(posted::add);
+
+        dispatcher.dispatch(null, 27.7, 85.3, 5f, 42L);
+
+        assertEquals(1, posted.size());
+        assertEquals(0, mainListener.count);
+        assertEquals(1, deliveryListener.count);
+    }
+
+    @Test
+    public void subscribers_areDecimatedToTheirInterval() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        CountingListener everyFix = new CountingListener();
+        CountingListener everyTenSeconds = new CountingListener();
+        dispatcher.add(everyFix, 1000, FixDispatcher.THREAD_DEFAULT);
+        dispatcher.add(everyTenSeconds, 10000, FixDispatcher.THREAD_DEFAULT);
+
+        assertEquals(1000, dispatcher.getFastestInterval(5000));
+
+        // 60 fixes, one second apart with a bit of jitter.
+        for (int i = 0; i < 60; i++) {
+            long jitter = (i % 2 == 0 ? -1 : 1) * 20000000L;
+            dispatcher.dispatch(null, 27.7, 85.3, 5f, i * 1000000000L + jitter);
+        }
+
+        assertEquals(60, everyFix.count);
+        assertEquals(6, everyTenSeconds.count);
+    }
+
+    @Test
+    public void subscribers_canBeAddedAndRemovedDuringDispatch() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        CountingListener late = new CountingListener();
+        LocationUpdate.OnRawLocationUpdatedListener[] self = new LocationUpdate.OnRawLocationUpdatedListener[1];
+        self[0] = (latitude, longitude, accuracy, elapsedRealtimeNanos) -> {
+            dispatcher.remove(self[0]);
+            dispatcher.add(late, 0, FixDispatcher.THREAD_DEFAULT);
+        };
+        dispatcher.add(self[0], 0, FixDispatcher.THREAD_DEFAULT);
+
+        dispatcher.dispatch(null, 27.7, 85.3, 5f, 1L);
+        // The fix being dispatched still goes to the subscribers registered when it started.
+        assertEquals(0, late.count);
+
+        dispatcher.dispatch(null, 27.7, 85.3, 5f, 2L);
+        assertEquals(1, late.count);
+        assertFalse(dispatcher.remove(self[0]));
+    }
+
+    @Test
+    public void sameObject_canRegisterBothVariants() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        BothListener listener = new BothListener();
+        dispatcher.add((LocationUpdate.OnLocationUpdatedListener) listener, 0, FixDispatcher.THREAD_DEFAULT);
+        dispatcher.add((LocationUpdate.OnRawLocationUpdatedListener) listener, 0, FixDispatcher.THREAD_DEFAULT);
+
+        dispatcher.dispatch(null, 27.7, 85.3, 5f, 1L);
+        assertEquals(1, listener.count);
+        assertEquals(1, listener.rawCount);
+
+        assertTrue(dispatcher.remove((LocationUpdate.OnRawLocationUpdatedListener) listener));
+        assertTrue(dispatcher.hasListener());
+    }
+
+    @Test
+    public void locationListener_getsTheFormattedTime() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        String[] received = new String[1];
+        dispatcher.add((LocationUpdate.OnLocationUpdatedListener) (location, time) -> received[0] = time,
+                0, FixDispatcher.THREAD_DEFAULT);
+        assertTrue(dispatcher.hasLocationListener());
+
+        long before = System.currentTimeMillis();
+        dispatcher.dispatch(null, 27.7, 85.3, 5f, 1L);
+        long after = System.currentTimeMillis();
+
+        assertTrue(received[0].equals(FixTime.format(before)) || received[0].equals(FixTime.format(after)));
+    }
+
+    @Test
+    public void lazyLocationListener_timeIsFormattedWhenRead() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        CharSequence[] received = new CharSequence[1];
+        LocationUpdate.OnLazyLocationUpdatedListener listener = (location, time) -> received[0] = time;
+        dispatcher.add(listener, 0, FixDispatcher.THREAD_DEFAULT);
+        assertTrue(dispatcher.hasLocationListener());
+
+        long before = System.currentTimeMillis();
+        dispatcher.dispatch(null, 27.7, 85.3, 5f, 1L);
+        long after = System.currentTimeMillis();
+
+        String time = received[0].toString();
+        assertSame(time, received[0].toString());
+        assertEquals(time.length(), received[0].length());
+        assertTrue(time.equals(FixTime.format(before)) || time.equals(FixTime.format(after)));
+        assertEquals(DateFormat.getTimeInstance().format(new Date(1539000000000L)),
+                new FixTime(1539000000000L).toString());
+
+        assertTrue(dispatcher.remove(listener));
+        assertFalse(dispatcher.hasLocationListener());
+    }
+
+    @Test
+    public void rawListener_dispatchDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeAllocationCounting(threadMXBean);
+
+        FixDispatcher dispatcher = new FixDispatcher();
+        CountingListener listener = new CountingListener();
+        dispatcher.add(listener, 0, FixDispatcher.THREAD_DEFAULT);
+
+        // Let the JIT settle before measuring.
+        dispatchFixes(dispatcher, WARMUP);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        dispatchFixes(dispatcher, ITERATIONS);
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(WARMUP + ITERATIONS, listener.count);
+        // A single object per fix would be at least 16 bytes, so anything below one byte per fix
+        // is measurement noise.
+        assertTrue("allocated " + allocated + " bytes for " + ITERATIONS + " fixes", allocated < ITERATIONS);
+    }
+
+    private static void dispatchFixes(FixDispatcher dispatcher, int count) {
+        for (int i = 0; i < count; i++) {
+            dispatcher.dispatch(null, 27.7 + i * 1e-7, 85.3, 5f, i * 1000000000L);
+        }
+    }
+
+    private static void assumeAllocationCounting(com.sun.management.ThreadMXBean threadMXBean) {
+        org.junit.Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+    }
+}
@@ -0,0 +1,53 @@
+package com.bikcrum.locationupdate;
+
+import android.location.Location;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link FixPipeline}, runs on the development machine (host).
+ * Runs with Robolectric for the cached {@link Location}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FixPipelineTest {
+
+    @Test
+    public void provisionalFix_reachesListenersAndGeofencesButIsNotRecorded() {
+        FixDispatcher dispatcher = new FixDispatcher();
+        int[] received = new int[1];
+        dispatcher.add((LocationUpdate.OnRawLocationUpdatedListener) (latitude, longitude, accuracy, elapsedRealtimeNanos) -> received[0]++,
+                0, FixDispatcher.THREAD_DELIVERY);
+        FixPipeline pipeline = new FixPipeline(dispatcher);
+        KalmanFilter filter = new KalmanFilter();
+        TrackHistory history = new TrackHistory(10);
+        GeofenceEngine geofences = new GeofenceEngine();
+        geofences.add(Geofence.circle("home", 27.7172, 85.3240, 100));
+        boolean[] provisionalEnter = new boolean[1];
+        geofences.setOnGeofenceTransitionListener((geofence, transition, fix) ->
+                provisionalEnter[0] = transition == GeofenceEngine.TRANSITION_ENTER && fix.isProvisional());
+        pipeline.add(filter);
+        pipeline.add(history);
+        pipeline.add(geofences);
+
+        Location cached = new Location(LocationUpdate.PROVIDER_CACHED);
+        cached.setLatitude(27.7172);
+        cached.setLongitude(85.3240);
+        cached.setAccuracy(20);
+        assertTrue(pipeline.onProvisionalFix(cached, 1000000000L));
+        assertEquals(1, received[0]);
+        assertTrue(provisionalEnter[0]);
+        assertEquals(0, history.size());
+        assertEquals(0, filter.getAcceptedCount());
+
+        // The next fresh fix is no longer flagged.
+        assertTrue(pipeline.onFix(27.7172, 85.3240, 5, 0, 0, 1539000000000L, 2000000000L));
+        assertFalse(pipeline.getFix().isProvisional());
+        assertEquals(2, received[0]);
+        assertEquals(1, history.size());
+        assertEquals(1, filter.getAcceptedCount());
+    }
+}
@@ -0,0 +1,181 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link FixStream}, runs on the development machine (host).
+ */
+public class FixStreamTest {
+
+    private static final Executor DIRECT = Runnable::run;
+
+    /**
+     * Records the times of the fixes it receives, requests only when the test says so.
+     */
+    private static class RecordingSubscriber implements FixStream.Subscriber {
+        FixStream.Subscription subscription;
+        final List<Long> times = new ArrayList<>();
+        Throwable error;
+        boolean complete;
+
+        @Override
+        public void onSubscribe(FixStream.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Fix fix) {
+            times.add(fix.getTime());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            complete = true;
+        }
+    }
+
+    private final FixStream stream = new FixStream();
+    private final Fix fix = new Fix();
+
+    private void publish(long time) {
+        fix.set(null, 27.7172, 85.3240, 5, 0, 0, time, time * 1000000L);
+        stream.publish(fix);
+    }
+
+    @Test
+    public void fixes_areDeliveredAsRequested() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        stream.subscribe(subscriber, FixStream.Overflow.BUFFER, 8, DIRECT);
+        publish(1);
+        publish(2);
+        publish(3);
+        assertTrue(subscriber.times.isEmpty());
+
+        subscriber.subscription.request(2);
+        assertEquals(2, subscriber.times.size());
+        publish(4);
+        assertEquals(2, subscriber.times.size());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        publish(5);
+        assertEquals(5, subscriber.times.size());
+        assertEquals(Long.valueOf(5), subscriber.times.get(4));
+    }
+
+    @Test
+    public void conflate_keepsLatest() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        stream.subscribe(subscriber, FixStream.Overflow.CONFLATE, 0, DIRECT);
+        for (long time = 1; time <= 5; time++) {
+            publish(time);
+        }
+        subscriber.subscription.request(10);
+        assertEquals(1, subscriber.times.size());
+        assertEquals(Long.valueOf(5), subscriber.times.get(0));
+        assertEquals(4, stream.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldest_keepsNewest() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        stream.subscribe(subscriber, FixStream.Overflow.DROP_OLDEST, 3, DIRECT);
+        for (long time = 1; time <= 5; time++) {
+            publish(time);
+        }
+        subscriber.subscription.request(10);
+        assertEquals(3, subscriber.times.size());
+        assertEquals(Long.valueOf(3), subscriber.times.get(0));
+        assertEquals(Long.valueOf(5), subscriber.times.get(2));
+    }
+
+    @Test
+    public void buffer_failsWhenFull() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        stream.subscribe(subscriber, FixStream.Overflow.BUFFER, 2, DIRECT);
+        publish(1);
+        publish(2);
+        assertNull(subscriber.error);
+        publish(3);
+        assertTrue(subscriber.error instanceof FixStream.OverflowException);
+        assertFalse(stream.hasSubscribers());
+    }
+
+    @Test
+    public void invalidRequest_failsSubscription() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        stream.subscribe(subscriber, FixStream.Overflow.CONFLATE, 1, DIRECT);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void close_completesAfterBufferedFixes() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        stream.subscribe(subscriber, FixStream.Overflow.BUFFER, 4, DIRECT);
+        publish(1);
+        publish(2);
+        stream.close();
+        assertFalse(subscriber.complete);
+        subscriber.subscription.request(2);
+        assertEquals(2, subscriber.times.size());
+        assertTrue(subscriber.complete);
+
+        RecordingSubscriber late = new RecordingSubscriber();
+        stream.subscribe(late, FixStream.Overflow.CONFLATE, 1, DIRECT);
+        assertTrue(late.complete);
+    }
+
+    @Test
+    public void slowSubscriber_delaysNeitherPublisherNorOthers() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSubscriber slow = new RecordingSubscriber() {
+            @Override
+            public void onNext(Fix fix) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.onNext(fix);
+            }
+        };
+        CountDownLatch received = new CountDownLatch(100);
+        RecordingSubscriber fast = new RecordingSubscriber() {
+            @Override
+            public void onNext(Fix fix) {
+                super.onNext(fix);
+                received.countDown();
+            }
+        };
+        stream.subscribe(slow, FixStream.Overflow.DROP_OLDEST, 10, null);
+        stream.subscribe(fast, FixStream.Overflow.BUFFER, 100, null);
+        slow.subscription.request(Long.MAX_VALUE);
+        fast.subscription.request(Long.MAX_VALUE);
+
+        long start = System.nanoTime();
+        for (long time = 1; time <= 100; time++) {
+            publish(time);
+        }
+        long publishNanos = System.nanoTime() - start;
+
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(100, fast.times.size());
+        assertTrue(publishNanos + " ns", publishNanos < TimeUnit.SECONDS.toNanos(1));
+        assertTrue(stream.getDroppedCount() > 0);
+        release.countDown();
+        stream.close();
+    }
+}
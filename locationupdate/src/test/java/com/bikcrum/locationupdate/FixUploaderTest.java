@@ -0,0 +1,171 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link FixUploader} and {@link FixFrame}, runs on the development machine
+ * (host).
+ */
+public class FixUploaderTest {
+
+    private static final double START_LATITUDE = 27.7172;
+    private static final double START_LONGITUDE = 85.3240;
+    private static final long START_TIME = 1539000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Fix fix = new Fix();
+
+    /**
+     * Driving at about 12 m/s, one fix per second.
+     */
+    private void feed(FixProcessor processor, int second) {
+        fix.set(null, latitude(second), START_LONGITUDE + second * 0.00005, 4 + second % 3, 12, 45,
+                START_TIME + second * 1000L, second * 1000000000L);
+        processor.process(fix);
+    }
+
+    private static double latitude(int second) {
+        return START_LATITUDE + second * 0.0001;
+    }
+
+    private static void awaitFixes(StandInUploadServer server, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.getTimes().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertReceivedInOrder(StandInUploadServer server, int count) {
+        List<Double> latitudes = server.getLatitudes();
+        List<Long> times = server.getTimes();
+        assertEquals(count, times.size());
+        for (int second = 0; second < count; second++) {
+            assertEquals(START_TIME + second * 1000L, (long) times.get(second));
+            assertEquals(latitude(second), latitudes.get(second), 1e-6);
+        }
+    }
+
+    @Test
+    public void frameIsMuchSmallerThanJson() throws IOException {
+        FixFrame.Encoder encoder = new FixFrame.Encoder();
+        Random random = new Random(4);
+        int jsonBytes = 0;
+        double latitude = START_LATITUDE, longitude = START_LONGITUDE;
+        double[] latitudes = new double[300];
+        for (int i = 0; i < 300; i++) {
+            latitude += 0.0001 + random.nextGaussian() * 0.00001;
+            longitude += 0.00005 + random.nextGaussian() * 0.00001;
+            latitudes[i] = latitude;
+            float accuracy = 3 + random.nextInt(10);
+            long time = START_TIME + i * 1000L;
+            encoder.add(latitude, longitude, accuracy, time);
+            jsonBytes += String.format(Locale.US,
+                    "{\"latitude\":%.6f,\"longitude\":%.6f,\"accuracy\":%.1f,\"time\":%d},",
+                    latitude, longitude, accuracy, time).length();
+        }
+
+        FixFrame.Decoder decoder = new FixFrame.Decoder(encoder.buffer(), 0, encoder.length());
+        for (int i = 0; i < 300; i++) {
+            assertTrue(decoder.next());
+            assertEquals(latitudes[i], decoder.getLatitude(), 0.6e-6);
+            assertEquals(START_TIME + i * 1000L, decoder.getTime());
+        }
+        assertFalse(decoder.next());
+
+        double frameBytesPerFix = (double) encoder.length() / 300;
+        double jsonBytesPerFix = (double) jsonBytes / 300;
+        assertTrue(frameBytesPerFix + " bytes per fix, JSON " + jsonBytesPerFix,
+                frameBytesPerFix * 5 < jsonBytesPerFix);
+    }
+
+    @Test
+    public void uploadsBatches() throws Exception {
+        try (StandInUploadServer server = new StandInUploadServer()) {
+            FixUploader uploader = new FixUploader(new HttpUploadTransport(server.getUrl()), folder.newFolder());
+            uploader.setMaxBatchSize(100);
+            uploader.setMaxBatchAgeInMilliseconds(3600000);
+            for (int second = 0; second < 250; second++) {
+                feed(uploader, second);
+            }
+            awaitFixes(server, 200);
+            assertEquals(2, server.getFrames());
+
+            uploader.setMaxBatchAgeInMilliseconds(50);
+            feed(uploader, 250);
+            // Sent by age without a further fix.
+            awaitFixes(server, 251);
+            assertEquals(3, server.getFrames());
+            uploader.close();
+
+            assertReceivedInOrder(server, 251);
+            assertEquals(251, uploader.getFixesSent());
+            assertEquals(0, uploader.getSendFailures());
+        }
+    }
+
+    @Test
+    public void spillsWhileOfflineAndCatchesUp() throws Exception {
+        try (StandInUploadServer server = new StandInUploadServer()) {
+            File spill = folder.newFolder();
+            FixUploader uploader = new FixUploader(new HttpUploadTransport(server.getUrl()), spill);
+            uploader.setMaxBatchSize(10);
+            uploader.setBackoff(20, 100);
+
+            server.setAvailable(false);
+            for (int second = 0; second < 50; second++) {
+                feed(uploader, second);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (server.getRejected() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(server.getTimes().isEmpty());
+            assertTrue(spill.list().length > 0);
+
+            server.setAvailable(true);
+            for (int second = 50; second < 100; second++) {
+                feed(uploader, second);
+            }
+            awaitFixes(server, 100);
+            uploader.close();
+
+            assertReceivedInOrder(server, 100);
+            assertTrue(uploader.getSendFailures() >= 3);
+            assertEquals(0, spill.list().length);
+        }
+    }
+
+    @Test
+    public void spilledFramesSurviveRestart() throws Exception {
+        try (StandInUploadServer server = new StandInUploadServer()) {
+            File spill = folder.newFolder();
+            server.setAvailable(false);
+            FixUploader uploader = new FixUploader(new HttpUploadTransport(server.getUrl()), spill);
+            uploader.setMaxBatchSize(10);
+            uploader.setBackoff(60000, 60000);
+            for (int second = 0; second < 35; second++) {
+                feed(uploader, second);
+            }
+            uploader.close();
+            assertEquals(4, spill.list().length);
+
+            server.setAvailable(true);
+            FixUploader restarted = new FixUploader(new HttpUploadTransport(server.getUrl()), spill);
+            awaitFixes(server, 35);
+            restarted.close();
+            assertReceivedInOrder(server, 35);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link GeofenceEngine}, runs on the development machine (host).
+ */
+public class GeofenceEngineTest {
+
+    private static final double START_LATITUDE = 27.7172;
+    private static final double START_LONGITUDE = 85.3240;
+
+    private final Fix fix = new Fix();
+    private final List<String> events = new ArrayList<>();
+
+    private GeofenceEngine newEngine() {
+        GeofenceEngine engine = new GeofenceEngine();
+        engine.setOnGeofenceTransitionListener((geofence, transition, fix) ->
+                events.add(geofence.getId() + ":" + transition));
+        return engine;
+    }
+
+    private void feed(GeofenceEngine engine, double northMeters, double eastMeters, int second) {
+        double latitude = START_LATITUDE + northMeters / Geo.METERS_PER_DEGREE;
+        double longitude = START_LONGITUDE + eastMeters / Geo.metersPerDegreeLongitude(START_LATITUDE);
+        fix.set(null, latitude, longitude, 5, 0, 0, second * 1000L, second * 1000000000L);
+        assertTrue(engine.process(fix));
+    }
+
+    @Test
+    public void reportsEnterDwellAndExit() {
+        GeofenceEngine engine = newEngine();
+        engine.setDwellDelayInMilliseconds(10000);
+        engine.add(Geofence.circle("circle", START_LATITUDE, START_LONGITUDE, 100));
+        double meter = 1 / Geo.METERS_PER_DEGREE;
+        engine.add(Geofence.polygon("square",
+                new double[]{START_LATITUDE + 50 * meter, START_LATITUDE + 50 * meter, START_LATITUDE + 150 * meter, START_LATITUDE + 150 * meter},
+                new double[]{START_LONGITUDE - meter, START_LONGITUDE + meter, START_LONGITUDE + meter, START_LONGITUDE - meter}));
+
+        feed(engine, -200, 0, 0);
+        assertTrue(events.isEmpty());
+        feed(engine, 0, 0, 1);
+        assertEquals("[circle:1]", events.toString());
+        feed(engine, 0, 0, 11);
+        feed(engine, 0, 0, 12);
+        assertEquals("[circle:1, circle:4]", events.toString());
+        events.clear();
+
+        feed(engine, 80, 0, 13);
+        assertEquals("[square:1]", events.toString());
+        feed(engine, 120, 0, 14);
+        assertEquals("[square:1, circle:2]", events.toString());
+        events.clear();
+
+        // Removing does not report an exit, adding again starts outside.
+        Geofence circle = Geofence.circle("again", START_LATITUDE, START_LONGITUDE, 500);
+        engine.add(circle);
+        feed(engine, 120, 0, 15);
+        assertEquals("[again:1]", events.toString());
+        assertTrue(engine.remove(circle));
+        assertFalse(engine.remove(circle));
+        feed(engine, 1000, 0, 16);
+        assertEquals("[again:1, square:2]", events.toString());
+        assertEquals(2, engine.size());
+    }
+
+    @Test
+    public void matchesLinearScan() {
+        GeofenceEngine engine = new GeofenceEngine(300);
+        Random random = new Random(1);
+        List<Geofence> fences = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Geofence fence = randomFence(random, "f" + i, 5000);
+            fences.add(fence);
+            engine.add(fence);
+        }
+        // A few fences too large to index.
+        for (int i = 0; i < 3; i++) {
+            Geofence fence = Geofence.circle("large" + i, START_LATITUDE, START_LONGITUDE, 3000 + i * 500);
+            fences.add(fence);
+            engine.add(fence);
+        }
+        double north = 0, east = 0;
+        for (int second = 0; second < 3000; second++) {
+            north += random.nextGaussian() * 30;
+            east += random.nextGaussian() * 30;
+            feed(engine, north, east, second);
+            if (second == 1500) {
+                // Remove half of them while running.
+                List<Geofence> kept = new ArrayList<>();
+                for (int i = 0; i < fences.size(); i++) {
+                    if (i % 2 == 0) {
+                        assertTrue(engine.remove(fences.get(i)));
+                    } else {
+                        kept.add(fences.get(i));
+                    }
+                }
+                fences = kept;
+                assertEquals(fences.size(), engine.size());
+            }
+            for (Geofence fence : fences) {
+                assertEquals(fence.getId(), fence.contains(fix.getLatitude(), fix.getLongitude()), fence.isInside());
+            }
+        }
+    }
+
+    /**
+     * 50000 synthetic fences spread over a city, fixes all over it. The cost per fix is measured by
+     * GeofenceBenchmark.
+     */
+    @Test
+    public void fiftyThousandFences_agreeWithEachFence() {
+        GeofenceEngine engine = new GeofenceEngine();
+        Random random = new Random(2);
+        List<Geofence> fences = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            Geofence fence = randomFence(random, "f" + i, 20000);
+            fences.add(fence);
+            engine.add(fence);
+        }
+        assertEquals(50000, engine.size());
+
+        int inside = 0;
+        for (int i = 0; i < 2000; i++) {
+            feed(engine, (random.nextDouble() - 0.5) * 40000, (random.nextDouble() - 0.5) * 40000, i);
+            if (i % 100 != 0) {
+                continue;
+            }
+            for (Geofence fence : fences) {
+                boolean contains = fence.contains(fix.getLatitude(), fix.getLongitude());
+                assertEquals(fence.getId(), contains, fence.isInside());
+                if (contains) {
+                    inside++;
+                }
+            }
+        }
+        // Some of the sampled fixes fell in fences.
+        assertTrue(inside > 0);
+    }
+
+    /**
+     * Circles and quadrilaterals of 20 m to 300 m within {@code spreadMeters} of the start.
+     */
+    private static Geofence randomFence(Random random, String id, double spreadMeters) {
+        double latitude = START_LATITUDE + (random.nextDouble() - 0.5) * spreadMeters / Geo.METERS_PER_DEGREE;
+        double longitude = START_LONGITUDE + (random.nextDouble() - 0.5) * spreadMeters / Geo.metersPerDegreeLongitude(START_LATITUDE);
+        double size = 20 + random.nextDouble() * 280;
+        if (random.nextBoolean()) {
+            return Geofence.circle(id, latitude, longitude, (float) size);
+        }
+        double latitudeSize = size / Geo.METERS_PER_DEGREE;
+        double longitudeSize = size / Geo.metersPerDegreeLongitude(START_LATITUDE);
+        return Geofence.polygon(id,
+                new double[]{latitude, latitude + latitudeSize * random.nextDouble(), latitude + latitudeSize, latitude + latitudeSize * random.nextDouble()},
+                new double[]{longitude, longitude - longitudeSize * random.nextDouble(), longitude, longitude + longitudeSize * random.nextDouble()});
+    }
+}
@@ -0,0 +1,45 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link Geohash}, runs on the development machine (host).
+ */
+public class GeohashTest {
+
+    @Test
+    public void encode_matchesStandardGeohash() {
+        long hash = Geohash.encode(57.64911, 10.40744, 55);
+        assertEquals("u4pruydqqvj", Geohash.toBase32(hash, 55));
+        assertEquals(hash, Geohash.fromBase32("u4pruydqqvj"));
+        assertEquals("u4pru", Geohash.toBase32(Geohash.encode(57.64911, 10.40744, 25), 25));
+    }
+
+    @Test
+    public void parent_isCoarserEncoding() {
+        long cell = Geohash.encode(27.7172, 85.3240, 40);
+        for (int bits = 1; bits <= 40; bits++) {
+            assertEquals(Geohash.encode(27.7172, 85.3240, bits), Geohash.parent(cell, 40, bits));
+        }
+    }
+
+    @Test
+    public void decode_returnsCellCenter() {
+        for (int bits = 1; bits <= Geohash.MAX_BITS; bits++) {
+            long cell = Geohash.encode(-33.8688, 151.2093, bits);
+            double latitude = Geohash.decodeLatitude(cell, bits);
+            double longitude = Geohash.decodeLongitude(cell, bits);
+            assertEquals(cell, Geohash.encode(latitude, longitude, bits));
+            assertEquals(-33.8688, latitude, 180.0 / (1L << (bits / 2)) / 2 + 1e-9);
+            assertEquals(151.2093, longitude, 360.0 / (1L << ((bits + 1) / 2)) / 2 + 1e-9);
+        }
+    }
+
+    @Test
+    public void encode_clampsEdges() {
+        assertEquals((1L << 20) - 1, Geohash.encode(90, 180, 20));
+        assertEquals(0, Geohash.encode(-90, -180, 20));
+    }
+}
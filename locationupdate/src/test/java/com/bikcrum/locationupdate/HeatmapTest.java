@@ -0,0 +1,74 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link Heatmap}, runs on the development machine (host).
+ */
+public class HeatmapTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void fixes_countVisitsAndDwell() {
+        Heatmap heatmap = new Heatmap(35);
+        heatmap.setMaxDwellGapInMilliseconds(60000);
+        // 30 s at home, a 10 min gap, then 20 s in town.
+        heatmap.add(27.7172, 85.3240, 0);
+        heatmap.add(27.7172, 85.3240, 10 * SECOND);
+        heatmap.add(27.7172, 85.3240, 30 * SECOND);
+        heatmap.add(27.7000, 85.3000, 630 * SECOND);
+        heatmap.add(27.7000, 85.3000, 650 * SECOND);
+
+        long home = Geohash.encode(27.7172, 85.3240, 35);
+        long town = Geohash.encode(27.7000, 85.3000, 35);
+        assertEquals(2, heatmap.getCellCount());
+        assertEquals(3, heatmap.getCount(home));
+        assertEquals(2, heatmap.getCount(27.7000, 85.3000));
+        assertEquals(30000, heatmap.getDwellInMilliseconds(home));
+        assertEquals(20000, heatmap.getDwellInMilliseconds(town));
+        assertEquals(5, heatmap.getTotalCount());
+    }
+
+    @Test
+    public void rollUp_mergesIntoParents() {
+        Heatmap heatmap = new Heatmap(40);
+        for (int i = 0; i < 100; i++) {
+            heatmap.add(27.7172 + i * 1e-5, 85.3240, i * SECOND);
+        }
+        assertTrue(heatmap.getCellCount() > 1);
+
+        Heatmap coarse = heatmap.rollUp(20);
+        assertEquals(1, coarse.getCellCount());
+        assertEquals(100, coarse.getCount(27.7172, 85.3240));
+        assertEquals(99000, coarse.getDwellInMilliseconds(Geohash.encode(27.7172, 85.3240, 20)));
+    }
+
+    @Test
+    public void snapshot_roundTrips() throws IOException {
+        Heatmap heatmap = new Heatmap(40);
+        for (int i = 0; i < 1000; i++) {
+            heatmap.add(27.7172 + (i % 50) * 1e-4, 85.3240 + (i / 50) * 1e-4, i * SECOND);
+        }
+        byte[] bytes = heatmap.toByteArray();
+        Heatmap copy = Heatmap.fromByteArray(bytes);
+        assertEquals(40, copy.getBits());
+        assertEquals(heatmap.getCellCount(), copy.getCellCount());
+        assertEquals(1000, copy.getTotalCount());
+        heatmap.forEach((cell, count, dwellInMilliseconds) -> {
+            assertEquals(count, copy.getCount(cell));
+            assertEquals(dwellInMilliseconds, copy.getDwellInMilliseconds(cell));
+        });
+        // Neighbouring cells differ in their low bits only.
+        assertTrue(bytes.length + " bytes", bytes.length < heatmap.getCellCount() * 12);
+    }
+
+    @Test(expected = IOException.class)
+    public void snapshot_rejectsOtherBytes() throws IOException {
+        Heatmap.fromByteArray(new byte[]{(byte) FixFrame.MAGIC, 1, 0, 0});
+    }
+}
@@ -0,0 +1,117 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link KalmanFilter}, runs on the development machine (host).
+ */
+public class KalmanFilterTest {
+
+    private static final double START_LATITUDE = 27.7172;
+    private static final double START_LONGITUDE = 85.3240;
+    private static final double SPEED = 1.4;
+    private static final double NOISE = 8;
+
+    private final Fix fix = new Fix();
+
+    /**
+     * Walks north at constant speed, one fix per second.
+     */
+    private static double trueNorth(int second) {
+        return SPEED * second;
+    }
+
+    private boolean feed(KalmanFilter filter, double northMeters, double eastMeters, float accuracy, int second) {
+        double latitude = START_LATITUDE + northMeters / Geo.METERS_PER_DEGREE;
+        double longitude = START_LONGITUDE + eastMeters / Geo.metersPerDegreeLongitude(START_LATITUDE);
+        fix.set(null, latitude, longitude, accuracy, 0, 0, second * 1000L, second * 1000000000L);
+        return filter.process(fix);
+    }
+
+    private double errorMeters(int second) {
+        return Geo.haversine(fix.getLatitude(), fix.getLongitude(),
+                START_LATITUDE + trueNorth(second) / Geo.METERS_PER_DEGREE, START_LONGITUDE);
+    }
+
+    @Test
+    public void smoothsNoisyTrack() {
+        KalmanFilter filter = new KalmanFilter();
+        // A steady walk.
+        filter.setAccelerationNoise(0.3f);
+        Random random = new Random(42);
+        double rawSquaredError = 0;
+        double filteredSquaredError = 0;
+        double speedSum = 0;
+        int measured = 0;
+        for (int second = 0; second < 600; second++) {
+            double noiseNorth = random.nextGaussian() * NOISE;
+            double noiseEast = random.nextGaussian() * NOISE;
+            assertTrue(feed(filter, trueNorth(second) + noiseNorth, noiseEast, (float) NOISE, second));
+            if (second >= 30) {
+                rawSquaredError += noiseNorth * noiseNorth + noiseEast * noiseEast;
+                double error = errorMeters(second);
+                filteredSquaredError += error * error;
+                speedSum += fix.getSpeed();
+                measured++;
+            }
+        }
+        double rawRms = Math.sqrt(rawSquaredError / measured);
+        double filteredRms = Math.sqrt(filteredSquaredError / measured);
+        assertTrue("raw " + rawRms + " filtered " + filteredRms, filteredRms < rawRms / 2);
+        assertEquals(SPEED, speedSum / measured, 0.2);
+    }
+
+    @Test
+    public void rejectsJumpsAndInaccurateFixes() {
+        KalmanFilter filter = new KalmanFilter();
+        for (int second = 0; second < 20; second++) {
+            assertTrue(feed(filter, trueNorth(second), 0, 5f, second));
+        }
+        // A 500 m jump one second later.
+        assertFalse(feed(filter, trueNorth(20) + 500, 0, 5f, 20));
+        assertFalse(feed(filter, trueNorth(21), 0, 500f, 21));
+        assertTrue(feed(filter, trueNorth(22), 0, 5f, 22));
+        assertTrue(errorMeters(22) < 5);
+        assertEquals(2, filter.getRejectedCount());
+    }
+
+    @Test
+    public void restartsAfterRealJump() {
+        KalmanFilter filter = new KalmanFilter();
+        filter.setMaxConsecutiveRejections(3);
+        for (int second = 0; second < 20; second++) {
+            feed(filter, trueNorth(second), 0, 5f, second);
+        }
+        // Came out of a tunnel 5 km further, the following fixes agree with each other.
+        int accepted = 0;
+        for (int second = 20; second < 30; second++) {
+            if (feed(filter, 5000 + trueNorth(second), 0, 5f, second)) {
+                accepted++;
+            }
+        }
+        assertEquals(6, accepted);
+        assertEquals(5000 + trueNorth(29), (fix.getLatitude() - START_LATITUDE) * Geo.METERS_PER_DEGREE, 5);
+    }
+
+    @Test
+    public void followsTrackAcrossTheAntimeridian() {
+        KalmanFilter filter = new KalmanFilter();
+        // Sailing east at 10 m/s near Fiji, from 179.99 E to 179.99 W.
+        double latitude = -17;
+        double metersPerDegree = Geo.metersPerDegreeLongitude(latitude);
+        for (int second = 0; second < 400; second++) {
+            double longitude = Geo.wrapLongitude(179.99 + second * 10 / metersPerDegree);
+            fix.set(null, latitude, longitude, 5f, 0, 0, second * 1000L, second * 1000000000L);
+            assertTrue("second " + second, filter.process(fix));
+            assertTrue(fix.getLongitude() >= -180 && fix.getLongitude() <= 180);
+            assertEquals(0, Geo.haversine(latitude, longitude, fix.getLatitude(), fix.getLongitude()), 10);
+        }
+        assertEquals(0, filter.getRejectedCount());
+        assertEquals(10, fix.getSpeed(), 0.5);
+        assertEquals(90, fix.getBearing(), 2);
+    }
+}
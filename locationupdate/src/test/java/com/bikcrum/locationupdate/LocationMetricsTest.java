@@ -0,0 +1,133 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link LocationMetrics} and {@link Histogram}, runs on the development
+ * machine (host).
+ */
+public class LocationMetricsTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void histogram_percentiles() {
+        Histogram histogram = new Histogram();
+        for (int micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000L);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500500, snapshot.getMeanNanos());
+        assertEquals(1000000, snapshot.getMaxNanos());
+        assertEquals(500000, snapshot.getPercentileNanos(50));
+        assertEquals(990000, snapshot.getPercentileNanos(99));
+        assertEquals(1000000, snapshot.getPercentileNanos(100));
+
+        // Beyond the last bound, and negative.
+        histogram.record(1000 * SECOND);
+        histogram.record(-5);
+        long[] counts = histogram.snapshot().getCounts();
+        assertEquals(Histogram.getUpperBoundsNanos().length + 1, counts.length);
+        assertEquals(1, counts[counts.length - 1]);
+        assertEquals(2, counts[0]);
+    }
+
+    @Test
+    public void fixes_ageIntervalAndLate() {
+        LocationMetrics metrics = new LocationMetrics();
+        metrics.setRequestedIntervalInMilliseconds(1000);
+        long fix = 100 * SECOND;
+        for (int i = 0; i < 10; i++) {
+            // Each fix arrives 300 ms after it was taken, the fifth one comes 3 s late.
+            fix += i == 5 ? 4 * SECOND : SECOND;
+            metrics.recordFix(fix, fix + 300000000L);
+        }
+
+        LocationMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(10, snapshot.getFixCount());
+        assertEquals(1, snapshot.getLateFixCount());
+        assertEquals(1000, snapshot.getRequestedIntervalInMilliseconds());
+        assertEquals(10, snapshot.getFixAge().getCount());
+        assertEquals(300000000L, snapshot.getFixAge().getMeanNanos());
+        assertEquals(9, snapshot.getFixInterval().getCount());
+        assertEquals(4 * SECOND, snapshot.getFixInterval().getMaxNanos());
+        // Within the bucket from 500 ms to 1 s.
+        long median = snapshot.getFixInterval().getPercentileNanos(50);
+        assertTrue(median > SECOND / 2 && median <= SECOND);
+    }
+
+    @Test
+    public void requests_timeAtHighAccuracy() {
+        long[] now = {10 * SECOND};
+        LocationMetrics metrics = new LocationMetrics(() -> now[0]);
+        metrics.recordRequest(PowerProfile.HIGH_ACCURACY.getPriority());
+        now[0] += 30 * SECOND;
+        metrics.recordRequest(PowerProfile.BALANCED.getPriority());
+        now[0] += 270 * SECOND;
+        metrics.recordRequest(PowerProfile.HIGH_ACCURACY.getPriority());
+        now[0] += 10 * SECOND;
+
+        LocationMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(310000, snapshot.getRequestTimeInMilliseconds());
+        assertEquals(40000, snapshot.getHighAccuracyTimeInMilliseconds());
+
+        // Stopped updates do not count.
+        metrics.recordRequest(LocationMetrics.NO_REQUEST);
+        now[0] += 1000 * SECOND;
+        assertEquals(310000, metrics.snapshot().getRequestTimeInMilliseconds());
+        assertEquals(40000, metrics.snapshot().getHighAccuracyTimeInMilliseconds());
+    }
+
+    @Test
+    public void pipeline_countsDropsAndCallbacks() {
+        LocationMetrics metrics = new LocationMetrics();
+        FixDispatcher dispatcher = new FixDispatcher();
+        dispatcher.setMetrics(metrics);
+        dispatcher.add((LocationUpdate.OnRawLocationUpdatedListener) (latitude, longitude, accuracy, elapsedRealtimeNanos) -> {
+        }, 0, FixDispatcher.THREAD_DELIVERY);
+        FixPipeline pipeline = new FixPipeline(dispatcher, metrics);
+        // Drops every other fix.
+        pipeline.add(fix -> fix.getElapsedRealtimeNanos() % (2 * SECOND) == 0);
+
+        for (int i = 0; i < 10; i++) {
+            pipeline.onFix(27.7, 85.3, 5, 0, 0, 0, i * SECOND);
+        }
+        LocationMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(5, snapshot.getDroppedFixCount());
+        assertEquals(5, snapshot.getCallbackDuration().getCount());
+    }
+
+    @Test
+    public void recording_doesNotAllocate() {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        org.junit.Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        LocationMetrics metrics = new LocationMetrics();
+        metrics.setRequestedIntervalInMilliseconds(1000);
+        record(metrics, 200000);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        record(metrics, 1000000);
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(1200000, metrics.snapshot().getFixCount());
+        assertTrue("allocated " + allocated + " bytes", allocated < 1000000);
+    }
+
+    private static void record(LocationMetrics metrics, int count) {
+        for (int i = 0; i < count; i++) {
+            long fix = i * SECOND;
+            metrics.recordFix(fix, fix + i % 1000 * 1000000L);
+            metrics.recordCallback(i % 5000);
+            metrics.recordDroppedFix();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link LongLongMap}, runs on the development machine (host).
+ */
+public class LongLongMapTest {
+
+    @Test
+    public void map_agreesWithHashMap() {
+        LongLongMap map = new LongLongMap(4);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            // Few distinct keys, so most operations hit existing ones.
+            long key = random.nextInt(5000) * 1024L;
+            if (random.nextBoolean()) {
+                map.put(key, i);
+                expected.put(key, (long) i);
+            } else {
+                assertEquals(expected.containsKey(key) ? expected.get(key) + 3 : 3, map.add(key, 3));
+                expected.merge(key, 3L, Long::sum);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().longValue(), map.get(entry.getKey(), -1));
+        }
+        assertEquals(-1, map.get(1, -1));
+        assertFalse(map.containsKey(1));
+    }
+
+    @Test
+    public void freeMarker_isAnOrdinaryKey() {
+        LongLongMap map = new LongLongMap();
+        map.add(Long.MIN_VALUE, 2);
+        map.add(Long.MIN_VALUE, 3);
+        map.put(0, 7);
+        assertEquals(5, map.get(Long.MIN_VALUE, 0));
+        assertEquals(2, map.size());
+        assertEquals(2, map.keys().length);
+
+        long[] sum = new long[1];
+        map.forEach((key, value) -> sum[0] += value);
+        assertEquals(12, sum[0]);
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertFalse(map.containsKey(Long.MIN_VALUE));
+    }
+}
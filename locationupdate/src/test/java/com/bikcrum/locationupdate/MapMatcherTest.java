@@ -0,0 +1,187 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link MapMatcher}, runs on the development machine (host).
+ */
+public class MapMatcherTest {
+
+    private static final double LATITUDE = 27.7;
+    private static final double LONGITUDE = 85.3;
+    private static final double METERS_PER_DEGREE_LONGITUDE = Geo.metersPerDegreeLongitude(LATITUDE);
+    private static final int SIZE = 21;
+
+    private static final class Match {
+        final long time;
+        final int edge;
+
+        Match(long time, int edge) {
+            this.time = time;
+            this.edge = edge;
+        }
+    }
+
+    private final List<Match> matches = new ArrayList<>();
+    private final MapMatcher.OnMatchListener listener = (time, edge, latitude, longitude) ->
+            matches.add(new Match(time, edge));
+
+    private static double latitude(double y) {
+        return LATITUDE + y / Geo.METERS_PER_DEGREE;
+    }
+
+    private static double longitude(double x) {
+        return LONGITUDE + x / METERS_PER_DEGREE_LONGITUDE;
+    }
+
+    /**
+     * Streets 100 m apart, node {@code row * SIZE + column} at 100 m times column east and row
+     * north of the origin.
+     */
+    private static RoadGraph grid() {
+        RoadGraph.Builder builder = new RoadGraph.Builder();
+        for (int row = 0; row < SIZE; row++) {
+            for (int column = 0; column < SIZE; column++) {
+                int node = builder.addNode(latitude(row * 100), longitude(column * 100));
+                if (column > 0) {
+                    builder.addRoad(node - 1, node, false);
+                }
+                if (row > 0) {
+                    builder.addRoad(node - SIZE, node, false);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static boolean onRoute(RoadGraph graph, int edge) {
+        return onRoute(graph.getEdgeFrom(edge)) && onRoute(graph.getEdgeTo(edge));
+    }
+
+    // East along row 5 to column 10, then north along column 10 to row 15.
+    private static boolean onRoute(int node) {
+        int row = node / SIZE;
+        int column = node % SIZE;
+        return row == 5 && column <= 10 || column == 10 && row >= 5 && row <= 15;
+    }
+
+    @Test
+    public void add_followsRouteThroughNoise() {
+        RoadGraph graph = grid();
+        MapMatcher matcher = new MapMatcher(graph, listener);
+        Random random = new Random(1);
+        int fixes = 0;
+        // Starts and ends between junctions, at a junction the street across would match as well.
+        for (int meters = 50; meters <= 1950; meters += 10) {
+            double x = Math.min(meters, 1000);
+            double y = 500 + Math.max(0, meters - 1000);
+            matcher.add(meters * 100L, latitude(y + random.nextGaussian() * 8),
+                    longitude(x + random.nextGaussian() * 8), 8);
+            fixes++;
+        }
+        matcher.flush();
+
+        assertEquals(fixes, matches.size());
+        assertEquals(fixes, matcher.getMatchedCount());
+        for (int i = 0; i < fixes; i++) {
+            assertEquals(5000 + i * 1000L, matches.get(i).time);
+            assertTrue("fix " + i, onRoute(graph, matches.get(i).edge));
+        }
+        assertEquals(1900, matcher.getMatchedDistanceInMeters(), 40);
+        assertEquals(0, matcher.getBreakCount());
+    }
+
+    @Test
+    public void add_staysOffUnreachableRoads() {
+        // A street east and a service road 30 m north of it, joined only at both ends.
+        RoadGraph.Builder builder = new RoadGraph.Builder();
+        for (int column = 0; column <= 10; column++) {
+            int street = builder.addNode(latitude(0), longitude(column * 100));
+            int service = builder.addNode(latitude(30), longitude(column * 100));
+            if (column > 0) {
+                builder.addRoad(street - 2, street, false);
+                builder.addRoad(service - 2, service, false);
+            }
+            if (column == 0 || column == 10) {
+                builder.addRoad(street, service, false);
+            }
+        }
+        RoadGraph graph = builder.build();
+        MapMatcher matcher = new MapMatcher(graph, listener);
+
+        // Along the street, with three fixes drifting nearer to the service road.
+        Random random = new Random(2);
+        int[] edges = new int[1];
+        int nearestOnService = 0;
+        for (int meters = 50; meters <= 950; meters += 10) {
+            double y = meters >= 400 && meters <= 420 ? 20 : random.nextGaussian() * 4;
+            double latitude = latitude(y);
+            double longitude = longitude(meters + random.nextGaussian() * 4);
+            matcher.add(meters * 100L, latitude, longitude, 5);
+            graph.findEdges(latitude, longitude, 50, edges, new double[1], new double[1]);
+            if (graph.getNodeLatitude(graph.getEdgeFrom(edges[0])) > latitude(15)) {
+                nearestOnService++;
+            }
+        }
+        matcher.flush();
+
+        assertEquals(3, nearestOnService);
+        assertEquals(91, matches.size());
+        for (Match match : matches) {
+            assertEquals("at " + match.time, latitude(0), graph.getNodeLatitude(graph.getEdgeFrom(match.edge)), 0);
+            assertEquals("at " + match.time, latitude(0), graph.getNodeLatitude(graph.getEdgeTo(match.edge)), 0);
+        }
+        assertEquals(900, matcher.getMatchedDistanceInMeters(), 20);
+    }
+
+    @Test
+    public void add_reportsAfterWindow() {
+        MapMatcher matcher = new MapMatcher(grid(), listener, 4, 8);
+        for (int i = 0; i < 3; i++) {
+            matcher.add(i, latitude(500), longitude(i * 10), 5);
+        }
+        assertTrue(matches.isEmpty());
+        matcher.add(3, latitude(500), longitude(30), 5);
+        assertEquals(1, matches.size());
+        assertEquals(0, matches.get(0).time);
+        matcher.add(4, latitude(500), longitude(40), 5);
+        assertEquals(2, matches.size());
+        assertEquals(1, matches.get(1).time);
+    }
+
+    @Test
+    public void add_breaksOffRoadAndAfterGaps() {
+        MapMatcher matcher = new MapMatcher(grid(), listener);
+        matcher.add(0, latitude(500), longitude(0), 5);
+        matcher.add(1, latitude(500), longitude(10), 5);
+
+        // Off the grid, the pending fixes are reported.
+        matcher.add(2, latitude(-500), longitude(0), 5);
+        assertEquals(2, matches.size());
+        assertEquals(1, matcher.getUnmatchedCount());
+        assertEquals(1, matcher.getBreakCount());
+
+        matcher.add(3, latitude(500), longitude(20), 5);
+        matcher.add(4, latitude(1500), longitude(1800), 5);
+        matcher.flush();
+        assertEquals(4, matches.size());
+        assertEquals(2, matcher.getBreakCount());
+        // Mileage only counts along the sequences, not across the breaks.
+        assertEquals(10, matcher.getMatchedDistanceInMeters(), 0.1);
+    }
+
+    @Test
+    public void add_skipsInaccurateFixes() {
+        MapMatcher matcher = new MapMatcher(grid(), listener);
+        matcher.add(0, latitude(500), longitude(0), 150);
+        matcher.flush();
+        assertTrue(matches.isEmpty());
+        assertEquals(0, matcher.getUnmatchedCount());
+    }
+}
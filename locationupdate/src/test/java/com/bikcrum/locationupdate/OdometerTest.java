@@ -0,0 +1,50 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link Odometer}, runs on the development machine (host).
+ */
+public class OdometerTest {
+
+    private static final double METER = 1 / Geo.METERS_PER_DEGREE;
+
+    @Test
+    public void jitterAtRest_isNotCounted() {
+        Odometer odometer = new Odometer();
+        Random random = new Random(5);
+        for (int i = 0; i < 3600; i++) {
+            odometer.add(27.7172 + random.nextGaussian() * 3 * METER, 85.3240 + random.nextGaussian() * 3 * METER, 10);
+        }
+        assertTrue(odometer.getDistanceInMeters() + " m", odometer.getDistanceInMeters() < 50);
+    }
+
+    @Test
+    public void walk_isCounted() {
+        Odometer odometer = new Odometer();
+        // 1 km north in 1 m steps, each fix accurate to 10 m.
+        for (int i = 0; i <= 1000; i++) {
+            odometer.add(27.7172 + i * METER, 85.3240, 10);
+        }
+        assertEquals(1000, odometer.getDistanceInMeters(), 25);
+        assertTrue(odometer.getStepCount() < 60);
+    }
+
+    @Test
+    public void inaccurateFixes_areIgnored() {
+        Odometer odometer = new Odometer();
+        odometer.add(27.7172, 85.3240, 5);
+        odometer.add(27.7172 + 500 * METER, 85.3240, 400);
+        odometer.add(27.7172 + 100 * METER, 85.3240, 5);
+        assertEquals(100, odometer.getDistanceInMeters(), 0.5);
+        odometer.add(27.7172 + 108 * METER, 85.3240, 5);
+        assertEquals(100, odometer.getDistanceInMeters(), 0.5);
+
+        odometer.reset();
+        assertEquals(0, odometer.getDistanceInMeters(), 0);
+    }
+}
@@ -0,0 +1,130 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link PlaceCache}, runs on the development machine (host).
+ */
+public class PlaceCacheTest {
+
+    private static final long MINUTE = 60 * 1000000000L;
+    // About 1 m of latitude.
+    private static final double METER = 1 / Geo.METERS_PER_DEGREE;
+
+    /**
+     * Names places after the cell center it is asked for, and counts the calls.
+     */
+    private static final class FakeResolver implements PlaceCache.Resolver<String> {
+        int calls;
+        boolean fail;
+
+        @Override
+        public String resolve(double latitude, double longitude) throws IOException {
+            calls++;
+            if (fail) {
+                throw new IOException("offline");
+            }
+            return String.format("%.4f,%.4f", latitude, longitude);
+        }
+    }
+
+    private static final class Recorder implements PlaceCache.Callback<String> {
+        final List<String> places = new ArrayList<>();
+        final List<Exception> errors = new ArrayList<>();
+
+        @Override
+        public void onPlace(String place) {
+            places.add(place);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            errors.add(e);
+        }
+    }
+
+    private final FakeResolver resolver = new FakeResolver();
+    private final Recorder recorder = new Recorder();
+    private final List<Runnable> queued = new ArrayList<>();
+    private final Executor queue = queued::add;
+    private long nowNanos;
+
+    private PlaceCache<String> cache(int maxSize, Executor executor) {
+        return new PlaceCache<>(resolver, 40, maxSize, 10 * 60 * 1000, executor, () -> nowNanos);
+    }
+
+    private void runQueued() {
+        while (!queued.isEmpty()) {
+            queued.remove(0).run();
+        }
+    }
+
+    @Test
+    public void nearbyFixes_shareOneLookup() {
+        PlaceCache<String> cache = cache(16, Runnable::run);
+        // A user standing still for 100 fixes with 3 m of jitter, away from cell borders.
+        long cell = Geohash.encode(27.7172, 85.3240, 40);
+        double latitude = Geohash.decodeLatitude(cell, 40);
+        double longitude = Geohash.decodeLongitude(cell, 40);
+        for (int i = 0; i < 100; i++) {
+            cache.lookup(latitude + (i % 7 - 3) * METER, longitude, recorder);
+        }
+        assertEquals(1, resolver.calls);
+        assertEquals(100, recorder.places.size());
+        assertEquals(99, cache.getHitCount());
+        assertEquals(0.99, cache.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void lookupsInFlight_areCoalesced() {
+        PlaceCache<String> cache = cache(16, queue);
+        Recorder other = new Recorder();
+        cache.lookup(27.7172, 85.3240, recorder);
+        cache.lookup(27.7172, 85.3240, other);
+        assertTrue(recorder.places.isEmpty());
+        runQueued();
+        assertEquals(1, resolver.calls);
+        assertEquals(recorder.places, other.places);
+        assertEquals(1, cache.getCoalescedCount());
+        assertEquals(1, cache.getResolveCount());
+    }
+
+    @Test
+    public void places_expireAndAreEvicted() {
+        PlaceCache<String> cache = cache(2, Runnable::run);
+        cache.lookup(27.70, 85.30, recorder);
+        cache.lookup(27.71, 85.30, recorder);
+        // Keeps the first cell the most recently used, the second one is evicted.
+        cache.lookup(27.70, 85.30, recorder);
+        cache.lookup(27.72, 85.30, recorder);
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, resolver.calls);
+        cache.lookup(27.70, 85.30, recorder);
+        assertEquals(3, resolver.calls);
+
+        nowNanos += 11 * MINUTE;
+        cache.lookup(27.70, 85.30, recorder);
+        assertEquals(4, resolver.calls);
+    }
+
+    @Test
+    public void failures_areNotCached() {
+        PlaceCache<String> cache = cache(16, Runnable::run);
+        resolver.fail = true;
+        cache.lookup(27.7172, 85.3240, recorder);
+        assertEquals(1, recorder.errors.size());
+        assertEquals(1, cache.getErrorCount());
+
+        resolver.fail = false;
+        cache.lookup(27.7172, 85.3240, recorder);
+        assertEquals(2, resolver.calls);
+        assertEquals(1, recorder.places.size());
+    }
+}
@@ -0,0 +1,131 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link PointIndex}, runs on the development machine (host).
+ */
+public class PointIndexTest {
+
+    private static double[] randomPoints(Random random, int count) {
+        double[] points = new double[2 * count];
+        for (int i = 0; i < count; i++) {
+            points[2 * i] = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+            points[2 * i + 1] = (random.nextDouble() - 0.5) * 360;
+        }
+        return points;
+    }
+
+    private static double distance(double[] points, int i, double latitude, double longitude) {
+        return Distance.haversine(latitude, longitude, points[2 * i], points[2 * i + 1]);
+    }
+
+    @Test
+    public void nearest_matchesLinearScan() {
+        Random random = new Random(5);
+        double[] points = randomPoints(random, 5000);
+        PointIndex index = new PointIndex(points);
+        int[] positions = new int[8];
+        double[] distances = new double[8];
+        for (int q = 0; q < 500; q++) {
+            double latitude = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+            double longitude = (random.nextDouble() - 0.5) * 360;
+
+            double[] expected = new double[5000];
+            for (int i = 0; i < 5000; i++) {
+                expected[i] = distance(points, i, latitude, longitude);
+            }
+            double[] sorted = expected.clone();
+            Arrays.sort(sorted);
+
+            assertEquals(sorted[0], expected[index.nearest(latitude, longitude)], 1e-6);
+            assertEquals(8, index.nearest(latitude, longitude, 8, positions, distances));
+            for (int i = 0; i < 8; i++) {
+                assertEquals(sorted[i], distances[i], 1e-3);
+                assertEquals(sorted[i], expected[positions[i]], 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void withinRadius_matchesLinearScan() {
+        Random random = new Random(7);
+        double[] points = new double[2 * 20000];
+        for (int i = 0; i < 20000; i++) {
+            // Around the antimeridian, where longitudes wrap.
+            points[2 * i] = -0.5 + random.nextDouble();
+            points[2 * i + 1] = 179.5 + random.nextDouble();
+            if (points[2 * i + 1] > 180) {
+                points[2 * i + 1] -= 360;
+            }
+        }
+        PointIndex index = new PointIndex(points);
+        int[] positions = new int[20000];
+        int[] found = new int[20000];
+        for (int q = 0; q < 100; q++) {
+            double latitude = -0.5 + random.nextDouble();
+            double longitude = q % 2 == 0 ? 179.9 : -179.9;
+            int expected = 0;
+            for (int i = 0; i < 20000; i++) {
+                if (distance(points, i, latitude, longitude) <= 5000) {
+                    found[expected++] = i;
+                }
+            }
+            int count = index.withinRadius(latitude, longitude, 5000, positions);
+            assertEquals(expected, count);
+            int[] actual = Arrays.copyOf(positions, count);
+            Arrays.sort(actual);
+            assertArrayEquals(Arrays.copyOf(found, expected), actual);
+            assertTrue(count > 0);
+        }
+    }
+
+    @Test
+    public void withinRadius_countsPointsThatDoNotFit() {
+        PointIndex index = new PointIndex(new double[]{0, 0, 0, 0.0001, 0, 0.0002, 1, 1});
+        int[] positions = new int[2];
+        assertEquals(3, index.withinRadius(0, 0, 100, positions));
+    }
+
+    @Test
+    public void queries_handleSmallIndexes() {
+        PointIndex empty = new PointIndex(new double[0]);
+        assertEquals(-1, empty.nearest(10, 10));
+        assertEquals(0, empty.nearest(10, 10, 3, new int[3], new double[3]));
+        assertEquals(0, empty.withinRadius(10, 10, 1000, new int[3]));
+
+        PointIndex two = new PointIndex(new double[]{89.9, 0, -89.9, 0});
+        int[] positions = new int[3];
+        double[] distances = new double[3];
+        assertEquals(2, two.nearest(-89, 170, 3, positions, distances));
+        assertEquals(1, positions[0]);
+        assertEquals(0, positions[1]);
+        assertEquals(Distance.haversine(-89, 170, -89.9, 0), distances[0], 1e-3);
+    }
+
+    /**
+     * The build time is measured by NearestBenchmark.
+     */
+    @Test
+    public void build_indexesAMillionPoints() {
+        Random random = new Random(9);
+        double[] points = randomPoints(random, 1000000);
+        PointIndex index = new PointIndex(points);
+        assertEquals(1000000, index.size());
+
+        for (int q = 0; q < 5; q++) {
+            double latitude = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+            double longitude = (random.nextDouble() - 0.5) * 360;
+            double nearest = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < 1000000; i++) {
+                nearest = Math.min(nearest, distance(points, i, latitude, longitude));
+            }
+            assertEquals(nearest, distance(points, index.nearest(latitude, longitude), latitude, longitude), 1e-6);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.bikcrum.locationupdate;
+
+import android.location.Location;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link ReplayLocationSource}, runs on the development machine (host).
+ * Runs with Robolectric, location listeners get real {@link Location}s.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ReplayLocationSourceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Feeds a replay into the fix pipeline, the way LocationUpdate does on the delivery thread.
+     */
+    private static final class PipelineCallback implements LocationSource.Callback {
+        final FixPipeline pipeline;
+
+        PipelineCallback(FixPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        @Override
+        public void onLocation(Location location) {
+            throw new AssertionError();
+        }
+
+        @Override
+        public void onLocations(List<Location> locations) {
+            throw new AssertionError();
+        }
+
+        @Override
+        public void onFix(double latitude, double longitude, float accuracy, float speed,
+                          float bearing, long time, long elapsedRealtimeNanos) {
+            pipeline.onFix(latitude, longitude, accuracy, speed, bearing, time, elapsedRealtimeNanos);
+        }
+    }
+
+    private static ReplayLocationSource walk(int seconds) {
+        ReplayLocationSource source = new ReplayLocationSource();
+        for (int second = 0; second < seconds; second++) {
+            source.add(27.7172 + second * 0.00001, 85.3240, 5, 1.1f, 0, 1539000000000L + second * 1000L);
+        }
+        return source;
+    }
+
+    @Test
+    public void readsGpx() throws Exception {
+        String gpx = "<?xml version=\"1.0\"?>\n"
+                + "<gpx version=\"1.1\" xmlns=\"http://www.topografix.com/GPX/1/1\"><trk><trkseg>\n"
+                + "<trkpt lat=\"27.7172\" lon=\"85.3240\"><ele>1400</ele><time>2018-10-08T12:00:00Z</time><hdop>1.2</hdop></trkpt>\n"
+                + "<trkpt lat=\"27.7173\" lon=\"85.3241\"><time>2018-10-08T12:00:01.500Z</time></trkpt>\n"
+                + "<trkpt lat=\"27.7174\" lon=\"85.3242\"><time>2018-10-08T17:45:02+05:45</time></trkpt>\n"
+                + "</trkseg></trk></gpx>";
+        ReplayLocationSource source = ReplayLocationSource.fromGpx(
+                new ByteArrayInputStream(gpx.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(3, source.size());
+
+        TrackHistory history = new TrackHistory(10);
+        source.setSpeedFactor(0);
+        source.replay(new PipelineCallback(pipelineWith(history)));
+        TrackHistory.Snapshot snapshot = history.snapshot(null);
+        assertEquals(1539000000000L, snapshot.getTimes()[0]);
+        assertEquals(1539000001500L, snapshot.getTimes()[1]);
+        assertEquals(1539000002000L, snapshot.getTimes()[2]);
+        assertEquals(27.7173, snapshot.getLatitudes()[1], 0);
+        assertEquals(6f, snapshot.getAccuracies()[0], 1e-6f);
+    }
+
+    @Test
+    public void readsCsvAndTrackLog() throws Exception {
+        String csv = "# exported trace\n"
+                + "time,lat,lng,accuracy,speed\n"
+                + "1539000000000,27.7172,85.3240,4.5,1.2\n"
+                + "2018-10-08T12:00:01Z,27.7173,85.3241,,\n";
+        ReplayLocationSource source = ReplayLocationSource.fromCsv(new StringReader(csv));
+        assertEquals(2, source.size());
+
+        File directory = folder.newFolder();
+        try (TrackLog log = new TrackLog(directory)) {
+            source.setSpeedFactor(0);
+            source.replay(new PipelineCallback(pipelineWith(log)));
+        }
+        ReplayLocationSource fromLog = ReplayLocationSource.fromTrackLog(directory);
+        assertEquals(2, fromLog.size());
+
+        TrackHistory history = new TrackHistory(10);
+        fromLog.setSpeedFactor(0);
+        fromLog.replay(new PipelineCallback(pipelineWith(history)));
+        TrackHistory.Snapshot snapshot = history.snapshot(null);
+        assertEquals(1539000001000L, snapshot.getTimes()[1]);
+        assertEquals(4.5f, snapshot.getAccuracies()[0], 0);
+        assertEquals(1.2f, snapshot.getSpeeds()[0], 0);
+        assertEquals(0f, snapshot.getAccuracies()[1], 0);
+    }
+
+    @Test
+    public void timesFixesFromTheClockAtReplayStart() {
+        ReplayLocationSource source = walk(3);
+        source.setSpeedFactor(0);
+        long bootNanos = 3600 * 1000000000L;
+        source.setClock(() -> bootNanos);
+        FixPipeline pipeline = new FixPipeline(new FixDispatcher());
+        List<Long> nanos = new ArrayList<>();
+        pipeline.add(fix -> {
+            nanos.add(fix.getElapsedRealtimeNanos());
+            return true;
+        });
+
+        source.replay(new PipelineCallback(pipeline));
+
+        assertEquals(Arrays.asList(bootNanos, bootNanos + 1000000000L, bootNanos + 2000000000L), nanos);
+    }
+
+    @Test
+    public void locationListener_getsANewLocationPerFix() {
+        ReplayLocationSource source = walk(30);
+        source.setSpeedFactor(0);
+        FixDispatcher dispatcher = new FixDispatcher();
+        List<Location> locations = new ArrayList<>();
+        dispatcher.add((LocationUpdate.OnLocationUpdatedListener) (location, time) -> locations.add(location),
+                0, FixDispatcher.THREAD_DELIVERY);
+        long[] rawNanos = new long[1];
+        dispatcher.add((LocationUpdate.OnRawLocationUpdatedListener) (latitude, longitude, accuracy, elapsedRealtimeNanos) -> rawNanos[0] = elapsedRealtimeNanos,
+                0, FixDispatcher.THREAD_DELIVERY);
+        FixPipeline pipeline = new FixPipeline(dispatcher);
+        pipeline.add(new KalmanFilter());
+        FixDeliveryTest.TestHost host = new FixDeliveryTest.TestHost();
+
+        source.replay(new FixDelivery(host, pipeline, new LocationMetrics()));
+
+        assertEquals(30, locations.size());
+        assertEquals(30, host.delivered);
+        Location last = locations.get(29);
+        assertNotSame(locations.get(28), last);
+        assertEquals(LocationUpdate.PROVIDER_REPLAY, last.getProvider());
+        assertEquals(1539000029000L, last.getTime());
+        assertEquals(rawNanos[0], last.getElapsedRealtimeNanos());
+        // Corrected by the filter like the fix.
+        assertEquals(pipeline.getFix().getLatitude(), last.getLatitude(), 0);
+        assertEquals(pipeline.getFix().getAccuracy(), last.getAccuracy(), 0);
+        assertTrue(last.getAccuracy() < 5);
+        assertEquals(27.7172 + 29 * 0.00001, last.getLatitude(), 2 / Geo.METERS_PER_DEGREE);
+    }
+
+    @Test
+    public void playsAcceleratedOnItsOwnThread() throws Exception {
+        // Two minutes at 1000x take about 120 ms.
+        ReplayLocationSource source = walk(121);
+        source.setSpeedFactor(1000);
+        TrackHistory history = new TrackHistory(200);
+        CountDownLatch done = new CountDownLatch(1);
+        FixPipeline pipeline = pipelineWith(history);
+        pipeline.add(fix -> {
+            if (history.size() == 121) {
+                done.countDown();
+            }
+            return true;
+        });
+        long start = System.nanoTime();
+        source.requestUpdates(null, null, new PipelineCallback(pipeline));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // Paced rather than played flat out. A slow machine only takes longer.
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue(elapsedMillis + " ms", elapsedMillis >= 110);
+        source.removeUpdates();
+    }
+
+    @Test
+    public void stopsWhenRemoved() throws Exception {
+        ReplayLocationSource source = walk(100);
+        source.setLooping(true);
+        TrackHistory history = new TrackHistory(10);
+        source.requestUpdates(null, null, new PipelineCallback(pipelineWith(history)));
+        Thread.sleep(1500);
+        source.removeUpdates();
+        long played = history.getNextSequence();
+        assertTrue(played >= 1 && played <= 3);
+        Thread.sleep(1200);
+        assertEquals(played, history.getNextSequence());
+    }
+
+    /**
+     * The whole chain, filter, history and dispatch to a raw listener, on an hour of fixes played
+     * as fast as possible. Its throughput is measured by DispatchBenchmark and FilterBenchmark.
+     */
+    @Test
+    public void playsFlatOutThroughThePipeline() {
+        ReplayLocationSource source = walk(3600);
+        source.setSpeedFactor(0);
+        source.setLooping(true);
+        FixDispatcher dispatcher = new FixDispatcher();
+        long[] received = new long[1];
+        dispatcher.add((LocationUpdate.OnRawLocationUpdatedListener) (latitude, longitude, accuracy, elapsedRealtimeNanos) -> received[0]++,
+                0, FixDispatcher.THREAD_DELIVERY);
+        FixPipeline pipeline = new FixPipeline(dispatcher);
+        pipeline.add(new KalmanFilter());
+        pipeline.add(new TrackHistory(3600));
+        PipelineCallback callback = new PipelineCallback(pipeline);
+
+        Thread stopper = new Thread(() -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException ignored) {
+            }
+            source.removeUpdates();
+        });
+        stopper.start();
+        long played = source.replay(callback);
+        // The filter drops the fixes right after the jump back to the start of each lap.
+        assertTrue(received[0] > played * 0.99);
+        assertTrue(played > 3600);
+    }
+
+    @Test
+    public void parsesIsoTimes() {
+        assertEquals(0, ReplayLocationSource.parseIsoTime("1970-01-01T00:00:00Z"));
+        assertEquals(951782400000L, ReplayLocationSource.parseIsoTime("2000-02-29T00:00:00Z"));
+        assertEquals(1539000000123L, ReplayLocationSource.parseIsoTime("2018-10-08T12:00:00.123456Z"));
+        assertEquals(1539000000000L, ReplayLocationSource.parseIsoTime("2018-10-08T08:00:00-04:00"));
+    }
+
+    private static FixPipeline pipelineWith(FixProcessor processor) {
+        FixPipeline pipeline = new FixPipeline(new FixDispatcher());
+        pipeline.add(processor);
+        return pipeline;
+    }
+}
@@ -0,0 +1,127 @@
+package com.bikcrum.locationupdate;
+
+import com.google.android.gms.location.LocationRequest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link RequestSettings}, runs on the development machine (host).
+ */
+public class RequestSettingsTest {
+
+    /**
+     * Records each request handed back, with the listeners asking for {@link #listenerInterval}.
+     */
+    private static final class TestHost implements RequestSettings.Host {
+        long listenerInterval = Long.MAX_VALUE;
+        final List<LocationRequest> issued = new ArrayList<>();
+
+        @Override
+        public long getFastestInterval(long defaultIntervalInMilliseconds) {
+            return Math.min(listenerInterval, defaultIntervalInMilliseconds);
+        }
+
+        @Override
+        public void onRequestChanged(LocationRequest request) {
+            issued.add(request);
+        }
+    }
+
+    private final TestHost host = new TestHost();
+    private final LocationMetrics metrics = new LocationMetrics();
+    private final RequestSettings settings = new RequestSettings(host, metrics);
+
+    @Test
+    public void beforeCreation_settingsAreKeptForTheRequest() {
+        settings.setUpdateIntervalInMilliseconds(20000);
+        settings.setFastestUpdateIntervalInMilliseconds(8000);
+        settings.setMaxWaitTimeInMilliseconds(120000);
+        settings.setPowerProfile(PowerProfile.BALANCED);
+        assertNull(settings.getRequest());
+        assertEquals(0, host.issued.size());
+
+        LocationRequest request = settings.createRequest();
+
+        assertSame(request, settings.getRequest());
+        assertEquals(20000, request.getInterval());
+        assertEquals(8000, request.getFastestInterval());
+        assertEquals(120000, request.getMaxWaitTime());
+        assertEquals(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, request.getPriority());
+        assertEquals(20000, metrics.snapshot().getRequestedIntervalInMilliseconds());
+    }
+
+    @Test
+    public void fastestInterval_reissuesTheRequest() {
+        LocationRequest request = settings.createRequest();
+
+        settings.setFastestUpdateIntervalInMilliseconds(2000);
+
+        assertEquals(1, host.issued.size());
+        assertSame(request, host.issued.get(0));
+        assertEquals(2000, request.getFastestInterval());
+        assertEquals(RequestSettings.UPDATE_INTERVAL_IN_MILLISECONDS, request.getInterval());
+    }
+
+    @Test
+    public void maxWaitTime_reissuesTheRequest() {
+        LocationRequest request = settings.createRequest();
+
+        settings.setMaxWaitTimeInMilliseconds(60000);
+        assertEquals(1, host.issued.size());
+        assertEquals(60000, request.getMaxWaitTime());
+
+        // Play services reports no batching as a wait of one interval.
+        settings.setMaxWaitTimeInMilliseconds(0);
+        assertEquals(2, host.issued.size());
+        assertEquals(request.getInterval(), request.getMaxWaitTime());
+    }
+
+    @Test
+    public void listeners_reissueOnlyWhenTheIntervalChanges() {
+        LocationRequest request = settings.createRequest();
+
+        settings.onListenersChanged();
+        assertEquals(0, host.issued.size());
+
+        host.listenerInterval = 1000;
+        settings.onListenersChanged();
+        assertEquals(1, host.issued.size());
+        assertEquals(1000, request.getInterval());
+        // Never slower than the interval.
+        assertEquals(1000, request.getFastestInterval());
+    }
+
+    @Test
+    public void stayAndDutyCycle_overrideTheMotion() {
+        AdaptiveIntervalScheduler.Tier moving =
+                new AdaptiveIntervalScheduler.Tier(10000, 5000, LocationRequest.PRIORITY_HIGH_ACCURACY, 5);
+        AdaptiveIntervalScheduler.Tier stay =
+                new AdaptiveIntervalScheduler.Tier(300000, 60000, LocationRequest.PRIORITY_LOW_POWER, 50);
+        LocationRequest request = settings.createRequest();
+        settings.setMotionTier(moving);
+        settings.setStayTier(stay);
+        assertEquals(1, host.issued.size());
+
+        settings.setStaying(true);
+        assertEquals(300000, request.getInterval());
+        assertEquals(LocationRequest.PRIORITY_LOW_POWER, request.getPriority());
+        assertEquals(50, request.getSmallestDisplacement(), 0);
+
+        // A burst asks for quick, precise fixes whatever the stay wants.
+        settings.setDutyCycleProfile(PowerProfile.HIGH_ACCURACY, 1000);
+        assertEquals(1000, request.getInterval());
+        assertEquals(LocationRequest.PRIORITY_HIGH_ACCURACY, request.getPriority());
+        assertEquals(0, request.getSmallestDisplacement(), 0);
+
+        settings.setDutyCycleProfile(null, 0);
+        settings.setStaying(false);
+        assertEquals(10000, request.getInterval());
+        assertEquals(5000, request.getFastestInterval());
+        assertEquals(5, host.issued.size());
+    }
+}
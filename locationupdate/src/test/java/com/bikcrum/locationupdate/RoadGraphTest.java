@@ -0,0 +1,169 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link RoadGraph}, runs on the development machine (host).
+ */
+public class RoadGraphTest {
+
+    private static RoadGraph randomGraph(Random random, int nodes, int roads) {
+        RoadGraph.Builder builder = new RoadGraph.Builder();
+        for (int i = 0; i < nodes; i++) {
+            builder.addNode(27.7 + random.nextDouble() * 0.05, 85.3 + random.nextDouble() * 0.05);
+        }
+        for (int i = 0; i < roads; i++) {
+            int from = random.nextInt(nodes);
+            // Mostly short roads, to a node added close to this one.
+            int to = Math.min(nodes - 1, Math.max(0, from + random.nextInt(21) - 10));
+            builder.addRoad(from, to, random.nextInt(4) == 0);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Distance of the point to the edge on a plane around the point, as the graph computes it.
+     */
+    private static double distanceToEdge(RoadGraph graph, int edge, double latitude, double longitude) {
+        double metersPerDegreeLongitude = Geo.metersPerDegreeLongitude(latitude);
+        double x1 = (graph.getNodeLongitude(graph.getEdgeFrom(edge)) - longitude) * metersPerDegreeLongitude;
+        double y1 = (graph.getNodeLatitude(graph.getEdgeFrom(edge)) - latitude) * Geo.METERS_PER_DEGREE;
+        double x2 = (graph.getNodeLongitude(graph.getEdgeTo(edge)) - longitude) * metersPerDegreeLongitude;
+        double y2 = (graph.getNodeLatitude(graph.getEdgeTo(edge)) - latitude) * Geo.METERS_PER_DEGREE;
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double squaredLength = dx * dx + dy * dy;
+        double fraction = squaredLength == 0 ? 0 : Math.max(0, Math.min(1, -(x1 * dx + y1 * dy) / squaredLength));
+        return Math.hypot(x1 + dx * fraction, y1 + dy * fraction);
+    }
+
+    @Test
+    public void findEdges_matchesLinearScan() {
+        Random random = new Random(1);
+        RoadGraph graph = randomGraph(random, 2000, 3000);
+        int[] edges = new int[graph.getEdgeCount()];
+        double[] offsets = new double[graph.getEdgeCount()];
+        double[] distances = new double[graph.getEdgeCount()];
+        for (int q = 0; q < 200; q++) {
+            double latitude = 27.7 + random.nextDouble() * 0.05;
+            double longitude = 85.3 + random.nextDouble() * 0.05;
+            int expected = 0;
+            for (int edge = 0; edge < graph.getEdgeCount(); edge++) {
+                if (distanceToEdge(graph, edge, latitude, longitude) <= 100) {
+                    expected++;
+                }
+            }
+            int count = graph.findEdges(latitude, longitude, 100, edges, offsets, distances);
+            assertEquals(expected, count);
+            for (int i = 0; i < count; i++) {
+                assertEquals(distanceToEdge(graph, edges[i], latitude, longitude), distances[i], 1e-9);
+                if (i > 0) {
+                    assertTrue(distances[i - 1] <= distances[i]);
+                }
+                double pointLatitude = graph.getLatitudeAt(edges[i], offsets[i]);
+                double pointLongitude = graph.getLongitudeAt(edges[i], offsets[i]);
+                assertEquals(distances[i], Distance.haversine(latitude, longitude, pointLatitude, pointLongitude), 0.1);
+            }
+        }
+    }
+
+    @Test
+    public void findEdges_keepsNearest() {
+        RoadGraph graph = randomGraph(new Random(2), 2000, 3000);
+        int[] all = new int[graph.getEdgeCount()];
+        double[] allOffsets = new double[graph.getEdgeCount()];
+        double[] allDistances = new double[graph.getEdgeCount()];
+        int count = graph.findEdges(27.725, 85.325, 200, all, allOffsets, allDistances);
+        assertTrue(count > 8);
+
+        int[] edges = new int[4];
+        double[] offsets = new double[4];
+        double[] distances = new double[4];
+        assertEquals(4, graph.findEdges(27.725, 85.325, 200, edges, offsets, distances));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(allDistances[i], distances[i], 0);
+        }
+    }
+
+    @Test
+    public void build_addsEdgePerDirection() {
+        RoadGraph.Builder builder = new RoadGraph.Builder();
+        int a = builder.addNode(0, 0);
+        int b = builder.addNode(0, 0.001);
+        int c = builder.addNode(0.001, 0.001);
+        builder.addRoad(a, b, false);
+        builder.addRoad(b, c, true);
+        RoadGraph graph = builder.build();
+
+        assertEquals(2, graph.getRoadCount());
+        assertEquals(3, graph.getEdgeCount());
+        for (int edge = 0; edge < graph.getEdgeCount(); edge++) {
+            int road = graph.getEdgeRoad(edge);
+            if (road == 1) {
+                assertEquals(b, graph.getEdgeFrom(edge));
+                assertEquals(c, graph.getEdgeTo(edge));
+            }
+            assertEquals(111.2, graph.getEdgeLengthInMeters(edge), 0.1);
+            assertTrue(edge >= graph.getFirstEdge(graph.getEdgeFrom(edge)));
+            assertTrue(edge < graph.getEndEdge(graph.getEdgeFrom(edge)));
+        }
+    }
+
+    @Test
+    public void byteArray_roundTrips() throws IOException {
+        RoadGraph graph = randomGraph(new Random(3), 1000, 1500);
+        byte[] bytes = graph.toByteArray();
+        RoadGraph restored = RoadGraph.read(new ByteArrayInputStream(bytes));
+
+        assertEquals(graph.getNodeCount(), restored.getNodeCount());
+        for (int node = 0; node < graph.getNodeCount(); node++) {
+            assertEquals(graph.getNodeLatitude(node), restored.getNodeLatitude(node), 1e-6);
+            assertEquals(graph.getNodeLongitude(node), restored.getNodeLongitude(node), 1e-6);
+        }
+        assertEquals(graph.getEdgeCount(), restored.getEdgeCount());
+        for (int edge = 0; edge < graph.getEdgeCount(); edge++) {
+            assertEquals(graph.getEdgeFrom(edge), restored.getEdgeFrom(edge));
+            assertEquals(graph.getEdgeTo(edge), restored.getEdgeTo(edge));
+            assertEquals(graph.getEdgeRoad(edge), restored.getEdgeRoad(edge));
+        }
+        assertArrayEquals(bytes, restored.toByteArray());
+    }
+
+    @Test
+    public void byteArray_isCompactForRoadNetworks() {
+        // A street grid, nodes added along the streets.
+        RoadGraph.Builder builder = new RoadGraph.Builder();
+        for (int row = 0; row < 50; row++) {
+            for (int column = 0; column < 50; column++) {
+                int node = builder.addNode(27.7 + row * 0.001, 85.3 + column * 0.001);
+                if (column > 0) {
+                    builder.addRoad(node - 1, node, false);
+                }
+                if (row > 0) {
+                    builder.addRoad(node - 50, node, false);
+                }
+            }
+        }
+        RoadGraph graph = builder.build();
+        int bytes = graph.toByteArray().length;
+        assertTrue(bytes + " bytes", bytes < 4 * (graph.getNodeCount() + graph.getRoadCount()));
+    }
+
+    @Test(expected = IOException.class)
+    public void fromByteArray_rejectsOtherData() throws IOException {
+        RoadGraph.fromByteArray(new byte[]{(byte) Heatmap.MAGIC, 1, 0, 0});
+    }
+
+    @Test(expected = IOException.class)
+    public void fromByteArray_rejectsTruncatedData() throws IOException {
+        byte[] bytes = randomGraph(new Random(4), 100, 100).toByteArray();
+        RoadGraph.fromByteArray(Arrays.copyOf(bytes, bytes.length - 3));
+    }
+}
@@ -0,0 +1,113 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link SerialExecutor}, runs on the development machine (host).
+ */
+public class SerialExecutorTest {
+
+    @Test
+    public void pool_runsTasksOneAtATimeInOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            SerialExecutor executor = new SerialExecutor(pool);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger overlaps = new AtomicInteger();
+            // Plain fields, like the pipeline's: tasks must see what the previous one wrote.
+            List<Integer> order = new ArrayList<>();
+            int tasks = 20000;
+            CountDownLatch done = new CountDownLatch(tasks);
+            for (int i = 0; i < tasks; i++) {
+                int task = i;
+                executor.execute(() -> {
+                    if (running.incrementAndGet() != 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    order.add(task);
+                    running.decrementAndGet();
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+
+            assertEquals(0, overlaps.get());
+            assertEquals(tasks, order.size());
+            for (int i = 0; i < tasks; i++) {
+                assertEquals(i, (int) order.get(i));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void pipeline_onPool_seesEveryFixOnce() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            FixDispatcher dispatcher = new FixDispatcher();
+            long[] received = new long[1];
+            double[] latitudeSum = new double[1];
+            dispatcher.add((LocationUpdate.OnRawLocationUpdatedListener) (latitude, longitude, accuracy, elapsedRealtimeNanos) -> {
+                received[0]++;
+                latitudeSum[0] += latitude;
+            }, 0, FixDispatcher.THREAD_DELIVERY);
+            FixPipeline pipeline = new FixPipeline(dispatcher);
+            TrackHistory history = new TrackHistory(100000);
+            pipeline.add(history);
+            SerialExecutor executor = new SerialExecutor(pool);
+            int fixes = 10000;
+            for (int i = 0; i < fixes; i++) {
+                double latitude = 27 + i * 1e-6;
+                long nanos = i * 1000000000L;
+                executor.execute(() -> pipeline.onFix(latitude, 85.3240, 5, 0, 0, nanos / 1000000L, nanos));
+            }
+            CountDownLatch done = new CountDownLatch(1);
+            executor.execute(done::countDown);
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+
+            assertEquals(fixes, received[0]);
+            assertEquals(27.0 * fixes + 1e-6 * fixes * (fixes - 1) / 2, latitudeSum[0], 1e-6);
+            assertEquals(fixes, history.size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void rejectedTask_doesNotStallTheNextOnes() {
+        boolean[] reject = {true};
+        List<Runnable> accepted = new ArrayList<>();
+        SerialExecutor executor = new SerialExecutor(command -> {
+            if (reject[0]) {
+                throw new RejectedExecutionException();
+            }
+            accepted.add(command);
+        });
+
+        try {
+            executor.execute(() -> {
+            });
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+
+        reject[0] = false;
+        int[] ran = new int[1];
+        executor.execute(() -> ran[0]++);
+        assertEquals(1, accepted.size());
+        accepted.get(0).run();
+        assertEquals(1, ran[0]);
+    }
+}
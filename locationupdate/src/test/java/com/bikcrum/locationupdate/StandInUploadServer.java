@@ -0,0 +1,100 @@
+package com.bikcrum.locationupdate;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-process stand-in for the upload endpoint, decodes every frame it accepts. Can be switched to
+ * answer 503 to simulate the backend or the network being down.
+ */
+final class StandInUploadServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final List<Double> latitudes = new ArrayList<>();
+    private final List<Long> times = new ArrayList<>();
+    private volatile boolean available = true;
+    private int frames;
+    private int rejected;
+
+    StandInUploadServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/fixes", exchange -> {
+            byte[] body = readAll(exchange.getRequestBody());
+            int code;
+            if (!available) {
+                code = 503;
+                synchronized (this) {
+                    rejected++;
+                }
+            } else if (!HttpUploadTransport.CONTENT_TYPE.equals(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+                code = 415;
+            } else {
+                code = accept(body) ? 204 : 400;
+            }
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    URL getUrl() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/fixes");
+    }
+
+    void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    synchronized List<Double> getLatitudes() {
+        return new ArrayList<>(latitudes);
+    }
+
+    synchronized List<Long> getTimes() {
+        return new ArrayList<>(times);
+    }
+
+    synchronized int getFrames() {
+        return frames;
+    }
+
+    synchronized int getRejected() {
+        return rejected;
+    }
+
+    private synchronized boolean accept(byte[] body) {
+        try {
+            FixFrame.Decoder decoder = new FixFrame.Decoder(body, 0, body.length);
+            while (decoder.next()) {
+                latitudes.add(decoder.getLatitude());
+                times.add(decoder.getTime());
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        frames++;
+        return true;
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
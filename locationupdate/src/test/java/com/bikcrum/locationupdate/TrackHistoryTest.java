@@ -0,0 +1,75 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link TrackHistory}, runs on the development machine (host).
+ */
+public class TrackHistoryTest {
+
+    private static void addFixes(TrackHistory history, int from, int to) {
+        for (int i = from; i < to; i++) {
+            history.add(i, -i, i, i, i, i * 1000L);
+        }
+    }
+
+    @Test
+    public void keepsOnlyTheLastFixes() {
+        TrackHistory history = new TrackHistory(10);
+        addFixes(history, 0, 25);
+
+        assertEquals(10, history.size());
+        assertEquals(15, history.getOldestSequence());
+        assertEquals(25, history.getNextSequence());
+        assertEquals(15.0, history.getLatitude(15), 0);
+        assertEquals(-24.0, history.getLongitude(24), 0);
+        assertFalse(history.isRetained(14));
+        assertTrue(history.isRetained(15));
+        assertFalse(history.isRetained(25));
+    }
+
+    @Test
+    public void snapshot_byTimeRange() {
+        TrackHistory history = new TrackHistory(100);
+        addFixes(history, 0, 50);
+
+        TrackHistory.Snapshot snapshot = history.snapshot(10500, 20000, null);
+
+        assertEquals(9, snapshot.size());
+        assertEquals(11.0, snapshot.getLatitudes()[0], 0);
+        assertEquals(19000, snapshot.getTimes()[8]);
+    }
+
+    @Test
+    public void snapshot_reusesArrays() {
+        TrackHistory history = new TrackHistory(100);
+        addFixes(history, 0, 50);
+
+        TrackHistory.Snapshot snapshot = history.snapshot(null);
+        double[] latitudes = snapshot.getLatitudes();
+        history.snapshot(0, 5000, snapshot);
+
+        assertEquals(5, snapshot.size());
+        assertSame(latitudes, snapshot.getLatitudes());
+    }
+
+    @Test
+    public void snapshot_isConsistentWhileWriting() throws InterruptedException {
+        TrackHistory history = new TrackHistory(64);
+        Thread writer = new Thread(() -> addFixes(history, 0, 2000000));
+        writer.start();
+
+        TrackHistory.Snapshot snapshot = null;
+        while (writer.isAlive()) {
+            snapshot = history.snapshot(snapshot);
+            for (int i = 1; i < snapshot.size(); i++) {
+                // Each fix was written with latitude == index, consecutive entries must follow.
+                assertEquals(snapshot.getLatitudes()[i - 1] + 1, snapshot.getLatitudes()[i], 0);
+                assertEquals((long) snapshot.getLatitudes()[i] * 1000L, snapshot.getTimes()[i]);
+            }
+        }
+        writer.join();
+    }
+}
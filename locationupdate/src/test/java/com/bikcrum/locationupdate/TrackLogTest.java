@@ -0,0 +1,100 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link TrackLog}, runs on the development machine (host).
+ */
+public class TrackLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void append(TrackLog log, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            log.append(i, -i, 5f, 1.5f, 90f, i * 1000L, i * 1000000000L);
+        }
+    }
+
+    private static int readAll(File directory) throws IOException {
+        TrackLog.Reader reader = new TrackLog.Reader(directory);
+        int count = 0;
+        while (reader.next()) {
+            assertEquals(count, reader.getLatitude(), 0);
+            assertEquals(-count, reader.getLongitude(), 0);
+            assertEquals(5f, reader.getAccuracy(), 0);
+            assertEquals(1.5f, reader.getSpeed(), 0);
+            assertEquals(90f, reader.getBearing(), 0);
+            assertEquals(count * 1000L, reader.getTime());
+            assertEquals(count * 1000000000L, reader.getElapsedRealtimeNanos());
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void readsBackAcrossSegments() throws IOException {
+        File directory = folder.newFolder();
+        TrackLog log = new TrackLog(directory, 100);
+        append(log, 0, 250);
+        log.close();
+
+        assertEquals(3, directory.list().length);
+        assertEquals(250, readAll(directory));
+    }
+
+    @Test
+    public void continuesAfterRestart() throws IOException {
+        File directory = folder.newFolder();
+        TrackLog log = new TrackLog(directory, 100);
+        append(log, 0, 150);
+        // No close, as if the process died.
+
+        log = new TrackLog(directory, 100);
+        append(log, 150, 220);
+        log.close();
+
+        assertEquals(220, readAll(directory));
+    }
+
+    @Test
+    public void recoversFromTornRecord() throws IOException {
+        File directory = folder.newFolder();
+        TrackLog log = new TrackLog(directory, 100);
+        append(log, 0, 50);
+        log.close();
+
+        // Damage the last record as if the process died half way through writing it.
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, "00000000.seg"), "rw")) {
+            file.seek(16 + 49 * TrackLog.RECORD_SIZE + 3);
+            file.write(0x7f);
+        }
+        assertEquals(49, readAll(directory));
+
+        log = new TrackLog(directory, 100);
+        append(log, 49, 60);
+        log.close();
+        assertEquals(60, readAll(directory));
+    }
+
+    @Test
+    public void rejectsSegmentsThatDoNotFitABuffer() throws IOException {
+        File directory = folder.newFolder();
+        for (int recordsPerSegment : new int[]{0, -1, 44739243, Integer.MAX_VALUE}) {
+            try {
+                new TrackLog(directory, recordsPerSegment);
+                fail("accepted " + recordsPerSegment);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertEquals(0, directory.list().length);
+    }
+}
@@ -0,0 +1,102 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link TrackSimplifier}, runs on the development machine (host).
+ */
+public class TrackSimplifierTest {
+
+    private static final double START_LATITUDE = 27.7172;
+    private static final double START_LONGITUDE = 85.3240;
+
+    private final Fix fix = new Fix();
+
+    private void feed(TrackSimplifier simplifier, double northMeters, double eastMeters, int second) {
+        double latitude = START_LATITUDE + northMeters / Geo.METERS_PER_DEGREE;
+        double longitude = START_LONGITUDE + eastMeters / Geo.metersPerDegreeLongitude(START_LATITUDE);
+        fix.set(null, latitude, longitude, 5, 0, 0, second * 1000L, second * 1000000000L);
+        assertTrue(simplifier.process(fix));
+    }
+
+    private static double north(double latitude) {
+        return (latitude - START_LATITUDE) * Geo.METERS_PER_DEGREE;
+    }
+
+    private static double east(double longitude) {
+        return (longitude - START_LONGITUDE) * Geo.metersPerDegreeLongitude(START_LATITUDE);
+    }
+
+    /**
+     * Distance from point p to the segment a-b, in a plane.
+     */
+    private static double distanceToSegment(double pn, double pe, double an, double ae, double bn, double be) {
+        double dn = bn - an, de = be - ae;
+        double lengthSquared = dn * dn + de * de;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, ((pn - an) * dn + (pe - ae) * de) / lengthSquared));
+        double n = an + t * dn - pn, e = ae + t * de - pe;
+        return Math.sqrt(n * n + e * e);
+    }
+
+    @Test
+    public void keepsEveryFixWithinTolerance() {
+        TrackHistory kept = new TrackHistory(10000);
+        TrackSimplifier simplifier = new TrackSimplifier(kept, 5);
+        simplifier.setMaxDelayInMilliseconds(Long.MAX_VALUE / 1000000L);
+
+        // City walk at 1 Hz: straight streets with turns, a little GPS noise.
+        Random random = new Random(3);
+        int seconds = 3600;
+        double[] norths = new double[seconds];
+        double[] easts = new double[seconds];
+        double north = 0, east = 0, heading = 0;
+        for (int second = 0; second < seconds; second++) {
+            if (second % 120 == 0) {
+                heading += (random.nextBoolean() ? 1 : -1) * Math.PI / 2 * random.nextDouble();
+            }
+            north += Math.cos(heading) * 1.4;
+            east += Math.sin(heading) * 1.4;
+            norths[second] = north + random.nextGaussian();
+            easts[second] = east + random.nextGaussian();
+            feed(simplifier, norths[second], easts[second], second);
+        }
+        simplifier.flush();
+
+        TrackHistory.Snapshot snapshot = kept.snapshot(null);
+        assertEquals(simplifier.getOutputCount(), snapshot.size());
+        double reduction = (double) simplifier.getInputCount() / simplifier.getOutputCount();
+        assertTrue("reduction " + reduction, reduction >= 5);
+        assertEquals(0, snapshot.getTimes()[0]);
+        assertEquals((seconds - 1) * 1000L, snapshot.getTimes()[snapshot.size() - 1]);
+
+        int segment = 0;
+        for (int second = 0; second < seconds; second++) {
+            while (snapshot.getTimes()[segment + 1] < second * 1000L) {
+                segment++;
+            }
+            double distance = distanceToSegment(norths[second], easts[second],
+                    north(snapshot.getLatitudes()[segment]), east(snapshot.getLongitudes()[segment]),
+                    north(snapshot.getLatitudes()[segment + 1]), east(snapshot.getLongitudes()[segment + 1]));
+            assertTrue("fix " + second + " is " + distance + " m off", distance <= 5.01);
+        }
+    }
+
+    @Test
+    public void keepsAFixAtLeastEveryMaxDelay() {
+        TrackHistory kept = new TrackHistory(100);
+        TrackSimplifier simplifier = new TrackSimplifier(kept, 5);
+        simplifier.setMaxDelayInMilliseconds(60000);
+        for (int second = 0; second <= 600; second++) {
+            feed(simplifier, second * 10, 0, second);
+        }
+        TrackHistory.Snapshot snapshot = kept.snapshot(null);
+        assertEquals(11, snapshot.size());
+        for (int i = 1; i < snapshot.size(); i++) {
+            assertEquals(60000, snapshot.getTimes()[i] - snapshot.getTimes()[i - 1]);
+        }
+    }
+}
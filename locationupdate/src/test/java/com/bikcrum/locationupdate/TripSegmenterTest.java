@@ -0,0 +1,97 @@
+package com.bikcrum.locationupdate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link TripSegmenter}, runs on the development machine (host).
+ */
+public class TripSegmenterTest {
+
+    private static final long SECOND = 1000000000L;
+    // About 11 m of latitude.
+    private static final double STEP = 1e-4;
+
+    private final TripSegmenter segmenter = new TripSegmenter();
+    private final List<String> events = new ArrayList<>();
+    private double tripDistance;
+    private long seconds;
+
+    public TripSegmenterTest() {
+        segmenter.setStayRadiusInMeters(50);
+        segmenter.setMinStayDurationInMilliseconds(300000);
+        segmenter.setOnSegmentListener(new TripSegmenter.OnSegmentListener() {
+            @Override
+            public void onStayStarted(double latitude, double longitude, long arrivalTime) {
+                events.add("stay " + arrivalTime / 1000);
+            }
+
+            @Override
+            public void onStayEnded(double latitude, double longitude, long arrivalTime, long departureTime) {
+                events.add("left " + departureTime / 1000);
+            }
+
+            @Override
+            public void onTripStarted(long departureTime) {
+                events.add("trip " + departureTime / 1000);
+            }
+
+            @Override
+            public void onTripEnded(long departureTime, long arrivalTime, double distanceInMeters) {
+                events.add("arrived " + arrivalTime / 1000);
+                tripDistance = distanceInMeters;
+            }
+        });
+    }
+
+    /**
+     * Adds one fix per 10 s for the given time, at the position or moving north by a step per fix.
+     */
+    private double run(double latitude, long durationInSeconds, boolean moving, float accuracy) {
+        for (long end = seconds + durationInSeconds; seconds < end; seconds += 10) {
+            segmenter.add(latitude, 85.3240, accuracy, seconds * 1000, seconds * SECOND);
+            if (moving) {
+                latitude += STEP;
+            }
+        }
+        return latitude;
+    }
+
+    @Test
+    public void stayTripStay_isSegmented() {
+        double latitude = run(27.7172, 600, false, 5);
+        assertEquals(TripSegmenter.Segment.STAY, segmenter.getSegment());
+        latitude = run(latitude, 300, true, 5);
+        assertEquals(TripSegmenter.Segment.TRIP, segmenter.getSegment());
+        run(latitude, 400, false, 5);
+        assertEquals(TripSegmenter.Segment.STAY, segmenter.getSegment());
+
+        // The stays are dated back to their first fix. The trip departs at the last fix within the
+        // radius of home, 5 steps of 11 m away.
+        assertEquals("[stay 0, left 650, trip 650, arrived 900, stay 900]", events.toString());
+        assertEquals(25 * STEP * Geo.METERS_PER_DEGREE, tripDistance, 15);
+    }
+
+    @Test
+    public void shortStop_belongsToTrip() {
+        double latitude = run(27.7172, 200, true, 5);
+        latitude = run(latitude, 120, false, 5);
+        run(latitude, 200, true, 5);
+        assertEquals("[trip 0]", events.toString());
+        assertEquals(TripSegmenter.Segment.TRIP, segmenter.getSegment());
+    }
+
+    @Test
+    public void inaccurateFix_doesNotEndStay() {
+        run(27.7172, 600, false, 5);
+        // 80 m off, but accurate to only 60 m.
+        segmenter.add(27.7172 + 8 * STEP, 85.3240, 60, seconds * 1000, seconds * SECOND);
+        seconds += 10;
+        run(27.7172, 60, false, 5);
+        assertEquals("[stay 0]", events.toString());
+    }
+}